@@ -0,0 +1,679 @@
+package simpledb;
+
+import java.io.*;
+import java.text.ParseException;
+import java.util.*;
+
+/**
+ * BTreeBulkLoader builds a B+ tree bottom up from the tuples of another
+ * file, e.g. to create an index over an existing table. The tuples are
+ * sorted on the key field with an external merge sort, so the size of the
+ * table is not bounded by the heap, and the pages are then packed level by
+ * level in a single pass over the sorted tuples.
+ * <p>
+ * The shape of the tree is computed from the number of tuples before any
+ * page is written: the leaves take page numbers 1 to n in key order, then
+ * come the internal pages of each level, and the root comes last. Every page
+ * therefore knows its parent and siblings when it is written, and the leaves
+ * are laid out sequentially on disk. Pages are filled up to the fill factor,
+ * except for the last two pages of a level, which share what is left so that
+ * neither is below minimum occupancy.
+ * <p>
+ * Internal pages with string keys hold as many entries as the bytes of their
+ * truncated separators allow (see {@link BTreeInternalPage#getNumEmptySlots}),
+ * so the sizes of the separators between the leaves are collected in a first
+ * pass over the sorted tuples before the shape is computed.
+ * <p>
+ * Pages are written straight to the file, bypassing the buffer pool and the
+ * log, so the B+ tree file must be empty.
+ */
+public class BTreeBulkLoader {
+
+	/** Default number of tuples sorted in memory at a time */
+	public static final int DEFAULT_RUN_TUPLES = 1 << 16;
+
+	/** Maximum number of sorted runs merged at a time */
+	static final int MERGE_FANIN = 64;
+
+	/** Number of pages handed to {@link BTreeFile#writePages} at a time */
+	static final int WRITE_BATCH = 64;
+
+	private final BTreeFile bf;
+	private final double fillFactor;
+	private final int runTuples;
+	private final TupleDesc td;
+	private final Type[] types;
+	private final int[] keyFields;
+	private final KeyType keyType;
+
+	/**
+	 * Create a loader for the given, empty, B+ tree file.
+	 *
+	 * @param bf - the B+ tree file to fill
+	 * @param fillFactor - the fraction of each page to fill, between 0.5 and 1
+	 * @param runTuples - the number of tuples to sort in memory at a time
+	 */
+	public BTreeBulkLoader(BTreeFile bf, double fillFactor, int runTuples) {
+		if(fillFactor <= 0 || fillFactor > 1) {
+			throw new IllegalArgumentException("fill factor out of range: " + fillFactor);
+		}
+		this.bf = bf;
+		this.fillFactor = fillFactor;
+		this.runTuples = runTuples;
+		this.td = bf.getTupleDesc();
+		this.types = new Type[td.numFields()];
+		for(int i = 0; i < types.length; i++) {
+			types[i] = td.getFieldType(i);
+		}
+		this.keyFields = bf.keyFields();
+		this.keyType = bf.getKeyType();
+	}
+
+	public BTreeBulkLoader(BTreeFile bf, double fillFactor) {
+		this(bf, fillFactor, DEFAULT_RUN_TUPLES);
+	}
+
+	/**
+	 * Fill the B+ tree file with the tuples of another file.
+	 *
+	 * @param tid - the transaction reading the source file
+	 * @param source - the file to read the tuples from, with the same tuple
+	 *   descriptor as the B+ tree file
+	 * @throws DbException if the B+ tree file is not empty
+	 */
+	public void load(TransactionId tid, DbFile source)
+			throws IOException, DbException, TransactionAbortedException {
+		load(source.iterator(tid));
+	}
+
+	/**
+	 * Fill the B+ tree file with the tuples of an iterator, which is opened
+	 * and closed here.
+	 *
+	 * @param it - the tuples, with the same tuple descriptor as the B+ tree file
+	 * @throws DbException if the B+ tree file is not empty
+	 */
+	public void load(DbFileIterator it)
+			throws IOException, DbException, TransactionAbortedException {
+		if(bf.numPages() > 0) {
+			throw new DbException("bulk loading needs an empty B+ tree file");
+		}
+		it.open();
+		SortedTuples sorted;
+		try {
+			sorted = sort(it);
+		} finally {
+			it.close();
+		}
+		try {
+			build(sorted);
+		} finally {
+			sorted.close();
+		}
+	}
+
+	// ------------------------------------------------------------------
+	// external sort
+	// ------------------------------------------------------------------
+
+	/**
+	 * The tuples of the source file in key order, read once.
+	 */
+	private static abstract class SortedTuples {
+		/** the number of tuples */
+		int count;
+
+		abstract Tuple next() throws IOException;
+
+		/** @return another reader over the same tuples, which leaves them in place */
+		abstract SortedTuples reread() throws IOException;
+
+		void close() throws IOException {
+		}
+	}
+
+	/**
+	 * Sort the tuples of the iterator. If they all fit in a single run they
+	 * are sorted in memory; otherwise runs are written to temporary files
+	 * and merged, MERGE_FANIN at a time, until the last merge can feed the
+	 * build directly.
+	 */
+	private SortedTuples sort(DbFileIterator it)
+			throws IOException, DbException, TransactionAbortedException {
+		ArrayList<Run> runs = new ArrayList<Run>();
+		ArrayList<Tuple> buf = new ArrayList<Tuple>();
+		while(it.hasNext()) {
+			buf.add(it.next());
+			if(buf.size() == runTuples) {
+				runs.add(writeRun(buf));
+				buf.clear();
+			}
+		}
+		if(runs.isEmpty()) {
+			Collections.sort(buf, new BTreeFileEncoder.TupleComparator(keyFields));
+			return inMemory(buf);
+		}
+		if(!buf.isEmpty()) {
+			runs.add(writeRun(buf));
+		}
+		buf = null;
+
+		while(runs.size() > MERGE_FANIN) {
+			ArrayList<Run> merged = new ArrayList<Run>();
+			for(int i = 0; i < runs.size(); i += MERGE_FANIN) {
+				List<Run> group = runs.subList(i, Math.min(i + MERGE_FANIN, runs.size()));
+				if(group.size() == 1) {
+					merged.add(group.get(0));
+					continue;
+				}
+				Merge merge = new Merge(group);
+				Run run = new Run(merge.count);
+				DataOutputStream dos = run.writer();
+				try {
+					for(int n = 0; n < merge.count; n++) {
+						writeTuple(dos, merge.next());
+					}
+				} finally {
+					dos.close();
+					merge.close();
+				}
+				merged.add(run);
+			}
+			runs = merged;
+		}
+		return new Merge(runs);
+	}
+
+	private static SortedTuples inMemory(final ArrayList<Tuple> buf) {
+		final Iterator<Tuple> tuples = buf.iterator();
+		SortedTuples sorted = new SortedTuples() {
+			Tuple next() {
+				return tuples.next();
+			}
+
+			SortedTuples reread() {
+				return inMemory(buf);
+			}
+		};
+		sorted.count = buf.size();
+		return sorted;
+	}
+
+	/**
+	 * A sorted run of tuples in a temporary file
+	 */
+	private class Run {
+		final File file;
+		final int count;
+
+		Run(int count) throws IOException {
+			this.file = File.createTempFile("btreerun", ".dat");
+			this.file.deleteOnExit();
+			this.count = count;
+		}
+
+		DataOutputStream writer() throws IOException {
+			return new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+		}
+
+		DataInputStream reader() throws IOException {
+			return new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+		}
+	}
+
+	private Run writeRun(ArrayList<Tuple> tuples) throws IOException {
+		Collections.sort(tuples, new BTreeFileEncoder.TupleComparator(keyFields));
+		Run run = new Run(tuples.size());
+		DataOutputStream dos = run.writer();
+		try {
+			for(Tuple t : tuples) {
+				writeTuple(dos, t);
+			}
+		} finally {
+			dos.close();
+		}
+		return run;
+	}
+
+	private void writeTuple(DataOutputStream dos, Tuple t) throws IOException {
+		for(int i = 0; i < td.numFields(); i++) {
+			t.getField(i).serialize(dos);
+		}
+	}
+
+	private Tuple readTuple(DataInputStream dis) throws IOException {
+		Tuple t = new Tuple(td);
+		for(int i = 0; i < td.numFields(); i++) {
+			try {
+				t.setField(i, types[i].parse(dis));
+			} catch(ParseException e) {
+				throw new IOException("corrupt sorted run", e);
+			}
+		}
+		return t;
+	}
+
+	/**
+	 * A k-way merge of sorted runs, which deletes the runs once read
+	 */
+	private class Merge extends SortedTuples {
+		private final List<Run> runs;
+		private final boolean delete;
+		private final DataInputStream[] readers;
+		private final int[] left;
+		// the index of the run each head tuple came from, ordered by key
+		private final PriorityQueue<Map.Entry<Tuple, Integer>> heads;
+
+		Merge(List<Run> runs) throws IOException {
+			this(runs, true);
+		}
+
+		Merge(List<Run> runs, boolean delete) throws IOException {
+			this.runs = new ArrayList<Run>(runs);
+			this.delete = delete;
+			this.readers = new DataInputStream[runs.size()];
+			this.left = new int[runs.size()];
+			final BTreeFileEncoder.TupleComparator cmp = new BTreeFileEncoder.TupleComparator(keyFields);
+			this.heads = new PriorityQueue<Map.Entry<Tuple, Integer>>(Math.max(1, runs.size()),
+					new Comparator<Map.Entry<Tuple, Integer>>() {
+						public int compare(Map.Entry<Tuple, Integer> a, Map.Entry<Tuple, Integer> b) {
+							return cmp.compare(a.getKey(), b.getKey());
+						}
+					});
+			for(int i = 0; i < runs.size(); i++) {
+				readers[i] = runs.get(i).reader();
+				left[i] = runs.get(i).count;
+				count += left[i];
+				advance(i);
+			}
+		}
+
+		private void advance(int i) throws IOException {
+			if(left[i] > 0) {
+				left[i]--;
+				heads.add(new AbstractMap.SimpleEntry<Tuple, Integer>(readTuple(readers[i]), i));
+			}
+		}
+
+		Tuple next() throws IOException {
+			Map.Entry<Tuple, Integer> head = heads.poll();
+			advance(head.getValue());
+			return head.getKey();
+		}
+
+		SortedTuples reread() throws IOException {
+			return new Merge(runs, false);
+		}
+
+		void close() throws IOException {
+			for(int i = 0; i < readers.length; i++) {
+				readers[i].close();
+				if(delete) {
+					runs.get(i).file.delete();
+				}
+			}
+		}
+	}
+
+	// ------------------------------------------------------------------
+	// bottom-up build
+	// ------------------------------------------------------------------
+
+	/**
+	 * The shape of one level of the tree: its pages hold cap items each
+	 * (tuples for leaves, children for internal pages), except for the
+	 * last one or two pages.
+	 */
+	private static class Level {
+		final int firstPage;
+		final int pages;
+		final int full;
+		final int cap;
+		final int[] tail;
+		// the first item of each page then the number of items, for levels
+		// whose pages hold different numbers of items
+		final int[] starts;
+
+		/**
+		 * @param firstPage - the page number of the first page of the level
+		 * @param count - the number of items on the level
+		 * @param cap - the number of items to put on a page
+		 * @param max - the number of items a page can hold
+		 * @param oddFirst - whether the second to last page takes the odd
+		 *   item when the last two pages share the rest
+		 */
+		Level(int firstPage, int count, int cap, int max, boolean oddFirst) {
+			this.firstPage = firstPage;
+			this.cap = cap;
+			this.starts = null;
+			if(count <= cap) {
+				full = 0;
+				tail = new int[] { count };
+			}
+			else {
+				// full pages until between one and two pages of items are left
+				full = (count + cap - 1) / cap - 2;
+				int rest = count - full * cap;
+				if(rest <= max) {
+					tail = new int[] { rest };
+				}
+				else if(oddFirst) {
+					tail = new int[] { rest - rest / 2, rest / 2 };
+				}
+				else {
+					tail = new int[] { rest / 2, rest - rest / 2 };
+				}
+			}
+			pages = full + tail.length;
+		}
+
+		/**
+		 * @param firstPage - the page number of the first page of the level
+		 * @param starts - the first item of each page, then the number of items
+		 */
+		Level(int firstPage, int[] starts) {
+			this.firstPage = firstPage;
+			this.starts = starts;
+			this.pages = starts.length - 1;
+			this.full = 0;
+			this.cap = 0;
+			this.tail = null;
+		}
+
+		/** @return the number of items on the given page of the level */
+		int size(int page) {
+			if(starts != null) {
+				return starts[page + 1] - starts[page];
+			}
+			return page < full ? cap : tail[page - full];
+		}
+
+		/** @return the page of the level holding the given item */
+		int pageOf(int item) {
+			if(starts != null) {
+				int i = Arrays.binarySearch(starts, item);
+				return i >= 0 ? i : -i - 2;
+			}
+			if(item < full * cap) {
+				return item / cap;
+			}
+			return item - full * cap < tail[0] ? full : full + 1;
+		}
+	}
+
+	/**
+	 * The internal page of a level being filled
+	 */
+	private static class Pending {
+		int page;
+		ArrayList<BTreeEntry> entries = new ArrayList<BTreeEntry>();
+		BTreePageId lastChild;
+		Field firstKey;
+		int children;
+		// the previous page of the level, written once its high key is known
+		BTreeInternalPage full;
+	}
+
+	private ArrayList<Level> levels;
+	private Pending[] pending;
+	private ArrayList<Page> batch;
+
+	/**
+	 * Compute the shape of the tree for the sorted tuples, with the leaves
+	 * first and the root last.
+	 */
+	private ArrayList<Level> shape(SortedTuples sorted) throws IOException {
+		int count = sorted.count;
+		int pageSize = BufferPool.getPageSize();
+		int nrecbytes = td.getSize();
+		// pointerbytes: page LSN, left sibling pointer, right sibling pointer, parent pointer, high key
+		int leafpointerbytes = BTreeLeafPage.LSN_SIZE + 3 * BTreeLeafPage.INDEX_SIZE
+				+ BTreePage.getHighKeySize(keyType);
+		int maxTuples = (pageSize * 8 - leafpointerbytes * 8) / (nrecbytes * 8 + 1);
+		int maxEntries = BTreeInternalPage.getMaxEntries(keyType);
+
+		// pages never start below the minimum occupancy of BTreeFile
+		int tupleCap = Math.max((int) (fillFactor * maxTuples), maxTuples / 2);
+		int childCap = Math.max((int) (fillFactor * maxEntries), maxEntries / 2) + 1;
+
+		ArrayList<Level> levels = new ArrayList<Level>();
+		Level level = new Level(1, count, tupleCap, maxTuples, false);
+		levels.add(level);
+		if(BTreeInternalPage.compressesKeys(keyType)) {
+			int[] sizes = separatorSizes(sorted.reread(), level);
+			while(level.pages > 1) {
+				int[] starts = pack(sizes, level.pages);
+				level = new Level(level.firstPage + level.pages, starts);
+				levels.add(level);
+				// the first key of a page is the key of its entry in the parent
+				int[] up = new int[level.pages];
+				for(int i = 0; i < up.length; i++) {
+					up[i] = sizes[starts[i]];
+				}
+				sizes = up;
+			}
+			return levels;
+		}
+		while(level.pages > 1) {
+			level = new Level(level.firstPage + level.pages, level.pages, childCap, maxEntries + 1, true);
+			levels.add(level);
+		}
+		return levels;
+	}
+
+	/**
+	 * @return the size of the entry of each leaf in its parent, see
+	 *   {@link BTreeInternalPage#getEntrySize}: that of the separator between
+	 *   its first key and the last key of the previous leaf
+	 */
+	private int[] separatorSizes(SortedTuples tuples, Level leaves) throws IOException {
+		int[] sizes = new int[leaves.pages];
+		Field lastKey = null;
+		try {
+			for(int p = 0; p < leaves.pages; p++) {
+				Tuple t = tuples.next();
+				sizes[p] = BTreeInternalPage.getEntrySize(BTreeInternalPage.getSeparator(lastKey, bf.getKey(t)));
+				for(int i = leaves.size(p); i > 1; i--) {
+					t = tuples.next();
+				}
+				lastKey = bf.getKey(t);
+			}
+		} finally {
+			tuples.close();
+		}
+		return sizes;
+	}
+
+	/**
+	 * Split the children of an internal level into pages by the bytes of
+	 * their entries. Each page takes children until it has no more empty
+	 * slots than the fill factor leaves, as
+	 * {@link BTreeInternalPage#getNumEmptySlots} counts them; its first child
+	 * takes no entry. The last page then takes children from the previous
+	 * one until it is at minimum occupancy, unless both fit on one page.
+	 *
+	 * @param sizes - the size of the entry of each child
+	 * @param count - the number of children
+	 * @return the first child of each page, then the number of children
+	 */
+	private int[] pack(int[] sizes, int count) {
+		int max = BTreeInternalPage.getMaxEntries(keyType);
+		int fullEmpty = max - Math.max((int) (fillFactor * max), max / 2);
+		int minEmpty = max - max / 2;
+		ArrayList<Integer> starts = new ArrayList<Integer>();
+		starts.add(0);
+		int first = 0;
+		int bytes = 0;
+		for(int i = 1; i < count; i++) {
+			int entries = i - first;
+			if(entries < BTreeInternalPage.getNumSlots(keyType)
+					&& bytes + sizes[i] <= BTreeInternalPage.getEntryBytes(keyType)
+					&& BTreeInternalPage.getNumEmptySlots(keyType, entries, bytes + sizes[i]) >= fullEmpty) {
+				bytes += sizes[i];
+			}
+			else {
+				starts.add(i);
+				first = i;
+				bytes = 0;
+			}
+		}
+
+		int pages = starts.size();
+		if(pages > 1 && emptySlots(sizes, first, count) > minEmpty) {
+			int prev = starts.get(pages - 2);
+			if(fits(sizes, prev, count)) {
+				starts.remove(pages - 1);
+			}
+			else {
+				// the last page needs an entry, whatever the previous one has left
+				while(emptySlots(sizes, first, count) > minEmpty && first - 1 > prev + 1
+						&& (first == count - 1 || emptySlots(sizes, prev, first - 1) <= minEmpty)) {
+					first--;
+				}
+				starts.set(pages - 1, first);
+			}
+		}
+
+		int[] result = new int[starts.size() + 1];
+		for(int i = 0; i < starts.size(); i++) {
+			result[i] = starts.get(i);
+		}
+		result[starts.size()] = count;
+		return result;
+	}
+
+	/** @return the bytes of the entries of a page holding children from to to - 1 */
+	private static int entryBytes(int[] sizes, int from, int to) {
+		int bytes = 0;
+		for(int i = from + 1; i < to; i++) {
+			bytes += sizes[i];
+		}
+		return bytes;
+	}
+
+	private boolean fits(int[] sizes, int from, int to) {
+		return to - from - 1 < BTreeInternalPage.getNumSlots(keyType)
+				&& entryBytes(sizes, from, to) <= BTreeInternalPage.getEntryBytes(keyType);
+	}
+
+	private int emptySlots(int[] sizes, int from, int to) {
+		return BTreeInternalPage.getNumEmptySlots(keyType, to - from - 1, entryBytes(sizes, from, to));
+	}
+
+	private BTreePageId parentOf(int l, int page) {
+		if(l == levels.size() - 1) {
+			return BTreeRootPtrPage.getId(bf.getId());
+		}
+		Level up = levels.get(l + 1);
+		return new BTreePageId(bf.getId(), up.firstPage + up.pageOf(page), BTreePageId.INTERNAL);
+	}
+
+	private void write(Page page) throws IOException {
+		batch.add(page);
+		if(batch.size() == WRITE_BATCH) {
+			bf.writePages(batch);
+			batch.clear();
+		}
+	}
+
+	private void build(SortedTuples sorted) throws IOException, DbException {
+		int tableid = bf.getId();
+		int pageSize = BufferPool.getPageSize();
+		levels = shape(sorted);
+		pending = new Pending[levels.size()];
+		for(int l = 1; l < levels.size(); l++) {
+			pending[l] = new Pending();
+		}
+		batch = new ArrayList<Page>();
+
+		Level leaves = levels.get(0);
+		Level root = levels.get(levels.size() - 1);
+		int rootPage = root.firstPage;
+		int rootCategory = (levels.size() > 1 ? BTreePageId.INTERNAL : BTreePageId.LEAF);
+		bf.writePage(new BTreeRootPtrPage(BTreeRootPtrPage.getId(tableid),
+				BTreeFileEncoder.convertToRootPtrPage(rootPage, rootCategory, 0)));
+
+		Field lastKey = null;
+		BTreeLeafPage prev = null;
+		for(int p = 0; p < leaves.pages; p++) {
+			ArrayList<Tuple> tuples = new ArrayList<Tuple>();
+			for(int i = leaves.size(p); i > 0; i--) {
+				tuples.add(sorted.next());
+			}
+			BTreePageId pid = new BTreePageId(tableid, leaves.firstPage + p, BTreePageId.LEAF);
+			BTreeLeafPage page = new BTreeLeafPage(pid, BTreeFileEncoder.convertToLeafPage(tuples,
+					pageSize, types.length, types, keyFields), keyFields);
+			page.setParentId(parentOf(0, p));
+			if(p > 0) {
+				page.setLeftSiblingId(new BTreePageId(tableid, pid.getPageNumber() - 1, BTreePageId.LEAF));
+			}
+			if(p < leaves.pages - 1) {
+				page.setRightSiblingId(new BTreePageId(tableid, pid.getPageNumber() + 1, BTreePageId.LEAF));
+			}
+			if(levels.size() > 1) {
+				Field key = BTreeInternalPage.getSeparator(lastKey, bf.getKey(tuples.get(0)));
+				if(prev != null) {
+					prev.setHighKey(key);
+					write(prev);
+				}
+				addChild(1, pid, key);
+				lastKey = bf.getKey(tuples.get(tuples.size() - 1));
+			}
+			prev = page;
+		}
+		// the last page of each level has no high key
+		write(prev);
+		for(int l = 1; l < levels.size(); l++) {
+			write(pending[l].full);
+		}
+		bf.writePages(batch);
+		batch = null;
+	}
+
+	/**
+	 * Add the next child to level l, writing out the page being filled when
+	 * it is complete and adding it to the level above in turn
+	 *
+	 * @param firstKey - the key separating the child from the previous one,
+	 *        no greater than the smallest key under the child
+	 */
+	private void addChild(int l, BTreePageId child, Field firstKey)
+			throws IOException, DbException {
+		Pending p = pending[l];
+		Level level = levels.get(l);
+		if(p.children == 0) {
+			p.firstKey = firstKey;
+			if(p.full != null) {
+				p.full.setHighKey(firstKey);
+				write(p.full);
+			}
+		}
+		else {
+			// the first key of a child separates it from the previous one
+			p.entries.add(new BTreeEntry(firstKey, p.lastChild, child));
+		}
+		p.lastChild = child;
+		p.children++;
+		if(p.children < level.size(p.page)) {
+			return;
+		}
+
+		BTreePageId pid = new BTreePageId(bf.getId(), level.firstPage + p.page, BTreePageId.INTERNAL);
+		int childCategory = (l == 1 ? BTreePageId.LEAF : BTreePageId.INTERNAL);
+		BTreeInternalPage page = new BTreeInternalPage(pid, BTreeFileEncoder.convertToInternalPage(p.entries,
+				BufferPool.getPageSize(), keyType, childCategory), keyFields);
+		page.setParentId(parentOf(l, p.page));
+		if(p.page < level.pages - 1) {
+			page.setRightSiblingId(new BTreePageId(bf.getId(), pid.getPageNumber() + 1, BTreePageId.INTERNAL));
+		}
+		p.full = page;
+
+		Field pageKey = p.firstKey;
+		p.page++;
+		p.entries = new ArrayList<BTreeEntry>();
+		p.children = 0;
+		if(l < levels.size() - 1) {
+			addChild(l + 1, pid, pageKey);
+		}
+	}
+}
@@ -1,6 +1,7 @@
 package simpledb;
 
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Iterator;
 
@@ -51,8 +52,8 @@ public class BTreeChecker {
     /**
      * checks the integrity of the tree:
      * 1) parent pointers.
-     * 2) sibling pointers.
-     * 3) range invariants.
+     * 2) sibling pointers, including those of internal pages.
+     * 3) range invariants, including high keys.
      * 4) record to page pointers.
      * 5) occupancy invariants. (if enabled)
      */
@@ -68,6 +69,35 @@ public class BTreeChecker {
                     rtptr.getRootId(), null, null, rtptr.getId(), checkOccupancy, 0);
             assert (res.ptrLeft == null);
             assert (res.ptrRight == null);
+            checkRightSiblings(bt, tid, dirtypages, rtptr.getRootId());
+        }
+    }
+
+    /**
+     * checks that the right sibling pointers chain the pages of each level
+     * of the tree from left to right, across parents.
+     */
+    static void checkRightSiblings(BTreeFile bt, TransactionId tid, HashMap<PageId, Page> dirtypages,
+                                   BTreePageId root) throws TransactionAbortedException, DbException {
+        ArrayList<BTreePageId> level = new ArrayList<BTreePageId>();
+        level.add(root);
+        while (!level.isEmpty()) {
+            ArrayList<BTreePageId> below = new ArrayList<BTreePageId>();
+            for (int i = 0; i < level.size(); i++) {
+                BTreePage page = (BTreePage) bt.getPage(tid, dirtypages, level.get(i), Permissions.READ_ONLY);
+                BTreePageId right = page.getRightSiblingId();
+                assert (i == level.size() - 1 ? right == null : level.get(i + 1).equals(right));
+                if (page.getId().pgcateg() == BTreePageId.INTERNAL) {
+                    Iterator<BTreeEntry> it = ((BTreeInternalPage) page).iterator();
+                    BTreeEntry e = it.next();
+                    below.add(e.getLeftChild());
+                    below.add(e.getRightChild());
+                    while (it.hasNext()) {
+                        below.add(it.next().getRightChild());
+                    }
+                }
+            }
+            level = below;
         }
     }
 
@@ -80,7 +110,7 @@ public class BTreeChecker {
 
         if (page.getId().pgcateg() == BTreePageId.LEAF) {
             BTreeLeafPage bpage = (BTreeLeafPage) page;
-            bpage.checkRep(bt.keyField(), lowerBound, upperBound, checkOccupancy, depth);
+            bpage.checkRep(lowerBound, upperBound, checkOccupancy, depth);
             return new SubtreeSummary(bpage, depth);
         } else if (page.getId().pgcateg() == BTreePageId.INTERNAL) {
 
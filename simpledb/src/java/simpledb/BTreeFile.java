@@ -2,6 +2,8 @@ package simpledb;
 
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.StampedLock;
 
 import simpledb.Predicate.Op;
 
@@ -18,12 +20,36 @@ import simpledb.Predicate.Op;
  * @see simpledb.BTreeRootPtrPage#BTreeRootPtrPage
  * @author Becca Taft
  */
-public class BTreeFile implements DbFile {
+public class BTreeFile implements IndexFile {
 
 	private final File f;
 	private final TupleDesc td;
 	private final int tableid ;
-	private int keyField;
+	private final int[] keyFields;
+	private final KeyType keyType;
+
+	/** Number of optimistic descents tried before falling back on locking the path */
+	static final int OPTIMISTIC_ATTEMPTS = 3;
+
+	// write locked for an instant whenever a transaction starts redistributing
+	// or merging pages, so that optimistic descents can tell. Nothing ever
+	// waits on it for longer, see findLeafPage(TransactionId, HashMap, Permissions, Field)
+	private final StampedLock structure = new StampedLock();
+	// the transactions that redistributed or merged pages and may not have
+	// completed, each with a page it keeps locked until it completes
+	private final ConcurrentHashMap<TransactionId, PageId> restructuring =
+			new ConcurrentHashMap<TransactionId, PageId>();
+	// the same for the transactions that split pages
+	private final ConcurrentHashMap<TransactionId, PageId> splitting =
+			new ConcurrentHashMap<TransactionId, PageId>();
+
+	/** Default fill factor, with which right-most splits split pages evenly as other splits do */
+	public static final double DEFAULT_FILL_FACTOR = 0.5;
+
+	// number of leaves that scans read ahead of their position
+	private volatile int prefetchDepth = BTreeLeafPrefetcher.DEFAULT_DEPTH;
+	// fraction of a page a right-most split leaves on the left page
+	private volatile double fillFactor = DEFAULT_FILL_FACTOR;
 
 	/**
 	 * Constructs a B+ tree file backed by the specified file.
@@ -34,9 +60,29 @@ public class BTreeFile implements DbFile {
 	 * @param td - the tuple descriptor of tuples in the file
 	 */
 	public BTreeFile(File f, int key, TupleDesc td) {
+		this(f, new int[] { key }, td);
+	}
+
+	/**
+	 * Constructs a B+ tree file keyed on several fields, ordered on the
+	 * first one, then on the next one for tuples with the same first field,
+	 * and so on. The keys of such a tree are {@link CompositeField}s, and an
+	 * index search may give the values of the first fields only, see
+	 * {@link IndexPredicate#IndexPredicate(Field[], Op, Field)}.
+	 * 
+	 * @param f - the file that stores the on-disk backing store for this B+ tree
+	 *            file.
+	 * @param keys - the fields which index is keyed on, in key order
+	 * @param td - the tuple descriptor of tuples in the file
+	 */
+	public BTreeFile(File f, int[] keys, TupleDesc td) {
+		if(keys.length == 0) {
+			throw new IllegalArgumentException("a B+ tree is keyed on at least one field");
+		}
 		this.f = f;
 		this.tableid = f.getAbsoluteFile().hashCode();
-		this.keyField = key;
+		this.keyFields = keys.clone();
+		this.keyType = CompositeType.getKeyType(td, keyFields);
 		this.td = td;
 	}
 
@@ -112,18 +158,7 @@ public class BTreeFile implements DbFile {
 							+ BufferPool.getPageSize() + " bytes from BTreeFile");
 				}
 				Debug.log(1, "BTreeFile.readPage: read page %d", id.getPageNumber());
-				if(id.pgcateg() == BTreePageId.INTERNAL) {
-					BTreeInternalPage p = new BTreeInternalPage(id, pageBuf, keyField);
-					return p;
-				}
-				else if(id.pgcateg() == BTreePageId.LEAF) {
-					BTreeLeafPage p = new BTreeLeafPage(id, pageBuf, keyField);
-					return p;
-				}
-				else { // id.pgcateg() == BTreePageId.HEADER
-					BTreeHeaderPage p = new BTreeHeaderPage(id, pageBuf);
-					return p;
-				}
+				return parsePage(id, pageBuf);
 			}
 		} catch (IOException e) {
 			throw new RuntimeException(e);
@@ -138,6 +173,58 @@ public class BTreeFile implements DbFile {
 		}
 	}
 
+	/**
+	 * Construct an internal, leaf or header page from its contents on disk
+	 * 
+	 * @param id - the id of the page
+	 * @param pageBuf - the contents of the page
+	 * @return the page
+	 */
+	Page parsePage(BTreePageId id, byte[] pageBuf) throws IOException {
+		if(id.pgcateg() == BTreePageId.INTERNAL) {
+			BTreeInternalPage p = new BTreeInternalPage(id, pageBuf, keyFields);
+			return p;
+		}
+		else if(id.pgcateg() == BTreePageId.LEAF) {
+			BTreeLeafPage p = new BTreeLeafPage(id, pageBuf, keyFields);
+			return p;
+		}
+		else { // id.pgcateg() == BTreePageId.HEADER
+			BTreeHeaderPage p = new BTreeHeaderPage(id, pageBuf);
+			return p;
+		}
+	}
+
+	/**
+	 * Read the contents of consecutive pages from the file on disk with a
+	 * single read, for instance a run of leaves laid out in key order by
+	 * BTreeBulkLoader. The run stops at the end of the file. The pages are
+	 * not parsed, see {@link #parsePage}.
+	 * 
+	 * @param first - the id of the first page of the run, which may not be the root pointer
+	 * @param count - the number of pages to read
+	 * @return the contents of the pages read, in page number order
+	 */
+	byte[][] readPageRun(BTreePageId first, int count) throws IOException {
+		int pageSize = BufferPool.getPageSize();
+		int n = Math.max(0, Math.min(count, numPages() - first.getPageNumber() + 1));
+		byte[] buf = new byte[n * pageSize];
+		RandomAccessFile raf = new RandomAccessFile(f, "r");
+		try {
+			raf.seek(BTreeRootPtrPage.getPageSize() + (long) (first.getPageNumber()-1) * pageSize);
+			raf.readFully(buf);
+		} finally {
+			raf.close();
+		}
+		Debug.log(1, "BTreeFile.readPageRun: read pages %d to %d", first.getPageNumber(),
+				first.getPageNumber() + n - 1);
+		byte[][] pages = new byte[n][];
+		for(int i = 0; i < n; i++) {
+			pages[i] = Arrays.copyOfRange(buf, i * pageSize, (i + 1) * pageSize);
+		}
+		return pages;
+	}
+
 	/**
 	 * Write a page to disk.  This should not be called directly but should 
 	 * be called from the BufferPool when pages are flushed to disk
@@ -160,6 +247,27 @@ public class BTreeFile implements DbFile {
 		}
 	}
 	
+	/**
+	 * Write a batch of pages to disk in file order, merging pages that are adjacent
+	 * on disk into single writes, and force the file once at the end.  This should 
+	 * not be called directly but should be called from the BufferPool when pages 
+	 * are flushed to disk
+	 * 
+	 * @param pages - the pages to write to disk
+	 */
+	public void writePages(List<Page> pages) throws IOException {
+		TreeMap<Long, byte[]> images = new TreeMap<Long, byte[]>();
+		for(Page page : pages) {
+			BTreePageId id = (BTreePageId) page.getId();
+			long offset = 0;
+			if(id.pgcateg() != BTreePageId.ROOT_PTR) {
+				offset = BTreeRootPtrPage.getPageSize() + (long) (id.getPageNumber()-1) * BufferPool.getPageSize();
+			}
+			images.put(offset, page.getPageData());
+		}
+		PageWriter.write(f, images);
+	}
+
 	/**
 	 * Returns the number of pages in this BTreeFile.
 	 */
@@ -169,10 +277,93 @@ public class BTreeFile implements DbFile {
 	}
 
 	/**
-	 * Returns the index of the field that this B+ tree is keyed on
+	 * Returns the index of the field that this B+ tree is keyed on, or of
+	 * the first one for a tree keyed on several fields
 	 */
 	public int keyField() {
-		return keyField;
+		return keyFields[0];
+	}
+
+	/**
+	 * Returns the indexes of the fields that this B+ tree is keyed on, in key order
+	 */
+	public int[] keyFields() {
+		return keyFields.clone();
+	}
+
+	/**
+	 * B+ trees look tuples up by equality and by range
+	 */
+	public boolean supports(Op op) {
+		return op != Op.NOT_EQUALS && op != Op.LIKE;
+	}
+
+	/**
+	 * Returns the type of the keys of this B+ tree
+	 */
+	public KeyType getKeyType() {
+		return keyType;
+	}
+
+	/**
+	 * @return the key of a tuple of this B+ tree, see {@link CompositeField#getKey}
+	 */
+	Field getKey(Tuple t) {
+		return CompositeField.getKey(t, keyFields);
+	}
+
+	/**
+	 * Set the number of leaves that scans of this file read ahead of the leaf
+	 * they are on, see BTreeLeafPrefetcher
+	 * @param depth - the number of leaves, or 0 not to read ahead
+	 */
+	public void setPrefetchDepth(int depth) {
+		if(depth < 0) {
+			throw new IllegalArgumentException("negative prefetch depth: " + depth);
+		}
+		prefetchDepth = depth;
+	}
+
+	/**
+	 * Returns the number of leaves that scans of this file read ahead
+	 */
+	public int getPrefetchDepth() {
+		return prefetchDepth;
+	}
+
+	/**
+	 * Set the fill factor of the pages of this file left behind by right-most
+	 * splits. A page is split right-most when it is the last page of its level
+	 * and the key that overflows it is greater than all of its keys, as happens
+	 * on every split when keys are appended in increasing order. Splitting such
+	 * a page evenly would leave every page but the last one half full forever,
+	 * so the left page keeps this fraction of its tuples or entries instead, and
+	 * the new right-most page starts out nearly empty until the next appends
+	 * fill it. Other splits still split pages evenly.
+	 * @param fillFactor - the fraction of the page to keep, between 0.5 and 1
+	 * @see BTreeBulkLoader
+	 * @see BTreeReorganizer
+	 */
+	public void setFillFactor(double fillFactor) {
+		if(fillFactor < DEFAULT_FILL_FACTOR || fillFactor > 1) {
+			throw new IllegalArgumentException("fill factor out of range: " + fillFactor);
+		}
+		this.fillFactor = fillFactor;
+	}
+
+	/**
+	 * Returns the fill factor of the pages left behind by right-most splits
+	 */
+	public double getFillFactor() {
+		return fillFactor;
+	}
+
+	/**
+	 * @return true if splitting a page to insert the key field f is a
+	 * right-most split, see {@link #setFillFactor}
+	 */
+	private static boolean isRightMostSplit(BTreePage page, Field f, Field lastKey) {
+		return page.getRightSiblingId() == null && f.compare(Op.GREATER_THAN, lastKey);
 	}
 
 	/**
@@ -194,8 +385,185 @@ public class BTreeFile implements DbFile {
 	private BTreeLeafPage findLeafPage(TransactionId tid, HashMap<PageId, Page> dirtypages, BTreePageId pid, Permissions perm,
 			Field f) 
 					throws DbException, TransactionAbortedException {
-		// some code goes here
-        return null;
+
+		if(pid.pgcateg() == BTreePageId.LEAF) {
+			return (BTreeLeafPage) getPage(tid, dirtypages, pid, perm);
+		}
+		BTreeInternalPage page = (BTreeInternalPage) getPage(tid, dirtypages, pid, Permissions.READ_ONLY);
+		return findLeafPage(tid, dirtypages, getChild(page, f), perm, f);
+	}
+
+	/**
+	 * @return the child of an internal page under which the left-most leaf page
+	 * possibly containing the key field f is found, or the left-most child if f is null
+	 */
+	private BTreePageId getChild(BTreeInternalPage page, Field f) throws DbException {
+		Iterator<BTreeEntry> it = page.iterator();
+		BTreeEntry e = null;
+		while(it.hasNext()) {
+			e = it.next();
+			if(f == null || f.compare(Op.LESS_THAN_OR_EQ, e.getKey())) {
+				return e.getLeftChild();
+			}
+		}
+		if(e == null)
+			throw new DbException("empty internal page " + page.getId());
+		return e.getRightChild();
+	}
+
+	/**
+	 * @return true if the key field f is greater than the high key of the page, so
+	 * that it can only be found to the right of it
+	 */
+	private static boolean isRightOf(Field f, BTreePage page) {
+		return f != null && page.getHighKey() != null && f.compare(Op.GREATER_THAN, page.getHighKey())
+				&& page.getRightSiblingId() != null;
+	}
+
+	/**
+	 * Find and lock the left-most leaf page possibly containing the key field f,
+	 * without locking the root pointer page and the internal pages on the way.
+	 * <p>
+	 * The descent reads the last committed images of the root pointer page and the
+	 * internal pages (see {@link BufferPool#getCommittedPage}), then locks the leaf
+	 * page with permission perm, which may block. A split only moves keys right, to
+	 * a new right sibling, and lowers the high key of the page it splits. So a page
+	 * reached through a parent read before a split committed is still to the left of
+	 * the key, and wherever the key is greater than the high key of a page, the
+	 * descent moves right to its sibling, as in Lehman and Yao's B-link trees.
+	 * Lookups thus never wait for the locks a transaction splitting pages holds on
+	 * the parent pages, only for those on the leaf pages they end up on. Descents
+	 * made to write a leaf page still fall back on locking the path while a split
+	 * has not completed: a concurrent split of the same parent page would otherwise
+	 * go by a parent pointer the first split is about to change.
+	 * <p>
+	 * Redistributions and merges also move keys left and free pages, and each one
+	 * invalidates the descents in progress. While a transaction that made one has
+	 * not completed, the descent is made the way
+	 * {@link #findLeafPage(TransactionId, HashMap, BTreePageId, Permissions, Field)}
+	 * does it instead, with read locks on the path. That is also the fallback when
+	 * the optimistic descent keeps failing, and for a transaction that split pages
+	 * itself, since the committed images do not show its own splits.
+	 * 
+	 * @param tid - the transaction id
+	 * @param dirtypages - the list of dirty pages which should be updated with all new dirty pages
+	 * @param perm - the permissions with which to lock the leaf page
+	 * @param f - the field to search for
+	 * @return the left-most leaf page possibly containing the key field f
+	 */
+	BTreeLeafPage findLeafPage(TransactionId tid, HashMap<PageId, Page> dirtypages, Permissions perm, Field f)
+			throws DbException, TransactionAbortedException {
+		BufferPool bp = Database.getBufferPool();
+		for(int attempt = 0; attempt < OPTIMISTIC_ATTEMPTS && !bp.isSnapshot(tid) && !splitting.containsKey(tid);
+				attempt++) {
+			long stamp = structure.tryOptimisticRead();
+			if(!isStructureCommitted() || (perm == Permissions.READ_WRITE && !forgetCompleted(splitting))) {
+				break;
+			}
+			BTreePageId pid;
+			try {
+				pid = ((BTreeRootPtrPage) bp.getCommittedPage(BTreeRootPtrPage.getId(tableid))).getRootId();
+				if(pid == null) {
+					break;
+				}
+				while(pid.pgcateg() == BTreePageId.INTERNAL) {
+					BTreeInternalPage page = (BTreeInternalPage) bp.getCommittedPage(pid);
+					pid = isRightOf(f, page) ? page.getRightSiblingId() : getChild(page, f);
+				}
+			} catch(IllegalArgumentException | DbException e) {
+				// reading a page freed by a merge on the way fails past the end of
+				// the file, or finds an empty internal page; then the stamp no
+				// longer validates, and anything else is a real failure
+				if(structure.validate(stamp)) {
+					throw e;
+				}
+				continue;
+			}
+			// the pages pinned and the locks acquired by this attempt
+			ArrayList<PageId> pinned = new ArrayList<PageId>();
+			ArrayList<PageId> acquired = new ArrayList<PageId>();
+			BTreeLeafPage leaf = lockLeafPage(tid, dirtypages, pid, perm, pinned, acquired);
+			while(isRightOf(f, leaf)) {
+				leaf = lockLeafPage(tid, dirtypages, leaf.getRightSiblingId(), perm, pinned, acquired);
+			}
+			if(structure.validate(stamp)) {
+				return leaf;
+			}
+			// the leaf pages may not be the ones holding the key, and no tuple was
+			// read from them, so keeping their locks would only cause conflicts
+			for(PageId l : pinned) {
+				if(dirtypages.remove(l) != null) {
+					bp.unpinPage(tid, l);
+				}
+			}
+			for(PageId l : acquired) {
+				bp.releasePage(tid, l);
+			}
+		}
+		BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) getPage(tid, dirtypages, BTreeRootPtrPage.getId(tableid),
+				Permissions.READ_ONLY);
+		return findLeafPage(tid, dirtypages, rootPtr.getRootId(), perm, f);
+	}
+
+	/**
+	 * Lock a leaf page for an optimistic descent, noting whether the descent
+	 * pinned it and whether the transaction did not hold a lock on it before.
+	 * 
+	 * @param tid - the transaction id
+	 * @param dirtypages - the list of dirty pages which should be updated with all new dirty pages
+	 * @param pid - the id of the leaf page
+	 * @param perm - the permissions with which to lock the leaf page
+	 * @param pinned - the leaf pages the descent pinned
+	 * @param acquired - the leaf pages the descent acquired a lock on
+	 * @return the leaf page
+	 */
+	private BTreeLeafPage lockLeafPage(TransactionId tid, HashMap<PageId, Page> dirtypages, BTreePageId pid,
+			Permissions perm, ArrayList<PageId> pinned, ArrayList<PageId> acquired)
+					throws DbException, TransactionAbortedException {
+		if(!dirtypages.containsKey(pid)) {
+			if(!Database.getBufferPool().holdsLock(tid, pid)) {
+				acquired.add(pid);
+			}
+			pinned.add(pid);
+		}
+		return (BTreeLeafPage) getPage(tid, dirtypages, pid, perm);
+	}
+
+	/**
+	 * Note that a transaction is about to redistribute or merge pages, which
+	 * invalidates the optimistic descents in progress and keeps new ones from being
+	 * made until the transaction completes.
+	 * 
+	 * @param tid - the transaction id
+	 * @param locked - a page the transaction holds a write lock on
+	 */
+	private void beginStructureChange(TransactionId tid, PageId locked) {
+		restructuring.put(tid, locked);
+		structure.unlockWrite(structure.writeLock());
+	}
+
+	/**
+	 * @return true if no transaction that redistributed or merged pages may still
+	 * be running
+	 */
+	private boolean isStructureCommitted() {
+		return forgetCompleted(restructuring);
+	}
+
+	/**
+	 * Forget the transactions that completed, which is when they no longer hold
+	 * their lock: they release it when they complete.
+	 * 
+	 * @param running - transactions, each with a page it keeps locked until it completes
+	 * @return true if no transaction is left
+	 */
+	private static boolean forgetCompleted(ConcurrentHashMap<TransactionId, PageId> running) {
+		for(Map.Entry<TransactionId, PageId> e : running.entrySet()) {
+			if(!Database.getBufferPool().holdsLock(e.getKey(), e.getValue())) {
+				running.remove(e.getKey(), e.getValue());
+			}
+		}
+		return running.isEmpty();
 	}
 	
 	/**
@@ -220,7 +588,7 @@ public class BTreeFile implements DbFile {
 	 * Split a leaf page to make room for new tuples and recursively split the parent node
 	 * as needed to accommodate a new entry. The new entry should have a key matching the key field
 	 * of the first tuple in the right-hand page (the key is "copied up"), and child pointers 
-	 * pointing to the two leaf pages resulting from the split.  Update sibling pointers and parent 
+	 * pointing to the two leaf pages resulting from the split.  Update sibling pointers, high keys and parent 
 	 * pointers as needed.  
 	 * 
 	 * Return the leaf page into which a new tuple with key field "field" should be inserted.
@@ -239,16 +607,42 @@ public class BTreeFile implements DbFile {
 	 */
 	protected BTreeLeafPage splitLeafPage(TransactionId tid, HashMap<PageId, Page> dirtypages, BTreeLeafPage page, Field field) 
 			throws DbException, IOException, TransactionAbortedException {
-		// some code goes here
-        //
-        // Split the leaf page by adding a new page on the right of the existing
-		// page and moving half of the tuples to the new page.  Copy the middle key up
-		// into the parent page, and recursively split the parent as needed to accommodate
-		// the new entry.  getParentWithEmtpySlots() will be useful here.  Don't forget to update
-		// the sibling pointers of all the affected leaf pages.  Return the page into which a 
-		// tuple with the given key field should be inserted.
-        return null;
-		
+
+		BTreeLeafPage newPage = (BTreeLeafPage) getEmptyPage(tid, dirtypages, BTreePageId.LEAF);
+		int move = page.getNumTuples() / 2;
+		if(isRightMostSplit(page, field, getKey(page.reverseIterator().next()))) {
+			// keep up to the fill factor of the tuples, but move at least one
+			move = Math.max(1, Math.min(move, page.getNumTuples() - (int) (fillFactor * page.getMaxTuples())));
+		}
+		Iterator<Tuple> it = page.reverseIterator();
+		ArrayList<Tuple> moved = new ArrayList<Tuple>();
+		while(it.hasNext() && moved.size() < move) {
+			moved.add(it.next());
+		}
+		for(Tuple t : moved) {
+			page.deleteTuple(t);
+			newPage.insertTuple(t);
+		}
+		BTreePageId oldRight = page.getRightSiblingId();
+		if(oldRight != null) {
+			BTreeLeafPage right = (BTreeLeafPage) getPage(tid, dirtypages, oldRight, Permissions.READ_WRITE);
+			right.setLeftSiblingId(newPage.getId());
+		}
+		newPage.setRightSiblingId(oldRight);
+		newPage.setLeftSiblingId(page.getId());
+		page.setRightSiblingId(newPage.getId());
+
+		Field key = BTreeInternalPage.getSeparator(getKey(page.reverseIterator().next()),
+				getKey(newPage.iterator().next()));
+		newPage.setHighKey(page.getHighKey());
+		page.setHighKey(key);
+		BTreeInternalPage parent = getParentWithEmptySlots(tid, dirtypages, page.getParentId(), key);
+		parent.insertEntry(new BTreeEntry(key, page.getId(), newPage.getId()));
+		page.setParentId(parent.getId());
+		newPage.setParentId(parent.getId());
+		if(field.compare(Op.GREATER_THAN, key))
+			return newPage;
+		return page;
 	}
 	
 	/**
@@ -256,7 +650,8 @@ public class BTreeFile implements DbFile {
 	 * as needed to accommodate a new entry. The new entry for the parent should have a key matching 
 	 * the middle key in the original internal page being split (this key is "pushed up" to the parent). 
 	 * The child pointers of the new parent entry should point to the two internal pages resulting 
-	 * from the split. Update parent pointers as needed.
+	 * from the split. Update parent pointers, right sibling
+	 * pointers and high keys as needed.
 	 * 
 	 * Return the internal page into which an entry with key field "field" should be inserted
 	 * 
@@ -276,16 +671,38 @@ public class BTreeFile implements DbFile {
 	protected BTreeInternalPage splitInternalPage(TransactionId tid, HashMap<PageId, Page> dirtypages, 
 			BTreeInternalPage page, Field field) 
 					throws DbException, IOException, TransactionAbortedException {
-		// some code goes here
-        //
-        // Split the internal page by adding a new page on the right of the existing
-		// page and moving half of the entries to the new page.  Push the middle key up
-		// into the parent page, and recursively split the parent as needed to accommodate
-		// the new entry.  getParentWithEmtpySlots() will be useful here.  Don't forget to update
-		// the parent pointers of all the children moving to the new page.  updateParentPointers()
-		// will be useful here.  Return the page into which an entry with the given key field
-		// should be inserted.
-		return null;
+
+		BTreeInternalPage newPage = (BTreeInternalPage) getEmptyPage(tid, dirtypages, BTreePageId.INTERNAL);
+		// move entries until both pages have about as much room left: half of
+		// them, unless the keys differ in length. A right-most split stops once
+		// the page is down to the fill factor, counting the entry pushed up, but
+		// still leaves one entry to the new page
+		int room = page.getMaxEntries();
+		if(isRightMostSplit(page, field, page.reverseIterator().next().getKey())) {
+			room += 1 - (int) (fillFactor * page.getMaxEntries());
+		}
+		while(newPage.getNumEmptySlots() > page.getNumEmptySlots() + 1
+				&& (newPage.getNumEntries() == 0 || page.getNumEmptySlots() + 1 < room)) {
+			BTreeEntry e = page.reverseIterator().next();
+			page.deleteKeyAndRightChild(e);
+			newPage.insertEntry(e);
+		}
+		BTreeEntry mid = page.reverseIterator().next();
+		page.deleteKeyAndRightChild(mid);
+		mid.setLeftChild(page.getId());
+		mid.setRightChild(newPage.getId());
+		newPage.setRightSiblingId(page.getRightSiblingId());
+		newPage.setHighKey(page.getHighKey());
+		page.setRightSiblingId(newPage.getId());
+		page.setHighKey(mid.getKey());
+		BTreeInternalPage parent = getParentWithEmptySlots(tid, dirtypages, page.getParentId(), mid.getKey());
+		parent.insertEntry(mid);
+		page.setParentId(parent.getId());
+		newPage.setParentId(parent.getId());
+		updateParentPointers(tid, dirtypages, newPage);
+		if(field.compare(Op.GREATER_THAN, mid.getKey()))
+			return newPage;
+		return page;
 	}
 	
 	/**
@@ -357,7 +774,15 @@ public class BTreeFile implements DbFile {
 		BTreePage p = (BTreePage) getPage(tid, dirtypages, child, Permissions.READ_ONLY);
 
 		if(!p.getParentId().equals(pid)) {
-			p = (BTreePage) getPage(tid, dirtypages, child, Permissions.READ_WRITE);
+			// a split or merge re-parents a whole page of children, more than
+			// the buffer pool can pin at once. They are only rewritten here, so
+			// keep them in dirtypages without a pin; the buffer pool caches
+			// them again when the operation returns if they were evicted
+			if(!dirtypages.containsKey(child)) {
+				p = (BTreePage) Database.getBufferPool().getPage(tid, child, Permissions.READ_WRITE);
+				dirtypages.put(child, p);
+			}
+			p = (BTreePage) dirtypages.get(child);
 			p.setParentId(pid);
 		}
 
@@ -397,7 +822,9 @@ public class BTreeFile implements DbFile {
 	 * presumably they will soon be dirtied by this transaction.
 	 * 
 	 * This method is needed to ensure that page updates are not lost if the same pages are
-	 * accessed multiple times.
+	 * accessed multiple times. Pages added to the cache are pinned in the buffer pool so that
+	 * they cannot be evicted while this operation still holds them; they are unpinned by 
+	 * unpinPages() once the operation is done with them.
 	 * 
 	 * @param tid - the transaction id
 	 * @param dirtypages - the list of dirty pages which should be updated with all new dirty pages
@@ -415,11 +842,42 @@ public class BTreeFile implements DbFile {
 			return dirtypages.get(pid);
 		}
 		else {
-			Page p = Database.getBufferPool().getPage(tid, pid, perm);
 			if(perm == Permissions.READ_WRITE) {
+				Page p = Database.getBufferPool().pinPage(tid, pid, perm);
 				dirtypages.put(pid, p);
+				return p;
 			}
-			return p;
+			return Database.getBufferPool().getPage(tid, pid, perm);
+		}
+	}
+
+	/**
+	 * Release the pins taken by getPage() on all the pages in the local cache.
+	 * 
+	 * @param tid - the transaction id
+	 * @param dirtypages - the list of dirty pages collected by the operation
+	 * @see #getPage(TransactionId, HashMap, BTreePageId, Permissions)
+	 */
+	void unpinPages(TransactionId tid, HashMap<PageId, Page> dirtypages) {
+		for(PageId pid : dirtypages.keySet()) {
+			Database.getBufferPool().unpinPage(tid, pid);
+		}
+	}
+
+	/**
+	 * Mark the pages in the local cache dirty when an operation fails part way,
+	 * typically because the transaction was chosen to abort while it waited for a
+	 * lock in the middle of a split or merge. The buffer pool only learns of the
+	 * pages an operation dirtied once it returns, and only rolls back the pages
+	 * marked dirty when the transaction aborts; a page left half changed would
+	 * otherwise corrupt the tree for everyone.
+	 * 
+	 * @param tid - the transaction id
+	 * @param dirtypages - the list of dirty pages collected by the operation
+	 */
+	private void abandonPages(TransactionId tid, HashMap<PageId, Page> dirtypages) {
+		for(Page p : dirtypages.values()) {
+			p.markDirty(true, tid);
 		}
 	}
 
@@ -436,30 +894,37 @@ public class BTreeFile implements DbFile {
 	public ArrayList<Page> insertTuple(TransactionId tid, Tuple t)
 			throws DbException, IOException, TransactionAbortedException {
 		HashMap<PageId, Page> dirtypages = new HashMap<PageId, Page>();
+		try {
+			// the root pointer page is only locked to point it to the first root page
+			BTreeRootPtrPage rootPtr = getRootPtrPage(null, dirtypages);
+			if(rootPtr.getRootId() == null) { // the root has just been created, so set the root pointer to point to it		
+				rootPtr = (BTreeRootPtrPage) getPage(tid, dirtypages, BTreeRootPtrPage.getId(tableid), Permissions.READ_WRITE);
+				if(rootPtr.getRootId() == null) {
+					beginStructureChange(tid, rootPtr.getId());
+					rootPtr.setRootId(new BTreePageId(tableid, numPages(), BTreePageId.LEAF));
+				}
+			}
 
-		// get a read lock on the root pointer page and use it to locate the root page
-		BTreeRootPtrPage rootPtr = getRootPtrPage(tid, dirtypages);
-		BTreePageId rootId = rootPtr.getRootId();
+			// find and lock the left-most leaf page corresponding to the key field,
+			// and split the leaf page if there are no more slots available
+			BTreeLeafPage leafPage = findLeafPage(tid, dirtypages, Permissions.READ_WRITE, getKey(t));
+			if(leafPage.getNumEmptySlots() == 0) {
+				splitting.put(tid, leafPage.getId());
+				leafPage = splitLeafPage(tid, dirtypages, leafPage, getKey(t));	
+			}
 
-		if(rootId == null) { // the root has just been created, so set the root pointer to point to it		
-			rootId = new BTreePageId(tableid, numPages(), BTreePageId.LEAF);
-			rootPtr = (BTreeRootPtrPage) getPage(tid, dirtypages, BTreeRootPtrPage.getId(tableid), Permissions.READ_WRITE);
-			rootPtr.setRootId(rootId);
-		}
+			// insert the tuple into the leaf page
+			leafPage.insertTuple(t);
 
-		// find and lock the left-most leaf page corresponding to the key field,
-		// and split the leaf page if there are no more slots available
-		BTreeLeafPage leafPage = findLeafPage(tid, dirtypages, rootId, Permissions.READ_WRITE, t.getField(keyField));
-		if(leafPage.getNumEmptySlots() == 0) {
-			leafPage = splitLeafPage(tid, dirtypages, leafPage, t.getField(keyField));	
+			ArrayList<Page> dirtyPagesArr = new ArrayList<Page>();
+			dirtyPagesArr.addAll(dirtypages.values());
+			return dirtyPagesArr;
+		} catch(TransactionAbortedException | DbException e) {
+			abandonPages(tid, dirtypages);
+			throw e;
+		} finally {
+			unpinPages(tid, dirtypages);
 		}
-
-		// insert the tuple into the leaf page
-		leafPage.insertTuple(t);
-
-		ArrayList<Page> dirtyPagesArr = new ArrayList<Page>();
-		dirtyPagesArr.addAll(dirtypages.values());
-		return dirtyPagesArr;
 	}
 	
 	/**
@@ -545,7 +1010,7 @@ public class BTreeFile implements DbFile {
 				mergeLeafPages(tid, dirtypages, leftSibling, page, parent, leftEntry);
 			}
 			else {
-				stealFromLeafPage(page, leftSibling, parent, leftEntry, false);				
+				stealFromLeafPage(tid, dirtypages, page, leftSibling, parent, leftEntry, false);
 			}
 		}
 		else if(rightSiblingId != null) {	
@@ -556,7 +1021,7 @@ public class BTreeFile implements DbFile {
 				mergeLeafPages(tid, dirtypages, page, rightSibling, parent, rightEntry);
 			}
 			else {
-				stealFromLeafPage(page, rightSibling, parent, rightEntry, true);				
+				stealFromLeafPage(tid, dirtypages, page, rightSibling, parent, rightEntry, true);
 			}
 		}
 	}
@@ -564,7 +1029,7 @@ public class BTreeFile implements DbFile {
 	/**
 	 * Steal tuples from a sibling and copy them to the given page so that both pages are at least
 	 * half full.  Update the parent's entry so that the key matches the key field of the first
-	 * tuple in the right-hand page.
+	 * tuple in the right-hand page, and the high key of the left-hand page to match.
 	 * 
 	 * @param page - the leaf page which is less than half full
 	 * @param sibling - the sibling which has tuples to spare
@@ -576,11 +1041,120 @@ public class BTreeFile implements DbFile {
 	 */
 	protected void stealFromLeafPage(BTreeLeafPage page, BTreeLeafPage sibling,
 			BTreeInternalPage parent, BTreeEntry entry, boolean isRightSibling) throws DbException {
-		// some code goes here
-        //
-        // Move some of the tuples from the sibling to the page so
-		// that the tuples are evenly distributed. Be sure to update
-		// the corresponding parent entry.
+		try {
+			stealFromLeafPage(null, null, page, sibling, parent, entry, isRightSibling);
+		} catch(IOException | TransactionAbortedException e) {
+			// the parent is updated in place, without looking up any other page
+			throw new DbException(e.toString());
+		}
+	}
+
+	/**
+	 * Steal tuples from a sibling as {@link #stealFromLeafPage(BTreeLeafPage, BTreeLeafPage,
+	 * BTreeInternalPage, BTreeEntry, boolean)} does, splitting the parent if the updated
+	 * key does not fit on it.
+	 * 
+	 * @param tid - the transaction id
+	 * @param dirtypages - the list of dirty pages which should be updated with all new dirty pages,
+	 * or null to update the parent in place
+	 * @see #updateEntry(TransactionId, HashMap, BTreeInternalPage, BTreeEntry)
+	 * 
+	 * @throws DbException
+	 * @throws IOException
+	 * @throws TransactionAbortedException
+	 */
+	private void stealFromLeafPage(TransactionId tid, HashMap<PageId, Page> dirtypages, BTreeLeafPage page,
+			BTreeLeafPage sibling, BTreeInternalPage parent, BTreeEntry entry, boolean isRightSibling)
+					throws DbException, IOException, TransactionAbortedException {
+
+		int move = (sibling.getNumTuples() - page.getNumTuples()) / 2;
+		moveLeafTuples(tid, dirtypages, page, sibling, parent, entry, isRightSibling, move);
+	}
+
+	/**
+	 * Move tuples from a sibling to the given page, and update the parent's entry
+	 * and the high key of the left-hand page to match.
+	 * 
+	 * @param tid - the transaction id
+	 * @param dirtypages - the list of dirty pages which should be updated with all new dirty pages,
+	 * or null to update the parent in place
+	 * @param page - the leaf page to move tuples to
+	 * @param sibling - the sibling to move tuples from
+	 * @param parent - the parent of the two leaf pages
+	 * @param entry - the entry in the parent pointing to the two leaf pages
+	 * @param isRightSibling - whether the sibling is a right-sibling
+	 * @param move - the number of tuples to move, fewer than the sibling has
+	 * @see #updateEntry(TransactionId, HashMap, BTreeInternalPage, BTreeEntry)
+	 * 
+	 * @throws DbException
+	 * @throws IOException
+	 * @throws TransactionAbortedException
+	 */
+	private void moveLeafTuples(TransactionId tid, HashMap<PageId, Page> dirtypages, BTreeLeafPage page,
+			BTreeLeafPage sibling, BTreeInternalPage parent, BTreeEntry entry, boolean isRightSibling, int move)
+					throws DbException, IOException, TransactionAbortedException {
+		Iterator<Tuple> it = isRightSibling ? sibling.iterator() : sibling.reverseIterator();
+		ArrayList<Tuple> moved = new ArrayList<Tuple>();
+		while(it.hasNext() && moved.size() < move) {
+			moved.add(it.next());
+		}
+		for(Tuple t : moved) {
+			sibling.deleteTuple(t);
+			page.insertTuple(t);
+		}
+		BTreeLeafPage left = isRightSibling ? page : sibling;
+		BTreeLeafPage right = isRightSibling ? sibling : page;
+		entry.setKey(BTreeInternalPage.getSeparator(getKey(left.reverseIterator().next()),
+				getKey(right.iterator().next())));
+		updateEntry(tid, dirtypages, parent, entry);
+		left.setHighKey(entry.getKey());
+	}
+
+	/**
+	 * Update the key of an entry in an internal page. A page with prefix compressed
+	 * keys only has room for one key to grow longer, so if the new key does not fit
+	 * the page is split first, and the entry updated in the half it ended up in, or
+	 * in the parent if the split pushed it up.
+	 * 
+	 * @param tid - the transaction id
+	 * @param dirtypages - the list of dirty pages which should be updated with all new dirty pages,
+	 * or null to update the page in place
+	 * @param page - the internal page holding the entry
+	 * @param e - the entry with its updated key
+	 * @see #splitInternalPage(TransactionId, HashMap, BTreeInternalPage, Field)
+	 * 
+	 * @throws DbException
+	 * @throws IOException
+	 * @throws TransactionAbortedException
+	 */
+	private void updateEntry(TransactionId tid, HashMap<PageId, Page> dirtypages, BTreeInternalPage page,
+			BTreeEntry e) throws DbException, IOException, TransactionAbortedException {
+		if(dirtypages == null || page.canUpdateEntry(e)) {
+			page.updateEntry(e);
+			return;
+		}
+		Field key = e.getKey();
+		splitInternalPage(tid, dirtypages, page, key);
+		BTreeInternalPage newPage = (BTreeInternalPage) getPage(tid, dirtypages, page.getRightSiblingId(),
+				Permissions.READ_WRITE);
+		for(BTreeInternalPage half : new BTreeInternalPage[] {page, newPage}) {
+			Iterator<BTreeEntry> it = half.iterator();
+			while(it.hasNext()) {
+				BTreeEntry moved = it.next();
+				if(moved.getLeftChild().equals(e.getLeftChild()) && moved.getRightChild().equals(e.getRightChild())) {
+					moved.setKey(key);
+					updateEntry(tid, dirtypages, half, moved);
+					return;
+				}
+			}
+		}
+		// the entry separates the two halves now
+		BTreeInternalPage parent = (BTreeInternalPage) getPage(tid, dirtypages, page.getParentId(),
+				Permissions.READ_WRITE);
+		BTreeEntry mid = getRightEntry(parent, page.getId());
+		mid.setKey(key);
+		updateEntry(tid, dirtypages, parent, mid);
+		page.setHighKey(key);
 	}
 
 	/**
@@ -639,7 +1213,8 @@ public class BTreeFile implements DbFile {
 	 * Steal entries from the left sibling and copy them to the given page so that both pages are at least
 	 * half full. Keys can be thought of as rotating through the parent entry, so the original key in the 
 	 * parent is "pulled down" to the right-hand page, and the last key in the left-hand page is "pushed up"
-	 * to the parent.  Update parent pointers as needed.
+	 * to the parent.  Update parent pointers and the high key
+	 * of the left-hand page as needed.
 	 * 
 	 * @param tid - the transaction id
 	 * @param dirtypages - the list of dirty pages which should be updated with all new dirty pages
@@ -656,18 +1231,30 @@ public class BTreeFile implements DbFile {
 	protected void stealFromLeftInternalPage(TransactionId tid, HashMap<PageId, Page> dirtypages, 
 			BTreeInternalPage page, BTreeInternalPage leftSibling, BTreeInternalPage parent,
 			BTreeEntry parentEntry) throws DbException, IOException, TransactionAbortedException {
-		// some code goes here
-        // Move some of the entries from the left sibling to the page so
-		// that the entries are evenly distributed. Be sure to update
-		// the corresponding parent entry. Be sure to update the parent
-		// pointers of all children in the entries that were moved.
+
+		BTreeEntry first = page.iterator().next();
+		BTreePageId child = first.getLeftChild();
+		Field key = parentEntry.getKey();
+		while(page.getNumEmptySlots() > leftSibling.getNumEmptySlots() + 1) {
+			BTreeEntry e = leftSibling.reverseIterator().next();
+			BTreeEntry down = new BTreeEntry(key, e.getRightChild(), child);
+			page.insertEntry(down);
+			leftSibling.deleteKeyAndRightChild(e);
+			key = e.getKey();
+			child = e.getRightChild();
+		}
+		parentEntry.setKey(key);
+		updateEntry(tid, dirtypages, parent, parentEntry);
+		leftSibling.setHighKey(key);
+		updateParentPointers(tid, dirtypages, page);
 	}
 	
 	/**
 	 * Steal entries from the right sibling and copy them to the given page so that both pages are at least
 	 * half full. Keys can be thought of as rotating through the parent entry, so the original key in the 
 	 * parent is "pulled down" to the left-hand page, and the last key in the right-hand page is "pushed up"
-	 * to the parent.  Update parent pointers as needed.
+	 * to the parent.  Update parent pointers and the high key
+	 * of the left-hand page as needed.
 	 * 
 	 * @param tid - the transaction id
 	 * @param dirtypages - the list of dirty pages which should be updated with all new dirty pages
@@ -684,18 +1271,29 @@ public class BTreeFile implements DbFile {
 	protected void stealFromRightInternalPage(TransactionId tid, HashMap<PageId, Page> dirtypages, 
 			BTreeInternalPage page, BTreeInternalPage rightSibling, BTreeInternalPage parent,
 			BTreeEntry parentEntry) throws DbException, IOException, TransactionAbortedException {
-		// some code goes here
-        // Move some of the entries from the right sibling to the page so
-		// that the entries are evenly distributed. Be sure to update
-		// the corresponding parent entry. Be sure to update the parent
-		// pointers of all children in the entries that were moved.
+
+		BTreeEntry last = page.reverseIterator().next();
+		BTreePageId child = last.getRightChild();
+		Field key = parentEntry.getKey();
+		while(page.getNumEmptySlots() > rightSibling.getNumEmptySlots() + 1) {
+			BTreeEntry e = rightSibling.iterator().next();
+			BTreeEntry down = new BTreeEntry(key, child, e.getLeftChild());
+			page.insertEntry(down);
+			rightSibling.deleteKeyAndLeftChild(e);
+			key = e.getKey();
+			child = e.getLeftChild();
+		}
+		parentEntry.setKey(key);
+		updateEntry(tid, dirtypages, parent, parentEntry);
+		page.setHighKey(key);
+		updateParentPointers(tid, dirtypages, page);
 	}
 	
 	/**
 	 * Merge two leaf pages by moving all tuples from the right page to the left page. 
 	 * Delete the corresponding key and right child pointer from the parent, and recursively 
 	 * handle the case when the parent gets below minimum occupancy.
-	 * Update sibling pointers as needed, and make the right page available for reuse.
+	 * Update sibling pointers and the high key as needed, and make the right page available for reuse.
 	 * 
 	 * @param tid - the transaction id
 	 * @param dirtypages - the list of dirty pages which should be updated with all new dirty pages
@@ -713,12 +1311,23 @@ public class BTreeFile implements DbFile {
 			BTreeLeafPage leftPage, BTreeLeafPage rightPage, BTreeInternalPage parent, BTreeEntry parentEntry) 
 					throws DbException, IOException, TransactionAbortedException {
 
-		// some code goes here
-        //
-		// Move all the tuples from the right page to the left page, update
-		// the sibling pointers, and make the right page available for reuse.
-		// Delete the entry in the parent corresponding to the two pages that are merging -
-		// deleteParentEntry() will be useful here
+		Iterator<Tuple> it = rightPage.iterator();
+		ArrayList<Tuple> moved = new ArrayList<Tuple>();
+		while(it.hasNext())
+			moved.add(it.next());
+		for(Tuple t : moved) {
+			rightPage.deleteTuple(t);
+			leftPage.insertTuple(t);
+		}
+		BTreePageId right = rightPage.getRightSiblingId();
+		leftPage.setRightSiblingId(right);
+		leftPage.setHighKey(rightPage.getHighKey());
+		if(right != null) {
+			BTreeLeafPage r = (BTreeLeafPage) getPage(tid, dirtypages, right, Permissions.READ_WRITE);
+			r.setLeftSiblingId(leftPage.getId());
+		}
+		setEmptyPage(tid, dirtypages, rightPage.getId().getPageNumber());
+		deleteParentEntry(tid, dirtypages, leftPage, parent, parentEntry);
 	}
 
 	/**
@@ -726,7 +1335,7 @@ public class BTreeFile implements DbFile {
 	 * and "pulling down" the corresponding key from the parent entry. 
 	 * Delete the corresponding key and right child pointer from the parent, and recursively 
 	 * handle the case when the parent gets below minimum occupancy.
-	 * Update parent pointers as needed, and make the right page available for reuse.
+	 * Update parent pointers, the right sibling pointer and the high key as needed, and make the right page available for reuse.
 	 * 
 	 * @param tid - the transaction id
 	 * @param dirtypages - the list of dirty pages which should be updated with all new dirty pages
@@ -744,14 +1353,23 @@ public class BTreeFile implements DbFile {
 	protected void mergeInternalPages(TransactionId tid, HashMap<PageId, Page> dirtypages, 
 			BTreeInternalPage leftPage, BTreeInternalPage rightPage, BTreeInternalPage parent, BTreeEntry parentEntry) 
 					throws DbException, IOException, TransactionAbortedException {
-		
-		// some code goes here
-        //
-        // Move all the entries from the right page to the left page, update
-		// the parent pointers of the children in the entries that were moved, 
-		// and make the right page available for reuse
-		// Delete the entry in the parent corresponding to the two pages that are merging -
-		// deleteParentEntry() will be useful here
+
+		BTreeEntry last = leftPage.reverseIterator().next();
+		BTreeEntry first = rightPage.iterator().next();
+		leftPage.insertEntry(new BTreeEntry(parentEntry.getKey(), last.getRightChild(), first.getLeftChild()));
+		Iterator<BTreeEntry> it = rightPage.iterator();
+		ArrayList<BTreeEntry> moved = new ArrayList<BTreeEntry>();
+		while(it.hasNext())
+			moved.add(it.next());
+		for(BTreeEntry e : moved) {
+			rightPage.deleteKeyAndLeftChild(e);
+			leftPage.insertEntry(e);
+		}
+		leftPage.setRightSiblingId(rightPage.getRightSiblingId());
+		leftPage.setHighKey(rightPage.getHighKey());
+		updateParentPointers(tid, dirtypages, leftPage);
+		setEmptyPage(tid, dirtypages, rightPage.getId().getPageNumber());
+		deleteParentEntry(tid, dirtypages, leftPage, parent, parentEntry);
 	}
 	
 	/**
@@ -815,22 +1433,29 @@ public class BTreeFile implements DbFile {
 	public ArrayList<Page> deleteTuple(TransactionId tid, Tuple t) 
 			throws DbException, IOException, TransactionAbortedException {
 		HashMap<PageId, Page> dirtypages = new HashMap<PageId, Page>();
+		try {
+			BTreePageId pageId = new BTreePageId(tableid, t.getRecordId().getPageId().getPageNumber(),
+					BTreePageId.LEAF);
+			BTreeLeafPage page = (BTreeLeafPage) getPage(tid, dirtypages, pageId, Permissions.READ_WRITE);
+			page.deleteTuple(t);
+
+			// if the page is below minimum occupancy, get some tuples from its siblings
+			// or merge with one of the siblings
+			int maxEmptySlots = page.getMaxTuples() - page.getMaxTuples()/2; // ceiling
+			if(page.getNumEmptySlots() > maxEmptySlots) { 
+				beginStructureChange(tid, pageId);
+				handleMinOccupancyPage(tid, dirtypages, page);
+			}
 
-		BTreePageId pageId = new BTreePageId(tableid, t.getRecordId().getPageId().getPageNumber(),
-				BTreePageId.LEAF);
-		BTreeLeafPage page = (BTreeLeafPage) getPage(tid, dirtypages, pageId, Permissions.READ_WRITE);
-		page.deleteTuple(t);
-
-		// if the page is below minimum occupancy, get some tuples from its siblings
-		// or merge with one of the siblings
-		int maxEmptySlots = page.getMaxTuples() - page.getMaxTuples()/2; // ceiling
-		if(page.getNumEmptySlots() > maxEmptySlots) { 
-			handleMinOccupancyPage(tid, dirtypages, page);
+			ArrayList<Page> dirtyPagesArr = new ArrayList<Page>();
+			dirtyPagesArr.addAll(dirtypages.values());
+			return dirtyPagesArr;
+		} catch(TransactionAbortedException | DbException e) {
+			abandonPages(tid, dirtypages);
+			throw e;
+		} finally {
+			unpinPages(tid, dirtypages);
 		}
-
-		ArrayList<Page> dirtyPagesArr = new ArrayList<Page>();
-		dirtyPagesArr.addAll(dirtypages.values());
-		return dirtyPagesArr;
 	}
 
 	/**
@@ -869,6 +1494,7 @@ public class BTreeFile implements DbFile {
 	 * @param tid - the transaction id
 	 * @param dirtypages - the list of dirty pages which should be updated with all new dirty pages
 	 * @return the page number of the first empty page
+	 * @see #getEmptyPageNo(TransactionId, HashMap, int, int)
 	 * 
 	 * @throws DbException
 	 * @throws IOException
@@ -876,50 +1502,76 @@ public class BTreeFile implements DbFile {
 	 */
 	protected int getEmptyPageNo(TransactionId tid, HashMap<PageId, Page> dirtypages) 
 			throws DbException, IOException, TransactionAbortedException {
+		return getEmptyPageNo(tid, dirtypages, 0, 0);
+	}
+
+	/**
+	 * Get the page number of the first empty page of this BTreeFile between two
+	 * page numbers, and mark it used. Creates a new page if there is no upper
+	 * bound and none of the existing pages past the lower one are empty.
+	 * 
+	 * @param tid - the transaction id
+	 * @param dirtypages - the list of dirty pages which should be updated with all new dirty pages
+	 * @param after - the page number the empty page must be greater than
+	 * @param before - the page number the empty page must be less than, or 0 for no bound
+	 * @return the page number of the empty page, or 0 if none is less than before
+	 * 
+	 * @throws DbException
+	 * @throws IOException
+	 * @throws TransactionAbortedException
+	 */
+	protected int getEmptyPageNo(TransactionId tid, HashMap<PageId, Page> dirtypages, int after, int before) 
+			throws DbException, IOException, TransactionAbortedException {
 		// get a read lock on the root pointer page and use it to locate the first header page
 		BTreeRootPtrPage rootPtr = getRootPtrPage(tid, dirtypages);
 		BTreePageId headerId = rootPtr.getHeaderId();
-		int emptyPageNo = 0;
+		int numSlots = BTreeHeaderPage.getNumSlots();
+		int headerPageCount = 0;
 
-		if(headerId != null) {
+		// try to find a header page with an empty slot in range
+		while(headerId != null && (before == 0 || headerPageCount * numSlots < before)) {
 			BTreeHeaderPage headerPage = (BTreeHeaderPage) getPage(tid, dirtypages, headerId, Permissions.READ_ONLY);
-			int headerPageCount = 0;
-			// try to find a header page with an empty slot
-			while(headerPage != null && headerPage.getEmptySlot() == -1) {
-				headerId = headerPage.getNextPageId();
-				if(headerId != null) {
-					headerPage = (BTreeHeaderPage) getPage(tid, dirtypages, headerId, Permissions.READ_ONLY);
-					headerPageCount++;
-				}
-				else {
-					headerPage = null;
+			int first = headerPageCount * numSlots;
+			int end = before == 0 ? numSlots : Math.min(numSlots, before - first);
+			for(int slot = Math.max(0, after + 1 - first); slot < end; slot++) {
+				if(!headerPage.isSlotUsed(slot)) {
+					headerPage = (BTreeHeaderPage) getPage(tid, dirtypages, headerId, Permissions.READ_WRITE);
+					headerPage.markSlotUsed(slot, true);
+					return first + slot;
 				}
 			}
-
-			// if headerPage is not null, it must have an empty slot
-			if(headerPage != null) {
-				headerPage = (BTreeHeaderPage) getPage(tid, dirtypages, headerId, Permissions.READ_WRITE);
-				int emptySlot = headerPage.getEmptySlot();
-				headerPage.markSlotUsed(emptySlot, true);
-				emptyPageNo = headerPageCount * BTreeHeaderPage.getNumSlots() + emptySlot;
-			}
+			headerId = headerPage.getNextPageId();
+			headerPageCount++;
+		}
+		if(before != 0) {
+			return 0;
 		}
 
-		// at this point if headerId is null, either there are no header pages 
-		// or there are no free slots
-		if(headerId == null) {		
-			synchronized(this) {
-				// create the new page
-				BufferedOutputStream bw = new BufferedOutputStream(
-						new FileOutputStream(f, true));
-				byte[] emptyData = BTreeInternalPage.createEmptyPageData();
-				bw.write(emptyData);
-				bw.close();
-				emptyPageNo = numPages();
-			}
+		// there are no header pages or no free slots, so create the new page
+		synchronized(this) {
+			BufferedOutputStream bw = new BufferedOutputStream(
+					new FileOutputStream(f, true));
+			byte[] emptyData = BTreeInternalPage.createEmptyPageData();
+			bw.write(emptyData);
+			bw.close();
+			return numPages();
 		}
+	}
 
-		return emptyPageNo; 
+	/**
+	 * @return the header page holding the slot of a page, or null if the
+	 * header pages do not reach that far
+	 */
+	private BTreeHeaderPage getHeaderPage(TransactionId tid, HashMap<PageId, Page> dirtypages, int pgNo,
+			Permissions perm) throws DbException, IOException, TransactionAbortedException {
+		BTreePageId headerId = getRootPtrPage(tid, dirtypages).getHeaderId();
+		for(int i = 0; headerId != null && i < pgNo / BTreeHeaderPage.getNumSlots(); i++) {
+			headerId = ((BTreeHeaderPage) getPage(tid, dirtypages, headerId, Permissions.READ_ONLY)).getNextPageId();
+		}
+		if(headerId == null) {
+			return null;
+		}
+		return (BTreeHeaderPage) getPage(tid, dirtypages, headerId, perm);
 	}
 	
 	/**
@@ -940,8 +1592,27 @@ public class BTreeFile implements DbFile {
 	 */
 	private Page getEmptyPage(TransactionId tid, HashMap<PageId, Page> dirtypages, int pgcateg)
 			throws DbException, IOException, TransactionAbortedException {
+		return getEmptyPage(tid, dirtypages, pgcateg, getEmptyPageNo(tid, dirtypages));
+	}
+
+	/**
+	 * Create a new page at a page number already marked used, see
+	 * {@link #getEmptyPage(TransactionId, HashMap, int)}
+	 * 
+	 * @param tid - the transaction id
+	 * @param dirtypages - the list of dirty pages which should be updated with all new dirty pages
+	 * @param pgcateg - the BTreePageId category of the new page.  Either LEAF, INTERNAL, or HEADER
+	 * @param emptyPageNo - the page number of the new page
+	 * @return the new empty page
+	 * @see #getEmptyPageNo(TransactionId, HashMap, int, int)
+	 * 
+	 * @throws DbException
+	 * @throws IOException
+	 * @throws TransactionAbortedException
+	 */
+	private Page getEmptyPage(TransactionId tid, HashMap<PageId, Page> dirtypages, int pgcateg, int emptyPageNo)
+			throws DbException, IOException, TransactionAbortedException {
 		// create the new page
-		int emptyPageNo = getEmptyPageNo(tid, dirtypages);
 		BTreePageId newPageId = new BTreePageId(tableid, emptyPageNo, pgcateg);
 		
 		// write empty page to disk
@@ -952,7 +1623,9 @@ public class BTreeFile implements DbFile {
 		
 		// make sure the page is not in the buffer pool	or in the local cache		
 		Database.getBufferPool().discardPage(newPageId);
-		dirtypages.remove(newPageId);
+		if(dirtypages.remove(newPageId) != null) {
+			Database.getBufferPool().unpinPage(tid, newPageId);
+		}
 		
 		return getPage(tid, dirtypages, newPageId, Permissions.READ_WRITE);
 	}
@@ -1043,6 +1716,282 @@ public class BTreeFile implements DbFile {
 		headerPage.markSlotUsed(emptySlot, false);
 	}
 
+	/**
+	 * Fill a leaf page up to a fill factor with the tuples of its right siblings
+	 * under the same parent, merging it with the siblings it empties. A sibling
+	 * left less than half full is merged with its own right sibling or shares
+	 * its tuples with it, as a delete would do, or takes some tuples back when it
+	 * is the last child of the parent. Leaves under different parents are left
+	 * alone, since the key separating them is further up the tree. Used by
+	 * BTreeReorganizer to compact the leaves.
+	 * 
+	 * @param tid - the transaction id
+	 * @param dirtypages - the list of dirty pages which should be updated with all new dirty pages
+	 * @param page - the leaf page to fill
+	 * @param fillFactor - the fraction of the page to fill, between 0.5 and 1
+	 * @see #mergeLeafPages(TransactionId, HashMap, BTreeLeafPage, BTreeLeafPage, BTreeInternalPage, BTreeEntry)
+	 * @see #stealFromLeafPage(BTreeLeafPage, BTreeLeafPage, BTreeInternalPage,  BTreeEntry, boolean)
+	 * 
+	 * @throws DbException
+	 * @throws IOException
+	 * @throws TransactionAbortedException
+	 */
+	void compactLeafPage(TransactionId tid, HashMap<PageId, Page> dirtypages, BTreeLeafPage page, double fillFactor)
+			throws DbException, IOException, TransactionAbortedException {
+		int max = page.getMaxTuples();
+		int keep = Math.max((int) (fillFactor * max), max / 2);
+		while(page.getNumTuples() < keep && page.getParentId().pgcateg() == BTreePageId.INTERNAL) {
+			// a merge may merge the parent in turn, so look it up every time
+			BTreeInternalPage parent = (BTreeInternalPage) getPage(tid, dirtypages, page.getParentId(),
+					Permissions.READ_WRITE);
+			BTreeEntry entry = getRightEntry(parent, page.getId());
+			if(entry == null) {
+				return;
+			}
+			BTreeLeafPage right = (BTreeLeafPage) getPage(tid, dirtypages, entry.getRightChild(),
+					Permissions.READ_WRITE);
+			beginStructureChange(tid, page.getId());
+			if(page.getNumTuples() + right.getNumTuples() <= keep) {
+				mergeLeafPages(tid, dirtypages, page, right, parent, entry);
+				continue;
+			}
+			moveLeafTuples(tid, dirtypages, page, right, parent, entry, true, keep - page.getNumTuples());
+			if(right.getNumTuples() < max / 2) {
+				// a longer key may have split the parent, and even separated the two pages
+				parent = (BTreeInternalPage) getPage(tid, dirtypages, right.getParentId(), Permissions.READ_WRITE);
+				BTreeEntry next = getRightEntry(parent, right.getId());
+				entry = page.getParentId().equals(parent.getId()) ? getRightEntry(parent, page.getId()) : null;
+				if(next != null) {
+					BTreeLeafPage sibling = (BTreeLeafPage) getPage(tid, dirtypages, next.getRightChild(),
+							Permissions.READ_WRITE);
+					if(right.getNumTuples() + sibling.getNumTuples() <= max) {
+						mergeLeafPages(tid, dirtypages, right, sibling, parent, next);
+					}
+					else {
+						stealFromLeafPage(tid, dirtypages, right, sibling, parent, next, true);
+					}
+				}
+				else if(entry == null) {
+					return;
+				}
+				else if(page.getNumTuples() + right.getNumTuples() <= max) {
+					mergeLeafPages(tid, dirtypages, page, right, parent, entry);
+				}
+				else {
+					stealFromLeafPage(tid, dirtypages, right, page, parent, entry, false);
+				}
+			}
+			return;
+		}
+	}
+
+	/**
+	 * @return the entry of an internal page whose left child is the given page,
+	 * or null if it is the last child of the page
+	 */
+	private static BTreeEntry getRightEntry(BTreeInternalPage parent, BTreePageId child) {
+		Iterator<BTreeEntry> it = parent.iterator();
+		while(it.hasNext()) {
+			BTreeEntry e = it.next();
+			if(e.getLeftChild().equals(child)) {
+				return e;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Move a leaf page to another page number: copy its tuples to a new page
+	 * there, point its parent and siblings to the new page, and make the old one
+	 * available for reuse. Used by BTreeReorganizer to lay the leaves out in key
+	 * order.
+	 * 
+	 * @param tid - the transaction id
+	 * @param dirtypages - the list of dirty pages which should be updated with all new dirty pages
+	 * @param page - the leaf page to move
+	 * @param pgNo - the page number to move it to, already marked used
+	 * @return the leaf page at its new page number
+	 * @see #getEmptyPageNo(TransactionId, HashMap, int, int)
+	 * 
+	 * @throws DbException
+	 * @throws IOException
+	 * @throws TransactionAbortedException
+	 */
+	BTreeLeafPage moveLeafPage(TransactionId tid, HashMap<PageId, Page> dirtypages, BTreeLeafPage page, int pgNo)
+			throws DbException, IOException, TransactionAbortedException {
+		beginStructureChange(tid, page.getId());
+		BTreeLeafPage newPage = (BTreeLeafPage) getEmptyPage(tid, dirtypages, BTreePageId.LEAF, pgNo);
+		Iterator<Tuple> it = page.iterator();
+		ArrayList<Tuple> moved = new ArrayList<Tuple>();
+		while(it.hasNext())
+			moved.add(it.next());
+		for(Tuple t : moved) {
+			page.deleteTuple(t);
+			newPage.insertTuple(t);
+		}
+		BTreePageId left = page.getLeftSiblingId();
+		BTreePageId right = page.getRightSiblingId();
+		newPage.setLeftSiblingId(left);
+		newPage.setRightSiblingId(right);
+		newPage.setHighKey(page.getHighKey());
+		newPage.setParentId(page.getParentId());
+		if(left != null) {
+			((BTreeLeafPage) getPage(tid, dirtypages, left, Permissions.READ_WRITE)).setRightSiblingId(newPage.getId());
+		}
+		if(right != null) {
+			((BTreeLeafPage) getPage(tid, dirtypages, right, Permissions.READ_WRITE)).setLeftSiblingId(newPage.getId());
+		}
+
+		if(page.getParentId().pgcateg() == BTreePageId.ROOT_PTR) {
+			BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) getPage(tid, dirtypages, page.getParentId(),
+					Permissions.READ_WRITE);
+			rootPtr.setRootId(newPage.getId());
+		}
+		else {
+			BTreeInternalPage parent = (BTreeInternalPage) getPage(tid, dirtypages, page.getParentId(),
+					Permissions.READ_WRITE);
+			Iterator<BTreeEntry> entries = parent.iterator();
+			while(entries.hasNext()) {
+				BTreeEntry e = entries.next();
+				if(e.getLeftChild().equals(page.getId())) {
+					e.setLeftChild(newPage.getId());
+					parent.updateEntry(e);
+				}
+				else if(e.getRightChild().equals(page.getId())) {
+					e.setRightChild(newPage.getId());
+					parent.updateEntry(e);
+				}
+			}
+		}
+		setEmptyPage(tid, dirtypages, page.getId().getPageNumber());
+		return newPage;
+	}
+
+	/**
+	 * Reserve the empty pages at the end of this BTreeFile so that they can be
+	 * given back to the file system. Their slots in the header pages are marked
+	 * used, as the slots of pages past the end of the file are, so that they are
+	 * only handed out again once the file grows back over them. Header pages are
+	 * moved down first so that they do not hold the end of the file. The
+	 * transaction must lock the whole file with an exclusive lock, see
+	 * {@link BufferPool#lockTable}, so that no other transaction has any of the
+	 * pages in use.
+	 * <p>
+	 * The file itself is only cut by {@link #truncate} once the transaction has
+	 * committed: an aborted transaction puts the slots back, and must find the
+	 * pages still there. Used by BTreeReorganizer to shrink the file.
+	 * 
+	 * @param tid - the transaction id
+	 * @param dirtypages - the list of dirty pages which should be updated with all new dirty pages
+	 * @return the number of pages to keep at the start of the file
+	 * 
+	 * @throws DbException
+	 * @throws IOException
+	 * @throws TransactionAbortedException
+	 */
+	int reserveEmptyPagesAtEnd(TransactionId tid, HashMap<PageId, Page> dirtypages)
+			throws DbException, IOException, TransactionAbortedException {
+		moveHeaderPages(tid, dirtypages);
+		int last = numPages();
+		while(last > 1) {
+			int slot = last % BTreeHeaderPage.getNumSlots();
+			BTreeHeaderPage headerPage = getHeaderPage(tid, dirtypages, last, Permissions.READ_ONLY);
+			if(headerPage == null || headerPage.isSlotUsed(slot)) {
+				break;
+			}
+			headerPage = getHeaderPage(tid, dirtypages, last, Permissions.READ_WRITE);
+			headerPage.markSlotUsed(slot, true);
+			last--;
+		}
+		return last;
+	}
+
+	/**
+	 * Cut this BTreeFile to its first pages, once a committed transaction has
+	 * reserved the pages past them with {@link #reserveEmptyPagesAtEnd}. The
+	 * caller must hold an exclusive lock on the whole file. Nothing is cut if
+	 * the file grew in between, since the new pages at its end are in use.
+	 * <p>
+	 * The cut is not logged. Recovery may write pages past it back and grow the
+	 * file again, which only leaves unused pages at its end, their slots still
+	 * marked used.
+	 * 
+	 * @param pages - the number of pages of the file when the pages were reserved
+	 * @param keep - the number of pages to keep, as returned by reserveEmptyPagesAtEnd
+	 * @return the number of pages removed from the end of the file
+	 * 
+	 * @throws IOException
+	 */
+	int truncate(int pages, int keep) throws IOException {
+		synchronized(this) {
+			if(keep >= pages || numPages() != pages) {
+				return 0;
+			}
+			RandomAccessFile rf = new RandomAccessFile(f, "rw");
+			rf.setLength(BTreeRootPtrPage.getPageSize() + (long) keep * BufferPool.getPageSize());
+			rf.close();
+		}
+		for(int pgNo = keep + 1; pgNo <= pages; pgNo++) {
+			for(int pgcateg : new int[] { BTreePageId.LEAF, BTreePageId.INTERNAL, BTreePageId.HEADER }) {
+				// clean since the reserving transaction committed, and locked by no one else
+				Database.getBufferPool().discardPage(new BTreePageId(tableid, pgNo, pgcateg));
+			}
+		}
+		return pages - keep;
+	}
+
+	/**
+	 * Move each header page to the lowest empty page of the file, if there is
+	 * one before it. Header pages are created as the file grows, so they are
+	 * often near its end and would keep it from being truncated.
+	 * 
+	 * @param tid - the transaction id
+	 * @param dirtypages - the list of dirty pages which should be updated with all new dirty pages
+	 * 
+	 * @throws DbException
+	 * @throws IOException
+	 * @throws TransactionAbortedException
+	 */
+	private void moveHeaderPages(TransactionId tid, HashMap<PageId, Page> dirtypages)
+			throws DbException, IOException, TransactionAbortedException {
+		BTreePageId headerId = getRootPtrPage(tid, dirtypages).getHeaderId();
+		while(headerId != null) {
+			int pgNo = headerId.getPageNumber();
+			int emptyPageNo = getEmptyPageNo(tid, dirtypages, 0, pgNo);
+			BTreeHeaderPage headerPage = (BTreeHeaderPage) getPage(tid, dirtypages, headerId, Permissions.READ_WRITE);
+			if(emptyPageNo == 0) {
+				headerId = headerPage.getNextPageId();
+				continue;
+			}
+
+			// the slot of the empty page may be on the header page itself, so
+			// copy the slots only once it is marked used
+			BTreeHeaderPage newPage = (BTreeHeaderPage) getEmptyPage(tid, dirtypages, BTreePageId.HEADER, emptyPageNo);
+			for(int i = 0; i < BTreeHeaderPage.getNumSlots(); i++) {
+				newPage.markSlotUsed(i, headerPage.isSlotUsed(i));
+			}
+			BTreePageId prevId = headerPage.getPrevPageId();
+			BTreePageId nextId = headerPage.getNextPageId();
+			newPage.setPrevPageId(prevId);
+			newPage.setNextPageId(nextId);
+			if(prevId == null) {
+				BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) getPage(tid, dirtypages,
+						BTreeRootPtrPage.getId(tableid), Permissions.READ_WRITE);
+				rootPtr.setHeaderId(newPage.getId());
+			}
+			else {
+				BTreeHeaderPage prevPage = (BTreeHeaderPage) getPage(tid, dirtypages, prevId, Permissions.READ_WRITE);
+				prevPage.setNextPageId(newPage.getId());
+			}
+			if(nextId != null) {
+				BTreeHeaderPage nextPage = (BTreeHeaderPage) getPage(tid, dirtypages, nextId, Permissions.READ_WRITE);
+				nextPage.setPrevPageId(newPage.getId());
+			}
+			setEmptyPage(tid, dirtypages, pgNo);
+			headerId = nextId;
+		}
+	}
+
 	/**
 	 * get the specified tuples from the file based on its IndexPredicate value on
 	 * behalf of the specified transaction. This method will acquire a read lock on
@@ -1078,6 +2027,7 @@ class BTreeFileIterator extends AbstractDbFileIterator {
 
 	Iterator<Tuple> it = null;
 	BTreeLeafPage curp = null;
+	BTreeLeafPrefetcher prefetcher = null;
 
 	TransactionId tid;
 	BTreeFile f;
@@ -1096,13 +2046,34 @@ class BTreeFileIterator extends AbstractDbFileIterator {
 	 * Open this iterator by getting an iterator on the first leaf page
 	 */
 	public void open() throws DbException, TransactionAbortedException {
-		BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) Database.getBufferPool().getPage(
-				tid, BTreeRootPtrPage.getId(f.getId()), Permissions.READ_ONLY);
-		BTreePageId root = rootPtr.getRootId();
-		curp = f.findLeafPage(tid, root, Permissions.READ_ONLY, null);
+		prefetcher = new BTreeLeafPrefetcher(f, f.getPrefetchDepth());
+		curp = pin(f.findLeafPage(tid, new HashMap<PageId, Page>(), Permissions.READ_ONLY, null).getId());
 		it = curp.iterator();
 	}
 
+	/**
+	 * Pin the given leaf page for as long as the iterator is positioned on it, 
+	 * releasing the pin on the previous leaf page
+	 * @param pid - the id of the leaf page to move to
+	 * @return the pinned leaf page
+	 */
+	private BTreeLeafPage pin(BTreePageId pid) throws TransactionAbortedException, DbException {
+		release();
+		BTreeLeafPage leaf = (BTreeLeafPage) Database.getBufferPool().pinPage(tid, pid, Permissions.READ_ONLY);
+		prefetcher.moved(leaf, null);
+		return leaf;
+	}
+
+	/**
+	 * Release the pin on the current leaf page, if any
+	 */
+	private void release() {
+		if(curp != null) {
+			Database.getBufferPool().unpinPage(tid, curp.getId());
+			curp = null;
+		}
+	}
+
 	/**
 	 * Read the next tuple either from the current page if it has more tuples or
 	 * from the next page by following the right sibling pointer.
@@ -1117,11 +2088,10 @@ class BTreeFileIterator extends AbstractDbFileIterator {
 		while (it == null && curp != null) {
 			BTreePageId nextp = curp.getRightSiblingId();
 			if(nextp == null) {
-				curp = null;
+				release();
 			}
 			else {
-				curp = (BTreeLeafPage) Database.getBufferPool().getPage(tid,
-						nextp, Permissions.READ_ONLY);
+				curp = pin(nextp);
 				it = curp.iterator();
 				if (!it.hasNext())
 					it = null;
@@ -1147,7 +2117,7 @@ class BTreeFileIterator extends AbstractDbFileIterator {
 	public void close() {
 		super.close();
 		it = null;
-		curp = null;
+		release();
 	}
 }
 
@@ -1159,21 +2129,52 @@ class BTreeSearchIterator extends AbstractDbFileIterator {
 
 	Iterator<Tuple> it = null;
 	BTreeLeafPage curp = null;
+	BTreeLeafPrefetcher prefetcher = null;
 
 	TransactionId tid;
 	BTreeFile f;
 	IndexPredicate ipred;
+	// the value the keys compare to, and the prefix they are equal to, if any,
+	// as keys of the file
+	Field field;
+	Field prefix;
+	Field upper = null;
 
 	/**
 	 * Constructor for this iterator
 	 * @param f - the BTreeFile containing the tuples
 	 * @param tid - the transaction id
 	 * @param ipred - the predicate to filter on
+	 * @throws IllegalArgumentException if the predicate is on more fields than the file is keyed on
 	 */
 	public BTreeSearchIterator(BTreeFile f, TransactionId tid, IndexPredicate ipred) {
 		this.f = f;
 		this.tid = tid;
 		this.ipred = ipred;
+		this.field = asKey(f, ipred.getField());
+		this.prefix = ipred.getPrefix() == null ? null : asKey(f, ipred.getPrefix());
+		// no leaf to the right of one whose high key is above this bound can match
+		if(ipred.getOp() == Op.EQUALS || ipred.getOp() == Op.LESS_THAN || ipred.getOp() == Op.LESS_THAN_OR_EQ) {
+			upper = field;
+		}
+		else if(prefix != null) {
+			upper = prefix;
+		}
+	}
+
+	/**
+	 * @return the value of a predicate as a key of the file, or a prefix of one
+	 */
+	private static Field asKey(BTreeFile f, Field value) {
+		int n = value instanceof CompositeField ? ((CompositeField) value).numFields() : 1;
+		if(n > f.keyFields().length) {
+			throw new IllegalArgumentException("predicate on " + n + " fields of a B+ tree keyed on "
+					+ f.keyFields().length);
+		}
+		if(f.getKeyType() instanceof CompositeType && !(value instanceof CompositeField)) {
+			return new CompositeField(new Field[] { value });
+		}
+		return value;
 	}
 
 	/**
@@ -1181,19 +2182,42 @@ class BTreeSearchIterator extends AbstractDbFileIterator {
 	 * for the given predicate operation
 	 */
 	public void open() throws DbException, TransactionAbortedException {
-		BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) Database.getBufferPool().getPage(
-				tid, BTreeRootPtrPage.getId(f.getId()), Permissions.READ_ONLY);
-		BTreePageId root = rootPtr.getRootId();
+		prefetcher = new BTreeLeafPrefetcher(f, f.getPrefetchDepth());
+		BTreeLeafPage leaf;
 		if(ipred.getOp() == Op.EQUALS || ipred.getOp() == Op.GREATER_THAN 
 				|| ipred.getOp() == Op.GREATER_THAN_OR_EQ) {
-			curp = f.findLeafPage(tid, root, Permissions.READ_ONLY, ipred.getField());
+			leaf = f.findLeafPage(tid, new HashMap<PageId, Page>(), Permissions.READ_ONLY, field);
 		}
 		else {
-			curp = f.findLeafPage(tid, root, Permissions.READ_ONLY, null);
+			leaf = f.findLeafPage(tid, new HashMap<PageId, Page>(), Permissions.READ_ONLY, prefix);
 		}
+		curp = pin(leaf.getId());
 		it = curp.iterator();
 	}
 
+	/**
+	 * Pin the given leaf page for as long as the iterator is positioned on it, 
+	 * releasing the pin on the previous leaf page
+	 * @param pid - the id of the leaf page to move to
+	 * @return the pinned leaf page
+	 */
+	private BTreeLeafPage pin(BTreePageId pid) throws TransactionAbortedException, DbException {
+		release();
+		BTreeLeafPage leaf = (BTreeLeafPage) Database.getBufferPool().pinPage(tid, pid, Permissions.READ_ONLY);
+		prefetcher.moved(leaf, upper);
+		return leaf;
+	}
+
+	/**
+	 * Release the pin on the current leaf page, if any
+	 */
+	private void release() {
+		if(curp != null) {
+			Database.getBufferPool().unpinPage(tid, curp.getId());
+			curp = null;
+		}
+	}
+
 	/**
 	 * Read the next tuple either from the current page if it has more tuples matching
 	 * the predicate or from the next page by following the right sibling pointer.
@@ -1207,7 +2231,15 @@ class BTreeSearchIterator extends AbstractDbFileIterator {
 
 			while (it.hasNext()) {
 				Tuple t = it.next();
-				if (t.getField(f.keyField()).compare(ipred.getOp(), ipred.getField())) {
+				Field key = f.getKey(t);
+				if(prefix != null && !key.compare(Op.EQUALS, prefix)) {
+					if(key.compare(Op.GREATER_THAN, prefix)) {
+						// past the keys starting with the prefix
+						return null;
+					}
+					continue;
+				}
+				if (key.compare(ipred.getOp(), field)) {
 					return t;
 				}
 				else if(ipred.getOp() == Op.LESS_THAN || ipred.getOp() == Op.LESS_THAN_OR_EQ) {
@@ -1216,7 +2248,7 @@ class BTreeSearchIterator extends AbstractDbFileIterator {
 					return null;
 				}
 				else if(ipred.getOp() == Op.EQUALS && 
-						t.getField(f.keyField()).compare(Op.GREATER_THAN, ipred.getField())) {
+						key.compare(Op.GREATER_THAN, field)) {
 					// if the tuple is now greater than the field passed in and the operation
 					// is equals, we have reached the end
 					return null;
@@ -1228,9 +2260,14 @@ class BTreeSearchIterator extends AbstractDbFileIterator {
 			if(nextp == null) {
 				return null;
 			}
+			// the keys to the right are no less than the high key, so there is no
+			// need to lock the next page when the predicate rules them all out
+			Field highKey = curp.getHighKey();
+			if(highKey != null && upper != null && upper.compare(Op.LESS_THAN, highKey)) {
+				return null;
+			}
 			else {
-				curp = (BTreeLeafPage) Database.getBufferPool().getPage(tid,
-						nextp, Permissions.READ_ONLY);
+				curp = pin(nextp);
 				it = curp.iterator();
 			}
 		}
@@ -1252,5 +2289,6 @@ class BTreeSearchIterator extends AbstractDbFileIterator {
 	public void close() {
 		super.close();
 		it = null;
+		release();
 	}
 }
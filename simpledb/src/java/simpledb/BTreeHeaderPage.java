@@ -264,6 +264,16 @@ public class BTreeHeaderPage implements Page {
 			return null;
 	}
 
+	/**
+	 * The page LSN is not stored in header pages, which recovery always replays.
+	 */
+	public long getLsn() {
+		return LogRecord.NO_LSN;
+	}
+
+	public void setLsn(long lsn) {
+	}
+
 	/**
 	 * Returns true if the page of the BTreeFile associated with slot i is used
 	 */
@@ -18,8 +18,11 @@ public class BTreeInternalPage extends BTreePage {
 	private final Field keys[];
 	private final int children[];
 	private final int numSlots;
+	// true if keys are stored prefix compressed, see getPageData
+	private final boolean compressed;
 	
 	private int childCategory; // either leaf or internal
+	private int rightSibling; // internal node or 0
 
 	public void checkRep(Field lowerBound, Field upperBound, boolean checkOccupancy, int depth) {
 		Field prev = lowerBound;
@@ -35,9 +38,10 @@ public class BTreeInternalPage extends BTreePage {
 		if (null != upperBound && null != prev){
 			assert(prev.compare(Op.LESS_THAN_OR_EQ, upperBound));
 		}
+		assert(null == upperBound ? null == highKey : upperBound.equals(highKey));
 
 		if (checkOccupancy && depth > 0) {
-			assert (getNumEntries() >= getMaxEntries() / 2);
+			assert (getNumEmptySlots() <= getMaxEntries() - getMaxEntries() / 2);
 		}
 	}
 	
@@ -45,9 +49,9 @@ public class BTreeInternalPage extends BTreePage {
 	 * Create a BTreeInternalPage from a set of bytes of data read from disk.
 	 * The format of a BTreeInternalPage is a set of header bytes indicating
 	 * the slots of the page that are in use, some number of entry slots, and extra
-	 * bytes for the parent pointer, one extra child pointer (a node with m entries 
-	 * has m+1 pointers to children), and the category of all child pages (either 
-	 * leaf or internal).
+	 * bytes for the page LSN, the parent pointer, the right sibling pointer, the high key,
+	 * one extra child pointer (a node with m entries has m+1 pointers to children), and
+	 * the category of all child pages (either leaf or internal).
 	 *  Specifically, the number of entries is equal to: <p>
 	 *          floor((BufferPool.getPageSize()*8 - extra bytes*8) / (entry size * 8 + 1))
 	 * <p> where entry size is the size of entries in this index node
@@ -57,6 +61,7 @@ public class BTreeInternalPage extends BTreePage {
 	 * <p>
 	 *      ceiling((no. entry slots + 1) / 8)
 	 * <p>
+	 * String keys are instead stored prefix compressed, see {@link #getPageData}.
 	 * @see Database#getCatalog
 	 * @see Catalog#getTupleDesc
 	 * @see BufferPool#getPageSize()
@@ -66,9 +71,24 @@ public class BTreeInternalPage extends BTreePage {
 	 * @param key - the field which the index is keyed on
 	 */
 	public BTreeInternalPage(BTreePageId id, byte[] data, int key) throws IOException {
-		super(id, key);
-		this.numSlots = getMaxEntries() + 1;
+		this(id, data, new int[] { key });
+	}
+
+	/**
+	 * Create a BTreeInternalPage of an index keyed on several fields, see
+	 * {@link CompositeField}. Composite keys are stored as their fields one
+	 * after the other, and are never prefix compressed.
+	 * 
+	 * @param id - the id of this page
+	 * @param data - the raw data of this page
+	 * @param keyFields - the fields which the index is keyed on, in key order
+	 */
+	public BTreeInternalPage(BTreePageId id, byte[] data, int[] keyFields) throws IOException {
+		super(id, keyFields);
+		this.compressed = compressesKeys(keyType);
+		this.numSlots = getNumSlots(keyType);
 		DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data));
+		this.lsn = dis.readLong();
 
 		// Read the parent pointer
 		try {
@@ -78,15 +98,27 @@ public class BTreeInternalPage extends BTreePage {
 			e.printStackTrace();
 		}
 
+		// read the right sibling pointer and the high key
+		this.rightSibling = dis.readInt();
+		readHighKey(dis);
+
 		// read the child page category
 		childCategory = (int) dis.readByte();
 
 		// allocate and read the header slots of this page
-		header = new byte[getHeaderSize()];
+		header = new byte[getHeaderSize(numSlots)];
 		for (int i=0; i<header.length; i++)
 			header[i] = dis.readByte();
 
 		keys = new Field[numSlots];
+		children = new int[numSlots];
+		if (compressed) {
+			readCompressedEntries(dis);
+			dis.close();
+			setBeforeImage();
+			return;
+		}
+
 		try{
 			// allocate and read the keys of this page
 			// start from 1 because the first key slot is not used
@@ -98,7 +130,6 @@ public class BTreeInternalPage extends BTreePage {
 			e.printStackTrace();
 		}
 
-		children = new int[numSlots];
 		try{
 			// allocate and read the child pointers of this page
 			for (int i=0; i<children.length; i++)
@@ -113,29 +144,123 @@ public class BTreeInternalPage extends BTreePage {
 
 	/** 
 	 * Retrieve the maximum number of entries this page can hold. (The number of keys)
+	 * For prefix compressed keys, this is the number of entries with keys of the
+	 * maximum length that fit; a page may hold many more shorter keys, see
+	 * {@link #getNumEmptySlots()}.
  	 */
 	public int getMaxEntries() {        
-		int keySize = td.getFieldType(keyField).getLen();
+		return getMaxEntries(keyType);
+	}
+
+	/**
+	 * @return the maximum number of entries of an internal page with keys of the
+	 *   given type
+	 */
+	static int getMaxEntries(KeyType keyType) {
+		if (compressesKeys(keyType)) {
+			// one entry's worth of bytes is kept in reserve for updateEntry
+			int room = BufferPool.getPageSize() - COMPRESSED_EXTRA_BYTES - getHeaderSize(getNumSlots(keyType));
+			return room / getMaxEntrySize() - 1;
+		}
+		int keySize = keyType.getLen();
 		int bitsPerEntryIncludingHeader = keySize * 8 + INDEX_SIZE * 8 + 1;
-		// extraBits are: one parent pointer, 1 byte for child page category, 
-		// one extra child pointer (node with m entries has m+1 pointers to children), 1 bit for extra header
-		int extraBits = 2 * INDEX_SIZE * 8 + 8 + 1; 
+		// extraBits are: page LSN, one parent pointer, right sibling pointer, high key,
+		// 1 byte for child page category, one extra child pointer (node with m entries
+		// has m+1 pointers to children), 1 bit for extra header
+		int extraBits = LSN_SIZE * 8 + 3 * INDEX_SIZE * 8 + getHighKeySize(keyType) * 8 + 8 + 1;
 		int entriesPerPage = (BufferPool.getPageSize()*8 - extraBits) / bitsPerEntryIncludingHeader; //round down
 		return entriesPerPage;
 	}
 
 	/**
-	 * Computes the number of bytes in the header of a B+ internal page with each entry occupying entrySize bytes
+	 * @return the number of slots of an internal page with keys of the given type,
+	 *   including the unused key slot 0. Prefix compressed pages have a slot for
+	 *   every entry that could fit, down to entries with an empty key suffix.
+	 */
+	static int getNumSlots(KeyType keyType) {
+		if (compressesKeys(keyType)) {
+			int bitsPerEntryIncludingHeader = (1 + INDEX_SIZE) * 8 + 1;
+			int extraBits = COMPRESSED_EXTRA_BYTES * 8 + 1;
+			return (BufferPool.getPageSize()*8 - extraBits) / bitsPerEntryIncludingHeader + 1;
+		}
+		return getMaxEntries(keyType) + 1;
+	}
+
+	/**
+	 * Computes the number of bytes in the header of a B+ internal page with the given
+	 * number of slots
 	 * @return the number of bytes in the header
 	 */
-	private int getHeaderSize() {        
-		int slotsPerPage = getMaxEntries() + 1;
+	private static int getHeaderSize(int slotsPerPage) {        
 		int hb = (slotsPerPage / 8);
 		if (hb * 8 < slotsPerPage) hb++;
 
 		return hb;
 	}
 
+	/**
+	 * Bytes of a prefix compressed page besides the header and the entries: page LSN,
+	 * parent pointer, right sibling pointer, high key, child page category, length of
+	 * the common key prefix and the extra child pointer. The common prefix itself is
+	 * never larger than what it saves on the keys, so it is not counted.
+	 */
+	private static final int COMPRESSED_EXTRA_BYTES = LSN_SIZE + 3 * INDEX_SIZE
+			+ getHighKeySize(Type.STRING_TYPE) + 2;
+
+	/**
+	 * @return true if internal pages store keys of the given type prefix compressed
+	 */
+	static boolean compressesKeys(KeyType keyType) {
+		return keyType == Type.STRING_TYPE;
+	}
+
+	/**
+	 * @return the bytes an entry with the given key takes up on a prefix compressed
+	 *   page, counting its whole key: the key length, the key and the child pointer
+	 */
+	static int getEntrySize(Field key) {
+		return 1 + ((StringField) key).getValue().length() + INDEX_SIZE;
+	}
+
+	private static int getMaxEntrySize() {
+		return 1 + Type.STRING_LEN + INDEX_SIZE;
+	}
+
+	/**
+	 * @return the bytes the entries of a prefix compressed page may take up, see
+	 *   {@link #getEntrySize}
+	 */
+	static int getEntryBytes(KeyType keyType) {
+		return getMaxEntries(keyType) * getMaxEntrySize();
+	}
+
+	/**
+	 * Return the shortest key that separates two adjacent children: it is greater
+	 * than or equal to the largest key under the left child and less than or equal to
+	 * the smallest key under the right child. For strings, this is the shortest
+	 * prefix of the right key that is not less than the left key (suffix truncation);
+	 * other keys are returned as is.
+	 * 
+	 * @param left - the largest key under the left child
+	 * @param right - the smallest key under the right child
+	 * @return the key to store in the entry between the two children
+	 */
+	public static Field getSeparator(Field left, Field right) {
+		if (!(right instanceof StringField) || left == null)
+			return right;
+		String l = ((StringField) left).getValue();
+		String r = ((StringField) right).getValue();
+		int i = 0;
+		while (i < l.length() && i < r.length() && l.charAt(i) == r.charAt(i))
+			i++;
+		// r[0..i] is the common prefix; if l is a prefix of r, that is l itself,
+		// otherwise one more character of r makes it greater than l
+		int len = (i == l.length() ? i : i + 1);
+		if (len >= r.length())
+			return right;
+		return new StringField(r.substring(0, len), Type.STRING_LEN);
+	}
+
 	/** Return a view of this page before it was modified
         -- used by recovery */
 	public BTreeInternalPage getBeforeImage(){
@@ -145,7 +270,7 @@ public class BTreeInternalPage extends BTreePage {
 			{
 				oldDataRef = oldData;
 			}
-			return new BTreeInternalPage(pid,oldDataRef,keyField);
+			return new BTreeInternalPage(pid,oldDataRef,keyFields);
 		} catch (IOException e) {
 			e.printStackTrace();
 			//should never happen -- we parsed it OK before!
@@ -168,7 +293,7 @@ public class BTreeInternalPage extends BTreePage {
 		// if associated bit is not set, read forward to the next key, and
 		// return null.
 		if (!isSlotUsed(slotId)) {
-			for (int i=0; i<td.getFieldType(keyField).getLen(); i++) {
+			for (int i=0; i<keyType.getLen(); i++) {
 				try {
 					dis.readByte();
 				} catch (IOException e) {
@@ -181,7 +306,7 @@ public class BTreeInternalPage extends BTreePage {
 		// read the key field
 		Field f = null;
 		try {
-			f = td.getFieldType(keyField).parse(dis);
+			f = keyType.parse(dis);
 		} catch (java.text.ParseException e) {
 			e.printStackTrace();
 			throw new NoSuchElementException("parsing error!");
@@ -190,6 +315,60 @@ public class BTreeInternalPage extends BTreePage {
 		return f;
 	}
 
+	/**
+	 * Read the prefix compressed keys and the child pointers of the used slots,
+	 * see {@link #getPageData}.
+	 */
+	private void readCompressedEntries(DataInputStream dis) throws IOException {
+		String prefix = readString(dis);
+		int child = dis.readInt();
+		children[0] = isSlotUsed(0) ? child : -1;
+		for (int i=1; i<numSlots; i++) {
+			if (!isSlotUsed(i)) {
+				children[i] = -1;
+				continue;
+			}
+			keys[i] = new StringField(prefix + readString(dis), Type.STRING_LEN);
+			children[i] = dis.readInt();
+		}
+	}
+
+	private static String readString(DataInputStream dis) throws IOException {
+		byte bs[] = new byte[dis.readUnsignedByte()];
+		dis.readFully(bs);
+		return new String(bs);
+	}
+
+	/**
+	 * Write the keys of the used slots prefix compressed, with their child pointers.
+	 * 
+	 * @param keys - the keys of the entries, in order
+	 * @param children - the child pointers, one more than the keys
+	 */
+	static void writeCompressedEntries(DataOutputStream dos, List<Field> keys, List<Integer> children)
+			throws IOException {
+		String prefix = "";
+		if (!keys.isEmpty()) {
+			prefix = ((StringField) keys.get(0)).getValue();
+			for (Field k : keys) {
+				String s = ((StringField) k).getValue();
+				int i = 0;
+				while (i < prefix.length() && i < s.length() && prefix.charAt(i) == s.charAt(i))
+					i++;
+				prefix = prefix.substring(0, i);
+			}
+		}
+		dos.writeByte(prefix.length());
+		dos.writeBytes(prefix);
+		dos.writeInt(children.isEmpty() ? 0 : children.get(0));
+		for (int i=0; i<keys.size(); i++) {
+			String suffix = ((StringField) keys.get(i)).getValue().substring(prefix.length());
+			dos.writeByte(suffix.length());
+			dos.writeBytes(suffix);
+			dos.writeInt(children.get(i + 1));
+		}
+	}
+
 	/**
 	 * Read child pointers from the source file.
 	 */
@@ -227,6 +406,13 @@ public class BTreeInternalPage extends BTreePage {
 	 * The invariant here is that it should be possible to pass the byte
 	 * array generated by getPageData to the BTreeInternalPage constructor and
 	 * have it produce an identical BTreeInternalPage object.
+	 * <p>
+	 * Pages with string keys do not store the fixed-width keys: after the header
+	 * come the length and bytes of the prefix common to all keys on the page, the
+	 * first child pointer, then for each used slot in order the length and bytes of
+	 * the rest of its key and its child pointer. Keys in internal pages are mostly
+	 * separators shortened by {@link #getSeparator}, so many more of them fit on a
+	 * page.
 	 *
 	 * @see #BTreeInternalPage
 	 * @return A byte array correspond to the bytes of this page.
@@ -236,6 +422,14 @@ public class BTreeInternalPage extends BTreePage {
 		ByteArrayOutputStream baos = new ByteArrayOutputStream(len);
 		DataOutputStream dos = new DataOutputStream(baos);
 
+		// write out the page LSN
+		try {
+			dos.writeLong(lsn);
+
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+
 		// write out the parent pointer
 		try {
 			dos.writeInt(parent);
@@ -244,6 +438,14 @@ public class BTreeInternalPage extends BTreePage {
 			e.printStackTrace();
 		}
 
+		// write out the right sibling pointer and the high key
+		try {
+			dos.writeInt(rightSibling);
+			writeHighKey(dos);
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+
 		// write out the child page category
 		try {
 			dos.writeByte((byte) childCategory);
@@ -262,6 +464,26 @@ public class BTreeInternalPage extends BTreePage {
 			}
 		}
 
+		if (compressed) {
+			ArrayList<Field> usedKeys = new ArrayList<Field>();
+			ArrayList<Integer> usedChildren = new ArrayList<Integer>();
+			for (int i=0; i<numSlots; i++) {
+				if (!isSlotUsed(i))
+					continue;
+				if (i > 0)
+					usedKeys.add(keys[i]);
+				usedChildren.add(children[i]);
+			}
+			try {
+				writeCompressedEntries(dos, usedKeys, usedChildren);
+				dos.write(new byte[len - dos.size()]);
+				dos.flush();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+			return baos.toByteArray();
+		}
+
 		// create the keys
 		// start from 1 because the first key slot is not used
 		// since a node with m keys has m+1 pointers
@@ -269,7 +491,7 @@ public class BTreeInternalPage extends BTreePage {
 
 			// empty slot
 			if (!isSlotUsed(i)) {
-				for (int j=0; j<td.getFieldType(keyField).getLen(); j++) {
+				for (int j=0; j<keyType.getLen(); j++) {
 					try {
 						dos.writeByte(0);
 					} catch (IOException e) {
@@ -315,8 +537,9 @@ public class BTreeInternalPage extends BTreePage {
 		}
 
 		// padding
-		int zerolen = BufferPool.getPageSize() - (INDEX_SIZE + 1 + header.length + 
-				td.getFieldType(keyField).getLen() * (keys.length - 1) + INDEX_SIZE * children.length); 
+		int zerolen = BufferPool.getPageSize() - (LSN_SIZE + 2 * INDEX_SIZE
+				+ getHighKeySize(keyType) + 1 + header.length + 
+				keyType.getLen() * (keys.length - 1) + INDEX_SIZE * children.length); 
 		byte[] zeroes = new byte[zerolen];
 		try {
 			dos.write(zeroes, 0, zerolen);
@@ -429,10 +652,28 @@ public class BTreeInternalPage extends BTreePage {
 				break;
 			}	
 		}
+		if (!canUpdateEntry(e))
+			throw new DbException("updated key " + e.getKey() + " does not fit on the page");
 		children[rid.getTupleNumber()] = e.getRightChild().getPageNumber();
 		keys[rid.getTupleNumber()] = e.getKey();
 	}
 
+	/**
+	 * Returns true if the entry at the location specified by its record id can be
+	 * updated without overflowing the page. Pages with prefix compressed keys only
+	 * keep one entry's worth of bytes in reserve, so a second key growing longer
+	 * may not fit; other pages always have room.
+	 * @param e - the entry with an updated key
+	 */
+	public boolean canUpdateEntry(BTreeEntry e) {
+		RecordId rid = e.getRecordId();
+		if (!compressed || rid == null || !pid.equals(rid.getPageId()) || rid.getTupleNumber() <= 0
+				|| rid.getTupleNumber() >= numSlots || !isSlotUsed(rid.getTupleNumber()))
+			return true;
+		return getUsedBytes() - getEntrySize(keys[rid.getTupleNumber()]) + getEntrySize(e.getKey())
+				<= getEntryBytes(Type.STRING_TYPE) + getMaxEntrySize();
+	}
+
 	/**
 	 * Adds the specified entry to the page; the entry's recordId should be updated to 
 	 * reflect that it is now stored on this page.
@@ -441,7 +682,7 @@ public class BTreeInternalPage extends BTreePage {
 	 * @param e The entry to add.
 	 */
 	public void insertEntry(BTreeEntry e) throws DbException {
-		if (!e.getKey().getType().equals(td.getFieldType(keyField)))
+		if (!isKey(e.getKey()))
 			throw new DbException("key field type mismatch, in insertEntry");
 
 		if(e.getLeftChild().getTableId() != pid.getTableId() || e.getRightChild().getTableId() != pid.getTableId())
@@ -456,8 +697,11 @@ public class BTreeInternalPage extends BTreePage {
 		else if(e.getLeftChild().pgcateg() != childCategory || e.getRightChild().pgcateg() != childCategory)
 			throw new DbException("child page category mismatch in insertEntry");
 
+		if (getNumEmptySlots() == 0)
+			throw new DbException("called insertEntry on page with no empty slots.");
+
 		// if this is the first entry, add it and return
-		if(getNumEmptySlots() == getMaxEntries()) {
+		if(getNumEntries() == 0) {
 			children[0] = e.getLeftChild().getPageNumber();
 			children[1] = e.getRightChild().getPageNumber();
 			keys[1] = e.getKey();
@@ -559,24 +803,91 @@ public class BTreeInternalPage extends BTreePage {
 	}
 
 	/**
-	 * Returns the number of entries (keys) currently stored on this page
+	 * Get the id of the right sibling of this page, the next internal page on the
+	 * same level of the tree, which may have a different parent
+	 * @return the id of the right sibling
 	 */
-	public int getNumEntries() {
-		return numSlots - getNumEmptySlots() - 1;
+	public BTreePageId getRightSiblingId() {
+		if(rightSibling == 0) {
+			return null;
+		}
+		return new BTreePageId(pid.getTableId(), rightSibling, BTreePageId.INTERNAL);
 	}
-	
+
 	/**
-	 * Returns the number of empty slots on this page.
+	 * Set the right sibling id of this page
+	 * @param id - the new right sibling id
+	 * @throws DbException if the id is not valid
 	 */
-	public int getNumEmptySlots() {
+	public void setRightSiblingId(BTreePageId id) throws DbException {
+		if(id == null) {
+			rightSibling = 0;
+		}
+		else {
+			if(id.getTableId() != pid.getTableId()) {
+				throw new DbException("table id mismatch in setRightSiblingId");
+			}
+			if(id.pgcateg() != BTreePageId.INTERNAL) {
+				throw new DbException("rightSibling must be an internal node");
+			}
+			rightSibling = id.getPageNumber();
+		}
+	}
+
+	/**
+	 * Returns the number of entries (keys) currently stored on this page
+	 */
+	public int getNumEntries() {
 		int cnt = 0;
 		// start from 1 because the first key slot is not used
 		// since a node with m keys has m+1 pointers
 		for(int i=1; i<numSlots; i++)
-			if(!isSlotUsed(i))
+			if(isSlotUsed(i))
 				cnt++;
 		return cnt;
 	}
+	
+	/**
+	 * Returns the number of empty slots on this page. On a page with prefix
+	 * compressed keys, this is the number of entries with keys of the maximum length
+	 * that still fit, so that inserting that many entries never overflows the page,
+	 * whatever their keys.
+	 */
+	public int getNumEmptySlots() {
+		if (compressed)
+			return getNumEmptySlots(keyType, getNumEntries(), getUsedBytes());
+		return numSlots - 1 - getNumEntries();
+	}
+
+	/**
+	 * @return the number of empty slots of a page with prefix compressed keys
+	 *   holding the given entries, see {@link #getNumEmptySlots()}
+	 * @param entries - the number of entries on the page
+	 * @param bytes - the bytes the entries take up, see {@link #getEntrySize}
+	 */
+	static int getNumEmptySlots(KeyType keyType, int entries, int bytes) {
+		int free = getNumSlots(keyType) - 1 - entries;
+		return Math.min(free, Math.max(0, getEntryBytes(keyType) - bytes) / getMaxEntrySize());
+	}
+
+	/**
+	 * @return the bytes taken up by the entries of a page with prefix compressed keys,
+	 *   see {@link #getEntrySize}
+	 */
+	private int getUsedBytes() {
+		int used = 0;
+		for(int i=1; i<numSlots; i++)
+			if(isSlotUsed(i))
+				used += getEntrySize(keys[i]);
+		return used;
+	}
+
+	/**
+	 * @return the number of slots on this page, including the unused key slot 0
+	 */
+	int getNumSlots() {
+		return numSlots;
+	}
 
 	/**
 	 * Returns true if associated slot on this page is filled.
@@ -741,7 +1052,7 @@ class BTreeInternalPageReverseIterator implements Iterator<BTreeEntry> {
 
 	public BTreeInternalPageReverseIterator(BTreeInternalPage p) {
 		this.p = p;
-		this.curEntry = p.getMaxEntries();
+		this.curEntry = p.getNumSlots() - 1;
 		while(!p.isSlotUsed(curEntry) && curEntry > 0) {
 			--curEntry;
 		}
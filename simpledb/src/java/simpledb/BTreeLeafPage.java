@@ -19,21 +19,22 @@ public class BTreeLeafPage extends BTreePage {
 	private int leftSibling; // leaf node or 0
 	private int rightSibling; // leaf node or 0
 
-	public void checkRep(int fieldid, Field lowerBound, Field upperBound, boolean checkoccupancy, int depth) {
+	public void checkRep(Field lowerBound, Field upperBound, boolean checkoccupancy, int depth) {
 		Field prev = lowerBound;
 		assert(this.getId().pgcateg() == BTreePageId.LEAF);
 
 		Iterator<Tuple> it = this.iterator();
 		while (it.hasNext()) {
 			Tuple t = it.next();
-			assert(null == prev || prev.compare(Predicate.Op.LESS_THAN_OR_EQ, t.getField(fieldid)));
-			prev = t.getField(fieldid);
+			assert(null == prev || prev.compare(Predicate.Op.LESS_THAN_OR_EQ, getKey(t)));
+			prev = getKey(t);
 			assert(t.getRecordId().getPageId().equals(this.getId()));
 		}
 
 		if (null != upperBound && null != prev){
 			assert(prev.compare(Predicate.Op.LESS_THAN_OR_EQ, upperBound));
 		}
+		assert(null == upperBound ? null == highKey : upperBound.equals(highKey));
 
 		if (checkoccupancy && depth > 0) {
 			assert(getNumTuples() >= getMaxTuples()/2);
@@ -44,7 +45,8 @@ public class BTreeLeafPage extends BTreePage {
 	 * Create a BTreeLeafPage from a set of bytes of data read from disk.
 	 * The format of a BTreeLeafPage is a set of header bytes indicating
 	 * the slots of the page that are in use, and some number of tuple slots, 
-	 * as well as some extra bytes for the parent and sibling pointers.
+	 * as well as some extra bytes for the page LSN, the parent and sibling
+	 * pointers and the high key.
 	 *  Specifically, the number of tuples is equal to: <p>
 	 *          floor((BufferPool.getPageSize()*8 - extra bytes*8) / (tuple size * 8 + 1))
 	 * <p> where tuple size is the size of tuples in this
@@ -62,9 +64,22 @@ public class BTreeLeafPage extends BTreePage {
 	 * @param key - the field which the index is keyed on
 	 */
 	public BTreeLeafPage(BTreePageId id, byte[] data, int key) throws IOException {
-		super(id, key);
+		this(id, data, new int[] { key });
+	}
+
+	/**
+	 * Create a BTreeLeafPage of an index keyed on several fields, see
+	 * {@link CompositeField}.
+	 * 
+	 * @param id - the id of this page
+	 * @param data - the raw data of this page
+	 * @param keys - the fields which the index is keyed on, in key order
+	 */
+	public BTreeLeafPage(BTreePageId id, byte[] data, int[] keys) throws IOException {
+		super(id, keys);
 		this.numSlots = getMaxTuples();
 		DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data));
+		this.lsn = dis.readLong();
 
 		// Read the parent and sibling pointers
 		try {
@@ -87,6 +102,7 @@ public class BTreeLeafPage extends BTreePage {
 		} catch (java.text.ParseException e) {
 			e.printStackTrace();
 		}
+		readHighKey(dis);
 
 		// allocate and read the header slots of this page
 		header = new byte[getHeaderSize()];
@@ -111,8 +127,8 @@ public class BTreeLeafPage extends BTreePage {
 	 */
 	public int getMaxTuples() {        
 		int bitsPerTupleIncludingHeader = td.getSize() * 8 + 1;
-		// extraBits are: left sibling pointer, right sibling pointer, parent pointer
-		int extraBits = 3 * INDEX_SIZE * 8; 
+		// extraBits are: page LSN, left sibling pointer, right sibling pointer, parent pointer, high key
+		int extraBits = LSN_SIZE * 8 + 3 * INDEX_SIZE * 8 + getHighKeySize(keyType) * 8;
 		int tuplesPerPage = (BufferPool.getPageSize()*8 - extraBits) / bitsPerTupleIncludingHeader; //round down
 		return tuplesPerPage;
 	}
@@ -137,7 +153,7 @@ public class BTreeLeafPage extends BTreePage {
 			{
 				oldDataRef = oldData;
 			}
-			return new BTreeLeafPage(pid,oldDataRef,keyField);
+			return new BTreeLeafPage(pid,oldDataRef,keyFields);
 		} catch (IOException e) {
 			e.printStackTrace();
 			//should never happen -- we parsed it OK before!
@@ -203,6 +219,14 @@ public class BTreeLeafPage extends BTreePage {
 		ByteArrayOutputStream baos = new ByteArrayOutputStream(len);
 		DataOutputStream dos = new DataOutputStream(baos);
 
+		// write out the page LSN
+		try {
+			dos.writeLong(lsn);
+
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+
 		// write out the parent and sibling pointers
 		try {
 			dos.writeInt(parent);
@@ -222,6 +246,11 @@ public class BTreeLeafPage extends BTreePage {
 		} catch (IOException e) {
 			e.printStackTrace();
 		}
+		try {
+			writeHighKey(dos);
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
 
 		// create the header of the page
 		for (int i=0; i<header.length; i++) {
@@ -262,7 +291,8 @@ public class BTreeLeafPage extends BTreePage {
 		}
 
 		// padding
-		int zerolen = BufferPool.getPageSize() - (header.length + td.getSize() * tuples.length + 3 * INDEX_SIZE); //- numSlots * td.getSize();
+		int zerolen = BufferPool.getPageSize() - (header.length + td.getSize() * tuples.length + LSN_SIZE + 3 * INDEX_SIZE
+				+ getHighKeySize(keyType)); //- numSlots * td.getSize();
 		byte[] zeroes = new byte[zerolen];
 		try {
 			dos.write(zeroes, 0, zerolen);
@@ -324,10 +354,10 @@ public class BTreeLeafPage extends BTreePage {
 
 		// find the last key less than or equal to the key being inserted
 		int lessOrEqKey = -1;
-		Field key = t.getField(keyField);
+		Field key = getKey(t);
 		for (int i=0; i<numSlots; i++) {
 			if(isSlotUsed(i)) {
-				if(tuples[i].getField(keyField).compare(Predicate.Op.LESS_THAN_OR_EQ, key))
+				if(getKey(tuples[i]).compare(Predicate.Op.LESS_THAN_OR_EQ, key))
 					lessOrEqKey = i;
 				else
 					break;	
@@ -0,0 +1,154 @@
+package simpledb;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import simpledb.Predicate.Op;
+
+/**
+ * BTreeLeafPrefetcher reads the leaves to the right of a range scan of a
+ * B+ tree into the buffer pool before the scan gets to them, so that the
+ * scan does not wait on a disk read at every leaf. The leaves are found by
+ * following the right sibling pointers from the leaf the scan is on, in a
+ * background thread shared by all scans.
+ * <p>
+ * Leaves are read one at a time while they are scattered over the file.
+ * Once a leaf is followed by the next page of the file, as all the leaves
+ * of a tree laid out by BTreeBulkLoader are, the rest of the window is read
+ * with a single sequential read, and the pages of the run are kept for as
+ * long as the sibling pointers go from each one to the next.
+ * <p>
+ * Prefetching is only a hint: it uses free frames of the buffer pool only,
+ * never locks a page, and stops at the first leaf that cannot be read.
+ * Resident leaves are newer than the disk and are followed in the pool.
+ *
+ * @see BufferPool#prefetch(List, long)
+ */
+class BTreeLeafPrefetcher {
+
+	/** Default number of leaves read ahead of a scan */
+	public static final int DEFAULT_DEPTH = 16;
+
+	private static final ExecutorService READER = Executors.newSingleThreadExecutor(r -> {
+		Thread t = new Thread(r, "B+ tree prefetcher");
+		t.setDaemon(true);
+		return t;
+	});
+
+	private final BTreeFile f;
+	private final int depth;
+
+	// the last read ahead started for the scan, and the number of leaves
+	// the scan moved to since
+	private Future<?> pending = null;
+	private int moves = 0;
+
+	// number of disk reads issued, for tests
+	private volatile int reads = 0;
+
+	/**
+	 * Create a prefetcher for a scan of a B+ tree.
+	 *
+	 * @param f - the B+ tree file scanned
+	 * @param depth - the number of leaves to read ahead, or 0 not to read ahead
+	 */
+	public BTreeLeafPrefetcher(BTreeFile f, int depth) {
+		this.f = f;
+		this.depth = depth;
+	}
+
+	/**
+	 * Tell the prefetcher that the scan moved to a leaf. When the scan used up
+	 * half of the leaves read ahead, a new read ahead starts from this leaf.
+	 *
+	 * @param leaf - the leaf the scan is on
+	 * @param upper - if not null, the scan ends at the first leaf whose high
+	 *        key is above this value, and no leaf after it is read
+	 */
+	public void moved(final BTreeLeafPage leaf, final Field upper) {
+		if(depth == 0) {
+			return;
+		}
+		moves++;
+		if(pending != null && (!pending.isDone() || moves < (depth + 1) / 2)) {
+			return;
+		}
+		moves = 0;
+		pending = READER.submit(() -> prefetch(leaf, upper));
+	}
+
+	/**
+	 * @return the number of reads the prefetcher issued to the file
+	 */
+	int reads() {
+		return reads;
+	}
+
+	/**
+	 * Read the leaves to the right of a leaf into the buffer pool, in the
+	 * calling thread.
+	 *
+	 * @param leaf - the leaf to start from
+	 * @param upper - if not null, no leaf to the right of one whose high key
+	 *        is above this value is read
+	 * @return the ids of the leaves read into the buffer pool, in key order
+	 */
+	List<BTreePageId> prefetch(BTreeLeafPage leaf, Field upper) {
+		BufferPool bp = Database.getBufferPool();
+		ArrayList<BTreePageId> read = new ArrayList<BTreePageId>();
+		BTreeLeafPage page = leaf;
+		int ahead = 0;
+		try {
+			while(ahead < depth && !last(page, upper) && page.getRightSiblingId() != null) {
+				BTreePageId next = page.getRightSiblingId();
+				Page cached = bp.peekPage(next);
+				if(cached != null) {
+					page = (BTreeLeafPage) cached;
+					ahead++;
+					continue;
+				}
+
+				// read the rest of the window at once when the leaves are in file order
+				int count = next.getPageNumber() == page.getId().getPageNumber() + 1 ? depth - ahead : 1;
+				long stamp = bp.removalStamp();
+				byte[][] run = f.readPageRun(next, count);
+				reads++;
+				ArrayList<Page> chain = new ArrayList<Page>();
+				for(int i = 0; i < run.length; i++) {
+					BTreePageId id = new BTreePageId(f.getId(), next.getPageNumber() + i, BTreePageId.LEAF);
+					if(i > 0 && (!id.equals(page.getRightSiblingId()) || last(page, upper)
+							|| bp.peekPage(id) != null)) {
+						break;
+					}
+					page = (BTreeLeafPage) f.parsePage(id, run[i]);
+					chain.add(page);
+				}
+				int resident = bp.prefetch(chain, stamp);
+				for(int i = 0; i < resident; i++) {
+					read.add((BTreePageId) chain.get(i).getId());
+				}
+				if(chain.isEmpty() || resident < chain.size()) {
+					// out of free frames, or the pages read may be stale
+					break;
+				}
+				ahead += resident;
+			}
+		} catch(IOException e) {
+			// the file changed under the prefetcher
+		} catch(NoSuchElementException e) {
+			// the file is no longer in the catalog
+		}
+		return read;
+	}
+
+	/**
+	 * @return true if no leaf to the right of the given one is wanted
+	 */
+	private static boolean last(BTreeLeafPage page, Field upper) {
+		Field highKey = page.getHighKey();
+		return upper != null && highKey != null && upper.compare(Op.LESS_THAN, highKey);
+	}
+}
@@ -15,12 +15,20 @@ public abstract class BTreePage implements Page {
 	protected volatile TransactionId dirtier = null;
 
 	protected final static int INDEX_SIZE = Type.INT_TYPE.getLen();
+	// bytes the page LSN takes at the start of the page
+	protected final static int LSN_SIZE = 8;
 
 	protected final BTreePageId pid;
 	protected final TupleDesc td;
-	protected final int keyField;
+	protected final int keyField; // the first of the key fields
+	protected final int[] keyFields;
+	protected final KeyType keyType;
 
+	protected long lsn; // LSN of the last logged update written with this page
 	protected int parent; // parent is always internal node or 0 for root node
+	// upper bound of the keys under this page, null for the last page of its
+	// level: keys above it were moved right by a split, see getRightSiblingId
+	protected Field highKey;
 	protected byte[] oldData;
 	protected final Byte oldDataLock=new Byte((byte)0);
 
@@ -46,12 +54,31 @@ public abstract class BTreePage implements Page {
 	 * 
 	 * @param id - the id of this page
 	 * @param data - the raw data of this page
-	 * @param key - the field which the index is keyed on
+	 * @param keys - the fields which the index is keyed on, in key order
 	 */
-	public BTreePage(BTreePageId id, int key) throws IOException {
+	public BTreePage(BTreePageId id, int[] keys) throws IOException {
 		this.pid = id;
-		this.keyField = key;
+		this.keyFields = keys.clone();
+		this.keyField = keys[0];
 		this.td = Database.getCatalog().getTupleDesc(id.getTableId());
+		this.keyType = CompositeType.getKeyType(td, keyFields);
+	}
+
+	/**
+	 * @return the key of a tuple of this index, see {@link CompositeField#getKey}
+	 */
+	protected Field getKey(Tuple t) {
+		return CompositeField.getKey(t, keyFields);
+	}
+
+	/**
+	 * @return true if the field is a key of this index
+	 */
+	protected boolean isKey(Field key) {
+		if(keyType instanceof CompositeType) {
+			return ((CompositeType) keyType).isKey(key);
+		}
+		return key.getType() == keyType;
 	}
 
 	/**
@@ -109,6 +136,74 @@ public abstract class BTreePage implements Page {
 		}
 	}
 
+	/**
+	 * Get the high key of this page: no key on this page or under it is
+	 * greater, and the keys of the pages to its right are all greater than
+	 * or equal to it. A search for a greater key that reaches this page, for
+	 * instance through a parent page read before a split, continues on the
+	 * right sibling.
+	 * @return the high key, or null if this is the last page of its level
+	 */
+	public Field getHighKey() {
+		return highKey;
+	}
+
+	/**
+	 * Set the high key of this page
+	 * @param key - the new high key, or null for the last page of its level
+	 * @throws DbException if the key is not of the type of the key fields
+	 */
+	public void setHighKey(Field key) throws DbException {
+		if(key != null && !isKey(key)) {
+			throw new DbException("key type mismatch in setHighKey");
+		}
+		highKey = key;
+	}
+
+	/**
+	 * @return the id of the page to the right of this one on its level, or
+	 * null if this is the last page of its level
+	 */
+	public abstract BTreePageId getRightSiblingId();
+
+	/**
+	 * @return the bytes the high key takes up on a page with keys of the given
+	 * type: a flag telling whether there is one, and the key
+	 */
+	static int getHighKeySize(KeyType keyType) {
+		return 1 + keyType.getLen();
+	}
+
+	/**
+	 * Read the high key, see {@link #getHighKeySize}
+	 */
+	protected void readHighKey(DataInputStream dis) throws IOException {
+		boolean present = dis.readBoolean();
+		if(!present) {
+			dis.skipBytes(keyType.getLen());
+			highKey = null;
+			return;
+		}
+		try {
+			highKey = keyType.parse(dis);
+		} catch (java.text.ParseException e) {
+			throw new IOException(e);
+		}
+	}
+
+	/**
+	 * Write the high key, see {@link #getHighKeySize}
+	 */
+	protected void writeHighKey(DataOutputStream dos) throws IOException {
+		dos.writeBoolean(highKey != null);
+		if(highKey != null) {
+			highKey.serialize(dos);
+		}
+		else {
+			dos.write(new byte[keyType.getLen()]);
+		}
+	}
+
 	/**
 	 * Marks this page as dirty/not dirty and record that transaction
 	 * that did the dirtying
@@ -128,6 +223,14 @@ public abstract class BTreePage implements Page {
 			return null;
 	}
 
+	public long getLsn() {
+		return lsn;
+	}
+
+	public void setLsn(long lsn) {
+		this.lsn = lsn;
+	}
+
 	/**
 	 * Returns the number of empty slots on this page.
 	 */
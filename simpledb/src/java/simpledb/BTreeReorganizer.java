@@ -0,0 +1,208 @@
+package simpledb;
+
+import java.io.*;
+import java.util.*;
+
+import simpledb.Predicate.Op;
+
+/**
+ * BTreeReorganizer compacts and re-sequences the leaves of a B+ tree in
+ * place, while other transactions keep using it. Deletes only merge leaves
+ * that drop below half full, and splits take new pages wherever the file has
+ * room, so a tree that has seen many updates ends up with half empty leaves
+ * scattered over the file, and range scans read it out of order.
+ * <p>
+ * The reorganizer walks the leaves from left to right. It fills each leaf up
+ * to the fill factor with the tuples of its right siblings under the same
+ * parent, merging the siblings it empties, then moves the leaf to the lowest
+ * empty page past the previous leaf if there is one before it, so that the
+ * leaves end up in key order on disk and packed towards the start of the
+ * file. Finally the empty pages left at the end of the file are truncated.
+ * <p>
+ * The work is done in many small transactions, each of which locks the whole
+ * file exclusively (see {@link BufferPool#lockTable}) and stops once it has
+ * dirtied a batch of pages, so other transactions only ever wait for one
+ * batch. Between batches, the reorganizer finds its way back by the last key
+ * it reached, so changes made meanwhile are taken as they come.
+ *
+ * @see BTreeFile#compactLeafPage
+ * @see BTreeFile#moveLeafPage
+ */
+public class BTreeReorganizer {
+
+	/** Default number of pages a transaction of the reorganizer dirties */
+	public static final int DEFAULT_BATCH_PAGES = 16;
+
+	private final BTreeFile bf;
+	private final double fillFactor;
+	private final int batchPages;
+
+	// the last leaf reorganized, by page number and last key
+	private int lastPage = 0;
+	private Field lastKey = null;
+
+	/**
+	 * Create a reorganizer for the given B+ tree file.
+	 *
+	 * @param bf - the B+ tree file to reorganize
+	 * @param fillFactor - the fraction of each leaf to fill, between 0.5 and 1
+	 * @param batchPages - the number of pages each transaction dirties
+	 */
+	public BTreeReorganizer(BTreeFile bf, double fillFactor, int batchPages) {
+		if(fillFactor <= 0 || fillFactor > 1) {
+			throw new IllegalArgumentException("fill factor out of range: " + fillFactor);
+		}
+		if(batchPages < 1) {
+			throw new IllegalArgumentException("batch of " + batchPages + " pages");
+		}
+		this.bf = bf;
+		this.fillFactor = fillFactor;
+		this.batchPages = batchPages;
+	}
+
+	public BTreeReorganizer(BTreeFile bf, double fillFactor) {
+		this(bf, fillFactor, DEFAULT_BATCH_PAGES);
+	}
+
+	/**
+	 * Reorganize the B+ tree file, one batch of leaves per transaction.
+	 *
+	 * @return the number of transactions run
+	 */
+	public int reorganize() throws DbException, IOException, TransactionAbortedException {
+		lastPage = 0;
+		lastKey = null;
+		int batches = 0;
+		boolean more = true;
+		while(more) {
+			more = run(false);
+			batches++;
+		}
+		run(true);
+		return batches + 1;
+	}
+
+	/**
+	 * Run one transaction of the reorganization, holding an exclusive lock on
+	 * the whole file
+	 *
+	 * @param truncate - true to truncate the file, false to reorganize a batch of leaves
+	 * @return true if there are leaves left to reorganize
+	 */
+	private boolean run(boolean truncate) throws DbException, IOException, TransactionAbortedException {
+		Transaction t = new Transaction();
+		t.start();
+		TransactionId tid = t.getId();
+		HashMap<PageId, Page> dirtypages = new HashMap<PageId, Page>();
+		boolean more = false;
+		int pages = 0;
+		int keep = 0;
+		try {
+			Database.getBufferPool().lockTable(tid, bf.getId(), Permissions.READ_WRITE);
+			if(truncate) {
+				keep = bf.reserveEmptyPagesAtEnd(tid, dirtypages);
+				pages = bf.numPages();
+			}
+			else {
+				more = reorganizeLeaves(tid, dirtypages);
+			}
+		} catch(DbException | IOException | TransactionAbortedException | RuntimeException e) {
+			release(tid, dirtypages);
+			t.abort();
+			throw e;
+		}
+		release(tid, dirtypages);
+		t.commit();
+		if(keep < pages) {
+			truncate(pages, keep);
+		}
+		return more;
+	}
+
+	/**
+	 * Cut the file once the transaction that reserved the empty pages at its
+	 * end has committed, under an exclusive lock of its own
+	 */
+	private void truncate(int pages, int keep) throws IOException, TransactionAbortedException {
+		TransactionId tid = new TransactionId();
+		try {
+			Database.getBufferPool().lockTable(tid, bf.getId(), Permissions.READ_WRITE);
+			bf.truncate(pages, keep);
+		} finally {
+			Database.getBufferPool().transactionComplete(tid);
+		}
+	}
+
+	/**
+	 * Mark the pages a transaction locked for writing dirty, so that they are
+	 * written out when it commits or rolled back when it aborts, and unpin them
+	 */
+	private void release(TransactionId tid, HashMap<PageId, Page> dirtypages) {
+		for(Page p : dirtypages.values()) {
+			p.markDirty(true, tid);
+		}
+		bf.unpinPages(tid, dirtypages);
+	}
+
+	/**
+	 * Compact and move the leaves that follow the last one reorganized, until
+	 * a batch of pages is dirtied
+	 *
+	 * @return true if there are leaves left to reorganize
+	 */
+	private boolean reorganizeLeaves(TransactionId tid, HashMap<PageId, Page> dirtypages)
+			throws DbException, IOException, TransactionAbortedException {
+		BTreeLeafPage leaf = resume(tid, dirtypages);
+		if(leaf == null) {
+			return false;
+		}
+		int prev = leaf.getLeftSiblingId() == null ? 0 : leaf.getLeftSiblingId().getPageNumber();
+		while(true) {
+			bf.compactLeafPage(tid, dirtypages, leaf, fillFactor);
+			// a leaf before the previous one moves past it, to a new page if
+			// need be; any other leaf only moves down the file
+			int pgNo = leaf.getId().getPageNumber();
+			int emptyPageNo = bf.getEmptyPageNo(tid, dirtypages, prev, pgNo < prev ? 0 : pgNo);
+			if(emptyPageNo != 0) {
+				leaf = bf.moveLeafPage(tid, dirtypages, leaf, emptyPageNo);
+			}
+			prev = lastPage = leaf.getId().getPageNumber();
+			lastKey = leaf.getNumTuples() == 0 ? null : bf.getKey(leaf.reverseIterator().next());
+			if(leaf.getRightSiblingId() == null) {
+				return false;
+			}
+			if(dirtypages.size() >= batchPages) {
+				return true;
+			}
+			leaf = (BTreeLeafPage) bf.getPage(tid, dirtypages, leaf.getRightSiblingId(), Permissions.READ_WRITE);
+		}
+	}
+
+	/**
+	 * @return the leaf to reorganize next: the right sibling of the last leaf
+	 * reorganized, unless that leaf changed since, or null if there are no leaves
+	 */
+	private BTreeLeafPage resume(TransactionId tid, HashMap<PageId, Page> dirtypages)
+			throws DbException, IOException, TransactionAbortedException {
+		if(bf.getRootPtrPage(tid, dirtypages).getRootId() == null) {
+			return null;
+		}
+		BTreeLeafPage leaf = bf.findLeafPage(tid, dirtypages, Permissions.READ_WRITE, lastKey);
+		if(lastPage == 0) {
+			return leaf;
+		}
+		// the last leaf is the left-most one with its last key, unless earlier
+		// leaves hold nothing but that key
+		while(leaf.getId().getPageNumber() != lastPage && leaf.getRightSiblingId() != null
+				&& leaf.getNumTuples() > 0 && bf.getKey(leaf.reverseIterator().next()).compare(Op.LESS_THAN_OR_EQ, lastKey)) {
+			leaf = (BTreeLeafPage) bf.getPage(tid, dirtypages, leaf.getRightSiblingId(), Permissions.READ_WRITE);
+		}
+		if(leaf.getId().getPageNumber() != lastPage) {
+			return leaf;
+		}
+		if(leaf.getRightSiblingId() == null) {
+			return null;
+		}
+		return (BTreeLeafPage) bf.getPage(tid, dirtypages, leaf.getRightSiblingId(), Permissions.READ_WRITE);
+	}
+}
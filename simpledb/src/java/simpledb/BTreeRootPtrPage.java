@@ -138,6 +138,16 @@ public class BTreeRootPtrPage implements Page {
 			return null;
 	}
 
+	/**
+	 * The page LSN is not stored in the root pointer page, which recovery always replays.
+	 */
+	public long getLsn() {
+		return LogRecord.NO_LSN;
+	}
+
+	public void setLsn(long lsn) {
+	}
+
 	/** Return a view of this page before it was modified
         -- used by recovery */
 	public BTreeRootPtrPage getBeforeImage(){
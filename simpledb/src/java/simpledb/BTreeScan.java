@@ -14,6 +14,8 @@ public class BTreeScan implements OpIterator {
 	private TransactionId tid;
 	private TupleDesc myTd;
 	private IndexPredicate ipred = null;
+	private SecondaryIndex index = null;
+	private boolean covering = false;
 	private transient DbFileIterator it;
 	private String tablename;
 	private String alias;
@@ -76,13 +78,22 @@ public class BTreeScan implements OpIterator {
 		this.isOpen=false;
 		this.alias = tableAlias;
 		this.tablename = Database.getCatalog().getTableName(tableid);
-		if(ipred == null) {
+		if(index != null && index.getTableId() != tableid) {
+			this.index = null;
+		}
+		if(index != null && covering) {
+			this.it = index.coveringIterator(tid, ipred);
+		}
+		else if(index != null) {
+			this.it = index.iterator(tid, ipred);
+		}
+		else if(ipred == null) {
 			this.it = Database.getCatalog().getDatabaseFile(tableid).iterator(tid);
 		}
 		else {
 			this.it = ((BTreeFile) Database.getCatalog().getDatabaseFile(tableid)).indexIterator(tid, ipred);
 		}
-		myTd = Database.getCatalog().getTupleDesc(tableid);
+		myTd = index != null && covering ? index.getCoveredDesc() : Database.getCatalog().getTupleDesc(tableid);
 		String[] newNames = new String[myTd.numFields()];
 		Type[] newTypes = new Type[myTd.numFields()];
 		for (int i = 0; i < myTd.numFields(); i++) {
@@ -99,6 +110,38 @@ public class BTreeScan implements OpIterator {
 		this(tid, tableid, Database.getCatalog().getTableName(tableid), ipred);
 	}
 
+	/**
+	 * Creates a scan of a heap file table through a secondary index on one of
+	 * its columns, which reads the tuples in the order of the column if the
+	 * index is a B+ tree, and in no particular order if it is a hash index.
+	 * 
+	 * @param tid
+	 *            The transaction this scan is running as a part of.
+	 * @param index
+	 *            the index to scan the table through
+	 * @param tableAlias
+	 *            the alias of the table, as for
+	 *            {@link #BTreeScan(TransactionId, int, String, IndexPredicate)}
+	 * @param ipred
+	 *            The index predicate on the indexed column. If null, the scan
+	 *            will return all tuples in the order of the column
+	 * @param covering
+	 *            true to return only the columns held by the index, without
+	 *            reading the table (see {@link SecondaryIndex#coveringIterator})
+	 */
+	public BTreeScan(TransactionId tid, SecondaryIndex index, String tableAlias, IndexPredicate ipred,
+			boolean covering) {
+		this.tid = tid;
+		this.ipred = ipred;
+		this.index = index;
+		this.covering = covering;
+		reset(index.getTableId(), tableAlias);
+	}
+
+	public BTreeScan(TransactionId tid, SecondaryIndex index, String tableAlias, IndexPredicate ipred) {
+		this(tid, index, tableAlias, ipred, false);
+	}
+
 	public void open() throws DbException, TransactionAbortedException {
 		if (isOpen)
 			throw new DbException("double open on one OpIterator.");
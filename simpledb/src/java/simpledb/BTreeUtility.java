@@ -278,7 +278,8 @@ public class BTreeUtility {
 	 */
 	public static int getNumTuplesPerPage(int columns) {
 		int bytesPerTuple = Type.INT_TYPE.getLen() * columns * 8;
-		int tuplesPerPage = (BufferPool.getPageSize() * 8 - 3 * BTreeLeafPage.INDEX_SIZE * 8) /  (bytesPerTuple + 1);
+		int pointerbytes = BTreeLeafPage.LSN_SIZE + 3 * BTreeLeafPage.INDEX_SIZE + BTreePage.getHighKeySize(Type.INT_TYPE);
+		int tuplesPerPage = (BufferPool.getPageSize() * 8 - pointerbytes * 8) /  (bytesPerTuple + 1);
 		return tuplesPerPage;
 	}
 	
@@ -323,8 +324,10 @@ public class BTreeUtility {
 	 */
 	public static int getNumEntriesPerPage() {
 		int nentrybytes = Type.INT_TYPE.getLen() + BTreeInternalPage.INDEX_SIZE;
-		// pointerbytes: one extra child pointer, parent pointer, child page category
-		int internalpointerbytes = 2 * BTreeLeafPage.INDEX_SIZE + 1; 
+		// pointerbytes: page LSN, one extra child pointer, parent pointer, right sibling pointer,
+		// high key, child page category
+		int internalpointerbytes = BTreeLeafPage.LSN_SIZE + 3 * BTreeLeafPage.INDEX_SIZE
+				+ BTreePage.getHighKeySize(Type.INT_TYPE) + 1;
 		int entriesPerPage = (BufferPool.getPageSize() * 8 - internalpointerbytes * 8 - 1) /  (nentrybytes * 8 + 1);  //floor comes for free
 		return entriesPerPage;
 	}
@@ -429,6 +432,21 @@ public class BTreeUtility {
 		return bf;
 	}
 
+	/** Opens a BTreeFile keyed on several fields and adds it to the catalog.
+	 *
+	 * @param cols number of columns in the table.
+	 * @param f location of the file storing the table.
+	 * @param keyFields the fields the B+ tree is keyed on, in key order
+	 * @return the opened table.
+	 */
+	public static BTreeFile openBTreeFile(int cols, File f, int[] keyFields) {
+		// create the BTreeFile and add it to the catalog
+		TupleDesc td = Utility.getTupleDesc(cols);
+		BTreeFile bf = new BTreeFile(f, keyFields, td);
+		Database.getCatalog().addTable(bf, UUID.randomUUID().toString());
+		return bf;
+	}
+
 	public static BTreeFile openBTreeFile(int cols, String colPrefix, File f, int keyField) {
 		// create the BTreeFile and add it to the catalog
 		TupleDesc td = Utility.getTupleDesc(cols, colPrefix);
@@ -1,7 +1,9 @@
 package simpledb;
 
 import java.io.*;
+import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * BufferPool manages the reading and writing of pages into memory from
@@ -24,10 +26,53 @@ public class BufferPool {
     other classes. BufferPool should use the numPages argument to the
     constructor instead. */
     public static final int DEFAULT_PAGES = 50;
+
+    /** Default name of the hot-page manifest used for warm restarts. */
+    public static final String MANIFEST_FILENAME = "hotpages";
     
     private int numPages;
-    private int pageCount;
     private ConcurrentHashMap<PageId, Page> pages;
+    private final BufferPoolStats stats;
+
+    // number of accesses to each resident page, saved in the hot-page
+    // manifest, and the pages read ahead of use that have not been
+    // accessed yet
+    private final ConcurrentHashMap<PageId, AtomicInteger> accessCounts;
+    private final Set<PageId> prefetched;
+    private Timer manifestWriter;
+
+    // number of pages that left the buffer pool, so that pages read ahead
+    // of use outside the lock are not added when a newer image of one of
+    // them may have been dropped meanwhile. Changed under this.
+    private volatile long removals;
+
+    // number of outstanding pins on each page, and the pins taken by each
+    // transaction so that they can be dropped when it completes
+    private final ConcurrentHashMap<PageId, Integer> pinCounts;
+    private final ConcurrentHashMap<TransactionId, ArrayList<PageId>> pinsByTid;
+
+    // table and page locks, with the locks of each running transaction, and
+    // the pages dirtied by each running transaction: completing a
+    // transaction only touches those pages
+    private final LockManager lockManager;
+    private final ConcurrentHashMap<TransactionId, HashSet<PageId>> writeSets;
+
+    // snapshot (MVCC) support: the commit clock, the snapshot timestamp of
+    // each running read-only snapshot transaction, and the older committed
+    // images of pages that those snapshots may still need. Protected by this.
+    private long commitClock;
+    private final ConcurrentHashMap<TransactionId, Long> snapshots;
+    private final VersionStore versions;
+
+    // last committed images of cached pages handed out by getCommittedPage,
+    // dropped when their page commits or leaves the buffer pool
+    private final ConcurrentHashMap<PageId, Page> committedImages;
+
+    // images of cached pages as last logged by an UPDATE record, for pages
+    // written since their before image was last reset. The next UPDATE
+    // record of such a page is taken against this image, so that redoing
+    // the records in order rebuilds the page.
+    private final ConcurrentHashMap<PageId, Page> loggedImages;
 
     /**
      * Creates a BufferPool that caches up to numPages pages.
@@ -36,8 +81,35 @@ public class BufferPool {
      */
     public BufferPool(int numPages) {
         this.numPages = numPages;
-        this.pageCount = 0;
         this.pages = new ConcurrentHashMap<PageId, Page>();
+        this.accessCounts = new ConcurrentHashMap<PageId, AtomicInteger>();
+        this.prefetched = Collections.newSetFromMap(new ConcurrentHashMap<PageId, Boolean>());
+        this.pinCounts = new ConcurrentHashMap<PageId, Integer>();
+        this.pinsByTid = new ConcurrentHashMap<TransactionId, ArrayList<PageId>>();
+        this.lockManager = new LockManager();
+        this.writeSets = new ConcurrentHashMap<TransactionId, HashSet<PageId>>();
+        this.commitClock = 0;
+        this.snapshots = new ConcurrentHashMap<TransactionId, Long>();
+        this.versions = new VersionStore();
+        this.committedImages = new ConcurrentHashMap<PageId, Page>();
+        this.loggedImages = new ConcurrentHashMap<PageId, Page>();
+        this.stats = new BufferPoolStats(this);
+        this.stats.register();
+    }
+
+    /** @return the maximum number of pages this buffer pool may hold */
+    public int getNumPages() {
+        return this.numPages;
+    }
+
+    /** @return the statistics of this buffer pool */
+    public BufferPoolStats getStats() {
+        return this.stats;
+    }
+
+    /** @return a view of the pages currently resident in this buffer pool */
+    Collection<Page> residentPages() {
+        return this.pages.values();
     }
     
     public static int getPageSize() {
@@ -65,6 +137,11 @@ public class BufferPool {
      * space in the buffer pool, a page should be evicted and the new page
      * should be added in its place.
      *
+     * <p>
+     * Snapshot transactions (see {@link #beginSnapshot}) take no locks and
+     * are handed the committed version of the page as of their start, which
+     * is not necessarily the cached copy.
+     *
      * @param tid the ID of the transaction requesting the page
      * @param pid the ID of the requested page
      * @param perm the requested permissions on the page
@@ -72,18 +149,417 @@ public class BufferPool {
     public  Page getPage(TransactionId tid, PageId pid, Permissions perm)
         throws TransactionAbortedException, DbException {
     	
+    	if (tid != null) {
+    		Long snapshot = snapshots.get(tid);
+    		if (snapshot != null)
+    			return getSnapshotPage(pid, perm, snapshot);
+    	}
+    	lock(tid, pid, perm);
+    	return fetchPage(pid);
+    }
+
+    /**
+     * Acquire the lock on a page that the given permissions require,
+     * blocking until it is granted. This must not be called while holding
+     * the buffer pool lock, or the lock holders could never release it.
+     */
+    private void lock(TransactionId tid, PageId pid, Permissions perm)
+        throws TransactionAbortedException {
+    	if (tid == null)
+    		return;
+    	if (lockManager.acquire(tid, pid, perm == Permissions.READ_WRITE))
+    		stats.recordLockWait(pid.getTableId());
+    }
+
+    /**
+     * Look up the cached copy of a page, reading it from disk if it is not
+     * resident.
+     */
+    private Page fetchPage(PageId pid) throws DbException {
     	Page page = pages.get(pid);
-    	if (page == null) {		
-	    	if (pageCount >= numPages)
-	    		throw new DbException("More than " + String.valueOf(numPages) + " requests.");
-	    	DbFile file = Database.getCatalog().getDatabaseFile(pid.getTableId());
-	    	page = file.readPage(pid);
-	    	pages.put(pid, page);
-	    	pageCount++;
-	    }
+    	if (page != null) {
+    		stats.recordHit(pid.getTableId());
+    		touch(pid);
+    		return page;
+    	}
+    	synchronized (this) {
+    		page = pages.get(pid);
+    		if (page == null) {
+    			if (pages.size() >= numPages)
+    				evictPage();
+    			long start = System.nanoTime();
+    			DbFile file = Database.getCatalog().getDatabaseFile(pid.getTableId());
+    			page = file.readPage(pid);
+    			pages.put(pid, page);
+    			stats.recordMiss(pid.getTableId(), System.nanoTime() - start);
+    		} else {
+    			stats.recordHit(pid.getTableId());
+    		}
+    		touch(pid);
+    	}
     	return page;
     }
 
+    /** Count an access to a resident page. */
+    private void touch(PageId pid) {
+    	AtomicInteger count = accessCounts.get(pid);
+    	if (count == null) {
+    		accessCounts.putIfAbsent(pid, new AtomicInteger());
+    		count = accessCounts.get(pid);
+    	}
+    	count.incrementAndGet();
+    	if (prefetched.remove(pid))
+    		stats.recordPrefetchHit(pid.getTableId());
+    }
+
+    /** Forget the access history of a page that left the buffer pool. */
+    private void forget(PageId pid) {
+    	removals++;
+    	accessCounts.remove(pid);
+    	prefetched.remove(pid);
+    	committedImages.remove(pid);
+    	loggedImages.remove(pid);
+    }
+
+    /**
+     * Read a page into the buffer pool ahead of its use, but only into a
+     * free frame: prefetching never evicts a page. The page is read
+     * outside the buffer pool lock so that it does not hold up other
+     * transactions.
+     *
+     * @param pid the ID of the page to read
+     * @return true if the page was read, false if it was already resident,
+     *   there was no free frame, or the page no longer exists
+     */
+    boolean prefetch(PageId pid) {
+    	if (pages.containsKey(pid) || pages.size() >= numPages)
+    		return false;
+    	long stamp = removalStamp();
+    	Page page;
+    	try {
+    		page = Database.getCatalog().getDatabaseFile(pid.getTableId()).readPage(pid);
+    	} catch (NoSuchElementException e) {
+    		return false;
+    	} catch (IllegalArgumentException e) {
+    		return false;
+    	}
+    	synchronized (this) {
+    		if (pages.containsKey(pid))
+    			return false;
+    		return prefetch(Collections.singletonList(page), stamp) == 1;
+    	}
+    }
+
+    /**
+     * Add pages read ahead of their use to free frames, as
+     * {@link #prefetch(PageId)} does, for callers that read several pages
+     * at once. Pages that are already resident are skipped.
+     *
+     * @param read the pages read from disk
+     * @param stamp the value of {@link #removalStamp} before the pages were
+     *   read. If a page left the buffer pool since, the pages read may be
+     *   older than an image that was dropped meanwhile, and none is added.
+     * @return the number of pages at the start of the list that are now
+     *   resident, which is less than all of them if the free frames ran out
+     *   or the pages may be stale
+     */
+    synchronized int prefetch(List<Page> read, long stamp) {
+    	if (removals != stamp)
+    		return 0;
+    	int resident = 0;
+    	for (Page page : read) {
+    		PageId pid = page.getId();
+    		if (!pages.containsKey(pid)) {
+    			if (pages.size() >= numPages)
+    				break;
+    			pages.put(pid, page);
+    			prefetched.add(pid);
+    			stats.recordPrefetch(pid.getTableId());
+    		}
+    		resident++;
+    	}
+    	return resident;
+    }
+
+    /** @return a stamp to pass to {@link #prefetch(List, long)} */
+    long removalStamp() {
+    	return removals;
+    }
+
+    /**
+     * Return a page if it is resident, without reading, locking or
+     * counting an access to it. This is for readers that only want to
+     * know what the pool holds, like prefetchers. The page is shared and
+     * must not be modified.
+     *
+     * @param pid the ID of the page
+     * @return the resident page, or null
+     */
+    Page peekPage(PageId pid) {
+    	return pages.get(pid);
+    }
+
+    /**
+     * Save the IDs of the resident pages, with the number of times each
+     * was accessed, to a hot-page manifest that {@link #warmUp} can later
+     * reload. Table ids are derived from file paths, so the manifest stays
+     * valid across restarts of the database.
+     *
+     * @param f the manifest file
+     * @return the number of pages saved
+     */
+    public int saveManifest(File f) throws IOException {
+    	HashMap<PageId, Integer> counts = new HashMap<PageId, Integer>();
+    	for (PageId pid : pages.keySet()) {
+    		AtomicInteger count = accessCounts.get(pid);
+    		counts.put(pid, count == null ? 0 : count.get());
+    	}
+    	return PageManifest.save(f, counts, numPages);
+    }
+
+    /**
+     * Save the hot-page manifest every periodMillis milliseconds in a
+     * background thread, replacing any periodic save started before.
+     *
+     * @param f the manifest file
+     * @param periodMillis the interval between two saves
+     */
+    public synchronized void startManifestWriter(final File f, long periodMillis) {
+    	stopManifestWriter();
+    	manifestWriter = new Timer("BufferPool manifest writer", true);
+    	manifestWriter.schedule(new TimerTask() {
+    		public void run() {
+    			try {
+    				saveManifest(f);
+    			} catch (IOException e) {
+    				e.printStackTrace();
+    			}
+    		}
+    	}, periodMillis, periodMillis);
+    }
+
+    /** Stop the periodic save started by {@link #startManifestWriter}. */
+    public synchronized void stopManifestWriter() {
+    	if (manifestWriter != null) {
+    		manifestWriter.cancel();
+    		manifestWriter = null;
+    	}
+    }
+
+    /**
+     * Warm up the buffer pool from a hot-page manifest written by
+     * {@link #saveManifest}. The hottest pages that fit in the pool are
+     * read in a background thread, in file order so that the reads of each
+     * file form a single ascending pass. Warming up only fills free frames
+     * and skips pages of tables that are no longer in the catalog, so
+     * transactions may run while it is in progress.
+     *
+     * @param f the manifest file; if it does not exist nothing is read
+     * @return the started warm-up thread
+     */
+    public Thread warmUp(final File f) {
+    	Thread t = new Thread("BufferPool warm-up") {
+    		public void run() {
+    			try {
+    				List<PageId> hot = PageManifest.load(f);
+    				List<PageId> load = new ArrayList<PageId>(hot.subList(0, Math.min(numPages, hot.size())));
+    				Collections.sort(load, new Comparator<PageId>() {
+    					public int compare(PageId a, PageId b) {
+    						if (a.getTableId() != b.getTableId())
+    							return Integer.compare(a.getTableId(), b.getTableId());
+    						return Integer.compare(a.getPageNumber(), b.getPageNumber());
+    					}
+    				});
+    				for (PageId pid : load) {
+    					if (pages.size() >= numPages)
+    						break;
+    					prefetch(pid);
+    				}
+    			} catch (IOException e) {
+    				e.printStackTrace();
+    			}
+    		}
+    	};
+    	t.setDaemon(true);
+    	t.start();
+    	return t;
+    }
+
+    /**
+     * Return the committed image of a page that is visible to a snapshot
+     * taken at the given commit timestamp.
+     *
+     * @throws TransactionAbortedException if that image is no longer retained
+     */
+    private synchronized Page getSnapshotPage(PageId pid, Permissions perm, long snapshot)
+        throws TransactionAbortedException, DbException {
+        if (perm == Permissions.READ_WRITE)
+            throw new DbException("snapshot transactions are read-only");
+        Page current = fetchPage(pid);
+        if (versions.lastCommit(pid) <= snapshot)
+            return current.isDirty() == null ? current : current.getBeforeImage();
+        Page old = versions.find(pid, snapshot);
+        if (old == null)
+            throw new TransactionAbortedException();
+        return old;
+    }
+
+    /**
+     * Return the last committed image of a page, without locking it. This
+     * is for readers that must not see the changes of running transactions
+     * but cannot wait for their locks, such as descents of B+ trees. The
+     * image is shared and must not be modified.
+     *
+     * <p>
+     * Commits are atomic with respect to this method: after reading the
+     * image of a page written by a committed transaction, all the pages it
+     * wrote are read as committed by it.
+     *
+     * @param pid the ID of the requested page
+     */
+    public Page getCommittedPage(PageId pid) throws DbException {
+        Page image = committedImages.get(pid);
+        if (image != null) {
+            touch(pid);
+            return image;
+        }
+        synchronized (this) {
+            image = committedImages.get(pid);
+            if (image == null) {
+                image = fetchPage(pid).getBeforeImage();
+                committedImages.put(pid, image);
+            }
+            return image;
+        }
+    }
+
+    /**
+     * Start a snapshot for the specified read-only transaction. Until the
+     * transaction completes, every page it reads through {@link #getPage}
+     * shows the data committed before this call, and it takes no locks, so
+     * it neither blocks nor is blocked by writers. The transaction may not
+     * modify any page.
+     *
+     * @param tid the ID of the read-only transaction
+     */
+    public synchronized void beginSnapshot(TransactionId tid) {
+        snapshots.put(tid, commitClock);
+    }
+
+    /** Return true if the specified transaction reads from a snapshot */
+    public boolean isSnapshot(TransactionId tid) {
+        return tid != null && snapshots.containsKey(tid);
+    }
+
+    /** @return the number of old page versions retained for running snapshots */
+    int getRetainedVersions() {
+        return versions.size();
+    }
+
+    /**
+     * Lock a whole table on behalf of a transaction, blocking until the
+     * lock is granted. A transaction holding a shared table lock reads any
+     * page of the table without taking page locks, and one holding an
+     * exclusive table lock may also write them. This is meant for scans and
+     * bulk updates of large tables; other transactions lock single pages
+     * through {@link #getPage}, and their page locks on a table are
+     * escalated to a table lock anyway once there are more than
+     * {@link #getLockEscalationThreshold} of them.
+     *
+     * @param tid the ID of the transaction requesting the lock
+     * @param tableId the table to lock
+     * @param perm READ_ONLY for a shared lock, READ_WRITE for an exclusive one
+     */
+    public void lockTable(TransactionId tid, int tableId, Permissions perm)
+        throws TransactionAbortedException {
+        if (tid == null || isSnapshot(tid))
+            return;
+        if (lockManager.acquireTable(tid, tableId, perm == Permissions.READ_WRITE))
+            stats.recordLockWait(tableId);
+    }
+
+    /** @return the number of page locks on one table above which they are escalated */
+    public int getLockEscalationThreshold() {
+        return lockManager.getEscalationThreshold();
+    }
+
+    /** Set the number of page locks on one table above which they are escalated */
+    public void setLockEscalationThreshold(int threshold) {
+        lockManager.setEscalationThreshold(threshold);
+    }
+
+    /** @return the number of tables and pages currently locked */
+    int getLockedResources() {
+        return lockManager.size();
+    }
+
+    /**
+     * Retrieve the specified page like {@link #getPage} and pin it in the
+     * buffer pool. A pinned page is never selected for eviction, so the
+     * returned reference stays the cached copy of the page until the caller
+     * gives it up with {@link #unpinPage}.
+     * <p>
+     * Pins nest: a page pinned twice must be unpinned twice. Pins that are
+     * still held when the transaction completes are dropped then, so unlike
+     * {@link #getPage} a page can only be pinned on behalf of a transaction.
+     *
+     * @param tid the ID of the transaction requesting the page, not null
+     * @param pid the ID of the requested page
+     * @param perm the requested permissions on the page
+     * @throws IllegalArgumentException if tid is null
+     */
+    public Page pinPage(TransactionId tid, PageId pid, Permissions perm)
+        throws TransactionAbortedException, DbException {
+        if (tid == null)
+            throw new IllegalArgumentException("pages are pinned on behalf of a transaction");
+        Long snapshot = snapshots.get(tid);
+        if (snapshot == null)
+            lock(tid, pid, perm);
+        synchronized (this) {
+            Page page = snapshot == null ? fetchPage(pid) : getSnapshotPage(pid, perm, snapshot);
+            pin(tid, pid);
+            return page;
+        }
+    }
+
+    private synchronized void pin(TransactionId tid, PageId pid) {
+        Integer count = pinCounts.get(pid);
+        pinCounts.put(pid, count == null ? 1 : count + 1);
+        ArrayList<PageId> pinned = pinsByTid.get(tid);
+        if (pinned == null) {
+            pinned = new ArrayList<PageId>();
+            pinsByTid.put(tid, pinned);
+        }
+        pinned.add(pid);
+    }
+
+    /**
+     * Release one pin taken by {@link #pinPage} on the specified page. Once
+     * all pins on the page are released it may be evicted again.
+     * Unpinning a page the transaction has not pinned has no effect.
+     *
+     * @param tid the ID of the transaction that pinned the page
+     * @param pid the ID of the page to unpin
+     */
+    public synchronized void unpinPage(TransactionId tid, PageId pid) {
+        ArrayList<PageId> pinned = pinsByTid.get(tid);
+        if (pinned == null || !pinned.remove(pid))
+            return;
+        if (pinned.isEmpty())
+            pinsByTid.remove(tid);
+        Integer count = pinCounts.get(pid);
+        if (count <= 1)
+            pinCounts.remove(pid);
+        else
+            pinCounts.put(pid, count - 1);
+    }
+
+    /** @return the number of outstanding pins on the specified page */
+    public int getPinCount(PageId pid) {
+        Integer count = pinCounts.get(pid);
+        return count == null ? 0 : count;
+    }
+
     /**
      * Releases the lock on a page.
      * Calling this is very risky, and may result in wrong behavior. Think hard
@@ -94,8 +570,7 @@ public class BufferPool {
      * @param pid the ID of the page to unlock
      */
     public  void releasePage(TransactionId tid, PageId pid) {
-        // some code goes here
-        // not necessary for lab1|lab2
+        lockManager.release(tid, pid);
     }
 
     /**
@@ -104,15 +579,12 @@ public class BufferPool {
      * @param tid the ID of the transaction requesting the unlock
      */
     public void transactionComplete(TransactionId tid) throws IOException {
-        // some code goes here
-        // not necessary for lab1|lab2
+        transactionComplete(tid, true);
     }
 
     /** Return true if the specified transaction has a lock on the specified page */
     public boolean holdsLock(TransactionId tid, PageId p) {
-        // some code goes here
-        // not necessary for lab1|lab2
-        return false;
+        return lockManager.holdsLock(tid, p);
     }
 
     /**
@@ -124,8 +596,112 @@ public class BufferPool {
      */
     public void transactionComplete(TransactionId tid, boolean commit)
         throws IOException {
-        // some code goes here
-        // not necessary for lab1|lab2
+        synchronized (this) {
+            try {
+                Set<PageId> touched = touchedPages(tid);
+                if (!touched.isEmpty()) {
+                    if (commit)
+                        commitPages(tid, touched);
+                    else
+                        revertPages(tid, touched);
+                }
+                writeSets.remove(tid);
+                if (snapshots.remove(tid) != null) {
+                    long oldest = Long.MAX_VALUE;
+                    for (long ts : snapshots.values())
+                        oldest = Math.min(oldest, ts);
+                    versions.prune(oldest);
+                }
+
+                ArrayList<PageId> pinned = pinsByTid.get(tid);
+                if (pinned != null) {
+                    for (PageId pid : new ArrayList<PageId>(pinned))
+                        unpinPage(tid, pid);
+                }
+            } finally {
+                lockManager.releaseAll(tid);
+            }
+        }
+    }
+
+    /**
+     * @return the pages a transaction may have dirtied: those it modified
+     *   through {@link #insertTuple} and {@link #deleteTuple}, and those it
+     *   locked for writing, directly or through an exclusive table lock
+     */
+    private Set<PageId> touchedPages(TransactionId tid) {
+        Set<PageId> touched = lockManager.exclusiveLocks(tid);
+        Set<Integer> tables = lockManager.exclusiveTables(tid);
+        if (!tables.isEmpty()) {
+            for (Page page : pages.values()) {
+                if (tables.contains(page.getId().getTableId()) && tid.equals(page.isDirty()))
+                    touched.add(page.getId());
+            }
+        }
+        HashSet<PageId> written = writeSets.get(tid);
+        if (written != null)
+            touched.addAll(written);
+        return touched;
+    }
+
+    /**
+     * Install the pages written by a committing transaction as the current
+     * committed versions: write them to disk and keep their previous
+     * committed images for as long as a running snapshot may need them.
+     */
+    private synchronized void commitPages(TransactionId tid, Set<PageId> touched)
+        throws IOException {
+        long ts = ++commitClock;
+        boolean retain = !snapshots.isEmpty();
+        HashSet<PageId> written = writeSets.get(tid);
+        ArrayList<Page> committed = new ArrayList<Page>();
+        for (PageId pid : touched) {
+            Page page = pages.get(pid);
+            if (page == null)
+                continue;
+            // pages written and already flushed by flushPages are clean
+            if (!tid.equals(page.isDirty()) && (written == null || !written.contains(pid)))
+                continue;
+            versions.install(pid, page.getBeforeImage(), ts, retain);
+            committed.add(page);
+        }
+        writeDirtyPages(committed);
+        for (Page page : committed) {
+            page.setBeforeImage();
+            committedImages.remove(page.getId());
+            loggedImages.remove(page.getId());
+        }
+    }
+
+    /**
+     * Throw away the changes of an aborting transaction by replacing the
+     * pages it dirtied with their last committed images.
+     */
+    private synchronized void revertPages(TransactionId tid, Set<PageId> touched) {
+        for (PageId pid : touched) {
+            Page page = pages.get(pid);
+            if (page != null && tid.equals(page.isDirty()))
+                pages.put(pid, page.getBeforeImage());
+        }
+    }
+
+    /**
+     * Cache the pages dirtied by an insert or delete of transaction tid,
+     * replacing any existing versions of those pages, and add them to its
+     * write set. The pages stay pinned until the transaction completes.
+     */
+    private synchronized void cacheDirtyPages(TransactionId tid, ArrayList<Page> dirtied)
+        throws DbException {
+        HashSet<PageId> written = writeSet(tid);
+        for (Page page : dirtied) {
+            PageId pid = page.getId();
+            page.markDirty(true, tid);
+            if (!pages.containsKey(pid) && pages.size() >= numPages)
+                evictPage();
+            pages.put(pid, page);
+            if (written.add(pid))
+                pin(tid, pid);
+        }
     }
 
     /**
@@ -139,14 +715,21 @@ public class BufferPool {
      * been dirtied to the cache (replacing any existing versions of those pages) so 
      * that future requests see up-to-date pages. 
      *
+     * The entries of the tuple are added to the secondary indexes on the
+     * table as well (see {@link Catalog#addIndex}).
+     *
      * @param tid the transaction adding the tuple
      * @param tableId the table to add the tuple to
      * @param t the tuple to add
      */
     public void insertTuple(TransactionId tid, int tableId, Tuple t)
         throws DbException, IOException, TransactionAbortedException {
-        // some code goes here
-        // not necessary for lab1
+        if (isSnapshot(tid))
+            throw new DbException("snapshot transactions are read-only");
+        DbFile file = Database.getCatalog().getDatabaseFile(tableId);
+        cacheDirtyPages(tid, file.insertTuple(tid, t));
+        for (SecondaryIndex index : Database.getCatalog().getIndexes(tableId))
+            cacheDirtyPages(tid, index.insertTuple(tid, t));
     }
 
     /**
@@ -159,13 +742,21 @@ public class BufferPool {
      * been dirtied to the cache (replacing any existing versions of those pages) so 
      * that future requests see up-to-date pages. 
      *
+     * The entries of the tuple are removed from the secondary indexes on the
+     * table as well.
+     *
      * @param tid the transaction deleting the tuple.
      * @param t the tuple to delete
      */
     public  void deleteTuple(TransactionId tid, Tuple t)
         throws DbException, IOException, TransactionAbortedException {
-        // some code goes here
-        // not necessary for lab1
+        if (isSnapshot(tid))
+            throw new DbException("snapshot transactions are read-only");
+        int tableId = t.getRecordId().getPageId().getTableId();
+        DbFile file = Database.getCatalog().getDatabaseFile(tableId);
+        cacheDirtyPages(tid, file.deleteTuple(tid, t));
+        for (SecondaryIndex index : Database.getCatalog().getIndexes(tableId))
+            cacheDirtyPages(tid, index.deleteTuple(tid, t));
     }
 
     /**
@@ -174,9 +765,7 @@ public class BufferPool {
      *     break simpledb if running in NO STEAL mode.
      */
     public synchronized void flushAllPages() throws IOException {
-        // some code goes here
-        // not necessary for lab1
-
+        writeDirtyPages(pages.values());
     }
 
     /** Remove the specific page id from the buffer pool.
@@ -188,8 +777,8 @@ public class BufferPool {
         are removed from the cache so they can be reused safely
     */
     public synchronized void discardPage(PageId pid) {
-        // some code goes here
-        // not necessary for lab1
+        pages.remove(pid);
+        forget(pid);
     }
 
     /**
@@ -197,15 +786,111 @@ public class BufferPool {
      * @param pid an ID indicating the page to flush
      */
     private synchronized  void flushPage(PageId pid) throws IOException {
-        // some code goes here
-        // not necessary for lab1
+        Page page = pages.get(pid);
+        if (page != null)
+            writeDirtyPages(Collections.singletonList(page));
     }
 
     /** Write all pages of the specified transaction to disk.
+     * The pages are clean afterwards, so they join its write set: pages
+     * only locked for writing, rather than written through insertTuple and
+     * deleteTuple, would otherwise look untouched to {@link #commitPages},
+     * which would leave their stale committed images to snapshots and
+     * {@link #getCommittedPage}.
      */
     public synchronized  void flushPages(TransactionId tid) throws IOException {
-        // some code goes here
-        // not necessary for lab1|lab2
+        ArrayList<Page> dirty = new ArrayList<Page>();
+        for (PageId pid : touchedPages(tid)) {
+            Page page = pages.get(pid);
+            if (page != null && tid.equals(page.isDirty()))
+                dirty.add(page);
+        }
+        writeDirtyPages(dirty);
+        HashSet<PageId> written = writeSet(tid);
+        for (Page page : dirty)
+            written.add(page.getId());
+    }
+
+    /** @return the write set of a transaction, created if it has none */
+    private HashSet<PageId> writeSet(TransactionId tid) {
+        HashSet<PageId> written = writeSets.get(tid);
+        if (written == null) {
+            written = new HashSet<PageId>();
+            writeSets.put(tid, written);
+        }
+        return written;
+    }
+
+    /**
+     * Write out the dirty pages among the given ones in elevator order:
+     * file by file, and within each file by page number, so that each
+     * file sees a single ascending pass of writes that its DbFile can
+     * coalesce, followed by a single force.
+     *
+     * <p>
+     * Following the write-ahead logging rule, an UPDATE record is logged
+     * for every page, against the image of the page its last UPDATE record
+     * left, or its before image if it has none since. The page is stamped
+     * with the LSN of that record, and the log is forced up to the highest
+     * such LSN before any page is written. Once a file is forced, the log drops its pages from its
+     * dirty page table.
+     *
+     * @see DbFile#writePages
+     */
+    private synchronized void writeDirtyPages(Collection<Page> candidates) throws IOException {
+        TreeMap<Integer, ArrayList<Page>> byFile = new TreeMap<Integer, ArrayList<Page>>();
+        LogFile log = Database.getLogFile();
+        long lastLsn = LogRecord.NO_LSN;
+        for (Page page : candidates) {
+            TransactionId dirtier = page.isDirty();
+            if (dirtier == null)
+                continue;
+            PageId pid = page.getId();
+            Page logged = loggedImages.get(pid);
+            long lsn = log.logWrite(dirtier, logged == null ? page.getBeforeImage() : logged, page);
+            page.setLsn(lsn);
+            loggedImages.put(pid, LogFile.createPage(LogFile.pageType(page),
+                    pid.getTableId(), pid.getPageNumber(), page.getPageData()));
+            lastLsn = Math.max(lastLsn, lsn);
+            int tableId = page.getId().getTableId();
+            ArrayList<Page> list = byFile.get(tableId);
+            if (list == null) {
+                list = new ArrayList<Page>();
+                byFile.put(tableId, list);
+            }
+            list.add(page);
+        }
+        if (byFile.isEmpty())
+            return;
+        log.force(lastLsn);
+        for (Map.Entry<Integer, ArrayList<Page>> e : byFile.entrySet()) {
+            ArrayList<Page> list = e.getValue();
+            Collections.sort(list, new Comparator<Page>() {
+                public int compare(Page a, Page b) {
+                    return Integer.compare(a.getId().getPageNumber(), b.getId().getPageNumber());
+                }
+            });
+            Database.getCatalog().getDatabaseFile(e.getKey()).writePages(list);
+            log.pagesWritten(list);
+            for (Page page : list) {
+                page.markDirty(false, null);
+                stats.recordFlush(e.getKey());
+            }
+        }
+    }
+
+    /**
+     * Evict every clean, unpinned page, for instance to make room for a
+     * warm-up after a one-off scan has filled the buffer pool.
+     */
+    public synchronized void evictCleanPages() {
+        for (Page page : pages.values()) {
+            if (page.isDirty() == null && !pinCounts.containsKey(page.getId())) {
+                pages.remove(page.getId());
+                forget(page.getId());
+                stats.recordEviction(page.getId().getTableId());
+            }
+        }
     }
 
     /**
@@ -213,8 +898,18 @@ public class BufferPool {
      * Flushes the page to disk to ensure dirty pages are updated on disk.
      */
     private synchronized  void evictPage() throws DbException {
-        // some code goes here
-        // not necessary for lab1
+        // dirty pages belong to running transactions and may not reach
+        // the disk before they commit (NO STEAL), so only clean pages are
+        // candidates for eviction. Pinned pages are still in use.
+        for (Page page : pages.values()) {
+            if (page.isDirty() == null && !pinCounts.containsKey(page.getId())) {
+                pages.remove(page.getId());
+                forget(page.getId());
+                stats.recordEviction(page.getId().getTableId());
+                return;
+            }
+        }
+        throw new DbException("All " + numPages + " pages of the buffer pool are dirty or pinned");
     }
 
 }
@@ -0,0 +1,244 @@
+package simpledb;
+
+import java.lang.management.ManagementFactory;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.management.*;
+
+/**
+ * BufferPoolStats keeps live counters of the activity of a BufferPool,
+ * broken down per table id.
+ * <p>
+ * The counters are updated by the BufferPool itself and can be read from
+ * the shell with <code>SHOW STATS;</code> or remotely through JMX, where
+ * they are published under {@link #OBJECT_NAME}.
+ *
+ * @Threadsafe
+ */
+public class BufferPoolStats implements BufferPoolStatsMBean {
+
+    /** Name under which the stats of the current buffer pool are published */
+    public static final String OBJECT_NAME = "simpledb:type=BufferPool";
+
+    /** Counters of a single table */
+    private static class TableCounters {
+        final AtomicLong hits = new AtomicLong();
+        final AtomicLong misses = new AtomicLong();
+        final AtomicLong missNanos = new AtomicLong();
+        final AtomicLong evictions = new AtomicLong();
+        final AtomicLong flushes = new AtomicLong();
+        final AtomicLong lockWaits = new AtomicLong();
+        final AtomicLong prefetches = new AtomicLong();
+        final AtomicLong prefetchHits = new AtomicLong();
+    }
+
+    private final BufferPool bufferPool;
+    private final ConcurrentHashMap<Integer, TableCounters> tables;
+
+    /**
+     * Creates the statistics of the given buffer pool, with all counters set to zero.
+     *
+     * @param bufferPool the buffer pool the dirty and resident page counts are taken from
+     */
+    public BufferPoolStats(BufferPool bufferPool) {
+        this.bufferPool = bufferPool;
+        this.tables = new ConcurrentHashMap<Integer, TableCounters>();
+    }
+
+    private TableCounters table(int tableId) {
+        TableCounters c = this.tables.get(tableId);
+        if (c == null) {
+            this.tables.putIfAbsent(tableId, new TableCounters());
+            c = this.tables.get(tableId);
+        }
+        return c;
+    }
+
+    private interface Counter {
+        AtomicLong of(TableCounters c);
+    }
+
+    private long total(Counter counter) {
+        long sum = 0;
+        for (TableCounters c : this.tables.values())
+            sum += counter.of(c).get();
+        return sum;
+    }
+
+    private long single(int tableId, Counter counter) {
+        TableCounters c = this.tables.get(tableId);
+        return c == null ? 0 : counter.of(c).get();
+    }
+
+    private static double averageMicros(long nanos, long count) {
+        return count == 0 ? 0.0 : nanos / 1000.0 / count;
+    }
+
+    void recordHit(int tableId) {
+        table(tableId).hits.incrementAndGet();
+    }
+
+    void recordMiss(int tableId, long nanos) {
+        TableCounters c = table(tableId);
+        c.misses.incrementAndGet();
+        c.missNanos.addAndGet(nanos);
+    }
+
+    void recordEviction(int tableId) {
+        table(tableId).evictions.incrementAndGet();
+    }
+
+    void recordFlush(int tableId) {
+        table(tableId).flushes.incrementAndGet();
+    }
+
+    void recordLockWait(int tableId) {
+        table(tableId).lockWaits.incrementAndGet();
+    }
+
+    void recordPrefetch(int tableId) {
+        table(tableId).prefetches.incrementAndGet();
+    }
+
+    void recordPrefetchHit(int tableId) {
+        table(tableId).prefetchHits.incrementAndGet();
+    }
+
+    public int getCapacity() {
+        return this.bufferPool.getNumPages();
+    }
+
+    public int getResidentPages() {
+        return this.bufferPool.residentPages().size();
+    }
+
+    public int getDirtyPages() {
+        return getDirtyPages(-1);
+    }
+
+    public long getHits() {
+        return total(c -> c.hits);
+    }
+
+    public long getMisses() {
+        return total(c -> c.misses);
+    }
+
+    public long getEvictions() {
+        return total(c -> c.evictions);
+    }
+
+    public long getFlushes() {
+        return total(c -> c.flushes);
+    }
+
+    public long getLockWaits() {
+        return total(c -> c.lockWaits);
+    }
+
+    public long getPrefetches() {
+        return total(c -> c.prefetches);
+    }
+
+    public long getPrefetchHits() {
+        return total(c -> c.prefetchHits);
+    }
+
+    public double getHitRatio() {
+        long hits = getHits();
+        long accesses = hits + getMisses();
+        return accesses == 0 ? 0.0 : (double) hits / accesses;
+    }
+
+    public double getAverageMissLatencyMicros() {
+        return averageMicros(total(c -> c.missNanos), getMisses());
+    }
+
+    public int[] getTableIds() {
+        Integer[] ids = this.tables.keySet().toArray(new Integer[0]);
+        int[] result = new int[ids.length];
+        for (int i = 0; i < ids.length; i++)
+            result[i] = ids[i];
+        Arrays.sort(result);
+        return result;
+    }
+
+    public long getHits(int tableId) {
+        return single(tableId, c -> c.hits);
+    }
+
+    public long getMisses(int tableId) {
+        return single(tableId, c -> c.misses);
+    }
+
+    public long getEvictions(int tableId) {
+        return single(tableId, c -> c.evictions);
+    }
+
+    public long getFlushes(int tableId) {
+        return single(tableId, c -> c.flushes);
+    }
+
+    public long getLockWaits(int tableId) {
+        return single(tableId, c -> c.lockWaits);
+    }
+
+    /**
+     * @param tableId the table to count, or -1 for all tables
+     * @return the number of resident dirty pages of the table
+     */
+    public int getDirtyPages(int tableId) {
+        int count = 0;
+        for (Page p : this.bufferPool.residentPages()) {
+            if (p.isDirty() != null && (tableId == -1 || p.getId().getTableId() == tableId))
+                count++;
+        }
+        return count;
+    }
+
+    public double getAverageMissLatencyMicros(int tableId) {
+        return averageMicros(single(tableId, c -> c.missNanos), getMisses(tableId));
+    }
+
+    public String report() {
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format("%-24s %10s %10s %10s %10s %8s %12s %10s %10s%n",
+                "table", "hits", "misses", "evictions", "flushes", "dirty",
+                "miss (us)", "lockwaits", "prefetch"));
+        for (int tableId : getTableIds()) {
+            TableCounters c = this.tables.get(tableId);
+            String name = Database.getCatalog().getTableName(tableId);
+            sb.append(String.format("%-24s %10d %10d %10d %10d %8d %12.1f %10d %5d/%-5d%n",
+                    name == null ? String.valueOf(tableId) : name,
+                    c.hits.get(), c.misses.get(), c.evictions.get(), c.flushes.get(),
+                    getDirtyPages(tableId), getAverageMissLatencyMicros(tableId),
+                    c.lockWaits.get(), c.prefetchHits.get(), c.prefetches.get()));
+        }
+        sb.append(String.format("%d/%d pages resident, %d dirty, hit ratio %.3f",
+                getResidentPages(), getCapacity(), getDirtyPages(), getHitRatio()));
+        return sb.toString();
+    }
+
+    public void reset() {
+        this.tables.clear();
+    }
+
+    /**
+     * Publish these statistics on the platform MBean server, replacing the
+     * statistics of any buffer pool published before.
+     */
+    void register() {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(OBJECT_NAME);
+            synchronized (BufferPoolStats.class) {
+                if (server.isRegistered(name))
+                    server.unregisterMBean(name);
+                server.registerMBean(this, name);
+            }
+        } catch (JMException e) {
+            Debug.log("Unable to register buffer pool statistics: " + e);
+        }
+    }
+}
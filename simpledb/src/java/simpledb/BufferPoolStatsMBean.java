@@ -0,0 +1,63 @@
+package simpledb;
+
+/**
+ * Management interface of {@link BufferPoolStats}, published on the platform
+ * MBean server under {@link BufferPoolStats#OBJECT_NAME}.
+ * <p>
+ * The attributes report totals over all tables; the operations taking a
+ * table id report the same counters for a single table.
+ */
+public interface BufferPoolStatsMBean {
+
+    /** @return the maximum number of pages the buffer pool may hold */
+    public int getCapacity();
+
+    /** @return the number of pages currently resident in the buffer pool */
+    public int getResidentPages();
+
+    /** @return the number of resident pages that are dirty */
+    public int getDirtyPages();
+
+    public long getHits();
+
+    public long getMisses();
+
+    public long getEvictions();
+
+    public long getFlushes();
+
+    public long getLockWaits();
+
+    public long getPrefetches();
+
+    public long getPrefetchHits();
+
+    /** @return the fraction of getPage calls served from the pool, in [0, 1] */
+    public double getHitRatio();
+
+    /** @return the average time spent reading a missed page from disk, in microseconds */
+    public double getAverageMissLatencyMicros();
+
+    /** @return the ids of all tables that have been accessed since the last reset */
+    public int[] getTableIds();
+
+    public long getHits(int tableId);
+
+    public long getMisses(int tableId);
+
+    public long getEvictions(int tableId);
+
+    public long getFlushes(int tableId);
+
+    public long getLockWaits(int tableId);
+
+    public int getDirtyPages(int tableId);
+
+    public double getAverageMissLatencyMicros(int tableId);
+
+    /** @return a human readable report of all counters, one line per table */
+    public String report();
+
+    /** Reset all counters to zero */
+    public void reset();
+}
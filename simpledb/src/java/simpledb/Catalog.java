@@ -4,8 +4,12 @@ import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileReader;
 import java.io.IOException;
+import java.io.RandomAccessFile;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 /**
  * The Catalog keeps track of all available tables in the database and their
@@ -21,6 +25,17 @@ public class Catalog {
     private Map<Integer,String> idNameCatalog;
     private Map<Integer,DbFile> idDbfileCatalog;
     private Map<Integer,String> idPkCatalog;
+    private Map<Integer,List<SecondaryIndex>> idIndexCatalog;
+    // the schema file last loaded, which index definitions are saved to
+    private volatile File schemaFile;
+
+    // a secondary index in a schema file
+    private static final Pattern INDEX = Pattern.compile(
+            "index\\s+(\\w+)\\s+on\\s+(\\w+)\\s*\\(\\s*(\\w+)\\s*\\)"
+                    + "(?:\\s+include\\s*\\(\\s*(\\w+(?:\\s*,\\s*\\w+)*)\\s*\\))?"
+                    + "(?:\\s+with\\s*\\(\\s*fillfactor\\s*=\\s*(\\d+)\\s*\\))?\\s*",
+            Pattern.CASE_INSENSITIVE);
+
     /**
      * Constructor.
      * Creates a new, empty catalog.
@@ -30,6 +45,7 @@ public class Catalog {
         this.idNameCatalog = new ConcurrentHashMap<>();
         this.idDbfileCatalog = new ConcurrentHashMap<>();
         this.idPkCatalog = new ConcurrentHashMap<>();
+        this.idIndexCatalog = new ConcurrentHashMap<>();
     }
 
     /**
@@ -49,6 +65,12 @@ public class Catalog {
             this.idNameCatalog.remove(oldId);
             this.idDbfileCatalog.remove(oldId);
             this.idPkCatalog.remove(oldId);
+            List<SecondaryIndex> indexes = this.idIndexCatalog.remove(oldId);
+            if(indexes != null){
+                for(SecondaryIndex index : indexes){
+                    this.idDbfileCatalog.remove(index.getFile().getId());
+                }
+            }
         }
         this.idNameCatalog.put(newId, name);
         this.idDbfileCatalog.put(newId, file);
@@ -113,6 +135,117 @@ public class Catalog {
         return dbFile;
     }
 
+    /**
+     * Add a secondary index on a table of the catalog. From then on the
+     * buffer pool keeps it up to date with the table, and the B+ tree file
+     * holding its entries can be read through {@link #getDatabaseFile}, but
+     * it is not a table of its own.
+     * @param index the index to add
+     * @throws NoSuchElementException if the table doesn't exist
+     * @throws IllegalArgumentException if the table is not a heap file
+     */
+    public void addIndex(SecondaryIndex index) {
+        DbFile dbFile = getDatabaseFile(index.getTableId());
+        if(!(dbFile instanceof HeapFile)){
+            throw new IllegalArgumentException("secondary indexes are only supported on heap files");
+        }
+        this.idDbfileCatalog.put(index.getFile().getId(), index.getFile());
+        this.idIndexCatalog.computeIfAbsent(index.getTableId(), id -> new CopyOnWriteArrayList<>()).add(index);
+    }
+
+    /**
+     * Remove a secondary index added with {@link #addIndex}, after which
+     * the buffer pool no longer maintains it.
+     * @param index the index to remove
+     */
+    public void removeIndex(SecondaryIndex index) {
+        List<SecondaryIndex> indexes = this.idIndexCatalog.get(index.getTableId());
+        if(indexes != null){
+            indexes.remove(index);
+        }
+        this.idDbfileCatalog.remove(index.getFile().getId());
+    }
+
+    /**
+     * Returns the secondary indexes on the specified table, in the order
+     * they were added; empty if there is none.
+     * @param tableid The id of the table, as specified by the DbFile.getId()
+     *     function passed to addTable
+     */
+    public List<SecondaryIndex> getIndexes(int tableid) {
+        List<SecondaryIndex> indexes = this.idIndexCatalog.get(tableid);
+        if(indexes == null){
+            return Collections.emptyList();
+        }
+        return indexes;
+    }
+
+    /**
+     * Returns a secondary index on the specified field of a table, or null
+     * if there is none.
+     * @param tableid The id of the table
+     * @param field the index of the field in the table
+     */
+    public SecondaryIndex getIndex(int tableid, int field) {
+        for(SecondaryIndex index : getIndexes(tableid)){
+            if(index.getField() == field){
+                return index;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Append the definition of a B+ tree secondary index to the schema file
+     * last loaded with {@link #loadSchema}, so that loading the schema again
+     * registers the index before the log is recovered. The file of the index
+     * must be named after it, in the folder of the schema file.
+     * @param name the name of the index
+     * @param index the index, on a table of the schema
+     * @return true if the definition was saved, false if there is no schema
+     *     file or the index file is somewhere else
+     * @throws IOException if the schema file cannot be written
+     */
+    public boolean saveIndex(String name, SecondaryIndex index) throws IOException {
+        File schema = this.schemaFile;
+        if(schema == null || !(index.getFile() instanceof BTreeFile)){
+            return false;
+        }
+        BTreeFile bf = (BTreeFile) index.getFile();
+        if(!bf.getFile().getCanonicalFile().equals(new File(schema.getParentFile(), name + ".dat").getCanonicalFile())){
+            return false;
+        }
+        TupleDesc td = getTupleDesc(index.getTableId());
+        StringBuilder line = new StringBuilder("index " + name + " on " + getTableName(index.getTableId())
+                + " (" + td.getFieldName(index.getField()) + ")");
+        int[] included = index.getIncluded();
+        for(int i = 0; i < included.length; i++){
+            line.append(i == 0 ? " include (" : ", ").append(td.getFieldName(included[i]));
+        }
+        if(included.length > 0){
+            line.append(")");
+        }
+        if(bf.getFillFactor() != BTreeFile.DEFAULT_FILL_FACTOR){
+            line.append(" with (fillfactor = ").append(Math.round(bf.getFillFactor() * 100)).append(")");
+        }
+        line.append("\n");
+        synchronized(this){
+            RandomAccessFile raf = new RandomAccessFile(schema, "rw");
+            try {
+                // the last table or index may not end its line
+                raf.seek(Math.max(raf.length() - 1, 0));
+                if(raf.length() > 0 && raf.read() != '\n'){
+                    line.insert(0, "\n");
+                }
+                raf.write(line.toString().getBytes());
+                raf.getFD().sync();
+            } finally {
+                raf.close();
+            }
+        }
+        return true;
+    }
+
     public String getPrimaryKey(int tableid) {
         return this.idPkCatalog.get(tableid);
     }
@@ -131,10 +264,14 @@ public class Catalog {
         this.idNameCatalog.clear();
         this.idDbfileCatalog.clear();
         this.idPkCatalog.clear();
+        this.idIndexCatalog.clear();
     }
     
     /**
      * Reads the schema from a file and creates the appropriate tables in the database.
+     * Lines of the form "index name on table (field) [include (field, field, ...)]
+     * [with (fillfactor = percent)]" register the B+ tree secondary index stored in
+     * name.dat on a table defined further up, see {@link #saveIndex}.
      * @param catalogFile
      */
     public void loadSchema(String catalogFile) {
@@ -144,6 +281,11 @@ public class Catalog {
             BufferedReader br = new BufferedReader(new FileReader(new File(catalogFile)));
             
             while ((line = br.readLine()) != null) {
+                Matcher m = INDEX.matcher(line.trim());
+                if (m.matches()) {
+                    loadIndex(baseFolder, m);
+                    continue;
+                }
                 //assume line is of the format name (field type, field type, ...)
                 String name = line.substring(0, line.indexOf("(")).trim();
                 //System.out.println("TABLE NAME: " + name);
@@ -182,9 +324,30 @@ public class Catalog {
         } catch (IOException e) {
             e.printStackTrace();
             System.exit(0);
-        } catch (IndexOutOfBoundsException e) {
+        } catch (IndexOutOfBoundsException | NoSuchElementException e) {
             System.out.println ("Invalid catalog entry : " + line);
             System.exit(0);
         }
+        this.schemaFile = new File(catalogFile).getAbsoluteFile();
+    }
+
+    /**
+     * Register the secondary index of a line of a schema file.
+     * @throws NoSuchElementException if the table or one of the fields doesn't exist
+     */
+    private void loadIndex(String baseFolder, Matcher m) {
+        int tableid = getTableId(m.group(2));
+        TupleDesc td = getTupleDesc(tableid);
+        int field = td.fieldNameToIndex(m.group(3));
+        String[] names = m.group(4) == null ? new String[0] : m.group(4).split(",");
+        int[] included = new int[names.length];
+        for (int i = 0; i < names.length; i++)
+            included[i] = td.fieldNameToIndex(names[i].trim());
+        BTreeFile bf = new BTreeFile(new File(baseFolder + "/" + m.group(1) + ".dat"),
+                SecondaryIndex.getKeyFields(included), SecondaryIndex.getEntryDesc(td, field, included));
+        if (m.group(5) != null)
+            bf.setFillFactor(Integer.parseInt(m.group(5)) / 100.0);
+        addIndex(new SecondaryIndex(tableid, field, included, bf));
+        System.out.println("Added index : " + m.group(1) + " on " + m.group(2));
     }
 }
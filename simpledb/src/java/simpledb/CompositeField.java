@@ -0,0 +1,138 @@
+package simpledb;
+
+import java.io.*;
+import java.util.Arrays;
+
+/**
+ * Instance of Field that stores the key of a B+ tree keyed on several
+ * columns, see {@link CompositeType}. Keys compare lexicographically: on their
+ * first column, then on the next one for keys with the same first column,
+ * and so on.
+ * <p>
+ * A CompositeField may also hold a prefix of a key, the values of its first
+ * columns only. Comparisons then only look at the columns both sides have, so
+ * a prefix is equal to every key that starts with it, and less than or equal
+ * to all of them: a search of a B+ tree for a prefix finds the first key that
+ * starts with it. A field that is not a CompositeField compares as the prefix
+ * made of its value alone.
+ */
+public class CompositeField implements Field {
+
+    private static final long serialVersionUID = 1L;
+
+    private final Field[] fields;
+
+    /**
+     * Constructor.
+     *
+     * @param fields The values of the columns, in key order
+     */
+    public CompositeField(Field[] fields) {
+        if (fields.length == 0)
+            throw new IllegalArgumentException("a composite key has at least one column");
+        this.fields = fields.clone();
+    }
+
+    /**
+     * @param t - a tuple
+     * @param keyFields - the columns a B+ tree is keyed on
+     * @return the key of the tuple: the value of the column for a single one,
+     *   a CompositeField otherwise
+     */
+    public static Field getKey(Tuple t, int[] keyFields) {
+        if (keyFields.length == 1)
+            return t.getField(keyFields[0]);
+        Field[] fields = new Field[keyFields.length];
+        for (int i = 0; i < keyFields.length; i++)
+            fields[i] = t.getField(keyFields[i]);
+        return new CompositeField(fields);
+    }
+
+    /**
+     * @return the number of columns this field holds a value for
+     */
+    public int numFields() {
+        return fields.length;
+    }
+
+    /**
+     * @return the value of the i-th column
+     */
+    public Field getField(int i) {
+        return fields[i];
+    }
+
+    public void serialize(DataOutputStream dos) throws IOException {
+        for (Field f : fields)
+            f.serialize(dos);
+    }
+
+    /**
+     * @return a negative number, zero, or a positive number as this field is
+     *   less than, equal to, or greater than the other one on the columns both
+     *   of them have
+     */
+    private int compareTo(Field val) {
+        Field[] other = val instanceof CompositeField ? ((CompositeField) val).fields : new Field[] { val };
+        int n = Math.min(fields.length, other.length);
+        for (int i = 0; i < n; i++) {
+            if (fields[i].compare(Predicate.Op.LESS_THAN, other[i]))
+                return -1;
+            if (fields[i].compare(Predicate.Op.GREATER_THAN, other[i]))
+                return 1;
+        }
+        return 0;
+    }
+
+    /**
+     * Compare the specified field to the value of this Field, see above for
+     * the order of keys and prefixes.
+     *
+     * @see Field#compare
+     */
+    public boolean compare(Predicate.Op op, Field val) {
+        int c = compareTo(val);
+        switch (op) {
+        case EQUALS:
+        case LIKE:
+            return c == 0;
+        case NOT_EQUALS:
+            return c != 0;
+        case GREATER_THAN:
+            return c > 0;
+        case GREATER_THAN_OR_EQ:
+            return c >= 0;
+        case LESS_THAN:
+            return c < 0;
+        case LESS_THAN_OR_EQ:
+            return c <= 0;
+        }
+        return false;
+    }
+
+    /**
+     * A composite key has no single type, see {@link CompositeType}.
+     * @return null
+     */
+    public Type getType() {
+        return null;
+    }
+
+    public boolean equals(Object field) {
+        return field instanceof CompositeField && Arrays.equals(fields, ((CompositeField) field).fields);
+    }
+
+    public int hashCode() {
+        return Arrays.hashCode(fields);
+    }
+
+    public String toString() {
+        StringBuilder sb = new StringBuilder("(");
+        for (int i = 0; i < fields.length; i++) {
+            if (i > 0)
+                sb.append(", ");
+            sb.append(fields[i]);
+        }
+        return sb.append(")").toString();
+    }
+}
@@ -0,0 +1,96 @@
+package simpledb;
+
+import java.io.*;
+import java.text.ParseException;
+import java.util.Arrays;
+
+/**
+ * The type of the keys of a B+ tree keyed on several columns: the types of
+ * the columns, in key order. Keys of this type are {@link CompositeField}s,
+ * stored as their columns one after the other.
+ */
+public class CompositeType implements KeyType, Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private final Type[] types;
+
+    /**
+     * Constructor.
+     *
+     * @param types The types of the key columns, in key order; at least two
+     */
+    public CompositeType(Type[] types) {
+        if (types.length < 2)
+            throw new IllegalArgumentException("a composite key has at least two columns");
+        this.types = types.clone();
+    }
+
+    /**
+     * @return the type of the keys of a B+ tree over tuples of the given
+     *   tuple descriptor, keyed on the given columns: the type of the column
+     *   for a single one, a CompositeType otherwise
+     */
+    public static KeyType getKeyType(TupleDesc td, int[] keyFields) {
+        if (keyFields.length == 1)
+            return td.getFieldType(keyFields[0]);
+        Type[] types = new Type[keyFields.length];
+        for (int i = 0; i < keyFields.length; i++)
+            types[i] = td.getFieldType(keyFields[i]);
+        return new CompositeType(types);
+    }
+
+    /**
+     * @return the number of columns of the key
+     */
+    public int numFields() {
+        return types.length;
+    }
+
+    /**
+     * @return the type of the i-th column of the key
+     */
+    public Type getType(int i) {
+        return types[i];
+    }
+
+    public int getLen() {
+        int len = 0;
+        for (Type t : types)
+            len += t.getLen();
+        return len;
+    }
+
+    public Field parse(DataInputStream dis) throws ParseException {
+        Field[] fields = new Field[types.length];
+        for (int i = 0; i < types.length; i++)
+            fields[i] = types[i].parse(dis);
+        return new CompositeField(fields);
+    }
+
+    /**
+     * @return true if the field is a key of this type, with a value for
+     *   every column
+     */
+    public boolean isKey(Field f) {
+        if (!(f instanceof CompositeField) || ((CompositeField) f).numFields() != types.length)
+            return false;
+        for (int i = 0; i < types.length; i++) {
+            if (((CompositeField) f).getField(i).getType() != types[i])
+                return false;
+        }
+        return true;
+    }
+
+    public boolean equals(Object o) {
+        return o instanceof CompositeType && Arrays.equals(types, ((CompositeType) o).types);
+    }
+
+    public int hashCode() {
+        return Arrays.hashCode(types);
+    }
+
+    public String toString() {
+        return Arrays.toString(types);
+    }
+}
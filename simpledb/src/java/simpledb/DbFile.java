@@ -28,6 +28,21 @@ public interface DbFile {
      */
     public void writePage(Page p) throws IOException;
 
+    /**
+     * Push a batch of pages of this file to disk and force them to stable
+     * storage. Implementations should write the pages in file order and
+     * merge pages that are adjacent on disk into single writes; the default
+     * simply writes them one at a time.
+     *
+     * @param pages The pages to write, sorted by page number.
+     * @throws IOException if a write fails
+     * @see PageWriter
+     */
+    public default void writePages(List<Page> pages) throws IOException {
+        for (Page p : pages)
+            writePage(p);
+    }
+
     /**
      * Inserts the specified tuple to the file on behalf of transaction.
      * This method will acquire a lock on the affected pages of the file, and
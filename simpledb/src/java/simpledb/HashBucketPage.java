@@ -0,0 +1,382 @@
+package simpledb;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * Each instance of HashBucketPage stores data for one page of a bucket of a
+ * HashFile and implements the Page interface that is used by BufferPool.
+ * The first page of a bucket is its primary page, at a place given by the
+ * HashMetaPage; the tuples that do not fit there go to a chain of overflow
+ * pages linked from it.
+ *
+ * @see HashFile
+ * @see BufferPool
+ *
+ */
+public class HashBucketPage implements Page {
+	private volatile boolean dirty = false;
+	private volatile TransactionId dirtier = null;
+
+	final static int INDEX_SIZE = Type.INT_TYPE.getLen();
+
+	/** Bytes the page LSN takes at the start of the page */
+	static final int LSN_SIZE = 8;
+
+	final HashPageId pid;
+	final TupleDesc td;
+	final byte header[];
+	final Tuple tuples[];
+	final int numSlots;
+
+	private long lsn;
+	private int depth; // number of bits of the hash shared by the keys of the bucket
+	private int overflow; // next page of the bucket or 0
+
+	byte[] oldData;
+	private final Object oldDataLock = new Object();
+
+	/**
+	 * Create a HashBucketPage from a set of bytes of data read from disk.
+	 * The format of a HashBucketPage is the page LSN, the depth of the bucket
+	 * and the page number of the next page of the bucket, followed by a set of
+	 * header bytes indicating the slots of the page that are in use, and some
+	 * number of tuple slots. A page of all zeroes is an empty page of a
+	 * bucket of depth 0.
+	 * @see Database#getCatalog
+	 * @see Catalog#getTupleDesc
+	 * @see BufferPool#getPageSize()
+	 */
+	public HashBucketPage(HashPageId id, byte[] data) throws IOException {
+		this.pid = id;
+		this.td = Database.getCatalog().getTupleDesc(id.getTableId());
+		this.numSlots = getNumSlots(td);
+		DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data));
+		lsn = dis.readLong();
+		depth = dis.readInt();
+		overflow = dis.readInt();
+
+		// allocate and read the header slots of this page
+		header = new byte[getHeaderSize()];
+		for (int i=0; i<header.length; i++)
+			header[i] = dis.readByte();
+
+		tuples = new Tuple[numSlots];
+		try {
+			// allocate and read the actual records of this page
+			for (int i=0; i<tuples.length; i++)
+				tuples[i] = readNextTuple(dis,i);
+		} catch(NoSuchElementException e) {
+			e.printStackTrace();
+		}
+		dis.close();
+
+		setBeforeImage();
+	}
+
+	/**
+	 * @return the number of tuples a page of a hash file holding tuples
+	 * with the given descriptor has room for
+	 */
+	public static int getNumSlots(TupleDesc td) {
+		int extraBytes = LSN_SIZE + 2 * INDEX_SIZE;
+		return ((BufferPool.getPageSize() - extraBytes) * 8) / (td.getSize() * 8 + 1);
+	}
+
+	/**
+	 * Computes the number of bytes in the header of a page
+	 */
+	private int getHeaderSize() {
+		return (numSlots + 7) / 8;
+	}
+
+	/** Return a view of this page before it was modified
+        -- used by recovery */
+	public HashBucketPage getBeforeImage(){
+		try {
+			byte[] oldDataRef = null;
+			synchronized(oldDataLock)
+			{
+				oldDataRef = oldData;
+			}
+			return new HashBucketPage(pid,oldDataRef);
+		} catch (IOException e) {
+			e.printStackTrace();
+			//should never happen -- we parsed it OK before!
+			System.exit(1);
+		}
+		return null;
+	}
+
+	public void setBeforeImage() {
+		synchronized(oldDataLock)
+		{
+			oldData = getPageData().clone();
+		}
+	}
+
+	/**
+	 * @return the PageId associated with this page.
+	 */
+	public HashPageId getId() {
+		return pid;
+	}
+
+	/**
+	 * Suck up tuples from the source file.
+	 */
+	private Tuple readNextTuple(DataInputStream dis, int slotId) throws NoSuchElementException {
+		// if associated bit is not set, read forward to the next tuple, and
+		// return null.
+		if (!isSlotUsed(slotId)) {
+			for (int i=0; i<td.getSize(); i++) {
+				try {
+					dis.readByte();
+				} catch (IOException e) {
+					throw new NoSuchElementException("error reading empty tuple");
+				}
+			}
+			return null;
+		}
+
+		// read fields in the tuple
+		Tuple t = new Tuple(td);
+		RecordId rid = new RecordId(pid, slotId);
+		t.setRecordId(rid);
+		try {
+			for (int j=0; j<td.numFields(); j++) {
+				Field f = td.getFieldType(j).parse(dis);
+				t.setField(j, f);
+			}
+		} catch (java.text.ParseException e) {
+			e.printStackTrace();
+			throw new NoSuchElementException("parsing error!");
+		}
+
+		return t;
+	}
+
+	/**
+	 * Generates a byte array representing the contents of this page.
+	 * Used to serialize this page to disk.
+	 * <p>
+	 * The invariant here is that it should be possible to pass the byte
+	 * array generated by getPageData to the HashBucketPage constructor and
+	 * have it produce an identical HashBucketPage object.
+	 *
+	 * @see #HashBucketPage
+	 * @return A byte array correspond to the bytes of this page.
+	 */
+	public byte[] getPageData() {
+		int len = BufferPool.getPageSize();
+		ByteArrayOutputStream baos = new ByteArrayOutputStream(len);
+		DataOutputStream dos = new DataOutputStream(baos);
+
+		try {
+			dos.writeLong(lsn);
+			dos.writeInt(depth);
+			dos.writeInt(overflow);
+
+			// create the header of the page
+			dos.write(header);
+
+			// create the tuples
+			for (int i=0; i<tuples.length; i++) {
+				// empty slot
+				if (!isSlotUsed(i)) {
+					dos.write(new byte[td.getSize()]);
+					continue;
+				}
+
+				// non-empty slot
+				for (int j=0; j<td.numFields(); j++)
+					tuples[i].getField(j).serialize(dos);
+			}
+
+			// padding
+			dos.write(new byte[len - dos.size()]);
+			dos.flush();
+		} catch (IOException e) {
+			// this really shouldn't happen
+			e.printStackTrace();
+		}
+
+		return baos.toByteArray();
+	}
+
+	/**
+	 * Static method to generate a byte array corresponding to an empty
+	 * HashBucketPage.
+	 *
+	 * @return The returned ByteArray.
+	 */
+	public static byte[] createEmptyPageData() {
+		int len = BufferPool.getPageSize();
+		return new byte[len]; //all 0
+	}
+
+	/**
+	 * Delete the specified tuple from the page; the corresponding header bit should be updated to reflect
+	 *   that it is no longer stored on any page.
+	 * @throws DbException if this tuple is not on this page, or tuple slot is
+	 *         already empty.
+	 * @param t The tuple to delete
+	 */
+	public void deleteTuple(Tuple t) throws DbException {
+		RecordId rid = t.getRecordId();
+		if (rid == null || !pid.equals(rid.getPageId()))
+			throw new DbException("tuple is not on this page");
+		int slot = rid.getTupleNumber();
+		if (!isSlotUsed(slot))
+			throw new DbException("tuple slot is already empty");
+		markSlotUsed(slot, false);
+		tuples[slot] = null;
+		t.setRecordId(null);
+	}
+
+	/**
+	 * Adds the specified tuple to the page;  the tuple should be updated to reflect
+	 *  that it is now stored on this page.
+	 * @throws DbException if the page is full (no empty slots) or tupledesc
+	 *         is mismatch.
+	 * @param t The tuple to add.
+	 */
+	public void insertTuple(Tuple t) throws DbException {
+		if (!td.equals(t.getTupleDesc()))
+			throw new DbException("tupledesc does not match");
+		for (int i=0; i<numSlots; i++) {
+			if (!isSlotUsed(i)) {
+				markSlotUsed(i, true);
+				tuples[i] = t;
+				t.setRecordId(new RecordId(pid, i));
+				return;
+			}
+		}
+		throw new DbException("page is full");
+	}
+
+	/**
+	 * Marks this page as dirty/not dirty and record that transaction
+	 * that did the dirtying
+	 */
+	public void markDirty(boolean dirty, TransactionId tid) {
+		this.dirty = dirty;
+		if (dirty) this.dirtier = tid;
+	}
+
+	/**
+	 * Returns the tid of the transaction that last dirtied this page, or null if the page is not dirty
+	 */
+	public TransactionId isDirty() {
+		if (this.dirty)
+			return this.dirtier;
+		else
+			return null;
+	}
+
+	public long getLsn() {
+		return lsn;
+	}
+
+	public void setLsn(long lsn) {
+		this.lsn = lsn;
+	}
+
+	/**
+	 * @return the depth of the bucket: the number of low bits of the hash
+	 * that all the keys of the bucket share with the bucket number. Only
+	 * meaningful on the primary page of a bucket.
+	 */
+	public int getDepth() {
+		return depth;
+	}
+
+	/**
+	 * Set the depth of the bucket
+	 * @param depth - the new depth
+	 */
+	public void setDepth(int depth) {
+		this.depth = depth;
+	}
+
+	/**
+	 * @return the id of the next page of the bucket, or null if this is the last one
+	 */
+	public HashPageId getOverflowId() {
+		if (overflow == 0)
+			return null;
+		return new HashPageId(pid.getTableId(), overflow, HashPageId.BUCKET);
+	}
+
+	/**
+	 * Set the id of the next page of the bucket
+	 * @param id - the id of the next page, or null if this is the last one
+	 * @throws DbException if the id is invalid
+	 */
+	public void setOverflowId(HashPageId id) throws DbException {
+		if (id == null) {
+			overflow = 0;
+		}
+		else {
+			if (id.getTableId() != pid.getTableId())
+				throw new DbException("table id mismatch in setOverflowId");
+			if (id.pgcateg() != HashPageId.BUCKET)
+				throw new DbException("overflow must be a bucket page");
+			overflow = id.getPageNumber();
+		}
+	}
+
+	/**
+	 * Returns the number of tuples currently stored on this page
+	 */
+	public int getNumTuples() {
+		return numSlots - getNumEmptySlots();
+	}
+
+	/**
+	 * Returns the number of empty slots on this page.
+	 */
+	public int getNumEmptySlots() {
+		int count=0;
+		for (int i=0; i<numSlots; i++) {
+			if (!isSlotUsed(i))
+				count++;
+		}
+		return count;
+	}
+
+	/**
+	 * Returns true if associated slot on this page is filled.
+	 */
+	public boolean isSlotUsed(int i) {
+		if (i >= numSlots)
+			return false;
+		int headerbit = i % 8;
+		int headerbyte = (i - headerbit) / 8;
+		return (header[headerbyte] & (1 << headerbit)) != 0;
+	}
+
+	/**
+	 * Abstraction to fill or clear a slot on this page.
+	 */
+	private void markSlotUsed(int i, boolean value) {
+		int headerbit = i % 8;
+		int headerbyte = (i - headerbit) / 8;
+		if (value)
+			header[headerbyte] |= 1 << headerbit;
+		else
+			header[headerbyte] &= (0xFF ^ (1 << headerbit));
+	}
+
+	/**
+	 * @return an iterator over all tuples on this page (calling remove on this iterator throws an UnsupportedOperationException)
+	 */
+	public Iterator<Tuple> iterator() {
+		ArrayList<Tuple> used = new ArrayList<Tuple>();
+		for (int i=0; i<numSlots; i++) {
+			if (isSlotUsed(i))
+				used.add(tuples[i]);
+		}
+		return Collections.unmodifiableList(used).iterator();
+	}
+}
@@ -0,0 +1,698 @@
+package simpledb;
+
+import java.io.*;
+import java.util.*;
+
+import simpledb.Predicate.Op;
+
+/**
+ * HashFile is an implementation of a DbFile that stores tuples in a linear
+ * hash table on one of their fields, for equality lookups that read the
+ * pages of a single bucket only. It works closely with HashMetaPage, which
+ * tells the bucket of a hash value and where the bucket is in the file, and
+ * HashBucketPage, the pages of the buckets.
+ * <p>
+ * The file starts with a single bucket and grows one bucket at a time: every
+ * time an insert needs a new overflow page, the bucket at the split pointer
+ * is split in two on the next bit of the hash, and the split pointer moves
+ * on. A bucket records the number of bits of the hash it was split on, so a
+ * lookup that read a meta page older than a split of its bucket can tell
+ * from the bucket alone that it must move on to the new bucket. Lookups
+ * therefore read the last committed meta page without locking it, and only
+ * the transactions that allocate overflow pages lock it. Buckets never shrink:
+ * deletes leave free slots for later inserts.
+ * <p>
+ * Tuples do not keep their RecordId across splits; a HashFile is meant to
+ * hold the entries of a {@link SecondaryIndex}, which are found again by key.
+ *
+ * @see simpledb.HashMetaPage#HashMetaPage
+ * @see simpledb.HashBucketPage#HashBucketPage
+ */
+public class HashFile implements IndexFile {
+
+	/** Fraction of the slots of the buckets filled by {@link #load} */
+	static final double LOAD_FACTOR = 0.75;
+
+	private final File f;
+	private final TupleDesc td;
+	private final int tableid;
+	private final int keyField;
+
+	/**
+	 * Constructs a hash file backed by the specified file. An empty or
+	 * missing file is an empty hash file.
+	 *
+	 * @param f - the file that stores the on-disk backing store for this hash
+	 *            file.
+	 * @param key - the field which the file is hashed on
+	 * @param td - the tuple descriptor of tuples in the file
+	 */
+	public HashFile(File f, int key, TupleDesc td) {
+		this.f = f;
+		this.tableid = f.getAbsoluteFile().hashCode();
+		this.keyField = key;
+		this.td = td;
+	}
+
+	/**
+	 * Returns the File backing this HashFile on disk.
+	 */
+	public File getFile() {
+		return f;
+	}
+
+	/**
+	 * Returns an ID uniquely identifying this HashFile. Implementation note:
+	 * you will need to generate this tableid somewhere and ensure that each
+	 * HashFile has a "unique id," and that you always return the same value for
+	 * a particular HashFile. We suggest hashing the absolute file name of the
+	 * file underlying the HashFile, i.e. f.getAbsoluteFile().hashCode().
+	 *
+	 * @return an ID uniquely identifying this HashFile.
+	 */
+	public int getId() {
+		return tableid;
+	}
+
+	/**
+	 * Returns the tuple descriptor of the tuples in this HashFile
+	 *
+	 * @return TupleDesc of this HashFile.
+	 */
+	public TupleDesc getTupleDesc() {
+		return td;
+	}
+
+	/**
+	 * Returns the index of the field that this hash file is hashed on
+	 */
+	public int keyField() {
+		return keyField;
+	}
+
+	/**
+	 * Hash files only look tuples up by equality
+	 */
+	public boolean supports(Op op) {
+		return op == Op.EQUALS;
+	}
+
+	/**
+	 * Read a page from the file on disk. Pages past the end of the file read
+	 * as zeroes, which is an empty bucket page or the meta page of an empty
+	 * file. This should not be called directly but should be called from the
+	 * BufferPool via getPage()
+	 *
+	 * @param pid - the id of the page to read from disk
+	 * @return the page constructed from the contents on disk
+	 */
+	public Page readPage(PageId pid) {
+		HashPageId id = (HashPageId) pid;
+		byte[] data = new byte[BufferPool.getPageSize()];
+		try {
+			long offset = (long) id.getPageNumber() * BufferPool.getPageSize();
+			if(offset < f.length()) {
+				RandomAccessFile raf = new RandomAccessFile(f, "r");
+				try {
+					raf.seek(offset);
+					raf.readFully(data);
+				} finally {
+					raf.close();
+				}
+			}
+			Debug.log(1, "HashFile.readPage: read page %d", id.getPageNumber());
+			if(id.pgcateg() == HashPageId.META) {
+				return new HashMetaPage(id, data);
+			}
+			return new HashBucketPage(id, data);
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * Write a page to disk.  This should not be called directly but should
+	 * be called from the BufferPool when pages are flushed to disk
+	 *
+	 * @param page - the page to write to disk
+	 */
+	public void writePage(Page page) throws IOException {
+		RandomAccessFile rf = new RandomAccessFile(f, "rw");
+		try {
+			rf.seek((long) page.getId().getPageNumber() * BufferPool.getPageSize());
+			rf.write(page.getPageData());
+		} finally {
+			rf.close();
+		}
+	}
+
+	/**
+	 * Write a batch of pages to disk in file order, merging pages that are adjacent
+	 * on disk into single writes, and force the file once at the end.
+	 *
+	 * @param pages - the pages to write to disk
+	 */
+	public void writePages(List<Page> pages) throws IOException {
+		TreeMap<Long, byte[]> images = new TreeMap<Long, byte[]>();
+		for(Page page : pages) {
+			images.put((long) page.getId().getPageNumber() * BufferPool.getPageSize(), page.getPageData());
+		}
+		PageWriter.write(f, images);
+	}
+
+	/**
+	 * Returns the number of pages of this HashFile written to disk. The file
+	 * may use more pages than that, see {@link HashMetaPage#getNumPages}.
+	 */
+	public int numPages() {
+		return (int) (f.length() / BufferPool.getPageSize());
+	}
+
+	/**
+	 * @return the hash value of a key, a non-negative int whose low bits
+	 *         tell the bucket of the key
+	 */
+	static int hash(Field key) {
+		// mix the bits of the hash code, as the low bits of an IntField's are
+		// those of its value
+		int h = key.hashCode();
+		h ^= h >>> 16;
+		h *= 0x85ebca6b;
+		h ^= h >>> 13;
+		h *= 0xc2b2ae35;
+		h ^= h >>> 16;
+		return h & 0x7fffffff;
+	}
+
+	/**
+	 * @return the id of the primary page of a bucket
+	 */
+	private HashPageId bucketId(HashMetaPage meta, int bucket) {
+		return new HashPageId(tableid, meta.getPageNumber(bucket), HashPageId.BUCKET);
+	}
+
+	/**
+	 * Get the meta page to find a bucket with. This is the last committed
+	 * meta page, read without locking it, unless the transaction reads a
+	 * snapshot or locked the meta page already.
+	 *
+	 * @param tid - the transaction id
+	 * @param dirtypages - the list of dirty pages which should be updated with all new dirty pages
+	 * @return the meta page
+	 */
+	private HashMetaPage getMetaPage(TransactionId tid, HashMap<PageId, Page> dirtypages)
+			throws DbException, TransactionAbortedException {
+		HashPageId pid = HashMetaPage.getId(tableid);
+		BufferPool bp = Database.getBufferPool();
+		if(dirtypages.containsKey(pid) || bp.isSnapshot(tid) || bp.holdsLock(tid, pid)) {
+			return (HashMetaPage) getPage(tid, dirtypages, pid, Permissions.READ_ONLY);
+		}
+		return (HashMetaPage) bp.getCommittedPage(pid);
+	}
+
+	/**
+	 * Find and lock the primary page of the bucket of a hash value. The
+	 * bucket is first looked up in the meta page; if the bucket turns out to
+	 * have been split on more bits of the hash than the meta page used, the
+	 * key may have moved to the bucket created by one of the splits, which is
+	 * looked up in turn.
+	 *
+	 * @param tid - the transaction id
+	 * @param dirtypages - the list of dirty pages which should be updated with all new dirty pages
+	 * @param h - the hash value, see {@link #hash}
+	 * @param perm - the permissions with which to lock the bucket page
+	 * @return the primary page of the bucket
+	 */
+	HashBucketPage findBucket(TransactionId tid, HashMap<PageId, Page> dirtypages, int h, Permissions perm)
+			throws DbException, TransactionAbortedException {
+		HashMetaPage meta = getMetaPage(tid, dirtypages);
+		int bucket = meta.getBucket(h);
+		while(true) {
+			HashBucketPage page = (HashBucketPage) getPage(tid, dirtypages, bucketId(meta, bucket), perm);
+			int owner = h & ((1 << page.getDepth()) - 1);
+			if(owner == bucket) {
+				return page;
+			}
+			// the bucket was split on the lowest bit it differs from the owner in,
+			// and the meta page now knows where the new bucket is
+			bucket |= Integer.lowestOneBit(bucket ^ owner);
+			meta = getMetaPage(tid, dirtypages);
+		}
+	}
+
+	/**
+	 * Method to encapsulate the process of locking/fetching a page.  First the method checks the local
+	 * cache ("dirtypages"), and if it can't find the requested page there, it fetches it from the buffer pool.
+	 * It also adds pages to the dirtypages cache if they are fetched with read-write permission, since
+	 * presumably they will soon be dirtied by this transaction. Those pages are pinned until
+	 * unpinPages() is called.
+	 *
+	 * @param tid - the transaction id
+	 * @param dirtypages - the list of dirty pages which should be updated with all new dirty pages
+	 * @param pid - the id of the requested page
+	 * @param perm - the requested permissions on the page
+	 * @return the requested page
+	 */
+	Page getPage(TransactionId tid, HashMap<PageId, Page> dirtypages, HashPageId pid, Permissions perm)
+			throws DbException, TransactionAbortedException {
+		if(dirtypages.containsKey(pid)) {
+			return dirtypages.get(pid);
+		}
+		if(perm == Permissions.READ_WRITE) {
+			Page p = Database.getBufferPool().pinPage(tid, pid, perm);
+			dirtypages.put(pid, p);
+			return p;
+		}
+		return Database.getBufferPool().getPage(tid, pid, perm);
+	}
+
+	/**
+	 * Release the pins taken by getPage() on all the pages in the local cache.
+	 */
+	private void unpinPages(TransactionId tid, HashMap<PageId, Page> dirtypages) {
+		for(PageId pid : dirtypages.keySet()) {
+			Database.getBufferPool().unpinPage(tid, pid);
+		}
+	}
+
+	/**
+	 * Mark the pages in the local cache dirty when an operation fails part
+	 * way, so that aborting the transaction rolls them back, as
+	 * BTreeFile does.
+	 */
+	private void abandonPages(TransactionId tid, HashMap<PageId, Page> dirtypages) {
+		for(Page p : dirtypages.values()) {
+			p.markDirty(true, tid);
+		}
+	}
+
+	/**
+	 * Get an empty page to add to the chain of a bucket, from the free list
+	 * or at the end of the file.
+	 *
+	 * @param tid - the transaction id
+	 * @param dirtypages - the list of dirty pages which should be updated with all new dirty pages
+	 * @param meta - the meta page, locked with read-write permission
+	 * @return the new page, locked with read-write permission
+	 */
+	private HashBucketPage getEmptyPage(TransactionId tid, HashMap<PageId, Page> dirtypages, HashMetaPage meta)
+			throws DbException, TransactionAbortedException {
+		if(meta.getFreeHead() != 0) {
+			HashBucketPage page = (HashBucketPage) getPage(tid, dirtypages,
+					new HashPageId(tableid, meta.getFreeHead(), HashPageId.BUCKET), Permissions.READ_WRITE);
+			HashPageId next = page.getOverflowId();
+			meta.setFreeHead(next == null ? 0 : next.getPageNumber());
+			page.setOverflowId(null);
+			return page;
+		}
+		return (HashBucketPage) getPage(tid, dirtypages,
+				new HashPageId(tableid, meta.newOverflowPage(), HashPageId.BUCKET), Permissions.READ_WRITE);
+	}
+
+	/**
+	 * Insert a tuple into this HashFile, in the first page of its bucket
+	 * with a free slot. If the bucket is full, a new overflow page is
+	 * appended to it, and the bucket at the split pointer is split.
+	 *
+	 * @param tid - the transaction id
+	 * @param t - the tuple to insert
+	 * @return a list of all pages that were dirtied by this operation
+	 * @see #splitBucket(TransactionId, HashMap, HashMetaPage)
+	 */
+	public ArrayList<Page> insertTuple(TransactionId tid, Tuple t)
+			throws DbException, IOException, TransactionAbortedException {
+		HashMap<PageId, Page> dirtypages = new HashMap<PageId, Page>();
+		try {
+			HashBucketPage page = findBucket(tid, dirtypages, hash(t.getField(keyField)), Permissions.READ_WRITE);
+			while(page.getNumEmptySlots() == 0 && page.getOverflowId() != null) {
+				page = (HashBucketPage) getPage(tid, dirtypages, page.getOverflowId(), Permissions.READ_WRITE);
+			}
+			if(page.getNumEmptySlots() > 0) {
+				page.insertTuple(t);
+			}
+			else {
+				HashMetaPage meta = (HashMetaPage) getPage(tid, dirtypages, HashMetaPage.getId(tableid),
+						Permissions.READ_WRITE);
+				HashBucketPage overflow = getEmptyPage(tid, dirtypages, meta);
+				page.setOverflowId(overflow.getId());
+				overflow.insertTuple(t);
+				splitBucket(tid, dirtypages, meta);
+			}
+
+			ArrayList<Page> dirtyPagesArr = new ArrayList<Page>();
+			dirtyPagesArr.addAll(dirtypages.values());
+			return dirtyPagesArr;
+		} catch(TransactionAbortedException | DbException e) {
+			abandonPages(tid, dirtypages);
+			throw e;
+		} finally {
+			unpinPages(tid, dirtypages);
+		}
+	}
+
+	/**
+	 * Split the bucket at the split pointer, moving the tuples whose hash has
+	 * the next bit set to a new bucket, and move the split pointer on. The
+	 * tuples left in the bucket are then packed into as few pages as
+	 * possible, and the overflow pages emptied are put on the free list.
+	 *
+	 * @param tid - the transaction id
+	 * @param dirtypages - the list of dirty pages which should be updated with all new dirty pages
+	 * @param meta - the meta page, locked with read-write permission
+	 */
+	private void splitBucket(TransactionId tid, HashMap<PageId, Page> dirtypages, HashMetaPage meta)
+			throws DbException, TransactionAbortedException {
+		int level = meta.getLevel();
+		int bucket = meta.getNext();
+		HashBucketPage old = (HashBucketPage) getPage(tid, dirtypages, bucketId(meta, bucket),
+				Permissions.READ_WRITE);
+		meta.addBucket();
+		HashBucketPage created = (HashBucketPage) getPage(tid, dirtypages, bucketId(meta, bucket + (1 << level)),
+				Permissions.READ_WRITE);
+		if(created.getNumTuples() > 0 || created.getOverflowId() != null) {
+			throw new DbException("page " + created.getId().getPageNumber() + " of a new bucket is in use");
+		}
+		old.setDepth(level + 1);
+		created.setDepth(level + 1);
+
+		ArrayList<HashBucketPage> chain = new ArrayList<HashBucketPage>();
+		for(HashBucketPage p = old; p != null; ) {
+			chain.add(p);
+			HashPageId next = p.getOverflowId();
+			p = next == null ? null : (HashBucketPage) getPage(tid, dirtypages, next, Permissions.READ_WRITE);
+		}
+
+		HashBucketPage target = created;
+		for(HashBucketPage p : chain) {
+			Iterator<Tuple> it = p.iterator();
+			while(it.hasNext()) {
+				Tuple t = it.next();
+				if((hash(t.getField(keyField)) & (1 << level)) == 0) {
+					continue;
+				}
+				p.deleteTuple(t);
+				if(target.getNumEmptySlots() == 0) {
+					HashBucketPage next = getEmptyPage(tid, dirtypages, meta);
+					target.setOverflowId(next.getId());
+					target = next;
+				}
+				target.insertTuple(t);
+			}
+		}
+
+		// fill the free slots of the first pages with the tuples of the last ones
+		int last = chain.size() - 1;
+		for(int i = 0; i < last; i++) {
+			HashBucketPage p = chain.get(i);
+			int free = p.getNumEmptySlots();
+			Iterator<Tuple> it = chain.get(last).iterator();
+			while(free > 0 && i < last) {
+				if(!it.hasNext()) {
+					last--;
+					it = chain.get(last).iterator();
+					continue;
+				}
+				Tuple t = it.next();
+				chain.get(last).deleteTuple(t);
+				p.insertTuple(t);
+				free--;
+			}
+		}
+		while(last > 0 && chain.get(last).getNumTuples() == 0) {
+			last--;
+		}
+		chain.get(last).setOverflowId(null);
+		for(int i = last + 1; i < chain.size(); i++) {
+			HashBucketPage p = chain.get(i);
+			p.setOverflowId(meta.getFreeHead() == 0 ? null
+					: new HashPageId(tableid, meta.getFreeHead(), HashPageId.BUCKET));
+			meta.setFreeHead(p.getId().getPageNumber());
+		}
+	}
+
+	/**
+	 * Delete a tuple from this HashFile.
+	 *
+	 * @param tid - the transaction id
+	 * @param t - the tuple to delete, as read from the file
+	 * @return a list of all pages that were dirtied by this operation
+	 */
+	public ArrayList<Page> deleteTuple(TransactionId tid, Tuple t)
+			throws DbException, IOException, TransactionAbortedException {
+		RecordId rid = t.getRecordId();
+		if(rid == null) {
+			throw new DbException("tried to delete tuple with null rid");
+		}
+		HashMap<PageId, Page> dirtypages = new HashMap<PageId, Page>();
+		try {
+			HashPageId pid = new HashPageId(tableid, rid.getPageId().getPageNumber(), HashPageId.BUCKET);
+			HashBucketPage page = (HashBucketPage) getPage(tid, dirtypages, pid, Permissions.READ_WRITE);
+			page.deleteTuple(t);
+
+			ArrayList<Page> dirtyPagesArr = new ArrayList<Page>();
+			dirtyPagesArr.addAll(dirtypages.values());
+			return dirtyPagesArr;
+		} catch(TransactionAbortedException | DbException e) {
+			abandonPages(tid, dirtypages);
+			throw e;
+		} finally {
+			unpinPages(tid, dirtypages);
+		}
+	}
+
+	/**
+	 * Fill this empty HashFile with tuples, sized so that the buckets are
+	 * {@link #LOAD_FACTOR} full. The pages are built in memory and written
+	 * straight to the file, without going through the buffer pool or the log,
+	 * as {@link BTreeBulkLoader} does. The file must be in the catalog.
+	 *
+	 * @param tuples - the tuples to load, read twice
+	 * @throws DbException if the file is not empty
+	 */
+	public void load(DbFileIterator tuples) throws DbException, IOException, TransactionAbortedException {
+		if(f.length() > 0) {
+			throw new DbException("can only load an empty hash file");
+		}
+		tuples.open();
+		try {
+			long n = 0;
+			while(tuples.hasNext()) {
+				tuples.next();
+				n++;
+			}
+			int level = 0;
+			while(level < HashMetaPage.GROUPS - 2
+					&& (1L << level) * HashBucketPage.getNumSlots(td) * LOAD_FACTOR < n) {
+				level++;
+			}
+
+			HashMetaPage meta = new HashMetaPage(HashMetaPage.getId(tableid), new byte[BufferPool.getPageSize()]);
+			meta.setLevel(level);
+			// the last page of each bucket
+			HashBucketPage[] buckets = new HashBucketPage[1 << level];
+			ArrayList<Page> pages = new ArrayList<Page>();
+			pages.add(meta);
+			for(int b = 0; b < buckets.length; b++) {
+				buckets[b] = new HashBucketPage(bucketId(meta, b), HashBucketPage.createEmptyPageData());
+				buckets[b].setDepth(level);
+				pages.add(buckets[b]);
+			}
+
+			tuples.rewind();
+			while(tuples.hasNext()) {
+				Tuple t = tuples.next();
+				int b = meta.getBucket(hash(t.getField(keyField)));
+				if(buckets[b].getNumEmptySlots() == 0) {
+					HashBucketPage next = new HashBucketPage(
+							new HashPageId(tableid, meta.newOverflowPage(), HashPageId.BUCKET),
+							HashBucketPage.createEmptyPageData());
+					buckets[b].setOverflowId(next.getId());
+					buckets[b] = next;
+					pages.add(next);
+				}
+				buckets[b].insertTuple(t);
+			}
+			writePages(pages);
+		} finally {
+			tuples.close();
+		}
+	}
+
+	/**
+	 * Get the tuples of the file whose key equals the value of an index
+	 * predicate, on behalf of the specified transaction. This method will
+	 * acquire a read lock on the pages of the bucket of the value, and may
+	 * block until the lock can be acquired.
+	 *
+	 * @param tid - the transaction id
+	 * @param ipred - the index predicate, with the EQUALS operator
+	 * @return an iterator for the matching tuples, in no particular order
+	 * @throws IllegalArgumentException if the predicate is not an equality
+	 */
+	public DbFileIterator indexIterator(TransactionId tid, IndexPredicate ipred) {
+		if(!supports(ipred.getOp()) || ipred.getPrefix() != null) {
+			throw new IllegalArgumentException("hash files only look up keys equal to a value");
+		}
+		return new HashSearchIterator(this, tid, ipred.getField());
+	}
+
+	/**
+	 * Get an iterator for all tuples in this hash file, in no particular
+	 * order. This method will acquire a read lock on every page of the file,
+	 * and may block until the lock can be acquired.
+	 *
+	 * @param tid - the transaction id
+	 * @return an iterator for all the tuples in this file
+	 */
+	public DbFileIterator iterator(TransactionId tid) {
+		return new HashFileIterator(this, tid);
+	}
+
+}
+
+/**
+ * Helper class that implements the Java Iterator for tuples on a HashFile
+ */
+class HashFileIterator extends AbstractDbFileIterator {
+
+	Iterator<Tuple> it = null;
+	int pgNo;
+	int numPages;
+
+	TransactionId tid;
+	HashFile f;
+
+	/**
+	 * Constructor for this iterator
+	 * @param f - the HashFile containing the tuples
+	 * @param tid - the transaction id
+	 */
+	public HashFileIterator(HashFile f, TransactionId tid) {
+		this.f = f;
+		this.tid = tid;
+	}
+
+	/**
+	 * Open this iterator by locking the meta page, which keeps the file from
+	 * growing during the scan
+	 */
+	public void open() throws DbException, TransactionAbortedException {
+		HashMetaPage meta = (HashMetaPage) Database.getBufferPool().getPage(tid,
+				HashMetaPage.getId(f.getId()), Permissions.READ_ONLY);
+		numPages = meta.getNumPages();
+		pgNo = 0;
+		it = Collections.<Tuple>emptyList().iterator();
+	}
+
+	/**
+	 * Read the next tuple from the current page, or from the next pages of
+	 * the file in page order
+	 */
+	@Override
+	protected Tuple readNext() throws TransactionAbortedException, DbException {
+		while(it != null) {
+			if(it.hasNext()) {
+				return it.next();
+			}
+			if(++pgNo >= numPages) {
+				return null;
+			}
+			HashBucketPage page = (HashBucketPage) Database.getBufferPool().getPage(tid,
+					new HashPageId(f.getId(), pgNo, HashPageId.BUCKET), Permissions.READ_ONLY);
+			it = page.iterator();
+		}
+		return null;
+	}
+
+	/**
+	 * rewind this iterator back to the beginning of the tuples
+	 */
+	public void rewind() throws DbException, TransactionAbortedException {
+		close();
+		open();
+	}
+
+	/**
+	 * close the iterator
+	 */
+	public void close() {
+		super.close();
+		it = null;
+	}
+}
+
+/**
+ * Helper class that implements the DbFileIterator for equality lookups on a
+ * HashFile
+ */
+class HashSearchIterator extends AbstractDbFileIterator {
+
+	Iterator<Tuple> it = null;
+	HashBucketPage curp = null;
+
+	TransactionId tid;
+	HashFile f;
+	Field key;
+
+	/**
+	 * Constructor for this iterator
+	 * @param f - the HashFile containing the tuples
+	 * @param tid - the transaction id
+	 * @param key - the key to look up
+	 */
+	public HashSearchIterator(HashFile f, TransactionId tid, Field key) {
+		this.f = f;
+		this.tid = tid;
+		this.key = key;
+	}
+
+	/**
+	 * Open this iterator on the primary page of the bucket of the key
+	 */
+	public void open() throws DbException, TransactionAbortedException {
+		curp = f.findBucket(tid, new HashMap<PageId, Page>(), HashFile.hash(key), Permissions.READ_ONLY);
+		it = curp.iterator();
+	}
+
+	/**
+	 * Read the next tuple with the key either from the current page or from
+	 * the next pages of the bucket
+	 *
+	 * @return the next tuple with the key, or null if none exists
+	 */
+	@Override
+	protected Tuple readNext() throws TransactionAbortedException, DbException {
+		while(it != null) {
+			while(it.hasNext()) {
+				Tuple t = it.next();
+				if(t.getField(f.keyField()).compare(Op.EQUALS, key)) {
+					return t;
+				}
+			}
+			HashPageId next = curp.getOverflowId();
+			if(next == null) {
+				return null;
+			}
+			curp = (HashBucketPage) Database.getBufferPool().getPage(tid, next, Permissions.READ_ONLY);
+			it = curp.iterator();
+		}
+		return null;
+	}
+
+	/**
+	 * rewind this iterator back to the beginning of the tuples
+	 */
+	public void rewind() throws DbException, TransactionAbortedException {
+		close();
+		open();
+	}
+
+	/**
+	 * close the iterator
+	 */
+	public void close() {
+		super.close();
+		it = null;
+		curp = null;
+	}
+}
@@ -0,0 +1,265 @@
+package simpledb;
+
+import java.io.*;
+
+/**
+ * HashMetaPage is the first page of a HashFile. It holds the state of the
+ * linear hashing scheme: the level and split pointer that tell how many
+ * buckets the file has and which bucket a hash value goes to, and the
+ * bookkeeping needed to find the page of a bucket and to allocate overflow
+ * pages.
+ * <p>
+ * The primary pages of the buckets are allocated in groups that double in
+ * size: group 0 holds bucket 0, and group g > 0 holds buckets 2^(g-1) to
+ * 2^g - 1. A group is reserved as a whole when its first bucket is created,
+ * right after the overflow pages allocated so far, so the page of a bucket
+ * is its number plus the overflow pages allocated before its group (the
+ * "spares" of the group). A page of all zeroes is the meta page of an empty
+ * file with a single bucket.
+ *
+ * @see HashFile
+ * @see BufferPool
+ */
+public class HashMetaPage implements Page {
+	private volatile boolean dirty = false;
+	private volatile TransactionId dirtier = null;
+
+	/** Number of groups of buckets a file can have */
+	static final int GROUPS = 32;
+
+	final HashPageId pid;
+
+	private long lsn;
+	private int level; // buckets below the split pointer use level + 1 bits of the hash
+	private int next; // the split pointer: the next bucket to split
+	private int overflowPages; // overflow pages allocated at the end of the file
+	private int freeHead; // first page of the list of free overflow pages, or 0
+	private final int[] spares = new int[GROUPS];
+
+	byte[] oldData;
+	private final Object oldDataLock = new Object();
+
+	/**
+	 * Create a HashMetaPage from a set of bytes of data read from disk.
+	 * The format of a HashMetaPage is the page LSN, the level, split pointer,
+	 * number of overflow pages and head of the free list, then the spares of
+	 * each group of buckets.
+	 * @see BufferPool#getPageSize()
+	 */
+	public HashMetaPage(HashPageId id, byte[] data) throws IOException {
+		this.pid = id;
+		DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data));
+		lsn = dis.readLong();
+		level = dis.readInt();
+		next = dis.readInt();
+		overflowPages = dis.readInt();
+		freeHead = dis.readInt();
+		for (int i=0; i<GROUPS; i++)
+			spares[i] = dis.readInt();
+		dis.close();
+
+		setBeforeImage();
+	}
+
+	/**
+	 * @return the id of the meta page of a hash file
+	 */
+	public static HashPageId getId(int tableid) {
+		return new HashPageId(tableid, 0, HashPageId.META);
+	}
+
+	/** Return a view of this page before it was modified
+        -- used by recovery */
+	public HashMetaPage getBeforeImage(){
+		try {
+			byte[] oldDataRef = null;
+			synchronized(oldDataLock)
+			{
+				oldDataRef = oldData;
+			}
+			return new HashMetaPage(pid,oldDataRef);
+		} catch (IOException e) {
+			e.printStackTrace();
+			//should never happen -- we parsed it OK before!
+			System.exit(1);
+		}
+		return null;
+	}
+
+	public void setBeforeImage() {
+		synchronized(oldDataLock)
+		{
+			oldData = getPageData().clone();
+		}
+	}
+
+	/**
+	 * @return the PageId associated with this page.
+	 */
+	public HashPageId getId() {
+		return pid;
+	}
+
+	/**
+	 * Generates a byte array representing the contents of this page.
+	 * Used to serialize this page to disk.
+	 *
+	 * @see #HashMetaPage
+	 * @return A byte array correspond to the bytes of this page.
+	 */
+	public byte[] getPageData() {
+		int len = BufferPool.getPageSize();
+		ByteArrayOutputStream baos = new ByteArrayOutputStream(len);
+		DataOutputStream dos = new DataOutputStream(baos);
+		try {
+			dos.writeLong(lsn);
+			dos.writeInt(level);
+			dos.writeInt(next);
+			dos.writeInt(overflowPages);
+			dos.writeInt(freeHead);
+			for (int i=0; i<GROUPS; i++)
+				dos.writeInt(spares[i]);
+			dos.write(new byte[len - dos.size()]);
+			dos.flush();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		return baos.toByteArray();
+	}
+
+	/**
+	 * Marks this page as dirty/not dirty and record that transaction
+	 * that did the dirtying
+	 */
+	public void markDirty(boolean dirty, TransactionId tid) {
+		this.dirty = dirty;
+		if (dirty) this.dirtier = tid;
+	}
+
+	/**
+	 * Returns the tid of the transaction that last dirtied this page, or null if the page is not dirty
+	 */
+	public TransactionId isDirty() {
+		if (this.dirty)
+			return this.dirtier;
+		else
+			return null;
+	}
+
+	public long getLsn() {
+		return lsn;
+	}
+
+	public void setLsn(long lsn) {
+		this.lsn = lsn;
+	}
+
+	/**
+	 * @return the level of the file: the number of bits of the hash used by
+	 * the buckets at or past the split pointer
+	 */
+	public int getLevel() {
+		return level;
+	}
+
+	/**
+	 * @return the split pointer: the next bucket to split
+	 */
+	public int getNext() {
+		return next;
+	}
+
+	/**
+	 * @return the number of buckets of the file
+	 */
+	public int getNumBuckets() {
+		return (1 << level) + next;
+	}
+
+	/**
+	 * @param h - a hash value, as computed by {@link HashFile#hash}
+	 * @return the bucket of the hash value
+	 */
+	public int getBucket(int h) {
+		int b = h & ((1 << level) - 1);
+		if (b < next)
+			b = h & ((1 << (level + 1)) - 1);
+		return b;
+	}
+
+	/**
+	 * @return the group of buckets a bucket belongs to
+	 */
+	static int group(int bucket) {
+		return 32 - Integer.numberOfLeadingZeros(bucket);
+	}
+
+	/**
+	 * @return the page number of the primary page of a bucket
+	 */
+	public int getPageNumber(int bucket) {
+		return 1 + bucket + spares[group(bucket)];
+	}
+
+	/**
+	 * @return the number of pages of the file: the meta page, the primary
+	 * pages of the groups of buckets reserved so far, and the overflow pages
+	 */
+	public int getNumPages() {
+		return 1 + (1 << group(getNumBuckets() - 1)) + overflowPages;
+	}
+
+	/**
+	 * Add a bucket to the file, by moving the split pointer past the bucket
+	 * about to be split. The new bucket is numbered getNext() + 2^getLevel(),
+	 * as read before the call. Reserves the pages of a new group of buckets
+	 * when the new bucket is the first of its group.
+	 */
+	public void addBucket() {
+		if (next == 0 && level + 1 < GROUPS)
+			spares[level + 1] = overflowPages;
+		next++;
+		if (next == 1 << level) {
+			level++;
+			next = 0;
+		}
+	}
+
+	/**
+	 * Set the number of buckets of a file being built, before any page is
+	 * allocated.
+	 *
+	 * @param level - the level of the file, which then has 2^level buckets
+	 */
+	void setLevel(int level) {
+		this.level = level;
+		this.next = 0;
+	}
+
+	/**
+	 * Allocate a new overflow page at the end of the file.
+	 *
+	 * @return the page number of the new page
+	 */
+	public int newOverflowPage() {
+		int pgNo = getNumPages();
+		overflowPages++;
+		return pgNo;
+	}
+
+	/**
+	 * @return the page number of the first free overflow page, or 0 if there is none
+	 */
+	public int getFreeHead() {
+		return freeHead;
+	}
+
+	/**
+	 * Set the first page of the list of free overflow pages.
+	 *
+	 * @param pgNo - the page number, or 0 to empty the list
+	 */
+	public void setFreeHead(int pgNo) {
+		freeHead = pgNo;
+	}
+}
@@ -17,7 +17,6 @@ public class HeapFile implements DbFile {
     private File file;
     private TupleDesc tupleDesc;
     private int id;
-    private int nPages;
 
     /**
         * Constructs a heap file backed by the specified file.
@@ -30,7 +29,6 @@ public class HeapFile implements DbFile {
         this.file = f;
         this.tupleDesc = td;
         this.id = f.getAbsoluteFile().hashCode();
-        this.nPages = (int) f.length() / BufferPool.getPageSize();
     }
 
     /**
@@ -66,7 +64,7 @@ public class HeapFile implements DbFile {
 
     // see DbFile.java for javadocs
     public Page readPage(PageId pid) throws IllegalArgumentException {
-        if(pid.getPageNumber() >= this.nPages){
+        if(pid.getPageNumber() >= this.numPages()){
             throw new IllegalArgumentException("Page does not exist");
         }
         int pageOffset = pid.getPageNumber() * BufferPool.getPageSize();
@@ -88,31 +86,79 @@ public class HeapFile implements DbFile {
 
     // see DbFile.java for javadocs
     public void writePage(Page page) throws IOException {
-        // some code goes here
-        // not necessary for lab1
+        int pgNo = page.getId().getPageNumber();
+        RandomAccessFile randomAccessFile = new RandomAccessFile(this.file, "rw");
+        try{
+            randomAccessFile.seek((long) pgNo * BufferPool.getPageSize());
+            randomAccessFile.write(page.getPageData());
+        }finally{
+            randomAccessFile.close();
+        }
+    }
+
+    // see DbFile.java for javadocs
+    public void writePages(List<Page> pages) throws IOException {
+        TreeMap<Long, byte[]> images = new TreeMap<Long, byte[]>();
+        for(Page page : pages){
+            images.put((long) page.getId().getPageNumber() * BufferPool.getPageSize(), page.getPageData());
+        }
+        PageWriter.write(this.file, images);
     }
 
     /**
         * Returns the number of pages in this HeapFile.
         */
     public int numPages() {
-        return this.nPages;
+        return (int) (this.file.length() / BufferPool.getPageSize());
     }
 
     // see DbFile.java for javadocs
     public ArrayList<Page> insertTuple(TransactionId tid, Tuple t)
             throws DbException, IOException, TransactionAbortedException {
-        // some code goes here
-        return null;
-        // not necessary for lab1
+        ArrayList<Page> modified = new ArrayList<Page>();
+        BufferPool buffer = Database.getBufferPool();
+        for(int i = 0; i < this.numPages(); i++){
+            HeapPageId pid = new HeapPageId(this.id, i);
+            // look for free space under a shared lock, and give the lock
+            // back right away if the page is full and we did not hold it
+            boolean held = buffer.holdsLock(tid, pid);
+            HeapPage page = (HeapPage) buffer.getPage(tid, pid, Permissions.READ_ONLY);
+            if(page.getNumEmptySlots() > 0){
+                page = (HeapPage) buffer.getPage(tid, pid, Permissions.READ_WRITE);
+                if(page.getNumEmptySlots() > 0){
+                    page.insertTuple(t);
+                    modified.add(page);
+                    return modified;
+                }
+            }
+            if(!held){
+                buffer.releasePage(tid, pid);
+            }
+        }
+        // every page is full: append an empty page and insert there
+        HeapPageId pid;
+        synchronized(this){
+            pid = new HeapPageId(this.id, this.numPages());
+            this.writePage(new HeapPage(pid, HeapPage.createEmptyPageData()));
+        }
+        HeapPage page = (HeapPage) buffer.getPage(tid, pid, Permissions.READ_WRITE);
+        page.insertTuple(t);
+        modified.add(page);
+        return modified;
     }
 
     // see DbFile.java for javadocs
     public ArrayList<Page> deleteTuple(TransactionId tid, Tuple t) throws DbException,
             TransactionAbortedException {
-        // some code goes here
-        return null;
-        // not necessary for lab1
+        RecordId rid = t.getRecordId();
+        if(rid == null || rid.getPageId().getTableId() != this.id){
+            throw new DbException("Tuple is not a member of this file");
+        }
+        HeapPage page = (HeapPage) Database.getBufferPool().getPage(tid, rid.getPageId(), Permissions.READ_WRITE);
+        page.deleteTuple(t);
+        ArrayList<Page> modified = new ArrayList<Page>();
+        modified.add(page);
+        return modified;
     }
 
     // see DbFile.java for javadocs
@@ -8,6 +8,7 @@ public class HeapFileIterator implements DbFileIterator {
     private TransactionId tid;
     private int nextPageNumber;
     private Iterator<Tuple> iterator;
+    private HeapPageId pinnedPid;
     private BufferPool buffer;
     public HeapFileIterator(HeapFile hf, TransactionId tid){
         this.hf = hf;
@@ -19,6 +20,11 @@ public class HeapFileIterator implements DbFileIterator {
         if(this.hf.numPages() == 0){
             throw new DbException("No pages");
         }
+        // a scan that would have its page locks escalated anyway takes a
+        // single table lock up front
+        if(this.hf.numPages() > this.buffer.getLockEscalationThreshold()){
+            this.buffer.lockTable(this.tid, this.hf.getId(), Permissions.READ_ONLY);
+        }
         this.nextPageNumber = 0;
         this.nextIterator();
     }
@@ -39,16 +45,26 @@ public class HeapFileIterator implements DbFileIterator {
         this.open();
     }
     public void close() {
+        this.unpin();
         this.nextPageNumber = 0;
         this.iterator = null;
     }
-    private void nextIterator() {
-        HeapPageId pid = new HeapPageId(this.hf.getId(), this.nextPageNumber++);
-        try{
-            HeapPage hp = (HeapPage) this.buffer.getPage(this.tid, pid, null);
-            this.iterator = hp.iterator();
-        }catch(TransactionAbortedException exception){
-        }catch(DbException exception){
+    // the page being iterated is pinned so that it stays in the buffer pool
+    // while its tuples are handed out
+    private void unpin() {
+        if(this.pinnedPid != null){
+            this.buffer.unpinPage(this.tid, this.pinnedPid);
+            this.pinnedPid = null;
         }
     }
+    // a scan chosen as a deadlock victim must see its abort, rather than end
+    // early on the tuples of the page it was on
+    private void nextIterator() throws DbException, TransactionAbortedException {
+        HeapPageId pid = new HeapPageId(this.hf.getId(), this.nextPageNumber++);
+        this.unpin();
+        this.iterator = null;
+        HeapPage hp = (HeapPage) this.buffer.pinPage(this.tid, pid, Permissions.READ_ONLY);
+        this.pinnedPid = pid;
+        this.iterator = hp.iterator();
+    }
 }
@@ -19,15 +19,22 @@ public class HeapPage implements Page {
     final Tuple tuples[];
     final int numSlots;
 
+    /** Bytes the page LSN takes at the start of the page */
+    static final int LSN_SIZE = 8;
+    private long lsn;
+
     byte[] oldData;
     private final Byte oldDataLock=new Byte((byte)0);
 
+    private volatile TransactionId dirtier;
+
     /**
      * Create a HeapPage from a set of bytes of data read from disk.
-     * The format of a HeapPage is a set of header bytes indicating
-     * the slots of the page that are in use, some number of tuple slots.
+     * The format of a HeapPage is the page LSN, a set of header bytes
+     * indicating the slots of the page that are in use, some number of
+     * tuple slots.
      *  Specifically, the number of tuples is equal to: <p>
-     *          floor((BufferPool.getPageSize()*8) / (tuple size * 8 + 1))
+     *          floor((BufferPool.getPageSize() - 8)*8 / (tuple size * 8 + 1))
      * <p> where tuple size is the size of tuples in this
      * database table, which can be determined via {@link Catalog#getTupleDesc}.
      * The number of 8-bit header words is equal to:
@@ -43,6 +50,7 @@ public class HeapPage implements Page {
         this.td = Database.getCatalog().getTupleDesc(id.getTableId());
         this.numSlots = getNumTuples();
         DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data));
+        lsn = dis.readLong();
 
         // allocate and read the header slots of this page
         header = new byte[getHeaderSize()];
@@ -66,7 +74,7 @@ public class HeapPage implements Page {
         @return the number of tuples on this page
     */
     private int getNumTuples() {        
-        return (int) Math.floor((BufferPool.getPageSize()*8)/(td.getSize()*8+1));
+        return (int) Math.floor(((BufferPool.getPageSize() - LSN_SIZE)*8)/(td.getSize()*8+1));
     }
 
     /**
@@ -159,6 +167,13 @@ public class HeapPage implements Page {
         ByteArrayOutputStream baos = new ByteArrayOutputStream(len);
         DataOutputStream dos = new DataOutputStream(baos);
 
+        try {
+            dos.writeLong(lsn);
+        } catch (IOException e) {
+            // this really shouldn't happen
+            e.printStackTrace();
+        }
+
         // create the header of the page
         for (int i=0; i<header.length; i++) {
             try {
@@ -198,7 +213,7 @@ public class HeapPage implements Page {
         }
 
         // padding
-        int zerolen = BufferPool.getPageSize() - (header.length + td.getSize() * tuples.length); //- numSlots * td.getSize();
+        int zerolen = BufferPool.getPageSize() - (LSN_SIZE + header.length + td.getSize() * tuples.length); //- numSlots * td.getSize();
         byte[] zeroes = new byte[zerolen];
         try {
             dos.write(zeroes, 0, zerolen);
@@ -237,8 +252,14 @@ public class HeapPage implements Page {
      * @param t The tuple to delete
      */
     public void deleteTuple(Tuple t) throws DbException {
-        // some code goes here
-        // not necessary for lab1
+        RecordId rid = t.getRecordId();
+        if (rid == null || !pid.equals(rid.getPageId()))
+            throw new DbException("tuple is not on this page");
+        int slot = rid.getTupleNumber();
+        if (!isSlotUsed(slot))
+            throw new DbException("tuple slot is already empty");
+        markSlotUsed(slot, false);
+        tuples[slot] = null;
     }
 
     /**
@@ -249,8 +270,17 @@ public class HeapPage implements Page {
      * @param t The tuple to add.
      */
     public void insertTuple(Tuple t) throws DbException {
-        // some code goes here
-        // not necessary for lab1
+        if (!td.equals(t.getTupleDesc()))
+            throw new DbException("tupledesc does not match");
+        for (int i=0; i<numSlots; i++) {
+            if (!isSlotUsed(i)) {
+                markSlotUsed(i, true);
+                tuples[i] = t;
+                t.setRecordId(new RecordId(pid, i));
+                return;
+            }
+        }
+        throw new DbException("page is full");
     }
 
     /**
@@ -258,29 +288,33 @@ public class HeapPage implements Page {
      * that did the dirtying
      */
     public void markDirty(boolean dirty, TransactionId tid) {
-        // some code goes here
-	// not necessary for lab1
+        this.dirtier = dirty ? tid : null;
     }
 
     /**
      * Returns the tid of the transaction that last dirtied this page, or null if the page is not dirty
      */
     public TransactionId isDirty() {
-        // some code goes here
-	// Not necessary for lab1
-        return null;      
+        return this.dirtier;
+    }
+
+    public long getLsn() {
+        return lsn;
+    }
+
+    public void setLsn(long lsn) {
+        this.lsn = lsn;
     }
 
     /**
      * Returns the number of empty slots on this page.
      */
     public int getNumEmptySlots() {
-    	int i;
     	int count=0;
-    	for (byte b : header) {
-    		 for (i=0; i<8; i++) {
-    			 count += (~b>>i & 1);
-    		 }
+    	// the last header byte may have bits past the last slot
+    	for (int i=0; i<numSlots; i++) {
+    		if (!isSlotUsed(i))
+    			count++;
     	}
     	return count;    
     }
@@ -289,19 +323,28 @@ public class HeapPage implements Page {
      * Returns true if associated slot on this page is filled.
      */
     public boolean isSlotUsed(int i) {
-    	if (i > numSlots)
+    	if (i >= numSlots)
     		return false;
         int n = i/8;
         int m = i%8;
         return ((header[n] >> m) & 1) == 1;
     }
 
+    /**
+     * @return the tuple in the specified slot, or null if the slot is empty
+     */
+    public Tuple getTuple(int i) {
+        return isSlotUsed(i) ? tuples[i] : null;
+    }
+
     /**
      * Abstraction to fill or clear a slot on this page.
      */
     private void markSlotUsed(int i, boolean value) {
-        // some code goes here
-        // not necessary for lab1
+        if (value)
+            header[i/8] |= (byte) (1 << (i%8));
+        else
+            header[i/8] &= (byte) ~(1 << (i%8));
     }
 
     /**
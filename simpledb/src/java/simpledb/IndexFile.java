@@ -0,0 +1,36 @@
+package simpledb;
+
+/**
+ * The interface for database files that can look tuples up by the value of
+ * a key field, such as a B+ tree or a hash file. Secondary indexes store
+ * their entries in an IndexFile.
+ *
+ * @see BTreeFile
+ * @see HashFile
+ * @see SecondaryIndex
+ */
+public interface IndexFile extends DbFile {
+
+    /**
+     * @return the index of the field the file is keyed on
+     */
+    public int keyField();
+
+    /**
+     * @param op an operator of an index predicate
+     * @return true if {@link #indexIterator} can look up the tuples whose key
+     *   compares to a value with this operator
+     */
+    public boolean supports(Predicate.Op op);
+
+    /**
+     * Get an iterator over the tuples of the file whose key satisfies an
+     * index predicate.
+     *
+     * @param tid the transaction id
+     * @param ipred the index predicate, whose operator must be supported
+     * @return an iterator over the matching tuples
+     * @throws IllegalArgumentException if the operator is not supported
+     */
+    public DbFileIterator indexIterator(TransactionId tid, IndexPredicate ipred);
+}
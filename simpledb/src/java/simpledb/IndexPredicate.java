@@ -1,6 +1,7 @@
 package simpledb;
 
 import java.io.Serializable;
+import java.util.Arrays;
 
 /**
  * IndexPredicate compares a field which has index on it against a given value
@@ -12,6 +13,7 @@ public class IndexPredicate implements Serializable {
 	
     private Predicate.Op op;
     private Field fieldvalue;
+    private Field[] prefix;
 
     /**
      * Constructor.
@@ -25,10 +27,45 @@ public class IndexPredicate implements Serializable {
     public IndexPredicate(Predicate.Op op, Field fvalue) {
         this.op = op;
         this.fieldvalue = fvalue;
+        this.prefix = new Field[0];
     }
 
+    /**
+     * Constructor for a predicate on an index keyed on several fields, see
+     * {@link BTreeFile#BTreeFile(java.io.File, int[], TupleDesc)}: the first
+     * key fields are equal to the given prefix, and the next key field
+     * compares to the given value. For instance, the tuples of an index keyed
+     * on (tenant_id, ts) for one tenant and a range of times are found with a
+     * predicate on ts with the tenant_id as prefix.
+     *
+     * @param prefix The values of the first key fields
+     * @param op The operation to apply to the next key field, as above
+     * @param fvalue The value that the next key field compares against.
+     */
+    public IndexPredicate(Field[] prefix, Predicate.Op op, Field fvalue) {
+        this(op, fvalue);
+        this.prefix = prefix.clone();
+    }
+
+    /**
+     * @return the value that the key compares against: the given value, or for
+     *   a predicate with a prefix, the {@link CompositeField} made of the prefix
+     *   and the value
+     */
     public Field getField() {
-        return fieldvalue;
+        if (prefix.length == 0)
+            return fieldvalue;
+        Field[] fields = Arrays.copyOf(prefix, prefix.length + 1);
+        fields[prefix.length] = fieldvalue;
+        return new CompositeField(fields);
+    }
+
+    /**
+     * @return the values the first key fields are equal to, as a
+     *   {@link CompositeField}, or null if the predicate has no prefix
+     */
+    public Field getPrefix() {
+        return prefix.length == 0 ? null : new CompositeField(prefix);
     }
 
     public Predicate.Op getOp() {
@@ -43,7 +80,7 @@ public class IndexPredicate implements Serializable {
     public boolean equals(IndexPredicate ipd) {
         if (ipd == null)
             return false;
-        return (op.equals(ipd.op) && fieldvalue.equals(ipd.fieldvalue));
+        return (op.equals(ipd.op) && fieldvalue.equals(ipd.fieldvalue) && Arrays.equals(prefix, ipd.prefix));
     }
 
 }
@@ -0,0 +1,25 @@
+package simpledb;
+
+import java.io.*;
+import java.text.ParseException;
+
+/**
+ * The type of the keys of a B+ tree: either the {@link Type} of the single
+ * column the tree is keyed on, or a {@link CompositeType} for a tree keyed on
+ * several columns.
+ */
+public interface KeyType {
+
+    /**
+     * @return the number of bytes required to store a key of this type.
+     */
+    int getLen();
+
+    /**
+     * @return a key of this type read from the specified DataInputStream.
+     * @param dis The input stream to read from
+     * @throws ParseException if the data read from the input stream is not
+     *   of the appropriate type.
+     */
+    Field parse(DataInputStream dis) throws ParseException;
+}
@@ -0,0 +1,362 @@
+package simpledb;
+
+import java.util.*;
+
+/**
+ * LockManager keeps the locks of the BufferPool, at two granularities:
+ * tables and pages. A page is read under a shared (S) page lock and
+ * written under an exclusive (X) one; before locking a page, a transaction
+ * announces its intention on the table with an intention-shared (IS) or
+ * intention-exclusive (IX) table lock. A transaction may also lock a whole
+ * table in S, X or SIX (shared plus intention-exclusive) mode, after which
+ * it needs no page locks for the accesses that table lock covers.
+ * <p>
+ * Once a transaction holds more than a threshold of page locks on one
+ * table, they are escalated to a single table lock, which keeps large
+ * scans from filling the lock table. Escalation never waits: if the table
+ * lock cannot be granted right away, the transaction keeps its page locks
+ * and escalation is retried with its next page lock.
+ * <p>
+ * Besides the lock table, the lock manager keeps the set of locks each
+ * transaction holds, so that committing or aborting a transaction only
+ * touches the pages it used rather than every page of the buffer pool.
+ * <p>
+ * Deadlocks are detected with a waits-for graph: a transaction that would
+ * close a cycle of waiting transactions is aborted instead of waiting.
+ *
+ * @see BufferPool#getPage
+ * @see BufferPool#lockTable
+ * @Threadsafe
+ */
+class LockManager {
+
+    /** Default number of page locks on one table above which they are escalated */
+    static final int DEFAULT_ESCALATION_THRESHOLD = 1000;
+
+    /** Lock modes, from weakest to strongest */
+    enum Mode {
+        IS, IX, S, SIX, X;
+
+        // COMPATIBLE[a][b]: a lock in mode a may be held together with one in mode b
+        private static final boolean[][] COMPATIBLE = {
+            /*          IS     IX     S      SIX    X   */
+            /* IS  */ { true,  true,  true,  true,  false },
+            /* IX  */ { true,  true,  false, false, false },
+            /* S   */ { true,  false, true,  false, false },
+            /* SIX */ { true,  false, false, false, false },
+            /* X   */ { false, false, false, false, false },
+        };
+
+        boolean compatible(Mode other) {
+            return COMPATIBLE[ordinal()][other.ordinal()];
+        }
+
+        /** @return true if holding this mode grants everything other does */
+        boolean covers(Mode other) {
+            return this == other || this == X
+                || (this == SIX && other != X)
+                || ((this == S || this == IX) && other == IS);
+        }
+
+        /** @return the weakest mode that covers both this mode and other */
+        Mode join(Mode other) {
+            if (covers(other))
+                return this;
+            if (other.covers(this))
+                return other;
+            return SIX; // IX and S
+        }
+    }
+
+    /** The transactions holding a lock on one table or page, with their modes */
+    private static class Lock {
+        final HashMap<TransactionId, Mode> holders = new HashMap<TransactionId, Mode>();
+
+        /** @return the mode tid would hold after being granted mode */
+        Mode wanted(TransactionId tid, Mode mode) {
+            Mode held = holders.get(tid);
+            return held == null ? mode : held.join(mode);
+        }
+
+        /** @return true if other holders keep tid from being granted mode */
+        boolean blocks(TransactionId tid, Mode mode, TransactionId holder) {
+            return !holder.equals(tid) && !wanted(tid, mode).compatible(holders.get(holder));
+        }
+
+        boolean grant(TransactionId tid, Mode mode) {
+            for (TransactionId holder : holders.keySet()) {
+                if (blocks(tid, mode, holder))
+                    return false;
+            }
+            holders.put(tid, wanted(tid, mode));
+            return true;
+        }
+    }
+
+    /** A lock request a transaction is waiting for */
+    private static class Request {
+        final Lock lock;
+        final Mode mode;
+
+        Request(Lock lock, Mode mode) {
+            this.lock = lock;
+            this.mode = mode;
+        }
+    }
+
+    private final HashMap<Integer, Lock> tableLocks;
+    private final HashMap<PageId, Lock> pageLocks;
+    // for each transaction, the tables it has locked and, for each of
+    // them, the pages it has locked
+    private final HashMap<TransactionId, HashMap<Integer, HashSet<PageId>>> lockSets;
+    private final HashMap<TransactionId, Request> waitingFor;
+    private int escalationThreshold;
+
+    LockManager() {
+        this.tableLocks = new HashMap<Integer, Lock>();
+        this.pageLocks = new HashMap<PageId, Lock>();
+        this.lockSets = new HashMap<TransactionId, HashMap<Integer, HashSet<PageId>>>();
+        this.waitingFor = new HashMap<TransactionId, Request>();
+        this.escalationThreshold = DEFAULT_ESCALATION_THRESHOLD;
+    }
+
+    synchronized int getEscalationThreshold() {
+        return escalationThreshold;
+    }
+
+    synchronized void setEscalationThreshold(int threshold) {
+        this.escalationThreshold = threshold;
+    }
+
+    /**
+     * Lock a page on behalf of a transaction, blocking until the lock is
+     * granted. Takes the matching intention lock on the table first, and
+     * takes no page lock at all if a table lock already covers the access.
+     *
+     * @param tid the transaction requesting the lock
+     * @param pid the page to lock
+     * @param exclusive whether the lock must be exclusive
+     * @return true if the transaction had to wait for the lock
+     * @throws TransactionAbortedException if waiting would deadlock
+     */
+    synchronized boolean acquire(TransactionId tid, PageId pid, boolean exclusive)
+        throws TransactionAbortedException {
+        int table = pid.getTableId();
+        Mode held = tableMode(tid, table);
+        if (held != null && held.covers(exclusive ? Mode.X : Mode.S))
+            return false;
+        boolean waited = lock(tid, tableLocks, table, exclusive ? Mode.IX : Mode.IS);
+        HashSet<PageId> locked = lockSet(tid, table);
+        waited |= lock(tid, pageLocks, pid, exclusive ? Mode.X : Mode.S);
+        locked.add(pid);
+        if (locked.size() > escalationThreshold)
+            escalate(tid, table);
+        return waited;
+    }
+
+    /**
+     * Lock a whole table on behalf of a transaction, blocking until the
+     * lock is granted. Page locks the table lock makes redundant are
+     * released.
+     *
+     * @param tid the transaction requesting the lock
+     * @param table the table to lock
+     * @param exclusive whether the lock must be exclusive
+     * @return true if the transaction had to wait for the lock
+     * @throws TransactionAbortedException if waiting would deadlock
+     */
+    synchronized boolean acquireTable(TransactionId tid, int table, boolean exclusive)
+        throws TransactionAbortedException {
+        boolean waited = lock(tid, tableLocks, table, exclusive ? Mode.X : Mode.S);
+        dropCoveredPages(tid, table);
+        return waited;
+    }
+
+    /** Wait until the lock on key is granted in the given mode. */
+    private <K> boolean lock(TransactionId tid, HashMap<K, Lock> locks, K key, Mode mode)
+        throws TransactionAbortedException {
+        boolean waited = false;
+        try {
+            while (true) {
+                Lock lock = locks.get(key);
+                if (lock == null) {
+                    lock = new Lock();
+                    locks.put(key, lock);
+                }
+                if (lock.grant(tid, mode))
+                    break;
+                waitingFor.put(tid, new Request(lock, mode));
+                if (deadlocked(tid))
+                    throw new TransactionAbortedException();
+                waited = true;
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    throw new TransactionAbortedException();
+                }
+            }
+        } finally {
+            waitingFor.remove(tid);
+        }
+        return waited;
+    }
+
+    /**
+     * @return true if tid waits, directly or through other waiting
+     *   transactions, for a lock held by itself
+     */
+    private boolean deadlocked(TransactionId tid) {
+        HashSet<TransactionId> visited = new HashSet<TransactionId>();
+        ArrayDeque<TransactionId> todo = new ArrayDeque<TransactionId>();
+        todo.add(tid);
+        while (!todo.isEmpty()) {
+            TransactionId waiter = todo.poll();
+            Request r = waitingFor.get(waiter);
+            if (r == null)
+                continue;
+            for (TransactionId holder : r.lock.holders.keySet()) {
+                if (!r.lock.blocks(waiter, r.mode, holder))
+                    continue;
+                if (holder.equals(tid))
+                    return true;
+                if (visited.add(holder))
+                    todo.add(holder);
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Replace the page locks of a transaction on a table by a single table
+     * lock, if that lock can be granted without waiting.
+     */
+    private void escalate(TransactionId tid, int table) {
+        boolean write = false;
+        for (PageId pid : lockSet(tid, table)) {
+            if (pageLocks.get(pid).holders.get(tid) == Mode.X)
+                write = true;
+        }
+        if (tableLocks.get(table).grant(tid, write ? Mode.X : Mode.S))
+            dropCoveredPages(tid, table);
+    }
+
+    /** Release the page locks of tid on a table that its table lock covers. */
+    private void dropCoveredPages(TransactionId tid, int table) {
+        Mode held = tableMode(tid, table);
+        Iterator<PageId> it = lockSet(tid, table).iterator();
+        while (it.hasNext()) {
+            PageId pid = it.next();
+            if (held.covers(pageLocks.get(pid).holders.get(tid))) {
+                unlock(tid, pageLocks, pid);
+                it.remove();
+            }
+        }
+        notifyAll();
+    }
+
+    /** @return the mode tid holds on a table, or null */
+    private Mode tableMode(TransactionId tid, int table) {
+        Lock lock = tableLocks.get(table);
+        return lock == null ? null : lock.holders.get(tid);
+    }
+
+    /** @return the page locks tid holds on a table it holds a lock on */
+    private HashSet<PageId> lockSet(TransactionId tid, int table) {
+        HashMap<Integer, HashSet<PageId>> tables = lockSets.get(tid);
+        if (tables == null) {
+            tables = new HashMap<Integer, HashSet<PageId>>();
+            lockSets.put(tid, tables);
+        }
+        HashSet<PageId> pages = tables.get(table);
+        if (pages == null) {
+            pages = new HashSet<PageId>();
+            tables.put(table, pages);
+        }
+        return pages;
+    }
+
+    private <K> void unlock(TransactionId tid, HashMap<K, Lock> locks, K key) {
+        Lock lock = locks.get(key);
+        lock.holders.remove(tid);
+        if (lock.holders.isEmpty())
+            locks.remove(key);
+    }
+
+    /**
+     * Release the lock of a transaction on a page, if it holds one. Its
+     * intention lock on the table is kept until it completes.
+     */
+    synchronized void release(TransactionId tid, PageId pid) {
+        HashMap<Integer, HashSet<PageId>> tables = lockSets.get(tid);
+        if (tables == null)
+            return;
+        HashSet<PageId> pages = tables.get(pid.getTableId());
+        if (pages == null || !pages.remove(pid))
+            return;
+        unlock(tid, pageLocks, pid);
+        notifyAll();
+    }
+
+    /** Release every lock held by a transaction. */
+    synchronized void releaseAll(TransactionId tid) {
+        HashMap<Integer, HashSet<PageId>> tables = lockSets.remove(tid);
+        if (tables == null)
+            return;
+        for (Map.Entry<Integer, HashSet<PageId>> e : tables.entrySet()) {
+            for (PageId pid : e.getValue())
+                unlock(tid, pageLocks, pid);
+            unlock(tid, tableLocks, e.getKey());
+        }
+        notifyAll();
+    }
+
+    /**
+     * @return true if the transaction holds a lock on the page, or a table
+     *   lock that covers reading it
+     */
+    synchronized boolean holdsLock(TransactionId tid, PageId pid) {
+        Mode held = tableMode(tid, pid.getTableId());
+        if (held != null && held.covers(Mode.S))
+            return true;
+        Lock lock = pageLocks.get(pid);
+        return lock != null && lock.holders.containsKey(tid);
+    }
+
+    /** @return the mode the transaction holds on a table, or null */
+    synchronized Mode getTableMode(TransactionId tid, int table) {
+        return tableMode(tid, table);
+    }
+
+    /** @return the pages locked in exclusive mode by the transaction */
+    synchronized Set<PageId> exclusiveLocks(TransactionId tid) {
+        HashSet<PageId> result = new HashSet<PageId>();
+        HashMap<Integer, HashSet<PageId>> tables = lockSets.get(tid);
+        if (tables != null) {
+            for (HashSet<PageId> pages : tables.values()) {
+                for (PageId pid : pages) {
+                    if (pageLocks.get(pid).holders.get(tid) == Mode.X)
+                        result.add(pid);
+                }
+            }
+        }
+        return result;
+    }
+
+    /** @return the tables locked in exclusive mode by the transaction */
+    synchronized Set<Integer> exclusiveTables(TransactionId tid) {
+        HashSet<Integer> result = new HashSet<Integer>();
+        HashMap<Integer, HashSet<PageId>> tables = lockSets.get(tid);
+        if (tables != null) {
+            for (Integer table : tables.keySet()) {
+                if (tableMode(tid, table) == Mode.X)
+                    result.add(table);
+            }
+        }
+        return result;
+    }
+
+    /** @return the number of tables and pages locked by any transaction */
+    synchronized int size() {
+        return tableLocks.size() + pageLocks.size();
+    }
+}
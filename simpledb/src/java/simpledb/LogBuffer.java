@@ -0,0 +1,260 @@
+package simpledb;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.TreeMap;
+
+/**
+ * LogBuffer collects log records in memory and writes them to the log
+ * segments in large sequential chunks.
+ * <p>
+ * The buffer is a ring indexed by LSN. An appender reserves the LSN range
+ * of its record under the buffer lock and copies the record into the ring
+ * outside of it, so that several threads can fill their slots at the same
+ * time. A flusher writes the longest prefix of completely copied records,
+ * also outside the lock, while appenders keep reserving the remaining
+ * space. The log only ever advances to record boundaries, so a record is
+ * on disk once the log is durable past its LSN; forcing an LSN that is
+ * already durable costs no system call, and one force makes every record
+ * written before it durable (group commit). A record that would span two
+ * segments starts at the next segment instead, after zero padding.
+ *
+ * @see LogFile
+ * @see LogSegments
+ * @Threadsafe
+ */
+class LogBuffer {
+
+    /** Default size of the ring, in bytes */
+    static final int DEFAULT_CAPACITY = 1 << 20;
+
+    private final LogSegments segments;
+    private final byte[] ring;
+
+    // protected by this: the next LSN to hand out, the LSNs up to which
+    // the log has been written and forced, the start and end LSNs of the
+    // reservations still being filled, and whether a write is running
+    private long reserved;
+    private long written;
+    private long durable;
+    private final TreeMap<Long, Long> filling;
+    private boolean writing;
+
+    /**
+     * @param segments the log
+     * @param start the LSN of the first record to append
+     * @param capacity the size of the ring, in bytes
+     */
+    LogBuffer(LogSegments segments, long start, int capacity) {
+        this.segments = segments;
+        this.ring = new byte[capacity];
+        this.reserved = start;
+        this.written = start;
+        this.durable = start;
+        this.filling = new TreeMap<Long, Long>();
+        this.writing = false;
+    }
+
+    /** @return the LSN the next record will be appended at */
+    synchronized long getEndLsn() {
+        return reserved;
+    }
+
+    /** @return the LSN up to which the log is on stable storage */
+    synchronized long getDurableLsn() {
+        return durable;
+    }
+
+    /**
+     * Append an encoded record to the log. The last
+     * {@link LogFile#LONG_SIZE} bytes of the record are set to its LSN.
+     *
+     * @param record the record, see {@link LogRecord#toBytes}
+     * @return the LSN of the record
+     */
+    long append(byte[] record) throws IOException {
+        if (record.length > segments.segmentSize)
+            throw new IOException("log record of " + record.length + " bytes exceeds a log segment");
+        if (record.length > ring.length)
+            return appendDirect(record);
+        long start;
+        long lsn;
+        while (true) {
+            long target;
+            synchronized (this) {
+                lsn = segments.placeRecord(reserved, record.length);
+                if (lsn + record.length - written <= ring.length) {
+                    start = reserved;
+                    reserved = lsn + record.length;
+                    filling.put(start, reserved);
+                    break;
+                }
+                target = reserved;
+            }
+            // the ring is full: make room by writing it out
+            flush(target);
+        }
+        stamp(record, lsn);
+        if (lsn > start)
+            copy(new byte[(int) (lsn - start)], start); // segment padding
+        copy(record, lsn);
+        synchronized (this) {
+            filling.remove(start);
+            notifyAll();
+        }
+        return lsn;
+    }
+
+    private void copy(byte[] bytes, long lsn) {
+        int pos = (int) (lsn % ring.length);
+        int first = Math.min(bytes.length, ring.length - pos);
+        System.arraycopy(bytes, 0, ring, pos, first);
+        System.arraycopy(bytes, first, ring, 0, bytes.length - first);
+    }
+
+    /** Write a record larger than the ring straight to the log. */
+    private long appendDirect(byte[] record) throws IOException {
+        long start;
+        long lsn;
+        synchronized (this) {
+            // holding the reservation keeps later records out of the ring
+            // and keeps flushes from writing past it
+            start = reserved;
+            lsn = segments.placeRecord(reserved, record.length);
+            reserved = lsn + record.length;
+            filling.put(start, reserved);
+        }
+        flush(start);
+        synchronized (this) {
+            while (writing)
+                waitFor();
+            writing = true;
+        }
+        try {
+            stamp(record, lsn);
+            write(new ByteBuffer[] {
+                ByteBuffer.wrap(new byte[(int) (lsn - start)]), ByteBuffer.wrap(record) }, start);
+        } finally {
+            synchronized (this) {
+                writing = false;
+                filling.remove(start);
+                written = lsn + record.length;
+                notifyAll();
+            }
+        }
+        return lsn;
+    }
+
+    private static void stamp(byte[] record, long lsn) {
+        for (int i = 0; i < LogFile.LONG_SIZE; i++)
+            record[record.length - 1 - i] = (byte) (lsn >>> (8 * i));
+    }
+
+    /**
+     * Write the buffered records up to the given LSN to the log file,
+     * without forcing them to stable storage.
+     */
+    void flush(long upTo) throws IOException {
+        while (true) {
+            long from;
+            long limit;
+            synchronized (this) {
+                while (true) {
+                    if (written >= upTo)
+                        return;
+                    limit = filling.isEmpty() ? reserved : filling.firstKey();
+                    if (!writing && limit > written)
+                        break;
+                    // a write is running, or the next record is still
+                    // being copied
+                    waitFor();
+                }
+                from = written;
+                writing = true;
+            }
+            boolean done = false;
+            try {
+                writeRing(from, limit);
+                done = true;
+            } finally {
+                synchronized (this) {
+                    writing = false;
+                    if (done)
+                        written = limit;
+                    notifyAll();
+                }
+            }
+        }
+    }
+
+    /**
+     * Make the log durable up to and including the record that starts at
+     * the given LSN.
+     */
+    void force(long lsn) throws IOException {
+        synchronized (this) {
+            if (durable > lsn)
+                return;
+        }
+        flush(lsn + 1);
+        forceWritten();
+    }
+
+    /** Make every record appended so far durable. */
+    void forceAll() throws IOException {
+        long target;
+        synchronized (this) {
+            target = reserved;
+            if (durable >= target)
+                return;
+        }
+        flush(target);
+        forceWritten();
+    }
+
+    private void forceWritten() throws IOException {
+        long upTo;
+        synchronized (this) {
+            upTo = written;
+            if (durable >= upTo)
+                return;
+        }
+        segments.force();
+        synchronized (this) {
+            durable = Math.max(durable, upTo);
+        }
+    }
+
+    /**
+     * Write the ring contents between two LSNs. The range is neither
+     * reused by appenders before written moves past it, nor written by
+     * another flusher.
+     */
+    private void writeRing(long from, long to) throws IOException {
+        int start = (int) (from % ring.length);
+        int length = (int) (to - from);
+        if (start + length <= ring.length) {
+            write(new ByteBuffer[] { ByteBuffer.wrap(ring, start, length) }, from);
+        } else {
+            write(new ByteBuffer[] {
+                ByteBuffer.wrap(ring, start, ring.length - start),
+                ByteBuffer.wrap(ring, 0, start + length - ring.length) }, from);
+        }
+    }
+
+    private void write(ByteBuffer[] bufs, long pos) throws IOException {
+        for (ByteBuffer buf : bufs) {
+            int length = buf.remaining();
+            segments.write(buf, pos);
+            pos += length;
+        }
+    }
+
+    private void waitFor() throws IOException {
+        try {
+            wait();
+        } catch (InterruptedException e) {
+            throw new IOException("interrupted while waiting for the log");
+        }
+    }
+}
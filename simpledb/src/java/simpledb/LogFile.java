@@ -3,7 +3,12 @@ package simpledb;
 
 import java.io.*;
 import java.util.*;
-import java.lang.reflect.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 /**
 LogFile implements the recovery subsystem of SimpleDb.  This class is
@@ -39,42 +44,62 @@ must not be declared synchronized and must begin with a block like:
 
 <ul>
 
-<li> The first long integer of the file represents the offset of the
+<li> The log file itself only holds a long integer: the LSN of the
 last written checkpoint, or -1 if there are no checkpoints
 
-<li> All additional data in the log consists of log records.  Log
-records are variable length.
+<li> The log records are stored in fixed-size segment files next to
+the log file, named after it and numbered in order; see LogSegments.
+Log records are variable length.  Each record has a log sequence
+number (LSN): its global offset in the log, which determines the
+segment it is in and its position there.  LSNs never change, and the
+log is truncated by deleting the oldest segments.
 
-<li> Each log record begins with an integer type and a long integer
-transaction id.
+<li> Each log record begins with an integer length, followed by a body
+made of a byte type, a long integer transaction id and the data of the
+record.
 
-<li> Each log record ends with a long integer file offset representing
-the position in the log file where the record began.
+<li> Each log record ends with an integer CRC32 checksum of its body,
+the long integer LSN of the previous record of the same transaction
+(-1 for its first record), and its own long integer LSN.  The previous
+LSNs chain the records of a transaction backwards from its last record,
+which is kept in tidToLastLogRecord; rollback follows that chain.
 
 <li> There are five record types: ABORT, COMMIT, UPDATE, BEGIN, and
 CHECKPOINT
 
 <li> ABORT, COMMIT, and BEGIN records contain no additional data
 
-<li>UPDATE RECORDS consist of two entries, a before image and an
-after image.  These images are serialized Page objects, and can be
-accessed with the LogFile.readPageData() and LogFile.writePageData()
-methods.  See LogFile.print() for an example.
+<li>UPDATE RECORDS identify the page by a byte page type code and
+its integer table id and page number, followed by the byte ranges in
+which the after image of the page differs from its before image, with
+the old and the new bytes of each range.  Page types are registered
+with LogFile.registerPageType(); no class names are written.  See
+LogRecord for the encoding and LogFile.print() for an example.
 
 <li> CHECKPOINT records consist of active transactions at the time
 the checkpoint was taken and their first log record on disk.  The format
 of the record is an integer count of the number of transactions, as well
 as a long integer transaction id and a long integer first record offset
-for each active transaction.
+for each active transaction.  It is followed by the dirty page table: an
+integer count of pages, and for each page its type code, table id and
+page number, and the offset of the first UPDATE record of the page that
+may not have been written to its table yet (its recovery LSN).
+Checkpoints are fuzzy: no page is flushed to take one.
 
 </ul>
 
+<p> Heap and B+ tree pages carry the LSN of the last UPDATE record
+logged for them in their header (see Page.getLsn()).  The buffer pool
+forces the log up to that LSN before writing a page, and recovery skips
+the records a page on disk already holds.
+
 */
 
 public class LogFile {
 
     final File logFile;
-    private RandomAccessFile raf;
+    private RandomAccessFile raf; // the checkpoint pointer
+    private final LogSegments segments;
     Boolean recoveryUndecided; // no call to recover() and no append to log
 
     static final int ABORT_RECORD = 1;
@@ -87,11 +112,170 @@ public class LogFile {
     final static int INT_SIZE = 4;
     final static int LONG_SIZE = 8;
 
+    /** Number of threads that replay pages during recovery and rollback */
+    static final int REDO_THREADS = Math.max(1, Runtime.getRuntime().availableProcessors());
+
     long currentOffset = -1;//protected by this
+    // records are appended to the buffer and written by it in large chunks;
+    // created once we know we are appending to the log. protected by this
+    private LogBuffer buffer;
 //    int pageSize;
     int totalRecords = 0; // for PatchTest //protected by this
 
     HashMap<Long,Long> tidToFirstLogRecord = new HashMap<Long,Long>();
+    // LSN of the last record of each running transaction, the head of
+    // its chain of previous LSNs. protected by this
+    HashMap<Long,Long> tidToLastLogRecord = new HashMap<Long,Long>();
+
+    // recovery LSN of each page whose logged updates may not have been
+    // written to its table yet. protected by this
+    HashMap<PageId,Long> dirtyPages = new HashMap<PageId,Long>();
+
+    private Timer checkpointer; // protected by this
+
+    // page factories by type code, and type codes by page class
+    private static final ConcurrentHashMap<Integer, PageFactory> pageFactories =
+        new ConcurrentHashMap<Integer, PageFactory>();
+    private static final ConcurrentHashMap<Class<?>, Integer> pageTypes =
+        new ConcurrentHashMap<Class<?>, Integer>();
+
+    static final int HEAP_PAGE = 1;
+    static final int BTREE_ROOT_PTR_PAGE = 2;
+    static final int BTREE_INTERNAL_PAGE = 3;
+    static final int BTREE_LEAF_PAGE = 4;
+    static final int BTREE_HEADER_PAGE = 5;
+    static final int HASH_META_PAGE = 6;
+    static final int HASH_BUCKET_PAGE = 7;
+
+    static {
+        registerPageType(HEAP_PAGE, HeapPage.class, new PageFactory() {
+            public PageId createPageId(int tableId, int pgNo) {
+                return new HeapPageId(tableId, pgNo);
+            }
+            public Page createPage(int tableId, int pgNo, byte[] data) throws IOException {
+                return new HeapPage(new HeapPageId(tableId, pgNo), data);
+            }
+        });
+        registerPageType(BTREE_ROOT_PTR_PAGE, BTreeRootPtrPage.class, new PageFactory() {
+            public PageId createPageId(int tableId, int pgNo) {
+                return new BTreePageId(tableId, pgNo, BTreePageId.ROOT_PTR);
+            }
+            public Page createPage(int tableId, int pgNo, byte[] data) throws IOException {
+                return new BTreeRootPtrPage((BTreePageId) createPageId(tableId, pgNo), data);
+            }
+        });
+        registerPageType(BTREE_INTERNAL_PAGE, BTreeInternalPage.class, new PageFactory() {
+            public PageId createPageId(int tableId, int pgNo) {
+                return new BTreePageId(tableId, pgNo, BTreePageId.INTERNAL);
+            }
+            public Page createPage(int tableId, int pgNo, byte[] data) throws IOException {
+                return new BTreeInternalPage((BTreePageId) createPageId(tableId, pgNo),
+                                             data, keyFields(tableId));
+            }
+        });
+        registerPageType(BTREE_LEAF_PAGE, BTreeLeafPage.class, new PageFactory() {
+            public PageId createPageId(int tableId, int pgNo) {
+                return new BTreePageId(tableId, pgNo, BTreePageId.LEAF);
+            }
+            public Page createPage(int tableId, int pgNo, byte[] data) throws IOException {
+                return new BTreeLeafPage((BTreePageId) createPageId(tableId, pgNo),
+                                         data, keyFields(tableId));
+            }
+        });
+        registerPageType(BTREE_HEADER_PAGE, BTreeHeaderPage.class, new PageFactory() {
+            public PageId createPageId(int tableId, int pgNo) {
+                return new BTreePageId(tableId, pgNo, BTreePageId.HEADER);
+            }
+            public Page createPage(int tableId, int pgNo, byte[] data) throws IOException {
+                return new BTreeHeaderPage((BTreePageId) createPageId(tableId, pgNo), data);
+            }
+        });
+        registerPageType(HASH_META_PAGE, HashMetaPage.class, new PageFactory() {
+            public PageId createPageId(int tableId, int pgNo) {
+                return new HashPageId(tableId, pgNo, HashPageId.META);
+            }
+            public Page createPage(int tableId, int pgNo, byte[] data) throws IOException {
+                return new HashMetaPage((HashPageId) createPageId(tableId, pgNo), data);
+            }
+        });
+        registerPageType(HASH_BUCKET_PAGE, HashBucketPage.class, new PageFactory() {
+            public PageId createPageId(int tableId, int pgNo) {
+                return new HashPageId(tableId, pgNo, HashPageId.BUCKET);
+            }
+            public Page createPage(int tableId, int pgNo, byte[] data) throws IOException {
+                return new HashBucketPage((HashPageId) createPageId(tableId, pgNo), data);
+            }
+        });
+    }
+
+    private static int[] keyFields(int tableId) throws IOException {
+        try {
+            return ((BTreeFile) Database.getCatalog().getDatabaseFile(tableId)).keyFields();
+        } catch (NoSuchElementException e) {
+            throw new IOException("log refers to unknown table " + tableId);
+        }
+    }
+
+    /**
+     * Register the factory that rebuilds the pages of a page class from
+     * the log. Every class of page that may be written to the log must be
+     * registered, under a type code unique among page types.
+     *
+     * @param code the type code written to the log, between 1 and 255
+     * @param pageClass the class of the pages
+     * @param factory the factory that rebuilds pages of this class
+     */
+    public static synchronized void registerPageType(int code, Class<? extends Page> pageClass,
+                                                     PageFactory factory) {
+        if (code < 1 || code > 255)
+            throw new IllegalArgumentException("page type code out of range: " + code);
+        Class<?> taken = classOf(code);
+        if (taken != null && !taken.equals(pageClass))
+            throw new IllegalArgumentException("page type code " + code + " is already taken");
+        pageFactories.put(code, factory);
+        pageTypes.put(pageClass, code);
+    }
+
+    private static Class<?> classOf(int code) {
+        for (Map.Entry<Class<?>, Integer> e : pageTypes.entrySet()) {
+            if (e.getValue() == code)
+                return e.getKey();
+        }
+        return null;
+    }
+
+    /** @return the type code of a page */
+    static int pageType(Page p) throws IOException {
+        Integer code = pageTypes.get(p.getClass());
+        if (code == null)
+            throw new IOException("page class " + p.getClass().getName() + " is not registered");
+        return code;
+    }
+
+    /** @return the type code of the pages with the given id */
+    static int pageType(PageId pid) throws IOException {
+        for (Map.Entry<Integer, PageFactory> e : pageFactories.entrySet()) {
+            if (e.getValue().createPageId(pid.getTableId(), pid.getPageNumber()).equals(pid))
+                return e.getKey();
+        }
+        throw new IOException("page id " + pid + " has no registered page type");
+    }
+
+    /** @return the id of a page of the given type */
+    static PageId createPageId(int code, int tableId, int pgNo) throws IOException {
+        PageFactory factory = pageFactories.get(code);
+        if (factory == null)
+            throw new IOException("unknown page type code " + code);
+        return factory.createPageId(tableId, pgNo);
+    }
+
+    /** @return the page of the given type rebuilt from its data */
+    static Page createPage(int code, int tableId, int pgNo, byte[] data) throws IOException {
+        PageFactory factory = pageFactories.get(code);
+        if (factory == null)
+            throw new IOException("unknown page type code " + code);
+        return factory.createPage(tableId, pgNo, data);
+    }
 
     /** Constructor.
         Initialize and back the log file with the specified file.
@@ -105,8 +289,14 @@ public class LogFile {
         @param f The log file's name
     */
     public LogFile(File f) throws IOException {
+        this(f, LogSegments.DEFAULT_SEGMENT_SIZE);
+    }
+
+    /** Constructor, storing the log records in segments of the given size. */
+    LogFile(File f, long segmentSize) throws IOException {
 	this.logFile = f;
         raf = new RandomAccessFile(f, "rw");
+        segments = new LogSegments(f, segmentSize);
         recoveryUndecided = true;
 
         // install shutdown hook to force cleanup on close
@@ -130,9 +320,20 @@ public class LogFile {
             raf.seek(0);
             raf.setLength(0);
             raf.writeLong(NO_CHECKPOINT_ID);
-            raf.seek(raf.length());
-            currentOffset = raf.getFilePointer();
+            segments.truncate(segments.firstLsn());
+            buffer = null;
         }
+        if (buffer == null) {
+            currentOffset = segments.endLsn();
+            buffer = new LogBuffer(segments, currentOffset, LogBuffer.DEFAULT_CAPACITY);
+        }
+    }
+
+    // write out the records still in the buffer, so that the log can be
+    // read from the segments
+    private void flushBuffer() throws IOException {
+        if (buffer != null)
+            buffer.flush(buffer.getEndLsn());
     }
 
     public synchronized int getTotalRecords() {
@@ -158,12 +359,9 @@ public class LogFile {
                 // live transactions (needs tidToFirstLogRecord)
                 rollback(tid);
 
-                raf.writeInt(ABORT_RECORD);
-                raf.writeLong(tid.getId());
-                raf.writeLong(currentOffset);
-                currentOffset = raf.getFilePointer();
-                force();
+                force(append(new LogRecord(ABORT_RECORD, tid.getId())));
                 tidToFirstLogRecord.remove(tid.getId());
+                tidToLastLogRecord.remove(tid.getId());
             }
         }
     }
@@ -173,17 +371,20 @@ public class LogFile {
 
         @param tid The committing transaction.
     */
-    public synchronized void logCommit(TransactionId tid) throws IOException {
-        preAppend();
-        Debug.log("COMMIT " + tid.getId());
-        //should we verify that this is a live transaction?
-
-        raf.writeInt(COMMIT_RECORD);
-        raf.writeLong(tid.getId());
-        raf.writeLong(currentOffset);
-        currentOffset = raf.getFilePointer();
-        force();
-        tidToFirstLogRecord.remove(tid.getId());
+    public void logCommit(TransactionId tid) throws IOException {
+        long lsn;
+        synchronized (this) {
+            preAppend();
+            Debug.log("COMMIT " + tid.getId());
+            //should we verify that this is a live transaction?
+
+            lsn = append(new LogRecord(COMMIT_RECORD, tid.getId()));
+            tidToFirstLogRecord.remove(tid.getId());
+            tidToLastLogRecord.remove(tid.getId());
+        }
+        // forced outside the log lock, so that transactions committing
+        // meanwhile share the same force
+        force(lsn);
     }
 
     /** Write an UPDATE record to disk for the specified tid and page
@@ -191,108 +392,66 @@ public class LogFile {
         @param tid The transaction performing the write
         @param before The before image of the page
         @param after The after image of the page
+        @return the LSN of the record, to stamp the page with
 
         @see simpledb.Page#getBeforeImage
+        @see simpledb.Page#setLsn
     */
-    public  synchronized void logWrite(TransactionId tid, Page before,
+    public long logWrite(TransactionId tid, Page before,
                                        Page after)
         throws IOException  {
-        Debug.log("WRITE, offset = " + raf.getFilePointer());
-        preAppend();
-        /* update record conists of
-
-           record type
-           transaction id
-           before page data (see writePageData)
-           after page data
-           start offset
-        */
-        raf.writeInt(UPDATE_RECORD);
-        raf.writeLong(tid.getId());
-
-        writePageData(raf,before);
-        writePageData(raf,after);
-        raf.writeLong(currentOffset);
-        currentOffset = raf.getFilePointer();
-
-        Debug.log("WRITE OFFSET = " + currentOffset);
-    }
-
-    void writePageData(RandomAccessFile raf, Page p) throws IOException{
-        PageId pid = p.getId();
-        int pageInfo[] = pid.serialize();
-
-        //page data is:
-        // page class name
-        // id class name
-        // id class bytes
-        // id class data
-        // page class bytes
-        // page class data
-
-        String pageClassName = p.getClass().getName();
-        String idClassName = pid.getClass().getName();
-
-        raf.writeUTF(pageClassName);
-        raf.writeUTF(idClassName);
-
-        raf.writeInt(pageInfo.length);
-        for (int i = 0; i < pageInfo.length; i++) {
-            raf.writeInt(pageInfo[i]);
+        // encode the record before taking the log lock
+        PageId pid = after.getId();
+        byte[] record = LogRecord.update(tid.getId(), before, after).toBytes(0);
+        synchronized (this) {
+            Debug.log("WRITE, offset = " + currentOffset);
+            preAppend();
+            long lsn = append(record, tid.getId());
+            if (!dirtyPages.containsKey(pid))
+                dirtyPages.put(pid, lsn);
+
+            Debug.log("WRITE OFFSET = " + currentOffset);
+            return lsn;
         }
-        byte[] pageData = p.getPageData();
-        raf.writeInt(pageData.length);
-        raf.write(pageData);
-        //        Debug.log ("WROTE PAGE DATA, CLASS = " + pageClassName + ", table = " +  pid.getTableId() + ", page = " + pid.pageno());
     }
 
-    Page readPageData(RandomAccessFile raf) throws IOException {
-        PageId pid;
-        Page newPage = null;
-
-        String pageClassName = raf.readUTF();
-        String idClassName = raf.readUTF();
-
-        try {
-            Class<?> idClass = Class.forName(idClassName);
-            Class<?> pageClass = Class.forName(pageClassName);
-
-            Constructor<?>[] idConsts = idClass.getDeclaredConstructors();
-            int numIdArgs = raf.readInt();
-            Object idArgs[] = new Object[numIdArgs];
-            for (int i = 0; i<numIdArgs;i++) {
-                idArgs[i] = new Integer(raf.readInt());
-            }
-            pid = (PageId)idConsts[0].newInstance(idArgs);
-
-            Constructor<?>[] pageConsts = pageClass.getDeclaredConstructors();
-            int pageSize = raf.readInt();
-
-            byte[] pageData = new byte[pageSize];
-            raf.read(pageData); //read before image
-
-            Object[] pageArgs = new Object[2];
-            pageArgs[0] = pid;
-            pageArgs[1] = pageData;
+    /**
+     * Note that the given pages, whose updates were logged with logWrite,
+     * have been written to their tables and forced to disk, so that
+     * recovery no longer needs to redo those updates.
+     *
+     * @param pages the pages written
+     */
+    public synchronized void pagesWritten(Collection<Page> pages) {
+        for (Page page : pages)
+            dirtyPages.remove(page.getId());
+    }
 
-            newPage = (Page)pageConsts[0].newInstance(pageArgs);
+    /**
+     * Append a record at the end of the log. It is buffered: use force()
+     * to make it durable.
+     *
+     * @return the LSN of the record
+     */
+    private long append(LogRecord r) throws IOException {
+        byte[] record = r.toBytes(0);
+        r.lsn = r.type == CHECKPOINT_RECORD ? append(record) : append(record, r.tid);
+        return r.lsn;
+    }
 
-            //            Debug.log("READ PAGE OF TYPE " + pageClassName + ", table = " + newPage.getId().getTableId() + ", page = " + newPage.getId().pageno());
-        } catch (ClassNotFoundException e){
-            e.printStackTrace();
-            throw new IOException();
-        } catch (InstantiationException e) {
-            e.printStackTrace();
-            throw new IOException();
-        } catch (IllegalAccessException e) {
-            e.printStackTrace();
-            throw new IOException();
-        } catch (InvocationTargetException e) {
-            e.printStackTrace();
-            throw new IOException();
-        }
-        return newPage;
+    // append a record of a transaction, chained to its previous record
+    private long append(byte[] record, long tid) throws IOException {
+        Long prev = tidToLastLogRecord.get(tid);
+        LogRecord.setPrevLsn(record, prev == null ? LogRecord.NO_LSN : prev);
+        long lsn = append(record);
+        tidToLastLogRecord.put(tid, lsn);
+        return lsn;
+    }
 
+    private long append(byte[] record) throws IOException {
+        long lsn = buffer.append(record);
+        currentOffset = buffer.getEndLsn();
+        return lsn;
     }
 
     /** Write a BEGIN record for the specified transaction
@@ -307,150 +466,106 @@ public class LogFile {
             throw new IOException("double logXactionBegin()");
         }
         preAppend();
-        raf.writeInt(BEGIN_RECORD);
-        raf.writeLong(tid.getId());
-        raf.writeLong(currentOffset);
-        tidToFirstLogRecord.put(tid.getId(), currentOffset);
-        currentOffset = raf.getFilePointer();
+        tidToFirstLogRecord.put(tid.getId(), append(new LogRecord(BEGIN_RECORD, tid.getId())));
 
         Debug.log("BEGIN OFFSET = " + currentOffset);
     }
 
-    /** Checkpoint the log and write a checkpoint record. */
-    public void logCheckpoint() throws IOException {
-        //make sure we have buffer pool lock before proceeding
-        synchronized (Database.getBufferPool()) {
-            synchronized (this) {
-                //Debug.log("CHECKPOINT, offset = " + raf.getFilePointer());
-                preAppend();
-                long startCpOffset, endCpOffset;
-                Set<Long> keys = tidToFirstLogRecord.keySet();
-                Iterator<Long> els = keys.iterator();
-                force();
-                Database.getBufferPool().flushAllPages();
-                startCpOffset = raf.getFilePointer();
-                raf.writeInt(CHECKPOINT_RECORD);
-                raf.writeLong(-1); //no tid , but leave space for convenience
-
-                //write list of outstanding transactions
-                raf.writeInt(keys.size());
-                while (els.hasNext()) {
-                    Long key = els.next();
-                    Debug.log("WRITING CHECKPOINT TRANSACTION ID: " + key);
-                    raf.writeLong(key);
-                    //Debug.log("WRITING CHECKPOINT TRANSACTION OFFSET: " + tidToFirstLogRecord.get(key));
-                    raf.writeLong(tidToFirstLogRecord.get(key));
-                }
+    /** Checkpoint the log and write a checkpoint record.
+        The checkpoint is fuzzy: it flushes no page, but records the
+        active transactions and the dirty page table, so that recovery
+        knows where to start.  The records are logged under the log lock,
+        so every update logged before the checkpoint is either in its
+        dirty page table or already written to its table.
+    */
+    public synchronized void logCheckpoint() throws IOException {
+        preAppend();
+        long startCpOffset = append(LogRecord.checkpoint(tidToFirstLogRecord, dirtyPages));
+        force(startCpOffset);
 
-                //once the CP is written, make sure the CP location at the
-                // beginning of the log file is updated
-                endCpOffset = raf.getFilePointer();
-                raf.seek(0);
-                raf.writeLong(startCpOffset);
-                raf.seek(endCpOffset);
-                raf.writeLong(currentOffset);
-                currentOffset = raf.getFilePointer();
-                //Debug.log("CP OFFSET = " + currentOffset);
-            }
-        }
+        //once the CP is written, make sure the CP location at the
+        // beginning of the log file is updated
+        raf.seek(0);
+        raf.writeLong(startCpOffset);
+        raf.getChannel().force(false);
+        //Debug.log("CP OFFSET = " + currentOffset);
 
         logTruncate();
     }
 
+    /**
+     * Take a checkpoint every periodMillis milliseconds in a background
+     * thread, replacing any periodic checkpoint started before. Each
+     * checkpoint moves the point recovery starts from up to the oldest
+     * update that still has to be redone or undone, and truncates the log
+     * before it.
+     *
+     * @param periodMillis the interval between two checkpoints
+     */
+    public synchronized void startCheckpointer(long periodMillis) {
+        stopCheckpointer();
+        checkpointer = new Timer("LogFile checkpointer", true);
+        checkpointer.schedule(new TimerTask() {
+            public void run() {
+                try {
+                    logCheckpoint();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }, periodMillis, periodMillis);
+    }
+
+    /** Stop the periodic checkpoints started by {@link #startCheckpointer}. */
+    public synchronized void stopCheckpointer() {
+        if (checkpointer != null) {
+            checkpointer.cancel();
+            checkpointer = null;
+        }
+    }
+
     /** Truncate any unneeded portion of the log to reduce its space
-        consumption */
+        consumption.  Only whole segments are deleted: those before the
+        checkpoint, the first record of the transactions running then,
+        and the recovery LSN of the pages dirty then.  No record is
+        rewritten. */
     public synchronized void logTruncate() throws IOException {
         preAppend();
+        flushBuffer();
         raf.seek(0);
         long cpLoc = raf.readLong();
 
-        long minLogRecord = cpLoc;
-
-        if (cpLoc != -1L) {
-            raf.seek(cpLoc);
-            int cpType = raf.readInt();
-            @SuppressWarnings("unused")
-            long cpTid = raf.readLong();
-
-            if (cpType != CHECKPOINT_RECORD) {
-                throw new RuntimeException("Checkpoint pointer does not point to checkpoint record");
-            }
-
-            int numOutstanding = raf.readInt();
+        if (cpLoc == NO_CHECKPOINT_ID)
+            return;
 
-            for (int i = 0; i < numOutstanding; i++) {
-                @SuppressWarnings("unused")
-                long tid = raf.readLong();
-                long firstLogRecord = raf.readLong();
-                if (firstLogRecord < minLogRecord) {
-                    minLogRecord = firstLogRecord;
-                }
+        LogRecord cp = readRecord(cpLoc);
+        if (cp.type != CHECKPOINT_RECORD) {
+            throw new RuntimeException("Checkpoint pointer does not point to checkpoint record");
+        }
+        long minLogRecord = cpLoc;
+        for (long firstLogRecord : cp.firstRecords.values()) {
+            if (firstLogRecord < minLogRecord) {
+                minLogRecord = firstLogRecord;
             }
         }
-
-        // we can truncate everything before minLogRecord
-        File newFile = new File("logtmp" + System.currentTimeMillis());
-        RandomAccessFile logNew = new RandomAccessFile(newFile, "rw");
-        logNew.seek(0);
-        logNew.writeLong((cpLoc - minLogRecord) + LONG_SIZE);
-
-        raf.seek(minLogRecord);
-
-        //have to rewrite log records since offsets are different after truncation
-        while (true) {
-            try {
-                int type = raf.readInt();
-                long record_tid = raf.readLong();
-                long newStart = logNew.getFilePointer();
-
-                Debug.log("NEW START = " + newStart);
-
-                logNew.writeInt(type);
-                logNew.writeLong(record_tid);
-
-                switch (type) {
-                case UPDATE_RECORD:
-                    Page before = readPageData(raf);
-                    Page after = readPageData(raf);
-
-                    writePageData(logNew, before);
-                    writePageData(logNew, after);
-                    break;
-                case CHECKPOINT_RECORD:
-                    int numXactions = raf.readInt();
-                    logNew.writeInt(numXactions);
-                    while (numXactions-- > 0) {
-                        long xid = raf.readLong();
-                        long xoffset = raf.readLong();
-                        logNew.writeLong(xid);
-                        logNew.writeLong((xoffset - minLogRecord) + LONG_SIZE);
-                    }
-                    break;
-                case BEGIN_RECORD:
-                    tidToFirstLogRecord.put(record_tid,newStart);
-                    break;
-                }
-
-                //all xactions finish with a pointer
-                logNew.writeLong(newStart);
-                raf.readLong();
-
-            } catch (EOFException e) {
-                break;
+        for (long recoveryLsn : cp.dirtyPages.values()) {
+            if (recoveryLsn < minLogRecord) {
+                minLogRecord = recoveryLsn;
             }
         }
 
-        Debug.log("TRUNCATING LOG;  WAS " + raf.length() + " BYTES ; NEW START : " + minLogRecord + " NEW LENGTH: " + (raf.length() - minLogRecord));
-
-        raf.close();
-        logFile.delete();
-        newFile.renameTo(logFile);
-        raf = new RandomAccessFile(logFile, "rw");
-        raf.seek(raf.length());
-        newFile.delete();
+        Debug.log("TRUNCATING LOG BEFORE " + minLogRecord);
+        segments.deleteBefore(minLogRecord);
+    }
 
-        currentOffset = raf.getFilePointer();
-        //print();
+    /** @return the record at the given LSN */
+    private LogRecord readRecord(long lsn) throws IOException {
+        LogSegments.Reader reader = segments.reader(lsn);
+        try {
+            return reader.next();
+        } finally {
+            reader.close();
+        }
     }
 
     /** Rollback the specified transaction, setting the state of any
@@ -466,7 +581,33 @@ public class LogFile {
         synchronized (Database.getBufferPool()) {
             synchronized(this) {
                 preAppend();
-                // some code goes here
+                Long last = tidToLastLogRecord.get(tid.getId());
+                if (last == null)
+                    throw new NoSuchElementException("transaction " + tid.getId() + " is not running");
+                flushBuffer();
+                // the undo takes place at the end of the log, where the
+                // ABORT record will be
+                long at = buffer.getEndLsn();
+
+                // follow the chain of the transaction from its last
+                // record back, undoing its updates latest first
+                LinkedHashMap<PageId, ArrayList<PageOp>> ops =
+                    new LinkedHashMap<PageId, ArrayList<PageOp>>();
+                LogSegments.Reader reader = segments.reader(last);
+                try {
+                    for (long lsn = last; lsn != LogRecord.NO_LSN; ) {
+                        reader.seek(lsn);
+                        LogRecord r = reader.next();
+                        if (r.tid != tid.getId())
+                            throw new IOException("broken log chain of transaction " + tid.getId() + " at " + lsn);
+                        if (r.type == UPDATE_RECORD)
+                            pageOps(ops, r.pid).add(new PageOp(r, false, at));
+                        lsn = r.prevLsn;
+                    }
+                } finally {
+                    reader.close();
+                }
+                replay(ops);
             }
         }
     }
@@ -477,7 +618,9 @@ public class LogFile {
     */
     public synchronized void shutdown() {
         try {
+            stopCheckpointer();
             logCheckpoint();  //simple way to shutdown is to write a checkpoint record
+            segments.close();
             raf.close();
         } catch (IOException e) {
             System.out.println("ERROR SHUTTING DOWN -- IGNORING.");
@@ -488,23 +631,310 @@ public class LogFile {
     /** Recover the database system by ensuring that the updates of
         committed transactions are installed and that the
         updates of uncommitted transactions are not installed.
+        <p>
+        History is repeated from the last checkpoint: every update is
+        redone, and the updates of each aborted transaction are undone at
+        its ABORT record.  Before the checkpoint, only the pages of its
+        dirty page table are replayed, from their recovery LSN on.  The
+        updates of the transactions that neither committed nor aborted
+        are then undone, and an ABORT record is logged for each.  Redo
+        and undo are replayed in parallel, partitioned by page, and the
+        steps a page on disk already holds according to its page LSN
+        are skipped.
     */
     public void recover() throws IOException {
         synchronized (Database.getBufferPool()) {
             synchronized (this) {
                 recoveryUndecided = false;
-                // some code goes here
+                if (raf.length() < LONG_SIZE) {
+                    raf.setLength(0);
+                    raf.writeLong(NO_CHECKPOINT_ID);
+                }
+                raf.seek(0);
+                long cpLoc = raf.readLong();
+                long start = segments.firstLsn();
+                long redoPoint = start;
+                Map<PageId, Long> dirty = new HashMap<PageId, Long>();
+                if (cpLoc != NO_CHECKPOINT_ID) {
+                    LogRecord cp = readRecord(cpLoc);
+                    // the transactions running at the checkpoint may have
+                    // to be undone, its dirty pages to be redone
+                    start = cpLoc;
+                    redoPoint = cpLoc;
+                    dirty = cp.dirtyPages;
+                    for (long first : cp.firstRecords.values())
+                        start = Math.min(start, first);
+                    for (long recoveryLsn : dirty.values())
+                        start = Math.min(start, recoveryLsn);
+                }
+
+                // group the updates by page, in log order. the updates of
+                // a transaction that aborted are undone where its ABORT
+                // record is, those of the losers at the end of the log.
+                LinkedHashMap<PageId, ArrayList<PageOp>> ops =
+                    new LinkedHashMap<PageId, ArrayList<PageOp>>();
+                HashMap<Long, ArrayList<LogRecord>> running =
+                    new HashMap<Long, ArrayList<LogRecord>>();
+                tidToLastLogRecord.clear();
+                LogSegments.Reader reader = segments.reader(start);
+                long end = start;
+                while (true) {
+                    LogRecord r;
+                    try {
+                        r = reader.next();
+                    } catch (IOException e) {
+                        // a torn or damaged record ends the log
+                        Debug.log("RECOVERY STOPS AT " + end + ": " + e.getMessage());
+                        break;
+                    }
+                    end = reader.position();
+                    if (r.type != CHECKPOINT_RECORD)
+                        tidToLastLogRecord.put(r.tid, r.lsn);
+                    switch (r.type) {
+                    case BEGIN_RECORD:
+                        running.put(r.tid, new ArrayList<LogRecord>());
+                        break;
+                    case UPDATE_RECORD:
+                        ArrayList<LogRecord> updates = running.get(r.tid);
+                        if (updates == null) {
+                            updates = new ArrayList<LogRecord>();
+                            running.put(r.tid, updates);
+                        }
+                        updates.add(r);
+                        if (replayed(r.pid, r.lsn, redoPoint, dirty))
+                            pageOps(ops, r.pid).add(new PageOp(r, true, r.lsn));
+                        break;
+                    case COMMIT_RECORD:
+                        running.remove(r.tid);
+                        break;
+                    case ABORT_RECORD:
+                        ArrayList<LogRecord> aborted = running.remove(r.tid);
+                        if (aborted == null)
+                            break;
+                        for (int i = aborted.size() - 1; i >= 0; i--) {
+                            LogRecord u = aborted.get(i);
+                            if (replayed(u.pid, r.lsn, redoPoint, dirty))
+                                pageOps(ops, u.pid).add(new PageOp(u, false, r.lsn));
+                        }
+                        break;
+                    }
+                }
+                reader.close();
+                for (ArrayList<LogRecord> loser : running.values())
+                    undo(ops, loser, end);
+                replay(ops);
+
+                // drop a torn tail, and end the losers so that a later
+                // recovery undoes them before the updates that follow
+                segments.truncate(end);
+                tidToFirstLogRecord.clear();
+                dirtyPages.clear();
+                currentOffset = end;
+                buffer = new LogBuffer(segments, end, LogBuffer.DEFAULT_CAPACITY);
+                for (long loser : running.keySet())
+                    append(new LogRecord(ABORT_RECORD, loser));
+                tidToLastLogRecord.clear();
+                force();
             }
          }
     }
 
+    /**
+     * One step of the replay of a page: redo or undo an UPDATE record, at
+     * a given position of the log. Redo takes place at the record itself,
+     * undo where the transaction ends.
+     */
+    private static class PageOp {
+        final LogRecord record;
+        final boolean redo;
+        final long lsn;
+
+        PageOp(LogRecord record, boolean redo, long lsn) {
+            this.record = record;
+            this.redo = redo;
+            this.lsn = lsn;
+        }
+    }
+
+    /**
+     * @return whether a step of the replay of a page, at the given LSN,
+     *   must be replayed: it follows the checkpoint, or the page was
+     *   dirty at the checkpoint and the step follows its recovery LSN.
+     *   Otherwise the step is already reflected in the table.
+     */
+    private static boolean replayed(PageId pid, long lsn, long redoPoint, Map<PageId, Long> dirty) {
+        if (lsn >= redoPoint)
+            return true;
+        Long recoveryLsn = dirty.get(pid);
+        return recoveryLsn != null && lsn >= recoveryLsn;
+    }
+
+    private static ArrayList<PageOp> pageOps(Map<PageId, ArrayList<PageOp>> ops, PageId pid) {
+        ArrayList<PageOp> list = ops.get(pid);
+        if (list == null) {
+            list = new ArrayList<PageOp>();
+            ops.put(pid, list);
+        }
+        return list;
+    }
+
+    /**
+     * Queue the undo of the given updates of a transaction, latest first,
+     * at the given LSN
+     */
+    private static void undo(Map<PageId, ArrayList<PageOp>> ops, List<LogRecord> updates, long lsn) {
+        for (int i = updates.size() - 1; i >= 0; i--) {
+            LogRecord r = updates.get(i);
+            pageOps(ops, r.pid).add(new PageOp(r, false, lsn));
+        }
+    }
+
+    /**
+     * Apply the queued steps to the pages on disk, and drop the cached
+     * copies of those pages from the buffer pool. Pages are spread over
+     * {@link #REDO_THREADS} workers by page id, so that each page is
+     * replayed by a single worker, in log order, while different pages
+     * are read, replayed and written in parallel.
+     */
+    private void replay(Map<PageId, ArrayList<PageOp>> ops) throws IOException {
+        int nThreads = Math.min(REDO_THREADS, ops.size());
+        if (nThreads == 0)
+            return;
+        final ArrayList<ArrayList<Map.Entry<PageId, ArrayList<PageOp>>>> partitions =
+            new ArrayList<ArrayList<Map.Entry<PageId, ArrayList<PageOp>>>>();
+        for (int i = 0; i < nThreads; i++)
+            partitions.add(new ArrayList<Map.Entry<PageId, ArrayList<PageOp>>>());
+        for (Map.Entry<PageId, ArrayList<PageOp>> e : ops.entrySet())
+            partitions.get((e.getKey().hashCode() & Integer.MAX_VALUE) % nThreads).add(e);
+
+        if (nThreads == 1) {
+            replayPages(partitions.get(0));
+        } else {
+            ExecutorService workers = Executors.newFixedThreadPool(nThreads);
+            try {
+                ArrayList<Future<Void>> done = new ArrayList<Future<Void>>();
+                for (final ArrayList<Map.Entry<PageId, ArrayList<PageOp>>> partition : partitions) {
+                    done.add(workers.submit(new Callable<Void>() {
+                        public Void call() throws IOException {
+                            replayPages(partition);
+                            return null;
+                        }
+                    }));
+                }
+                for (Future<Void> f : done) {
+                    try {
+                        f.get();
+                    } catch (InterruptedException e) {
+                        throw new IOException("interrupted during recovery");
+                    } catch (ExecutionException e) {
+                        if (e.getCause() instanceof IOException)
+                            throw (IOException) e.getCause();
+                        throw new RuntimeException(e.getCause());
+                    }
+                }
+            } finally {
+                workers.shutdown();
+            }
+        }
+        for (PageId pid : ops.keySet())
+            Database.getBufferPool().discardPage(pid);
+    }
+
+    private static void replayPages(List<Map.Entry<PageId, ArrayList<PageOp>>> pages)
+        throws IOException {
+        // written and forced file by file, since no later checkpoint
+        // will count these pages as dirty
+        TreeMap<Integer, ArrayList<Page>> byFile = new TreeMap<Integer, ArrayList<Page>>();
+        for (Map.Entry<PageId, ArrayList<PageOp>> e : pages) {
+            PageId pid = e.getKey();
+            DbFile file;
+            try {
+                file = Database.getCatalog().getDatabaseFile(pid.getTableId());
+            } catch (NoSuchElementException ex) {
+                throw new IOException("log refers to unknown table " + pid.getTableId());
+            }
+            byte[] data;
+            long pageLsn;
+            try {
+                Page page = file.readPage(pid);
+                data = page.getPageData();
+                pageLsn = page.getLsn();
+            } catch (IllegalArgumentException ex) {
+                // the page was added to the file but never written to it
+                data = new byte[BufferPool.getPageSize()];
+                pageLsn = LogRecord.NO_LSN;
+            }
+            // the steps up to the page LSN already reached the disk
+            long applied = pageLsn;
+            for (PageOp op : e.getValue()) {
+                if (op.lsn <= pageLsn)
+                    continue;
+                op.record.apply(data, op.redo);
+                applied = op.lsn;
+            }
+            if (applied == pageLsn)
+                continue;
+            ArrayList<Page> written = byFile.get(pid.getTableId());
+            if (written == null) {
+                written = new ArrayList<Page>();
+                byFile.put(pid.getTableId(), written);
+            }
+            Page page = e.getValue().get(0).record.createPage(data);
+            page.setLsn(applied);
+            written.add(page);
+        }
+        for (Map.Entry<Integer, ArrayList<Page>> e : byFile.entrySet()) {
+            ArrayList<Page> written = e.getValue();
+            Collections.sort(written, new Comparator<Page>() {
+                public int compare(Page a, Page b) {
+                    return Integer.compare(a.getId().getPageNumber(), b.getId().getPageNumber());
+                }
+            });
+            Database.getCatalog().getDatabaseFile(e.getKey()).writePages(written);
+        }
+    }
+
     /** Print out a human readable represenation of the log */
-    public void print() throws IOException {
-        // some code goes here
+    public synchronized void print() throws IOException {
+        flushBuffer();
+        raf.seek(0);
+        System.out.println("checkpoint: " + raf.readLong());
+        LogSegments.Reader reader = segments.reader(segments.firstLsn());
+        try {
+            while (true) {
+                try {
+                    System.out.println(reader.next());
+                } catch (EOFException e) {
+                    break;
+                }
+            }
+        } finally {
+            reader.close();
+        }
     }
 
+    /** Force every record appended so far to disk. */
     public  synchronized void force() throws IOException {
-        raf.getChannel().force(true);
+        if (buffer != null)
+            buffer.forceAll();
+        else
+            segments.force();
+    }
+
+    /**
+     * Force the log to disk up to and including the record with the given
+     * LSN. Returns right away if that record is already durable; records
+     * appended after it may stay in memory.
+     *
+     * @param lsn the LSN of a record of this log
+     */
+    public void force(long lsn) throws IOException {
+        LogBuffer b;
+        synchronized (this) {
+            b = buffer;
+        }
+        if (b != null)
+            b.force(lsn);
     }
 
 }
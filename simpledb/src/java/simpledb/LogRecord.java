@@ -0,0 +1,305 @@
+package simpledb;
+
+import java.io.*;
+import java.util.*;
+import java.util.zip.CRC32;
+
+/**
+ * LogRecord is the in-memory form of one record of the {@link LogFile},
+ * and knows how to encode it to and decode it from the log.
+ * <p>
+ * On disk, a record is laid out as
+ * <pre>
+ *   int    length of the body
+ *   body:  byte   record type
+ *          long   transaction id
+ *          ...    type specific payload
+ *   int    CRC32 checksum of the body
+ *   long   previous LSN: the LSN of the previous record of the same
+ *          transaction, or {@link #NO_LSN}
+ *   long   LSN: the log offset at which the record starts
+ * </pre>
+ * The trailing LSN lets the log be read backwards, and the previous LSNs
+ * chain the records of each transaction from its last one to its first.
+ * Both are set as the record is appended, outside of the checksum: a
+ * record is only valid at its own LSN, and after its previous record. CHECKPOINT records
+ * carry the number of active transactions, followed by the id and the LSN
+ * of the first record of each, and then the number of dirty pages,
+ * followed by the page (type, table id, page number) and the recovery LSN
+ * of each: the LSN of the first UPDATE record of the page that may not
+ * have reached the table yet.
+ * <p>
+ * UPDATE records are physiological: rather than whole before and after
+ * images they carry the page (its type code, see
+ * {@link LogFile#registerPageType}, its table id and its page number) and
+ * only the byte ranges of the page that changed, each with its old and new
+ * contents:
+ * <pre>
+ *   byte   page type
+ *   int    table id
+ *   int    page number
+ *   int    number of ranges
+ *   ranges: int offset, int length, length old bytes, length new bytes
+ * </pre>
+ * Redo writes the new bytes of every range into the page, undo the old
+ * ones. Ranges closer to each other than {@link #MERGE_GAP} bytes are
+ * merged, since a range header costs more than the unchanged bytes.
+ */
+class LogRecord {
+
+    /** Bytes a record takes in addition to its body */
+    static final int OVERHEAD = LogFile.INT_SIZE + LogFile.INT_SIZE + 2 * LogFile.LONG_SIZE;
+
+    /** Previous LSN of the first record of a transaction */
+    static final long NO_LSN = -1;
+
+    /** Changed ranges separated by fewer unchanged bytes are logged as one */
+    static final int MERGE_GAP = 2 * LogFile.INT_SIZE;
+
+    /** A changed byte range of a page */
+    private static class Delta {
+        final int offset;
+        final byte[] before;
+        final byte[] after;
+
+        Delta(int offset, byte[] before, byte[] after) {
+            this.offset = offset;
+            this.before = before;
+            this.after = after;
+        }
+    }
+
+    final int type;
+    final long tid;
+    long lsn = -1;
+    long prevLsn = NO_LSN;
+
+    // UPDATE records: the page and its changed ranges
+    int pageType;
+    PageId pid;
+    private ArrayList<Delta> deltas;
+
+    // CHECKPOINT records: first LSN of each active transaction, and
+    // recovery LSN of each dirty page
+    Map<Long, Long> firstRecords;
+    Map<PageId, Long> dirtyPages;
+
+    LogRecord(int type, long tid) {
+        this.type = type;
+        this.tid = tid;
+    }
+
+    static LogRecord update(long tid, Page before, Page after) throws IOException {
+        LogRecord r = new LogRecord(LogFile.UPDATE_RECORD, tid);
+        r.pageType = LogFile.pageType(after);
+        r.pid = after.getId();
+        r.deltas = diff(before.getPageData(), after.getPageData());
+        return r;
+    }
+
+    /** @return the ranges in which the two images of a page differ */
+    private static ArrayList<Delta> diff(byte[] before, byte[] after) {
+        ArrayList<Delta> deltas = new ArrayList<Delta>();
+        int i = 0;
+        while (i < after.length) {
+            if (before[i] == after[i]) {
+                i++;
+                continue;
+            }
+            int start = i;
+            int end = i + 1;
+            for (int j = end; j < after.length && j - end < MERGE_GAP; j++) {
+                if (before[j] != after[j])
+                    end = j + 1;
+            }
+            deltas.add(new Delta(start, Arrays.copyOfRange(before, start, end),
+                                 Arrays.copyOfRange(after, start, end)));
+            i = end;
+        }
+        return deltas;
+    }
+
+    /** @return the number of bytes of the page this UPDATE record changes */
+    int changedBytes() {
+        int n = 0;
+        for (Delta d : deltas)
+            n += d.after.length;
+        return n;
+    }
+
+    /**
+     * Apply this UPDATE record, or revert it, in place on the serialized
+     * bytes of its page. Recovery replays several records on the same
+     * bytes and only rebuilds the page once, with {@link #createPage}.
+     */
+    void apply(byte[] data, boolean redo) {
+        for (Delta d : deltas) {
+            byte[] bytes = redo ? d.after : d.before;
+            System.arraycopy(bytes, 0, data, d.offset, bytes.length);
+        }
+    }
+
+    /** @return the page this UPDATE record applies to, rebuilt from its bytes */
+    Page createPage(byte[] data) throws IOException {
+        return LogFile.createPage(pageType, pid.getTableId(), pid.getPageNumber(), data);
+    }
+
+    static LogRecord checkpoint(Map<Long, Long> firstRecords, Map<PageId, Long> dirtyPages) {
+        LogRecord r = new LogRecord(LogFile.CHECKPOINT_RECORD, -1);
+        r.firstRecords = new LinkedHashMap<Long, Long>(firstRecords);
+        r.dirtyPages = new LinkedHashMap<PageId, Long>(dirtyPages);
+        return r;
+    }
+
+    /**
+     * Encode the record as it is written at the given position of the log.
+     *
+     * @param lsn the log offset at which the record will start
+     */
+    byte[] toBytes(long lsn) throws IOException {
+        this.lsn = lsn;
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(body);
+        out.writeByte(type);
+        out.writeLong(tid);
+        switch (type) {
+        case LogFile.UPDATE_RECORD:
+            out.writeByte(pageType);
+            out.writeInt(pid.getTableId());
+            out.writeInt(pid.getPageNumber());
+            out.writeInt(deltas.size());
+            for (Delta d : deltas) {
+                out.writeInt(d.offset);
+                out.writeInt(d.after.length);
+                out.write(d.before);
+                out.write(d.after);
+            }
+            break;
+        case LogFile.CHECKPOINT_RECORD:
+            out.writeInt(firstRecords.size());
+            for (Map.Entry<Long, Long> e : firstRecords.entrySet()) {
+                out.writeLong(e.getKey());
+                out.writeLong(e.getValue());
+            }
+            out.writeInt(dirtyPages.size());
+            for (Map.Entry<PageId, Long> e : dirtyPages.entrySet()) {
+                out.writeByte(LogFile.pageType(e.getKey()));
+                out.writeInt(e.getKey().getTableId());
+                out.writeInt(e.getKey().getPageNumber());
+                out.writeLong(e.getValue());
+            }
+            break;
+        }
+        out.flush();
+        byte[] bytes = body.toByteArray();
+
+        ByteArrayOutputStream record = new ByteArrayOutputStream(bytes.length + OVERHEAD);
+        out = new DataOutputStream(record);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+        out.writeInt(checksum(bytes));
+        out.writeLong(prevLsn);
+        out.writeLong(lsn);
+        out.flush();
+        return record.toByteArray();
+    }
+
+    /**
+     * Decode the record that starts at the current position of the log.
+     *
+     * @throws EOFException if the log ends before the record does, e.g.
+     *   because the last write was torn by a crash
+     * @throws IOException if the record is corrupt
+     */
+    static LogRecord read(RandomAccessFile raf) throws IOException {
+        return read(raf, raf.getFilePointer());
+    }
+
+    /**
+     * Decode the record that starts at the current position of a file
+     * holding part of the log.
+     *
+     * @param start the LSN of the record at the current position
+     * @see #read(RandomAccessFile)
+     */
+    static LogRecord read(RandomAccessFile raf, long start) throws IOException {
+        long pos = raf.getFilePointer();
+        int length = raf.readInt();
+        if (length < 9 || pos + length + OVERHEAD > raf.length())
+            throw new EOFException("incomplete log record at " + start);
+        byte[] bytes = new byte[length];
+        raf.readFully(bytes);
+        int crc = raf.readInt();
+        long prevLsn = raf.readLong();
+        long lsn = raf.readLong();
+        if (crc != checksum(bytes) || lsn != start || prevLsn >= start || prevLsn < NO_LSN)
+            throw new IOException("corrupt log record at " + start);
+
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+        LogRecord r = new LogRecord(in.readByte(), in.readLong());
+        r.lsn = lsn;
+        r.prevLsn = prevLsn;
+        switch (r.type) {
+        case LogFile.UPDATE_RECORD:
+            r.pageType = in.readUnsignedByte();
+            int tableId = in.readInt();
+            r.pid = LogFile.createPageId(r.pageType, tableId, in.readInt());
+            int ranges = in.readInt();
+            r.deltas = new ArrayList<Delta>(ranges);
+            for (int i = 0; i < ranges; i++) {
+                int offset = in.readInt();
+                byte[] before = new byte[in.readInt()];
+                byte[] after = new byte[before.length];
+                in.readFully(before);
+                in.readFully(after);
+                r.deltas.add(new Delta(offset, before, after));
+            }
+            break;
+        case LogFile.CHECKPOINT_RECORD:
+            int n = in.readInt();
+            r.firstRecords = new LinkedHashMap<Long, Long>();
+            for (int i = 0; i < n; i++)
+                r.firstRecords.put(in.readLong(), in.readLong());
+            n = in.readInt();
+            r.dirtyPages = new LinkedHashMap<PageId, Long>();
+            for (int i = 0; i < n; i++) {
+                int code = in.readUnsignedByte();
+                int table = in.readInt();
+                r.dirtyPages.put(LogFile.createPageId(code, table, in.readInt()), in.readLong());
+            }
+            break;
+        }
+        return r;
+    }
+
+    /**
+     * Set the previous LSN of an encoded record.
+     *
+     * @param record the record, see {@link #toBytes}
+     * @param prevLsn the LSN of the previous record of its transaction
+     */
+    static void setPrevLsn(byte[] record, long prevLsn) {
+        int end = record.length - LogFile.LONG_SIZE;
+        for (int i = 1; i <= LogFile.LONG_SIZE; i++)
+            record[end - i] = (byte) (prevLsn >>> (8 * (i - 1)));
+    }
+
+    private static int checksum(byte[] bytes) {
+        CRC32 crc = new CRC32();
+        crc.update(bytes, 0, bytes.length);
+        return (int) crc.getValue();
+    }
+
+    public String toString() {
+        String s;
+        switch (type) {
+        case LogFile.ABORT_RECORD: s = "ABORT"; break;
+        case LogFile.COMMIT_RECORD: s = "COMMIT"; break;
+        case LogFile.UPDATE_RECORD: s = "UPDATE " + pid + " (" + changedBytes() + " bytes)"; break;
+        case LogFile.BEGIN_RECORD: s = "BEGIN"; break;
+        case LogFile.CHECKPOINT_RECORD: s = "CHECKPOINT " + firstRecords + " " + dirtyPages; break;
+        default: s = "UNKNOWN(" + type + ")";
+        }
+        return lsn + ": " + s + " tid=" + tid + " prev=" + prevLsn;
+    }
+}
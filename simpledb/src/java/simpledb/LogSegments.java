@@ -0,0 +1,282 @@
+package simpledb;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.*;
+
+/**
+ * LogSegments stores the log as a series of fixed-size segment files,
+ * addressed by global LSN. The record at LSN l lives in segment
+ * l / segmentSize, at offset l % segmentSize, in the file named after the
+ * log file followed by the segment number. LSNs are never reused, so
+ * records are never rewritten: the log is truncated by deleting the
+ * segments that end before the oldest LSN still needed.
+ * <p>
+ * A record never spans two segments. When a record does not fit in the
+ * rest of a segment, the writer pads the segment with zeros and starts the
+ * record at the beginning of the next one; readers skip a zero length, or
+ * the end of a segment, to the next segment.
+ *
+ * @see LogBuffer
+ * @Threadsafe
+ */
+class LogSegments {
+
+    /** Default size of a segment, in bytes */
+    static final long DEFAULT_SEGMENT_SIZE = 16 << 20;
+
+    private final File dir;
+    private final String prefix;
+    final long segmentSize;
+
+    // open segments by number, and the segments written since the last
+    // force. protected by this
+    private final TreeMap<Long, RandomAccessFile> open;
+    private final TreeSet<Long> unforced;
+    // held to force or close segments, before this
+    private final Object forceLock = new Object();
+
+    /**
+     * @param base the log file; segments are stored next to it
+     * @param segmentSize the size of a segment, in bytes
+     */
+    LogSegments(File base, long segmentSize) {
+        File abs = base.getAbsoluteFile();
+        this.dir = abs.getParentFile();
+        this.prefix = abs.getName() + ".";
+        this.segmentSize = segmentSize;
+        this.open = new TreeMap<Long, RandomAccessFile>();
+        this.unforced = new TreeSet<Long>();
+    }
+
+    private File file(long segment) {
+        return new File(dir, prefix + String.format("%012d", segment));
+    }
+
+    /** @return the numbers of the segments on disk, in order */
+    TreeSet<Long> segments() {
+        TreeSet<Long> segments = new TreeSet<Long>();
+        String[] names = dir.list();
+        if (names == null)
+            return segments;
+        for (String name : names) {
+            if (!name.startsWith(prefix))
+                continue;
+            try {
+                segments.add(Long.parseLong(name.substring(prefix.length())));
+            } catch (NumberFormatException e) {
+                // not a segment
+            }
+        }
+        return segments;
+    }
+
+    /** @return the LSN of the first record of the log */
+    long firstLsn() {
+        TreeSet<Long> segments = segments();
+        return segments.isEmpty() ? 0 : segments.first() * segmentSize;
+    }
+
+    /** @return the LSN following the last byte written to the log */
+    long endLsn() {
+        TreeSet<Long> segments = segments();
+        if (segments.isEmpty())
+            return 0;
+        long last = segments.last();
+        return last * segmentSize + file(last).length();
+    }
+
+    /**
+     * @return the LSN at which a record of the given length appended at
+     *   pos starts: pos, or the start of the next segment if the record
+     *   does not fit in the segment of pos
+     */
+    long placeRecord(long pos, int length) {
+        long end = (pos / segmentSize + 1) * segmentSize;
+        return pos + length <= end ? pos : end;
+    }
+
+    private synchronized FileChannel channel(long segment) throws IOException {
+        RandomAccessFile raf = open.get(segment);
+        if (raf == null) {
+            raf = new RandomAccessFile(file(segment), "rw");
+            open.put(segment, raf);
+        }
+        return raf.getChannel();
+    }
+
+    // noted once the write is done, so that a force running meanwhile
+    // does not count it as forced
+    private synchronized void written(long segment) {
+        unforced.add(segment);
+    }
+
+    /**
+     * Write bytes to the log, splitting them at segment boundaries. Only
+     * one thread writes at a time.
+     *
+     * @param buf the bytes to write
+     * @param lsn the LSN of the first byte
+     */
+    void write(ByteBuffer buf, long lsn) throws IOException {
+        while (buf.hasRemaining()) {
+            long segment = lsn / segmentSize;
+            int room = (int) Math.min(buf.remaining(), (segment + 1) * segmentSize - lsn);
+            ByteBuffer part = buf.duplicate();
+            part.limit(part.position() + room);
+            FileChannel channel = channel(segment);
+            long pos = lsn - segment * segmentSize;
+            while (part.hasRemaining())
+                pos += channel.write(part, pos);
+            written(segment);
+            buf.position(buf.position() + room);
+            lsn += room;
+        }
+    }
+
+    /**
+     * Force every segment written since the last force to disk, and close
+     * those that will not be written again.
+     */
+    void force() throws IOException {
+        synchronized (forceLock) {
+            ArrayList<FileChannel> channels = new ArrayList<FileChannel>();
+            synchronized (this) {
+                for (long segment : unforced)
+                    channels.add(open.get(segment).getChannel());
+                unforced.clear();
+            }
+            // writes go on meanwhile
+            for (FileChannel channel : channels)
+                channel.force(false);
+            synchronized (this) {
+                while (open.size() > 1 && !unforced.contains(open.firstKey()))
+                    open.remove(open.firstKey()).close();
+            }
+        }
+    }
+
+    /** Delete the segments that only hold records before the given LSN. */
+    void deleteBefore(long lsn) throws IOException {
+        synchronized (forceLock) {
+            synchronized (this) {
+                for (long segment : segments().headSet(lsn / segmentSize)) {
+                    RandomAccessFile raf = open.remove(segment);
+                    if (raf != null)
+                        raf.close();
+                    unforced.remove(segment);
+                    file(segment).delete();
+                }
+            }
+        }
+    }
+
+    /** Drop the log from the given LSN on. */
+    void truncate(long lsn) throws IOException {
+        synchronized (forceLock) {
+            synchronized (this) {
+                long last = lsn / segmentSize;
+                for (long segment : segments().tailSet(last)) {
+                    RandomAccessFile raf = open.remove(segment);
+                    if (raf != null)
+                        raf.close();
+                    unforced.remove(segment);
+                    if (segment == last) {
+                        raf = new RandomAccessFile(file(segment), "rw");
+                        raf.setLength(lsn - segment * segmentSize);
+                        raf.getChannel().force(false);
+                        raf.close();
+                    } else {
+                        file(segment).delete();
+                    }
+                }
+            }
+        }
+    }
+
+    /** Close the open segments, without forcing them. */
+    void close() throws IOException {
+        synchronized (forceLock) {
+            synchronized (this) {
+                for (RandomAccessFile raf : open.values())
+                    raf.close();
+                open.clear();
+                unforced.clear();
+            }
+        }
+    }
+
+    /**
+     * @return a reader of the records written to the log, starting with
+     *   the record at the given LSN
+     */
+    Reader reader(long lsn) {
+        return new Reader(lsn);
+    }
+
+    /**
+     * Reader reads the records of the log in order. It only sees the
+     * records already written, see {@link LogBuffer#flush}.
+     */
+    class Reader {
+        private long lsn;
+        private long segment = -1;
+        private RandomAccessFile raf;
+
+        private Reader(long lsn) {
+            this.lsn = lsn;
+        }
+
+        /** @return the LSN following the last record read */
+        long position() {
+            return lsn;
+        }
+
+        /**
+         * Move to the given LSN, e.g. to follow the previous LSNs of a
+         * transaction backwards.
+         */
+        void seek(long lsn) {
+            this.lsn = lsn;
+        }
+
+        /**
+         * @return the next record of the log
+         * @throws EOFException at the end of the log, which may be a torn
+         *   record
+         * @throws IOException if the record is corrupt
+         */
+        LogRecord next() throws IOException {
+            while (true) {
+                if (segment != lsn / segmentSize) {
+                    close();
+                    segment = lsn / segmentSize;
+                    if (!file(segment).exists())
+                        throw new EOFException("end of log at " + lsn);
+                    raf = new RandomAccessFile(file(segment), "r");
+                }
+                long offset = lsn - segment * segmentSize;
+                if (offset + LogFile.INT_SIZE <= raf.length()) {
+                    raf.seek(offset);
+                    if (raf.readInt() != 0) {
+                        raf.seek(offset);
+                        LogRecord r = LogRecord.read(raf, lsn);
+                        lsn += raf.getFilePointer() - offset;
+                        return r;
+                    }
+                }
+                // padding, or the end of a segment: go on with the next one
+                if (!file(segment + 1).exists())
+                    throw new EOFException("end of log at " + lsn);
+                lsn = (segment + 1) * segmentSize;
+            }
+        }
+
+        void close() throws IOException {
+            if (raf != null)
+                raf.close();
+            raf = null;
+        }
+    }
+}
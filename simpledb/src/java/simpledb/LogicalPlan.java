@@ -2,6 +2,8 @@ package simpledb;
 import java.util.Map;
 import java.util.Vector;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Set;
 import java.util.Iterator;
 import java.io.File;
 import java.util.ArrayList;
@@ -271,6 +273,106 @@ public class LogicalPlan {
         throw new ParsingException("Unknown predicate " + s);
     }
 
+    /**
+     * Choose how to scan a table through one of its secondary indexes, if
+     * one is of use: to look up the tuples matching a filter on the indexed
+     * field, preferring an equality over a range as it is expected to select
+     * fewer tuples, and without reading the table at all when the index
+     * holds every field of the table the query references. Such a covering
+     * index is also scanned in full rather than the table. Equalities are
+     * looked up in a hash index rather than a B+ tree when both would do,
+     * as the hash index reads a single bucket instead of a path of pages.
+     * @param t the transaction the scan will run as a part of
+     * @param table the table to scan
+     * @param indexedFilters the filter applied by the returned scan, if any,
+     *   is added to this set
+     * @return the scan, or null to scan the table itself
+     */
+    private OpIterator indexScan(TransactionId t, LogicalScanNode table,
+            Set<LogicalFilterNode> indexedFilters) {
+        TupleDesc td = Database.getCatalog().getTupleDesc(table.t);
+        Set<Integer> referenced = referencedFields(table, td);
+        SecondaryIndex best = null;
+        LogicalFilterNode bestFilter = null;
+        boolean bestCovering = false;
+        int bestScore = 0;
+        for (SecondaryIndex index : Database.getCatalog().getIndexes(table.t)) {
+            LogicalFilterNode lf = null;
+            for (LogicalFilterNode f : filters) {
+                if (!f.tableAlias.equals(table.alias) || !index.getFile().supports(f.p))
+                    continue;
+                if (!td.getFieldName(index.getField()).equals(f.fieldPureName))
+                    continue;
+                if (lf == null || (f.p == Predicate.Op.EQUALS && lf.p != Predicate.Op.EQUALS))
+                    lf = f;
+            }
+            boolean covering = index.covers(referenced);
+            boolean hashed = lf != null && lf.p == Predicate.Op.EQUALS && index.getFile() instanceof HashFile;
+            int score = (lf == null ? 0 : lf.p == Predicate.Op.EQUALS ? 8 : 4) + (covering ? 2 : 0)
+                    + (hashed ? 1 : 0);
+            if (score > bestScore) {
+                best = index;
+                bestFilter = lf;
+                bestCovering = covering;
+                bestScore = score;
+            }
+        }
+        if (best == null)
+            return null;
+        IndexPredicate ipred = null;
+        if (bestFilter != null) {
+            indexedFilters.add(bestFilter);
+            ipred = new IndexPredicate(bestFilter.p,
+                    parseConstant(td.getFieldType(best.getField()), bestFilter.c));
+        }
+        return new BTreeScan(t, best, table.alias, ipred, bestCovering);
+    }
+
+    /**
+     * @return the indexes of the fields of a table referenced anywhere in
+     *   the query, all of them if the select list has *
+     */
+    private Set<Integer> referencedFields(LogicalScanNode table, TupleDesc td) {
+        HashSet<String> names = new HashSet<String>();
+        for (LogicalSelectListNode si : selectList)
+            names.add(si.fname);
+        names.add(aggField);
+        names.add(groupByField);
+        names.add(oByField);
+        for (LogicalFilterNode lf : filters)
+            names.add(lf.fieldQuantifiedName);
+        for (LogicalJoinNode lj : joins) {
+            names.add(lj.f1QuantifiedName);
+            names.add(lj.f2QuantifiedName);
+        }
+
+        HashSet<Integer> fields = new HashSet<Integer>();
+        String prefix = table.alias + ".";
+        for (String name : names) {
+            if (name == null)
+                continue;
+            if (name.equals("null.*")) {
+                for (int i = 0; i < td.numFields(); i++)
+                    fields.add(i);
+            } else if (name.startsWith(prefix)) {
+                try {
+                    fields.add(td.fieldNameToIndex(name.substring(prefix.length())));
+                } catch (NoSuchElementException e) {
+                    // reported when the plan is built
+                }
+            }
+        }
+        return fields;
+    }
+
+    /** Convert the constant of a filter to a field of the given type */
+    private static Field parseConstant(Type ftyp, String c) {
+        if (ftyp == Type.INT_TYPE)
+            return new IntField(new Integer(c).intValue());
+        else
+            return new StringField(c, Type.STRING_LEN);
+    }
+
     /** Convert this LogicalPlan into a physicalPlan represented by a {@link OpIterator}.  Attempts to
      *   find the optimal plan by using {@link JoinOptimizer#orderJoins} to order the joins in the plan.
      *  @param t The transaction that the returned OpIterator will run as a part of
@@ -289,15 +391,19 @@ public class LogicalPlan {
         HashMap<String,String> equivMap = new HashMap<String,String>();
         HashMap<String,Double> filterSelectivities = new HashMap<String, Double>();
         HashMap<String,TableStats> statsMap = new HashMap<String,TableStats>();
+        HashSet<LogicalFilterNode> indexedFilters = new HashSet<LogicalFilterNode>();
 
         while (tableIt.hasNext()) {
             LogicalScanNode table = tableIt.next();
-            SeqScan ss = null;
+            OpIterator ss = null;
             try {
                  ss = new SeqScan(t, Database.getCatalog().getDatabaseFile(table.t).getId(), table.alias);
             } catch (NoSuchElementException e) {
                 throw new ParsingException("Unknown table " + table.t);
             }
+            OpIterator is = indexScan(t, table, indexedFilters);
+            if (is != null)
+                ss = is;
             
             subplanMap.put(table.alias,ss);
             String baseTableName = Database.getCatalog().getTableName(table.t);
@@ -323,10 +429,7 @@ public class LogicalPlan {
             } catch (java.util.NoSuchElementException e) {
                 throw new ParsingException("Unknown field in filter expression " + lf.fieldQuantifiedName);
             }
-            if (ftyp == Type.INT_TYPE)
-                f = new IntField(new Integer(lf.c).intValue());
-            else
-                f = new StringField(lf.c, Type.STRING_LEN);
+            f = parseConstant(ftyp, lf.c);
 
             Predicate p = null;
             try {
@@ -334,7 +437,8 @@ public class LogicalPlan {
             } catch (NoSuchElementException e) {
                 throw new ParsingException("Unknown field " + lf.fieldQuantifiedName);
             }
-            subplanMap.put(lf.tableAlias, new Filter(p, subplan));
+            if (!indexedFilters.contains(lf))
+                subplanMap.put(lf.tableAlias, new Filter(p, subplan));
 
             TableStats s = statsMap.get(Database.getCatalog().getTableName(this.getTableId(lf.tableAlias)));
             
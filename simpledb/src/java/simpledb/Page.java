@@ -56,4 +56,20 @@ public interface Page {
      * copy current content to the before image.
      */
     public void setBeforeImage();
+
+    /**
+     * Return the LSN of the last logged update written with this page, so
+     * that recovery can tell the updates the page on disk already holds.
+     * Pages that do not store it return -1.
+     *
+     * @return the page LSN
+     */
+    public long getLsn();
+
+    /**
+     * Set the page LSN, before the page is written out.
+     *
+     * @see #getLsn
+     */
+    public void setLsn(long lsn);
 }
@@ -0,0 +1,32 @@
+package simpledb;
+
+import java.io.IOException;
+
+/**
+ * PageFactory rebuilds the pages of one page type from their serialized
+ * bytes. Each factory is registered with {@link LogFile#registerPageType}
+ * under a one-byte type code, which log records store in place of the
+ * class names of the page and of its id.
+ */
+public interface PageFactory {
+
+    /**
+     * Create the id of a page of this type.
+     *
+     * @param tableId the table the page belongs to
+     * @param pgNo the number of the page within its table
+     * @return the page id
+     */
+    public PageId createPageId(int tableId, int pgNo);
+
+    /**
+     * Create a page from its serialized form.
+     *
+     * @param tableId the table the page belongs to
+     * @param pgNo the number of the page within its table
+     * @param data the bytes returned by {@link Page#getPageData}
+     * @return the page
+     * @throws IOException if the data does not describe a valid page
+     */
+    public Page createPage(int tableId, int pgNo, byte[] data) throws IOException;
+}
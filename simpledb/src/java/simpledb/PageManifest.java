@@ -0,0 +1,106 @@
+package simpledb;
+
+import java.io.*;
+import java.lang.reflect.Constructor;
+import java.util.*;
+
+/**
+ * PageManifest reads and writes the list of hot pages the BufferPool uses
+ * to warm itself up after a restart. The manifest is a small binary file
+ * holding, for every page, the name of its PageId class, the integers of
+ * its {@link PageId#serialize} form and the number of times the page was
+ * accessed while it was resident. Entries are stored hottest first.
+ *
+ * @see BufferPool#saveManifest
+ * @see BufferPool#warmUp
+ */
+class PageManifest {
+
+    private static final int MAGIC = 0x53444248; // "SDBH"
+
+    /**
+     * Write the manifest, replacing any existing one only once the new
+     * one is complete, so that a crash while saving leaves the previous
+     * manifest intact.
+     *
+     * @param f the manifest file
+     * @param counts the access count of each page to record
+     * @param limit the maximum number of pages to record
+     * @return the number of pages recorded
+     * @throws IOException if the manifest cannot be written
+     */
+    static int save(File f, Map<PageId, Integer> counts, int limit) throws IOException {
+        ArrayList<Map.Entry<PageId, Integer>> entries =
+            new ArrayList<Map.Entry<PageId, Integer>>(counts.entrySet());
+        Collections.sort(entries, new Comparator<Map.Entry<PageId, Integer>>() {
+            public int compare(Map.Entry<PageId, Integer> a, Map.Entry<PageId, Integer> b) {
+                return Integer.compare(b.getValue(), a.getValue());
+            }
+        });
+        int n = Math.min(limit, entries.size());
+
+        File tmp = new File(f.getAbsolutePath() + ".tmp");
+        DataOutputStream out = new DataOutputStream(
+            new BufferedOutputStream(new FileOutputStream(tmp)));
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(n);
+            for (int i = 0; i < n; i++) {
+                PageId pid = entries.get(i).getKey();
+                int[] data = pid.serialize();
+                out.writeUTF(pid.getClass().getName());
+                out.writeInt(data.length);
+                for (int d : data)
+                    out.writeInt(d);
+                out.writeInt(entries.get(i).getValue());
+            }
+        } finally {
+            out.close();
+        }
+        if (!tmp.renameTo(f)) {
+            f.delete();
+            if (!tmp.renameTo(f))
+                throw new IOException("unable to replace manifest " + f);
+        }
+        return n;
+    }
+
+    /**
+     * Read the page ids recorded in a manifest, hottest first.
+     *
+     * @param f the manifest file
+     * @return the page ids, or an empty list if there is no manifest
+     * @throws IOException if the manifest exists but cannot be read
+     */
+    static List<PageId> load(File f) throws IOException {
+        ArrayList<PageId> pids = new ArrayList<PageId>();
+        if (!f.exists())
+            return pids;
+        DataInputStream in = new DataInputStream(
+            new BufferedInputStream(new FileInputStream(f)));
+        try {
+            if (in.readInt() != MAGIC)
+                throw new IOException("not a buffer pool manifest: " + f);
+            int n = in.readInt();
+            for (int i = 0; i < n; i++) {
+                String className = in.readUTF();
+                Object[] args = new Object[in.readInt()];
+                Class<?>[] types = new Class<?>[args.length];
+                for (int j = 0; j < args.length; j++) {
+                    args[j] = in.readInt();
+                    types[j] = int.class;
+                }
+                in.readInt(); // access count, only used for ordering
+                try {
+                    Constructor<?> c = Class.forName(className).getConstructor(types);
+                    pids.add((PageId) c.newInstance(args));
+                } catch (Exception e) {
+                    throw new IOException("bad page id in manifest " + f + ": " + e);
+                }
+            }
+        } finally {
+            in.close();
+        }
+        return pids;
+    }
+}
@@ -0,0 +1,66 @@
+package simpledb;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.*;
+
+/**
+ * PageWriter pushes a batch of pages of a single file to disk in file
+ * order. Pages that are adjacent on disk are merged into a single vectored
+ * write, and the file is forced to stable storage once, after the last
+ * write, rather than once per page.
+ *
+ * @see DbFile#writePages
+ */
+class PageWriter {
+
+    /**
+     * Write the given page images to the file.
+     *
+     * @param f the file to write
+     * @param pages the page images to write, keyed by their offset in the file
+     * @return the number of (vectored) writes issued
+     * @throws IOException if a write fails
+     */
+    static int write(File f, SortedMap<Long, byte[]> pages) throws IOException {
+        if (pages.isEmpty())
+            return 0;
+        int writes = 0;
+        RandomAccessFile raf = new RandomAccessFile(f, "rw");
+        try {
+            FileChannel channel = raf.getChannel();
+            ArrayList<ByteBuffer> run = new ArrayList<ByteBuffer>();
+            long runStart = -1;
+            long runEnd = -1;
+            for (Map.Entry<Long, byte[]> e : pages.entrySet()) {
+                if (e.getKey() != runEnd && !run.isEmpty()) {
+                    writeRun(channel, runStart, run);
+                    writes++;
+                    run.clear();
+                }
+                if (run.isEmpty())
+                    runStart = e.getKey();
+                run.add(ByteBuffer.wrap(e.getValue()));
+                runEnd = e.getKey() + e.getValue().length;
+            }
+            writeRun(channel, runStart, run);
+            writes++;
+            channel.force(false);
+        } finally {
+            raf.close();
+        }
+        return writes;
+    }
+
+    private static void writeRun(FileChannel channel, long start, ArrayList<ByteBuffer> run)
+            throws IOException {
+        ByteBuffer[] buffers = run.toArray(new ByteBuffer[run.size()]);
+        ByteBuffer last = buffers[buffers.length - 1];
+        channel.position(start);
+        // a vectored write may be cut short, so keep going until the
+        // last buffer has been drained
+        while (last.hasRemaining())
+            channel.write(buffers);
+    }
+}
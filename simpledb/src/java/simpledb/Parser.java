@@ -4,6 +4,8 @@ import Zql.*;
 import java.io.*;
 import java.lang.reflect.InvocationTargetException;
 import java.util.*;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 import jline.ArgumentCompletor;
 import jline.ConsoleReader;
@@ -453,16 +455,164 @@ public class Parser {
             if (curtrans != null)
                 throw new simpledb.ParsingException(
                         "Can't start new transactions until current transaction has been committed or rolledback.");
-            curtrans = new Transaction();
+            curtrans = new Transaction(s.isReadOnly());
             curtrans.start();
             inUserTrans = true;
-            System.out.println("Started a new transaction tid = "
-                    + curtrans.getId().getId());
+            System.out.println("Started a new "
+                    + (curtrans.isReadOnly() ? "read-only snapshot " : "")
+                    + "transaction tid = " + curtrans.getId().getId());
         } else {
             throw new simpledb.ParsingException("Unsupported operation");
         }
     }
 
+    /** Print the counters of the buffer pool, one line per table */
+    public void handleShowStatsStatement() {
+        System.out.println(Database.getBufferPool().getStats().report());
+    }
+
+    static final Pattern CREATE_INDEX = Pattern.compile(
+            "create\\s+index\\s+(\\w+)\\s+on\\s+(\\w+)\\s*\\(\\s*(\\w+(?:\\s*,\\s*\\w+)*)\\s*\\)"
+                    + "(?:\\s+include\\s*\\(\\s*(\\w+(?:\\s*,\\s*\\w+)*)\\s*\\))?"
+                    + "(?:\\s+with\\s*\\(\\s*fillfactor\\s*=\\s*(\\d+)\\s*\\))?\\s*;?",
+            Pattern.CASE_INSENSITIVE);
+
+    /**
+     * Build a B+ tree over an existing table, for "create index name on table
+     * (column [, column ...]) [include (column [, column ...])]
+     * [with (fillfactor = percent)]". The index is bulk loaded in its own
+     * transaction and only left in the catalog if the load commits.
+     * <p>
+     * On a heap file table, the index is a SecondaryIndex on a single column,
+     * which the buffer pool keeps up to date with the table from then on. The
+     * include columns are stored in its entries, so that queries on them are
+     * answered from the index alone, see SecondaryIndex#coveringIterator.
+     * Its definition is saved to the schema file the tables were loaded
+     * from, so that the index is registered again on the next start, see
+     * Catalog#saveIndex. On other tables, the index is a copy of the table sorted on the columns,
+     * added to the catalog as a table of its own under the given name.
+     * <p>
+     * A fillfactor also applies to the right-most splits of later inserts,
+     * see BTreeFile#setFillFactor.
+     */
+    public void handleCreateIndexStatement(String cmd)
+            throws simpledb.ParsingException, IOException, DbException,
+            TransactionAbortedException {
+        Matcher m = CREATE_INDEX.matcher(cmd.trim());
+        if (!m.matches())
+            throw new simpledb.ParsingException("Invalid CREATE INDEX statement: " + cmd);
+        String name = m.group(1);
+        DbFile source;
+        try {
+            source = Database.getCatalog().getDatabaseFile(
+                    Database.getCatalog().getTableId(m.group(2)));
+        } catch (NoSuchElementException e) {
+            throw new simpledb.ParsingException("Unknown table " + m.group(2));
+        }
+        try {
+            Database.getCatalog().getTableId(name);
+            throw new simpledb.ParsingException("Table " + name + " already exists");
+        } catch (NoSuchElementException e) {
+            // the name is free
+        }
+        int[] keyFields = columnIndexes(source.getTupleDesc(), m.group(3));
+        int[] included = m.group(4) == null ? new int[0] : columnIndexes(source.getTupleDesc(), m.group(4));
+        double fillFactor = m.group(5) == null ? 1.0 : Integer.parseInt(m.group(5)) / 100.0;
+        if (fillFactor < 0.5 || fillFactor > 1.0)
+            throw new simpledb.ParsingException("fillfactor must be between 50 and 100");
+        if (source instanceof HeapFile && keyFields.length != 1)
+            throw new simpledb.ParsingException("Indexes on heap file tables are on a single column");
+        if (!(source instanceof HeapFile) && included.length > 0)
+            throw new simpledb.ParsingException("Include columns are only supported on heap file tables");
+
+        File dir = source instanceof HeapFile ? ((HeapFile) source).getFile().getAbsoluteFile().getParentFile() : null;
+        File f = new File(dir, name + ".dat");
+        if (f.exists())
+            throw new simpledb.ParsingException("File " + f + " already exists");
+        // the loader writes the file directly, and a failed load leaves
+        // nothing behind: the file is deleted and a secondary index is taken
+        // out of the catalog again
+        Transaction t = new Transaction();
+        t.start();
+        BTreeFile bf;
+        SecondaryIndex index = null;
+        try {
+            if (source instanceof HeapFile) {
+                index = SecondaryIndex.create(t.getId(), (HeapFile) source, keyFields[0],
+                        included, f, fillFactor);
+                bf = (BTreeFile) index.getFile();
+            } else {
+                bf = new BTreeFile(f, keyFields, source.getTupleDesc());
+                new BTreeBulkLoader(bf, fillFactor).load(t.getId(), source);
+            }
+        } catch (IOException | DbException | TransactionAbortedException | RuntimeException e) {
+            t.abort();
+            f.delete();
+            throw e;
+        }
+        if (m.group(5) != null)
+            bf.setFillFactor(fillFactor);
+        t.commit();
+        if (index != null)
+            Database.getCatalog().saveIndex(name, index);
+        else
+            Database.getCatalog().addTable(bf, name);
+        System.out.println("Index " + name + " created: " + bf.numPages() + " pages");
+    }
+
+    /**
+     * @return the indexes in td of the comma-separated column names
+     */
+    private static int[] columnIndexes(TupleDesc td, String names)
+            throws simpledb.ParsingException {
+        String[] columns = names.split("\\s*,\\s*");
+        int[] fields = new int[columns.length];
+        for (int i = 0; i < columns.length; i++) {
+            try {
+                fields[i] = td.fieldNameToIndex(columns[i]);
+            } catch (NoSuchElementException e) {
+                throw new simpledb.ParsingException("Unknown column " + columns[i]);
+            }
+        }
+        return fields;
+    }
+
+    static final Pattern REORGANIZE_INDEX = Pattern.compile(
+            "reorganize\\s+index\\s+(\\w+)"
+                    + "(?:\\s+with\\s*\\(\\s*fillfactor\\s*=\\s*(\\d+)\\s*\\))?\\s*;?",
+            Pattern.CASE_INSENSITIVE);
+
+    /**
+     * Compact and re-sequence the leaves of a B+ tree, for
+     * "reorganize index name [with (fillfactor = percent)]". The tree stays
+     * available to other transactions, see BTreeReorganizer.
+     */
+    public void handleReorganizeIndexStatement(String cmd)
+            throws simpledb.ParsingException, IOException, DbException,
+            TransactionAbortedException {
+        Matcher m = REORGANIZE_INDEX.matcher(cmd.trim());
+        if (!m.matches())
+            throw new simpledb.ParsingException("Invalid REORGANIZE INDEX statement: " + cmd);
+        DbFile file;
+        try {
+            file = Database.getCatalog().getDatabaseFile(
+                    Database.getCatalog().getTableId(m.group(1)));
+        } catch (NoSuchElementException e) {
+            throw new simpledb.ParsingException("Unknown index " + m.group(1));
+        }
+        if (!(file instanceof BTreeFile))
+            throw new simpledb.ParsingException(m.group(1) + " is not a B+ tree");
+        double fillFactor = m.group(2) == null ? 1.0 : Integer.parseInt(m.group(2)) / 100.0;
+        if (fillFactor < 0.5 || fillFactor > 1.0)
+            throw new simpledb.ParsingException("fillfactor must be between 50 and 100");
+
+        BTreeFile bf = (BTreeFile) file;
+        int before = bf.numPages();
+        new BTreeReorganizer(bf, fillFactor).reorganize();
+        System.out.println("Index " + m.group(1) + " reorganized: " + before + " -> "
+                + bf.numPages() + " pages");
+    }
+
     public LogicalPlan generateLogicalPlan(TransactionId tid, String s)
             throws simpledb.ParsingException {
         ByteArrayInputStream bis = new ByteArrayInputStream(s.getBytes());
@@ -581,7 +731,8 @@ public class Parser {
     // Basic SQL completions
     public static final String[] SQL_COMMANDS = { "select", "from", "where",
             "group by", "max(", "min(", "avg(", "count", "rollback", "commit",
-            "insert", "delete", "values", "into" };
+            "insert", "delete", "values", "into", "show stats", "create index",
+            "reorganize index" };
 
     public static void main(String argv[]) throws IOException {
 
@@ -597,8 +748,18 @@ public class Parser {
 
     static final String usage = "Usage: parser catalogFile [-explain] [-f queryFile]";
     static final int SLEEP_TIME = 1000;
+    static final long MANIFEST_PERIOD = 5 * 60 * 1000;
+    static final long CHECKPOINT_PERIOD = 60 * 1000;
 
     protected void shutdown() {
+        BufferPool bp = Database.getBufferPool();
+        bp.stopManifestWriter();
+        Database.getLogFile().stopCheckpointer();
+        try {
+            bp.saveManifest(new File(BufferPool.MANIFEST_FILENAME));
+        } catch (IOException e) {
+            System.out.println("Unable to save buffer pool manifest: " + e.getMessage());
+        }
         System.out.println("Bye");
     }
 
@@ -609,6 +770,15 @@ public class Parser {
         Database.getCatalog().loadSchema(argv[0]);
         TableStats.computeStatistics();
 
+        // drop the pages read to compute the statistics, reload the pages
+        // that were hot before the last shutdown, and keep the list up to
+        // date in case we do not shut down cleanly
+        File manifest = new File(BufferPool.MANIFEST_FILENAME);
+        Database.getBufferPool().evictCleanPages();
+        Database.getBufferPool().warmUp(manifest);
+        Database.getBufferPool().startManifestWriter(manifest, MANIFEST_PERIOD);
+        Database.getLogFile().startCheckpointer(CHECKPOINT_PERIOD);
+
         String queryFile = null;
 
         if (argv.length > 1) {
@@ -681,6 +851,36 @@ public class Parser {
                         quit = true;
                         break;
                     }
+                    if (cmd.equalsIgnoreCase("show stats;")) {
+                        handleShowStatsStatement();
+                        line = line.substring(split + 1);
+                        buffer = new StringBuilder();
+                        continue;
+                    }
+                    if (cmd.toLowerCase().startsWith("create index")) {
+                        try {
+                            handleCreateIndexStatement(cmd);
+                        } catch (simpledb.ParsingException e) {
+                            System.out.println("Invalid SQL expression: \n \t" + e.getMessage());
+                        } catch (Exception e) {
+                            e.printStackTrace();
+                        }
+                        line = line.substring(split + 1);
+                        buffer = new StringBuilder();
+                        continue;
+                    }
+                    if (cmd.toLowerCase().startsWith("reorganize index")) {
+                        try {
+                            handleReorganizeIndexStatement(cmd);
+                        } catch (simpledb.ParsingException e) {
+                            System.out.println("Invalid SQL expression: \n \t" + e.getMessage());
+                        } catch (Exception e) {
+                            e.printStackTrace();
+                        }
+                        line = line.substring(split + 1);
+                        buffer = new StringBuilder();
+                        continue;
+                    }
 
                     long startTime = System.currentTimeMillis();
                     processNextStatement(new ByteArrayInputStream(
@@ -0,0 +1,470 @@
+package simpledb;
+
+import java.io.*;
+import java.util.*;
+
+import simpledb.Predicate.Op;
+
+/**
+ * SecondaryIndex is an index on a column of a heap file table. Every tuple of
+ * the table has an entry in the index file, made of the value of the indexed
+ * column and the RecordId of the tuple, so that lookups on the column read
+ * the matching tuples only instead of scanning the table. Entries with the
+ * same value are told apart by their RecordId.
+ * <p>
+ * A B+ tree is keyed on the value, page and slot together, so the entry of a
+ * tuple is found directly however many other tuples share its value, and
+ * tuples with the same value come out in the order of the table. Lookups on
+ * the value alone search the tree for the keys starting with it, see
+ * {@link CompositeField}.
+ * <p>
+ * The entries are held in a B+ tree, which serves point and range lookups in
+ * the order of the column, or in a hash file, which only serves point
+ * lookups but reads a single bucket for them rather than a path from the
+ * root of a tree, see {@link #createHash}.
+ * <p>
+ * An index may also include other columns of the table in its entries. A
+ * query referencing only the indexed and included columns is then answered
+ * from the index alone, without reading the heap pages of the table, see
+ * {@link #coveringIterator}.
+ * <p>
+ * Indexes are built with {@link #create}, or registered with
+ * {@link Catalog#addIndex} when their file already exists, as
+ * {@link Catalog#loadSchema} does for the indexes saved to the schema
+ * file. From then on
+ * {@link BufferPool#insertTuple} and {@link BufferPool#deleteTuple} keep them
+ * up to date, in the transaction that changes the table.
+ */
+public class SecondaryIndex {
+
+	// the fields of an entry: the value, the included columns, then the page
+	// and slot of the tuple
+	static final int KEY = 0;
+	private final int page, slot;
+
+	private final int tableid;
+	private final int field;
+	private final int[] included;
+	private final IndexFile file;
+
+	// the columns of the table found in the entries, in table order, and
+	// where each one is in an entry
+	private final TupleDesc coveredDesc;
+	private final int[] coveredEntryFields;
+
+	/**
+	 * Create an index on a heap file table from the file holding its entries.
+	 *
+	 * @param tableid - the id of the indexed table, which must be in the catalog
+	 * @param field - the index of the indexed column in the table
+	 * @param included - the indexes of the other columns of the table included
+	 *        in the entries
+	 * @param file - the B+ tree or hash file, with the tuple descriptor given
+	 *        by {@link #getEntryDesc}, and keyed as by {@link #getKeyFields}
+	 *        for a B+ tree or on the first field for a hash file
+	 */
+	public SecondaryIndex(int tableid, int field, int[] included, IndexFile file) {
+		if(file.keyField() != KEY) {
+			throw new IllegalArgumentException("index entries must be keyed on their first field");
+		}
+		if(file instanceof BTreeFile
+				&& !Arrays.equals(((BTreeFile) file).keyFields(), getKeyFields(included))) {
+			throw new IllegalArgumentException("B+ tree entries must be keyed on their value, page and slot");
+		}
+		TupleDesc td = Database.getCatalog().getTupleDesc(tableid);
+		boolean[] covered = new boolean[td.numFields()];
+		covered[field] = true;
+		for(int c : included) {
+			if(covered[c]) {
+				throw new IllegalArgumentException("column " + c + " is included twice");
+			}
+			covered[c] = true;
+		}
+		this.tableid = tableid;
+		this.field = field;
+		this.included = included.clone();
+		this.file = file;
+		this.page = included.length + 1;
+		this.slot = included.length + 2;
+
+		int n = included.length + 1;
+		Type[] types = new Type[n];
+		String[] names = new String[n];
+		coveredEntryFields = new int[n];
+		for(int c = 0, i = 0; c < covered.length; c++) {
+			if(!covered[c]) {
+				continue;
+			}
+			types[i] = td.getFieldType(c);
+			names[i] = td.getFieldName(c);
+			coveredEntryFields[i] = c == field ? KEY : 1 + indexOf(included, c);
+			i++;
+		}
+		coveredDesc = new TupleDesc(types, names);
+	}
+
+	/**
+	 * Create an index including no other column than the indexed one.
+	 */
+	public SecondaryIndex(int tableid, int field, IndexFile file) {
+		this(tableid, field, new int[0], file);
+	}
+
+	private static int indexOf(int[] a, int v) {
+		for(int i = 0; i < a.length; i++) {
+			if(a[i] == v) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Build a B+ tree index on a column of a table and add it to the catalog.
+	 * The table must not be modified while the index is built.
+	 *
+	 * @param tid - the transaction reading the table
+	 * @param table - the table to index
+	 * @param field - the index of the column to index
+	 * @param included - the indexes of the other columns to include in the entries
+	 * @param f - the file to store the index in, which must be empty or not exist
+	 * @param fillFactor - the fraction of each page the bulk loader fills, see
+	 *        {@link BTreeBulkLoader}
+	 * @return the index
+	 */
+	public static SecondaryIndex create(TransactionId tid, HeapFile table, int field, int[] included, File f,
+			double fillFactor) throws IOException, DbException, TransactionAbortedException {
+		BTreeFile bf = new BTreeFile(f, getKeyFields(included), getEntryDesc(table.getTupleDesc(), field, included));
+		SecondaryIndex index = new SecondaryIndex(table.getId(), field, included, bf);
+		// the pages of the file are read through the catalog
+		Database.getCatalog().addIndex(index);
+		try {
+			new BTreeBulkLoader(bf, fillFactor).load(index.entries(tid, table));
+		} catch(IOException | DbException | TransactionAbortedException | RuntimeException e) {
+			Database.getCatalog().removeIndex(index);
+			throw e;
+		}
+		return index;
+	}
+
+	/**
+	 * Build a B+ tree index on a column of a table with full pages.
+	 */
+	public static SecondaryIndex create(TransactionId tid, HeapFile table, int field, int[] included, File f)
+			throws IOException, DbException, TransactionAbortedException {
+		return create(tid, table, field, included, f, 1.0);
+	}
+
+	/**
+	 * Build a hash index on a column of a table and add it to the catalog.
+	 * The table must not be modified while the index is built.
+	 *
+	 * @param tid - the transaction reading the table
+	 * @param table - the table to index
+	 * @param field - the index of the column to index
+	 * @param included - the indexes of the other columns to include in the entries
+	 * @param f - the file to store the index in, which must be empty or not exist
+	 * @return the index
+	 */
+	public static SecondaryIndex createHash(TransactionId tid, HeapFile table, int field, int[] included, File f)
+			throws IOException, DbException, TransactionAbortedException {
+		HashFile hf = new HashFile(f, KEY, getEntryDesc(table.getTupleDesc(), field, included));
+		SecondaryIndex index = new SecondaryIndex(table.getId(), field, included, hf);
+		Database.getCatalog().addIndex(index);
+		try {
+			hf.load(index.entries(tid, table));
+		} catch(IOException | DbException | TransactionAbortedException | RuntimeException e) {
+			Database.getCatalog().removeIndex(index);
+			throw e;
+		}
+		return index;
+	}
+
+	/**
+	 * Build a hash index including no other column than the indexed one.
+	 */
+	public static SecondaryIndex createHash(TransactionId tid, HeapFile table, int field, File f)
+			throws IOException, DbException, TransactionAbortedException {
+		return createHash(tid, table, field, new int[0], f);
+	}
+
+	/**
+	 * @return an iterator over the entries of the tuples of a table
+	 */
+	private DbFileIterator entries(TransactionId tid, final HeapFile table) {
+		final DbFileIterator tuples = table.iterator(tid);
+		return new AbstractDbFileIterator() {
+			public void open() throws DbException, TransactionAbortedException {
+				// the tuples of a table without pages cannot be opened, and
+				// there are none to read
+				if(table.numPages() > 0) {
+					tuples.open();
+				}
+			}
+
+			public void rewind() throws DbException, TransactionAbortedException {
+				tuples.close();
+				open();
+			}
+
+			public void close() {
+				super.close();
+				tuples.close();
+			}
+
+			protected Tuple readNext() throws DbException, TransactionAbortedException {
+				return tuples.hasNext() ? getEntry(tuples.next()) : null;
+			}
+		};
+	}
+
+	/**
+	 * Build an index including no other column than the indexed one.
+	 */
+	public static SecondaryIndex create(TransactionId tid, HeapFile table, int field, File f)
+			throws IOException, DbException, TransactionAbortedException {
+		return create(tid, table, field, new int[0], f);
+	}
+
+	/**
+	 * @param td - the tuple descriptor of the table
+	 * @param field - the index of the indexed column
+	 * @param included - the indexes of the other columns included in the entries
+	 * @return the tuple descriptor of the entries of an index: the key, the
+	 *         included columns, then the page and slot of the tuple
+	 */
+	public static TupleDesc getEntryDesc(TupleDesc td, int field, int[] included) {
+		int n = included.length + 3;
+		Type[] types = new Type[n];
+		String[] names = new String[n];
+		types[KEY] = td.getFieldType(field);
+		names[KEY] = "key";
+		for(int i = 0; i < included.length; i++) {
+			types[i + 1] = td.getFieldType(included[i]);
+			names[i + 1] = td.getFieldName(included[i]);
+		}
+		types[n - 2] = Type.INT_TYPE;
+		names[n - 2] = "page";
+		types[n - 1] = Type.INT_TYPE;
+		names[n - 1] = "slot";
+		return new TupleDesc(types, names);
+	}
+
+	/**
+	 * @param included - the indexes of the other columns included in the entries
+	 * @return the fields of the entries a B+ tree index is keyed on: the
+	 *         value, then the page and slot of the tuple
+	 */
+	public static int[] getKeyFields(int[] included) {
+		return new int[] { KEY, included.length + 1, included.length + 2 };
+	}
+
+	/**
+	 * @return the id of the indexed table
+	 */
+	public int getTableId() {
+		return tableid;
+	}
+
+	/**
+	 * @return the index of the indexed column in the table
+	 */
+	public int getField() {
+		return field;
+	}
+
+	/**
+	 * @return the indexes of the other columns of the table included in the entries
+	 */
+	public int[] getIncluded() {
+		return included.clone();
+	}
+
+	/**
+	 * @return the B+ tree or hash file holding the entries
+	 */
+	public IndexFile getFile() {
+		return file;
+	}
+
+	/**
+	 * @return the tuple descriptor of the tuples returned by
+	 *         {@link #coveringIterator}: the indexed and included columns, in
+	 *         the order of the table
+	 */
+	public TupleDesc getCoveredDesc() {
+		return coveredDesc;
+	}
+
+	/**
+	 * @param columns - the indexes of columns of the table
+	 * @return true if the entries hold all the given columns
+	 */
+	public boolean covers(Collection<Integer> columns) {
+		for(int c : columns) {
+			if(c != field && indexOf(included, c) < 0) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * @return the entry of a tuple of the table
+	 */
+	Tuple getEntry(Tuple t) {
+		RecordId rid = t.getRecordId();
+		Tuple entry = new Tuple(file.getTupleDesc());
+		entry.setField(KEY, t.getField(field));
+		for(int i = 0; i < included.length; i++) {
+			entry.setField(i + 1, t.getField(included[i]));
+		}
+		entry.setField(page, new IntField(rid.getPageId().getPageNumber()));
+		entry.setField(slot, new IntField(rid.getTupleNumber()));
+		return entry;
+	}
+
+	/**
+	 * @return the RecordId of the tuple an entry stands for
+	 */
+	private RecordId getRecordId(Tuple entry) {
+		return new RecordId(new HeapPageId(tableid, ((IntField) entry.getField(page)).getValue()),
+				((IntField) entry.getField(slot)).getValue());
+	}
+
+	/**
+	 * Add the entry of a tuple just inserted into the table.
+	 *
+	 * @param tid - the transaction inserting the tuple
+	 * @param t - the tuple, with its RecordId set
+	 * @return the pages of the index that were modified
+	 */
+	public ArrayList<Page> insertTuple(TransactionId tid, Tuple t)
+			throws DbException, IOException, TransactionAbortedException {
+		return file.insertTuple(tid, getEntry(t));
+	}
+
+	/**
+	 * Remove the entry of a tuple deleted from the table.
+	 *
+	 * @param tid - the transaction deleting the tuple
+	 * @param t - the tuple, with its RecordId set
+	 * @return the pages of the index that were modified
+	 * @throws DbException if the tuple has no entry in the index
+	 */
+	public ArrayList<Page> deleteTuple(TransactionId tid, Tuple t)
+			throws DbException, IOException, TransactionAbortedException {
+		RecordId rid = t.getRecordId();
+		Field key = t.getField(field);
+		if(file instanceof BTreeFile) {
+			// the only entry with the value, page and slot of the tuple
+			key = new CompositeField(new Field[] { key, new IntField(rid.getPageId().getPageNumber()),
+					new IntField(rid.getTupleNumber()) });
+		}
+		DbFileIterator it = file.indexIterator(tid, new IndexPredicate(Op.EQUALS, key));
+		Tuple entry = null;
+		it.open();
+		try {
+			while(entry == null && it.hasNext()) {
+				Tuple e = it.next();
+				if(getRecordId(e).equals(rid)) {
+					entry = e;
+				}
+			}
+		} finally {
+			it.close();
+		}
+		if(entry == null) {
+			throw new DbException("tuple has no entry in the index");
+		}
+		return file.deleteTuple(tid, entry);
+	}
+
+	/**
+	 * Get an iterator over the tuples of the table whose indexed column
+	 * satisfies a predicate, in the order of the column for a B+ tree index.
+	 * The entries are read as by {@link IndexFile#indexIterator}, and each
+	 * tuple is then read from its heap page with a read lock.
+	 *
+	 * @param tid - the transaction id
+	 * @param ipred - the predicate on the indexed column, or null for all the
+	 *        tuples; its operator must be supported by the index file
+	 * @return an iterator over the matching tuples of the table
+	 */
+	public DbFileIterator iterator(final TransactionId tid, IndexPredicate ipred) {
+		final DbFileIterator entries = ipred == null ? file.iterator(tid) : file.indexIterator(tid, ipred);
+		return new AbstractDbFileIterator() {
+			public void open() throws DbException, TransactionAbortedException {
+				entries.open();
+			}
+
+			public void rewind() throws DbException, TransactionAbortedException {
+				super.close();
+				entries.rewind();
+			}
+
+			public void close() {
+				super.close();
+				entries.close();
+			}
+
+			protected Tuple readNext() throws DbException, TransactionAbortedException {
+				if(!entries.hasNext()) {
+					return null;
+				}
+				RecordId rid = getRecordId(entries.next());
+				HeapPage page = (HeapPage) Database.getBufferPool().getPage(tid, rid.getPageId(),
+						Permissions.READ_ONLY);
+				Tuple t = page.getTuple(rid.getTupleNumber());
+				if(t == null) {
+					throw new DbException("index entry for an empty slot " + rid.getTupleNumber()
+							+ " of page " + rid.getPageId().getPageNumber());
+				}
+				return t;
+			}
+		};
+	}
+
+	/**
+	 * Get an iterator over the indexed and included columns of the tuples
+	 * whose indexed column satisfies a predicate, as {@link #iterator} does.
+	 * The tuples are made from the entries alone, without reading the heap
+	 * pages of the table, and have the tuple descriptor given by
+	 * {@link #getCoveredDesc} and the RecordId of the tuple of the table.
+	 *
+	 * @param tid - the transaction id
+	 * @param ipred - the predicate on the indexed column, or null for all the tuples
+	 * @return an iterator over the covered columns of the matching tuples
+	 */
+	public DbFileIterator coveringIterator(TransactionId tid, IndexPredicate ipred) {
+		final DbFileIterator entries = ipred == null ? file.iterator(tid) : file.indexIterator(tid, ipred);
+		return new AbstractDbFileIterator() {
+			public void open() throws DbException, TransactionAbortedException {
+				entries.open();
+			}
+
+			public void rewind() throws DbException, TransactionAbortedException {
+				super.close();
+				entries.rewind();
+			}
+
+			public void close() {
+				super.close();
+				entries.close();
+			}
+
+			protected Tuple readNext() throws DbException, TransactionAbortedException {
+				if(!entries.hasNext()) {
+					return null;
+				}
+				Tuple entry = entries.next();
+				Tuple t = new Tuple(coveredDesc);
+				for(int i = 0; i < coveredEntryFields.length; i++) {
+					t.setField(i, entry.getField(coveredEntryFields[i]));
+				}
+				t.setRecordId(getRecordId(entry));
+				return t;
+			}
+		};
+	}
+}
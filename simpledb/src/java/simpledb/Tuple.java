@@ -15,7 +15,7 @@ import java.util.stream.Collectors;
 public class Tuple implements Serializable {
 	
 	private TupleDesc td;
-	private static RecordId rid = null;
+	private RecordId rid = null;
 	private Field[] fields;
 
     private static final long serialVersionUID = 1L;
@@ -0,0 +1,119 @@
+package simpledb;
+
+import java.util.*;
+
+/**
+ * VersionStore keeps the committed images of pages that have since been
+ * overwritten by newer commits, so that snapshot transactions can still
+ * read the state of a page as of the moment they started.
+ * <p>
+ * Time is measured with the commit timestamps handed out by the
+ * BufferPool: a version is valid from the commit that produced it up to
+ * (excluding) the commit that replaced it. Pages never committed since the
+ * oldest running snapshot started have timestamp 0 and no versions.
+ *
+ * @see BufferPool#beginSnapshot
+ * @Threadsafe
+ */
+class VersionStore {
+
+    /** A committed image of a page and the range of snapshots it is visible to */
+    private static class Version {
+        final Page page;
+        final long validFrom;
+        final long validTo;
+
+        Version(Page page, long validFrom, long validTo) {
+            this.page = page;
+            this.validFrom = validFrom;
+            this.validTo = validTo;
+        }
+    }
+
+    private final HashMap<PageId, LinkedList<Version>> versions;
+    private final HashMap<PageId, Long> commitTs;
+
+    VersionStore() {
+        this.versions = new HashMap<PageId, LinkedList<Version>>();
+        this.commitTs = new HashMap<PageId, Long>();
+    }
+
+    /**
+     * @return the timestamp of the last commit that modified the page, or 0
+     *   if it has not been modified since the oldest running snapshot started
+     */
+    synchronized long lastCommit(PageId pid) {
+        Long ts = this.commitTs.get(pid);
+        return ts == null ? 0 : ts;
+    }
+
+    /**
+     * Record that the page was modified by the commit with timestamp ts.
+     *
+     * @param pid the page that was modified
+     * @param oldImage the committed image of the page before the commit
+     * @param ts the timestamp of the commit
+     * @param retain whether some running snapshot may still need oldImage;
+     *   if not, no snapshot is running and every snapshot started later sees
+     *   this commit, so the page keeps timestamp 0
+     */
+    synchronized void install(PageId pid, Page oldImage, long ts, boolean retain) {
+        if (!retain) {
+            this.commitTs.remove(pid);
+            return;
+        }
+        LinkedList<Version> list = this.versions.get(pid);
+        if (list == null) {
+            list = new LinkedList<Version>();
+            this.versions.put(pid, list);
+        }
+        list.addFirst(new Version(oldImage, lastCommit(pid), ts));
+        this.commitTs.put(pid, ts);
+    }
+
+    /**
+     * @return the image of the page visible to a snapshot taken at the given
+     *   timestamp, or null if it is no longer retained
+     */
+    synchronized Page find(PageId pid, long snapshot) {
+        LinkedList<Version> list = this.versions.get(pid);
+        if (list == null)
+            return null;
+        for (Version v : list) {
+            if (v.validFrom <= snapshot && snapshot < v.validTo)
+                return v.page;
+        }
+        return null;
+    }
+
+    /**
+     * Drop every version that no snapshot at or after the given timestamp
+     * can see.
+     *
+     * @param oldestSnapshot the timestamp of the oldest running snapshot,
+     *   or Long.MAX_VALUE if there is none
+     */
+    synchronized void prune(long oldestSnapshot) {
+        Iterator<Map.Entry<PageId, LinkedList<Version>>> it = this.versions.entrySet().iterator();
+        while (it.hasNext()) {
+            LinkedList<Version> list = it.next().getValue();
+            while (!list.isEmpty() && list.getLast().validTo <= oldestSnapshot)
+                list.removeLast();
+            if (list.isEmpty())
+                it.remove();
+        }
+        Iterator<Long> ts = this.commitTs.values().iterator();
+        while (ts.hasNext()) {
+            if (ts.next() <= oldestSnapshot)
+                ts.remove();
+        }
+    }
+
+    /** @return the number of retained page versions */
+    synchronized int size() {
+        int n = 0;
+        for (LinkedList<Version> list : this.versions.values())
+            n += list.size();
+        return n;
+    }
+}
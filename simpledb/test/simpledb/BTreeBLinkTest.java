@@ -0,0 +1,198 @@
+package simpledb;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.Predicate.Op;
+
+import java.util.*;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class BTreeBLinkTest extends SimpleDbTestBase {
+	private static final int POLL_INTERVAL = 100;
+	private static final int TIMEOUT = 10000;
+
+	private BufferPool bp;
+	private BTreeFile bf;
+	private TransactionId tid1;
+	private TransactionId tid2;
+
+	/**
+	 * Set up initial resources for each unit test.
+	 */
+	@Before public void setUp() throws Exception {
+		// full leaves, except the last two, under a single root
+		bf = BTreeUtility.createRandomBTreeFile(2, 5000, null, null, 0);
+		bp = Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+		tid1 = new TransactionId();
+		tid2 = new TransactionId();
+	}
+
+	@After public void tearDown() throws Exception {
+		bp.transactionComplete(tid1);
+		bp.transactionComplete(tid2);
+	}
+
+	private BTreePageId rootId() throws Exception {
+		TransactionId tid = new TransactionId();
+		BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) bp.getPage(tid, BTreeRootPtrPage.getId(bf.getId()),
+				Permissions.READ_ONLY);
+		BTreePageId root = rootPtr.getRootId();
+		bp.transactionComplete(tid);
+		return root;
+	}
+
+	private static boolean waitFor(Thread t) throws Exception {
+		t.join(TIMEOUT);
+		return !t.isAlive();
+	}
+
+	private static Field lastKey(BTreeLeafPage leaf) {
+		return leaf.reverseIterator().next().getField(0);
+	}
+
+	/**
+	 * Finds the leaf page for a key on behalf of a transaction in a new thread
+	 */
+	private class LeafFinder extends Thread {
+		private final TransactionId tid;
+		private final Field f;
+		volatile BTreePageId found;
+		volatile Exception error;
+
+		LeafFinder(TransactionId tid, Field f) {
+			this.tid = tid;
+			this.f = f;
+		}
+
+		public void run() {
+			try {
+				found = bf.findLeafPage(tid, new HashMap<PageId, Page>(), Permissions.READ_ONLY, f).getId();
+			} catch(Exception e) {
+				error = e;
+			}
+		}
+	}
+
+	/**
+	 * Counts the tuples an index scan returns on behalf of a transaction in a new thread
+	 */
+	private class Scanner extends Thread {
+		private final TransactionId tid;
+		private final IndexPredicate ipred;
+		volatile int count = -1;
+		volatile Exception error;
+
+		Scanner(TransactionId tid, IndexPredicate ipred) {
+			this.tid = tid;
+			this.ipred = ipred;
+		}
+
+		public void run() {
+			try {
+				DbFileIterator it = bf.indexIterator(tid, ipred);
+				it.open();
+				int c = 0;
+				while(it.hasNext()) {
+					it.next();
+					c++;
+				}
+				it.close();
+				count = c;
+			} catch(Exception e) {
+				error = e;
+			}
+		}
+	}
+
+	/**
+	 * A lookup that descends through the committed image of a parent page
+	 * while another transaction has split one of its children lands on the
+	 * left half of the split, and once the split commits moves right to the
+	 * new page through the right sibling pointer, without locking the parent
+	 */
+	@Test public void moveRightAfterSplit() throws Exception {
+		BTreePageId root = rootId();
+		assertEquals(BTreePageId.INTERNAL, root.pgcateg());
+		TransactionId tid = new TransactionId();
+		BTreeInternalPage rootPage = (BTreeInternalPage) bp.getPage(tid, root, Permissions.READ_ONLY);
+		BTreePageId left = rootPage.iterator().next().getLeftChild();
+		bp.transactionComplete(tid);
+
+		// the smallest key goes to the first leaf, which is full
+		int pages = bf.numPages();
+		bp.insertTuple(tid1, bf.getId(), BTreeUtility.getBTreeTuple(0, 2));
+		assertEquals(pages + 1, bf.numPages());
+		BTreeLeafPage leftPage = (BTreeLeafPage) bp.getPage(tid1, left, Permissions.READ_ONLY);
+		BTreePageId right = leftPage.getRightSiblingId();
+		BTreeLeafPage rightPage = (BTreeLeafPage) bp.getPage(tid1, right, Permissions.READ_ONLY);
+		Field key = lastKey(rightPage);
+		assertTrue(key.compare(Op.GREATER_THAN, leftPage.getHighKey()));
+
+		// the committed root still sends the key to the first leaf, locked by tid1
+		LeafFinder finder = new LeafFinder(tid2, key);
+		finder.start();
+		Thread.sleep(POLL_INTERVAL * 5);
+		assertTrue(finder.isAlive());
+		assertFalse(bp.holdsLock(tid2, root));
+
+		bp.transactionComplete(tid1);
+		assertTrue(waitFor(finder));
+		assertNull(finder.error);
+		assertEquals(right, finder.found);
+		assertTrue(bp.holdsLock(tid2, left));
+		assertFalse(bp.holdsLock(tid2, root));
+	}
+
+	/**
+	 * Equality and less than scans stop at the high key of a leaf page when it
+	 * rules out the keys to the right, without locking the next leaf page
+	 */
+	@Test public void scanStopsAtHighKey() throws Exception {
+		// the first leaf whose keys end well below its high key
+		TransactionId tid = new TransactionId();
+		BTreeLeafPage leaf = bf.findLeafPage(tid, new HashMap<PageId, Page>(), Permissions.READ_ONLY, null);
+		while(((IntField) lastKey(leaf)).getValue() + 1 >= ((IntField) leaf.getHighKey()).getValue()) {
+			leaf = (BTreeLeafPage) bp.getPage(tid, leaf.getRightSiblingId(), Permissions.READ_ONLY);
+			assertNotNull(leaf.getRightSiblingId());
+		}
+		int last = ((IntField) lastKey(leaf)).getValue();
+		BTreePageId next = leaf.getRightSiblingId();
+		int equal = 0;
+		int less = 0;
+		DbFileIterator all = bf.iterator(tid);
+		all.open();
+		while(all.hasNext()) {
+			int value = ((IntField) all.next().getField(0)).getValue();
+			equal += value == last ? 1 : 0;
+			less += value <= last ? 1 : 0;
+		}
+		all.close();
+		bp.transactionComplete(tid);
+
+		bp.getPage(tid1, next, Permissions.READ_WRITE);
+
+		Scanner equals = new Scanner(tid2, new IndexPredicate(Op.EQUALS, new IntField(last)));
+		equals.start();
+		assertTrue(waitFor(equals));
+		assertNull(equals.error);
+		assertEquals(equal, equals.count);
+
+		Scanner lessThan = new Scanner(tid2, new IndexPredicate(Op.LESS_THAN, new IntField(last + 1)));
+		lessThan.start();
+		assertTrue(waitFor(lessThan));
+		assertNull(lessThan.error);
+		assertEquals(less, lessThan.count);
+		assertFalse(bp.holdsLock(tid2, next));
+	}
+
+	/**
+	 * JUnit suite target
+	 */
+	public static junit.framework.Test suite() {
+		return new JUnit4TestAdapter(BTreeBLinkTest.class);
+	}
+}
@@ -0,0 +1,216 @@
+package simpledb;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+import java.io.*;
+import java.util.*;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class BTreeBulkLoaderTest extends SimpleDbTestBase {
+	private TransactionId tid;
+	private ArrayList<ArrayList<Integer>> tuples;
+	private HeapFile hf;
+
+	/**
+	 * Set up initial resources for each unit test.
+	 */
+	@Before
+	public void setUp() throws Exception {
+		tid = new TransactionId();
+		tuples = new ArrayList<ArrayList<Integer>>();
+		hf = SystemTestUtil.createRandomHeapFile(2, 5000, null, tuples);
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		Database.getBufferPool().transactionComplete(tid);
+	}
+
+	private BTreeFile emptyBTreeFile() throws IOException {
+		File f = File.createTempFile("bulkload", ".dat");
+		f.deleteOnExit();
+		return BTreeUtility.openBTreeFile(2, f, 0);
+	}
+
+	/** @return the number of tuples on each leaf, following the right siblings from page 1 */
+	private ArrayList<Integer> leaves(BTreeFile bf, List<Integer> keys) throws Exception {
+		ArrayList<Integer> sizes = new ArrayList<Integer>();
+		BTreePageId pid = new BTreePageId(bf.getId(), 1, BTreePageId.LEAF);
+		while(pid != null) {
+			BTreeLeafPage page = (BTreeLeafPage) bf.readPage(pid);
+			assertEquals(sizes.size() + 1, pid.getPageNumber());
+			Iterator<Tuple> it = page.iterator();
+			while(it.hasNext()) {
+				keys.add(((IntField) it.next().getField(0)).getValue());
+			}
+			sizes.add(page.getNumTuples());
+			pid = page.getRightSiblingId();
+		}
+		return sizes;
+	}
+
+	/**
+	 * Tuples sorted in many runs, merged in more than one pass, end up in
+	 * order on sequential full leaves
+	 */
+	@Test
+	public void externalSort() throws Exception {
+		BTreeFile bf = emptyBTreeFile();
+		// 100 runs of 50 tuples
+		new BTreeBulkLoader(bf, 1.0, 50).load(tid, hf);
+		BTreeChecker.checkRep(bf, tid, new HashMap<PageId, Page>(), true);
+
+		ArrayList<Integer> keys = new ArrayList<Integer>();
+		ArrayList<Integer> sizes = leaves(bf, keys);
+		ArrayList<Integer> expected = new ArrayList<Integer>();
+		for(ArrayList<Integer> t : tuples) {
+			expected.add(t.get(0));
+		}
+		Collections.sort(expected);
+		assertEquals(expected, keys);
+
+		// 5000 = 8 * 501 + 992: eight full leaves, then two sharing the rest
+		int max = BTreeUtility.getNumTuplesPerPage(2);
+		assertEquals(10, sizes.size());
+		for(int i = 0; i < 8; i++) {
+			assertEquals(max, (int) sizes.get(i));
+		}
+		assertEquals(5000 - 8 * max, sizes.get(8) + sizes.get(9));
+		assertTrue(Math.abs(sizes.get(8) - sizes.get(9)) <= 1);
+		// the leaves, then the root
+		assertEquals(11, bf.numPages());
+	}
+
+	/**
+	 * Pages are only filled up to the fill factor
+	 */
+	@Test
+	public void fillFactor() throws Exception {
+		BTreeFile bf = emptyBTreeFile();
+		new BTreeBulkLoader(bf, 0.75).load(tid, hf);
+		BTreeChecker.checkRep(bf, tid, new HashMap<PageId, Page>(), true);
+
+		ArrayList<Integer> keys = new ArrayList<Integer>();
+		ArrayList<Integer> sizes = leaves(bf, keys);
+		assertEquals(5000, keys.size());
+		// 5000 = 12 * 375 + 500: what is left after the last leaf at the
+		// fill factor fits on a single page
+		int cap = (int) (0.75 * BTreeUtility.getNumTuplesPerPage(2));
+		assertEquals(375, cap);
+		assertEquals(13, sizes.size());
+		for(int i = 0; i < 12; i++) {
+			assertEquals(cap, (int) sizes.get(i));
+		}
+		assertEquals(500, (int) sizes.get(12));
+	}
+
+	/**
+	 * A tree too big for one internal page gets a second level
+	 */
+	@Test
+	public void internalLevels() throws Exception {
+		BufferPool.setPageSize(1024);
+		try {
+			HeapFile big = SystemTestUtil.createRandomHeapFile(2, 40000, null, null);
+			BTreeFile bf = emptyBTreeFile();
+			new BTreeBulkLoader(bf, 1.0, 4000).load(tid, big);
+			BTreeChecker.checkRep(bf, tid, new HashMap<PageId, Page>(), true);
+
+			BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) bf.readPage(BTreeRootPtrPage.getId(bf.getId()));
+			assertEquals(bf.numPages(), rootPtr.getRootId().getPageNumber());
+			BTreeInternalPage root = (BTreeInternalPage) bf.readPage(rootPtr.getRootId());
+			assertEquals(BTreePageId.INTERNAL, root.iterator().next().getLeftChild().pgcateg());
+			assertEquals(40000, leaves(bf, new ArrayList<Integer>()).stream().mapToInt(Integer::intValue).sum());
+		} finally {
+			BufferPool.resetPageSize();
+		}
+	}
+
+	/**
+	 * Internal pages over string keys are packed by the bytes of their
+	 * separators, so they hold many more entries than keys of the maximum
+	 * length would allow and the tree is shallower
+	 */
+	@Test
+	public void stringKeys() throws Exception {
+		TupleDesc td = new TupleDesc(new Type[] { Type.STRING_TYPE, Type.INT_TYPE });
+		final ArrayList<Tuple> strings = new ArrayList<Tuple>();
+		for(int i = 0; i < 30000; i++) {
+			Tuple t = new Tuple(td);
+			t.setField(0, new StringField(String.format("key%06d", (i * 7919) % 30000), Type.STRING_LEN));
+			t.setField(1, new IntField(i));
+			strings.add(t);
+		}
+		File f = File.createTempFile("bulkload", ".dat");
+		f.deleteOnExit();
+		BTreeFile bf = new BTreeFile(f, 0, td);
+		Database.getCatalog().addTable(bf);
+		// 6 runs, so the separators are read from a merge of the runs
+		new BTreeBulkLoader(bf, 1.0, 5000).load(new AbstractDbFileIterator() {
+			private Iterator<Tuple> it;
+
+			public void open() {
+				it = strings.iterator();
+			}
+
+			public void rewind() {
+				open();
+			}
+
+			protected Tuple readNext() {
+				return it != null && it.hasNext() ? it.next() : null;
+			}
+		});
+		BTreeChecker.checkRep(bf, tid, new HashMap<PageId, Page>(), true);
+
+		BTreePageId pid = ((BTreeRootPtrPage) bf.readPage(BTreeRootPtrPage.getId(bf.getId()))).getRootId();
+		int depth = 0;
+		int maxEntries = 0;
+		while(pid.pgcateg() == BTreePageId.INTERNAL) {
+			BTreeInternalPage page = (BTreeInternalPage) bf.readPage(pid);
+			maxEntries = Math.max(maxEntries, page.getNumEntries());
+			pid = page.iterator().next().getLeftChild();
+			depth++;
+		}
+		// keys of the maximum length would need three internal levels
+		assertEquals(2, depth);
+		assertTrue(maxEntries > 4 * BTreeInternalPage.getMaxEntries(Type.STRING_TYPE));
+
+		int n = 0;
+		String last = "";
+		DbFileIterator it = bf.iterator(tid);
+		it.open();
+		while(it.hasNext()) {
+			String key = ((StringField) it.next().getField(0)).getValue();
+			assertTrue(key.compareTo(last) > 0);
+			last = key;
+			n++;
+		}
+		it.close();
+		assertEquals(30000, n);
+	}
+
+	/**
+	 * Only an empty file can be bulk loaded
+	 */
+	@Test(expected = DbException.class)
+	public void nonEmptyFile() throws Exception {
+		BTreeFile bf = emptyBTreeFile();
+		new BTreeBulkLoader(bf, 1.0).load(tid, hf);
+		new BTreeBulkLoader(bf, 1.0).load(tid, hf);
+	}
+
+	/**
+	 * JUnit suite target
+	 */
+	public static junit.framework.Test suite() {
+		return new JUnit4TestAdapter(BTreeBulkLoaderTest.class);
+	}
+}
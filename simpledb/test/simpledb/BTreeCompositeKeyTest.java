@@ -0,0 +1,182 @@
+package simpledb;
+
+import simpledb.Predicate.Op;
+import simpledb.systemtest.SimpleDbTestBase;
+
+import java.io.*;
+import java.util.*;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class BTreeCompositeKeyTest extends SimpleDbTestBase {
+	private static final int TENANTS = 20;
+	private static final int TIMES = 1000;
+
+	private TransactionId tid;
+	private ArrayList<ArrayList<Integer>> tuples;
+	private BTreeFile bf;
+
+	/**
+	 * Set up initial resources for each unit test.
+	 */
+	@Before
+	public void setUp() throws Exception {
+		tid = new TransactionId();
+		// (tenant_id, ts, value), keyed on (tenant_id, ts)
+		tuples = new ArrayList<ArrayList<Integer>>();
+		Random r = new Random(48);
+		for(int i = 0; i < 10000; i++) {
+			tuples.add(new ArrayList<Integer>(Arrays.asList(r.nextInt(TENANTS), r.nextInt(TIMES), r.nextInt())));
+		}
+		File hFile = File.createTempFile("table", ".dat");
+		hFile.deleteOnExit();
+		File bFile = File.createTempFile("composite", ".dat");
+		bFile.deleteOnExit();
+		Type[] types = new Type[] { Type.INT_TYPE, Type.INT_TYPE, Type.INT_TYPE };
+		bf = BTreeFileEncoder.convert(tuples, hFile, bFile, BufferPool.getPageSize(), 3, types, ',',
+				new int[] { 0, 1 });
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		Database.getBufferPool().transactionComplete(tid);
+	}
+
+	private static final Comparator<List<Integer>> LEXICOGRAPHIC = new Comparator<List<Integer>>() {
+		public int compare(List<Integer> a, List<Integer> b) {
+			for(int i = 0; i < a.size(); i++) {
+				if(!a.get(i).equals(b.get(i))) {
+					return a.get(i).compareTo(b.get(i));
+				}
+			}
+			return 0;
+		}
+	};
+
+	/** @return the tuples of the file matching a predicate, checking that they come in key order */
+	private ArrayList<ArrayList<Integer>> lookup(IndexPredicate ipred) throws Exception {
+		ArrayList<ArrayList<Integer>> found = new ArrayList<ArrayList<Integer>>();
+		DbFileIterator it = ipred == null ? bf.iterator(tid) : bf.indexIterator(tid, ipred);
+		it.open();
+		while(it.hasNext()) {
+			Tuple t = it.next();
+			ArrayList<Integer> v = new ArrayList<Integer>();
+			for(int i = 0; i < 3; i++) {
+				v.add(((IntField) t.getField(i)).getValue());
+			}
+			if(!found.isEmpty()) {
+				assertTrue(LEXICOGRAPHIC.compare(found.get(found.size() - 1).subList(0, 2), v.subList(0, 2)) <= 0);
+			}
+			found.add(v);
+		}
+		it.close();
+		Collections.sort(found, LEXICOGRAPHIC);
+		return found;
+	}
+
+	/** @return the tuples of the given tenant whose ts compares to the value, sorted */
+	private ArrayList<ArrayList<Integer>> expected(int tenant, Op op, int ts) {
+		ArrayList<ArrayList<Integer>> matching = new ArrayList<ArrayList<Integer>>();
+		for(ArrayList<Integer> t : tuples) {
+			if(t.get(0) == tenant && new IntField(t.get(1)).compare(op, new IntField(ts))) {
+				matching.add(t);
+			}
+		}
+		Collections.sort(matching, LEXICOGRAPHIC);
+		return matching;
+	}
+
+	/**
+	 * The tuples are ordered on the first key field, then on the second one
+	 */
+	@Test
+	public void order() throws Exception {
+		BTreeChecker.checkRep(bf, tid, new HashMap<PageId, Page>(), true);
+		ArrayList<ArrayList<Integer>> all = new ArrayList<ArrayList<Integer>>(tuples);
+		Collections.sort(all, LEXICOGRAPHIC);
+		assertEquals(all, lookup(null));
+	}
+
+	/**
+	 * A predicate on the first key field alone finds all the keys starting
+	 * with the value
+	 */
+	@Test
+	public void leadingField() throws Exception {
+		int tenant = 7;
+		assertEquals(expected(tenant, Op.GREATER_THAN_OR_EQ, 0),
+				lookup(new IndexPredicate(Op.EQUALS, new IntField(tenant))));
+
+		ArrayList<ArrayList<Integer>> below = new ArrayList<ArrayList<Integer>>();
+		for(int t = 0; t < tenant; t++) {
+			below.addAll(expected(t, Op.GREATER_THAN_OR_EQ, 0));
+		}
+		assertEquals(below, lookup(new IndexPredicate(Op.LESS_THAN, new IntField(tenant))));
+	}
+
+	/**
+	 * A predicate with a prefix finds the range of the second key field
+	 * among the keys starting with the prefix only
+	 */
+	@Test
+	public void prefixRanges() throws Exception {
+		for(int tenant : new int[] { 0, 7, TENANTS - 1 }) {
+			Field[] prefix = new Field[] { new IntField(tenant) };
+			for(Op op : new Op[] { Op.EQUALS, Op.LESS_THAN, Op.LESS_THAN_OR_EQ, Op.GREATER_THAN,
+					Op.GREATER_THAN_OR_EQ }) {
+				for(int ts : new int[] { -1, 0, TIMES / 2, TIMES - 1, TIMES }) {
+					assertEquals(op + " " + ts + " for tenant " + tenant, expected(tenant, op, ts),
+							lookup(new IndexPredicate(prefix, op, new IntField(ts))));
+				}
+			}
+		}
+		// a tenant with no tuples
+		assertTrue(lookup(new IndexPredicate(new Field[] { new IntField(TENANTS) }, Op.GREATER_THAN,
+				new IntField(0))).isEmpty());
+	}
+
+	/**
+	 * Inserts split the leaves holding the keys of a tenant, and lookups
+	 * still find them all
+	 */
+	@Test
+	public void inserts() throws Exception {
+		BufferPool bp = Database.getBufferPool();
+		int tenant = 3;
+		for(int i = 0; i < 2000; i++) {
+			ArrayList<Integer> t = new ArrayList<Integer>(Arrays.asList(tenant, TIMES / 2, i));
+			tuples.add(t);
+			bp.insertTuple(tid, bf.getId(), BTreeUtility.getBTreeTuple(t));
+		}
+		BTreeChecker.checkRep(bf, tid, new HashMap<PageId, Page>(), true);
+
+		Field[] prefix = new Field[] { new IntField(tenant) };
+		assertEquals(expected(tenant, Op.EQUALS, TIMES / 2),
+				lookup(new IndexPredicate(prefix, Op.EQUALS, new IntField(TIMES / 2))));
+		assertEquals(expected(tenant, Op.GREATER_THAN, TIMES / 2),
+				lookup(new IndexPredicate(prefix, Op.GREATER_THAN, new IntField(TIMES / 2))));
+		assertEquals(expected(tenant, Op.LESS_THAN_OR_EQ, TIMES / 2),
+				lookup(new IndexPredicate(prefix, Op.LESS_THAN_OR_EQ, new IntField(TIMES / 2))));
+	}
+
+	/**
+	 * A predicate on more fields than the file is keyed on is rejected
+	 */
+	@Test(expected = IllegalArgumentException.class)
+	public void tooManyFields() throws Exception {
+		bf.indexIterator(tid, new IndexPredicate(new Field[] { new IntField(0), new IntField(0) },
+				Op.EQUALS, new IntField(0)));
+	}
+
+	/**
+	 * JUnit suite target
+	 */
+	public static junit.framework.Test suite() {
+		return new JUnit4TestAdapter(BTreeCompositeKeyTest.class);
+	}
+}
@@ -370,6 +370,112 @@ public class BTreeFileDeleteTest extends SimpleDbTestBase {
 		}
 	}    
 
+	/**
+	 * Deletes that steal across leaf boundaries under a full parent with prefix
+	 * compressed keys can replace more than one short separator with a long one,
+	 * which splits the parent rather than overflowing it
+	 */
+	@Test
+	public void deleteGrowsSeparators() throws Exception {
+		TupleDesc td = new TupleDesc(new Type[] { Type.STRING_TYPE, Type.INT_TYPE });
+		File f = File.createTempFile("separators", ".dat");
+		f.deleteOnExit();
+		BTreeFile bf = new BTreeFile(f, 0, td);
+		Database.getCatalog().addTable(bf);
+		int perLeaf = new BTreeLeafPage(new BTreePageId(bf.getId(), 1, BTreePageId.LEAF),
+				BTreeLeafPage.createEmptyPageData(), 0).getMaxTuples();
+
+		// a group of keys with a long shared prefix on each leaf, so the keys
+		// between the leaves are one or two characters long
+		char[] prefix = new char[100];
+		Arrays.fill(prefix, 'x');
+		final ArrayList<Tuple> tuples = new ArrayList<Tuple>();
+		for(int g = 0; g < 26 * 26; g++) {
+			for(int i = 0; i < perLeaf; i++) {
+				Tuple t = new Tuple(td);
+				String key = "" + (char) ('a' + g / 26) + (char) ('a' + g % 26) + new String(prefix) + String.format("%04d", i);
+				t.setField(0, new StringField(key, Type.STRING_LEN));
+				t.setField(1, new IntField(tuples.size()));
+				tuples.add(t);
+			}
+		}
+		new BTreeBulkLoader(bf, 1.0).load(new AbstractDbFileIterator() {
+			private Iterator<Tuple> it;
+
+			public void open() {
+				it = tuples.iterator();
+			}
+
+			public void rewind() {
+				open();
+			}
+
+			protected Tuple readNext() {
+				return it != null && it.hasNext() ? it.next() : null;
+			}
+		});
+
+		// the leaves split to fill the parent stay dirty until the end
+		BufferPool bp = Database.resetBufferPool(500);
+		BTreePageId rootId = ((BTreeRootPtrPage) bp.getPage(tid, BTreeRootPtrPage.getId(bf.getId()),
+				Permissions.READ_ONLY)).getRootId();
+		BTreeInternalPage root = (BTreeInternalPage) bp.getPage(tid, rootId, Permissions.READ_ONLY);
+		BTreePageId parentId = root.iterator().next().getLeftChild();
+		assertEquals(BTreePageId.INTERNAL, parentId.pgcateg());
+		BTreeInternalPage parent = (BTreeInternalPage) bp.getPage(tid, parentId, Permissions.READ_ONLY);
+		Iterator<BTreeEntry> entries = parent.iterator();
+		ArrayList<BTreePageId> leaves = new ArrayList<BTreePageId>();
+		for(int i = 0; i < 6; i++) {
+			BTreeEntry e = entries.next();
+			assertTrue(((StringField) e.getKey()).getValue().length() <= 2);
+			leaves.add(e.getRightChild());
+		}
+
+		// fill the parent up with long keys, splitting full leaves further right
+		int g = 10;
+		while(parent.getNumEmptySlots() > 0) {
+			Tuple t = new Tuple(td);
+			String key = "" + (char) ('a' + g / 26) + (char) ('a' + g % 26) + new String(prefix) + "0000a";
+			t.setField(0, new StringField(key, Type.STRING_LEN));
+			t.setField(1, new IntField(tuples.size()));
+			tuples.add(t);
+			bp.insertTuple(tid, bf.getId(), t);
+			parent = (BTreeInternalPage) bp.getPage(tid, parentId, Permissions.READ_ONLY);
+			g++;
+		}
+		root = (BTreeInternalPage) bp.getPage(tid, rootId, Permissions.READ_ONLY);
+		int rootEntries = root.getNumEntries();
+
+		// empty every other leaf below half, so that each takes tuples from
+		// its full left sibling with the same group of keys
+		int deleted = 0;
+		for(int l : new int[] { 0, 2, 4 }) {
+			BTreeLeafPage leaf = (BTreeLeafPage) bp.getPage(tid, leaves.get(l), Permissions.READ_ONLY);
+			ArrayList<Tuple> delete = new ArrayList<Tuple>();
+			Iterator<Tuple> it = leaf.iterator();
+			while(delete.size() < perLeaf - perLeaf / 2 + 1) {
+				delete.add(it.next());
+			}
+			for(Tuple t : delete) {
+				bp.deleteTuple(tid, t);
+				deleted++;
+			}
+		}
+		root = (BTreeInternalPage) bp.getPage(tid, rootId, Permissions.READ_ONLY);
+		assertEquals(rootEntries + 1, root.getNumEntries());
+		BTreeChecker.checkRep(bf, tid, new HashMap<PageId, Page>(), true);
+
+		int n = 0;
+		DbFileIterator it = bf.iterator(tid);
+		it.open();
+		while(it.hasNext()) {
+			it.next();
+			n++;
+		}
+		it.close();
+		assertEquals(tuples.size() - deleted, n);
+	}
+
 	/**
 	 * JUnit suite target
 	 */
@@ -171,7 +171,7 @@ public class BTreeInternalPageTest extends SimpleDbTestBase {
 	 */
 	@Test public void getNumEmptySlots() throws Exception {
 		BTreeInternalPage page = new BTreeInternalPage(pid, EXAMPLE_DATA, 0);
-		assertEquals(483, page.getNumEmptySlots());
+		assertEquals(480, page.getNumEmptySlots());
 	}
 
 	/**
@@ -184,7 +184,7 @@ public class BTreeInternalPageTest extends SimpleDbTestBase {
 		for (int i = 0; i < 21; ++i)
 			assertTrue(page.isSlotUsed(i));
 
-		for (int i = 21; i < 504; ++i)
+		for (int i = 21; i < 501; ++i)
 			assertFalse(page.isSlotUsed(i));
 	}
 
@@ -238,7 +238,7 @@ public class BTreeInternalPageTest extends SimpleDbTestBase {
 		int free = page.getNumEmptySlots();
 
 		// NOTE(ghuo): this nested loop existence check is slow, but it
-		// shouldn't make a difference for n = 503 slots.
+		// shouldn't make a difference for n = 501 slots.
 
 		for (int i = 0; i < free; ++i) {
 			BTreeEntry addition = BTreeUtility.getBTreeEntry(i+21, 70000+i, pid.getTableId());
@@ -313,6 +313,78 @@ public class BTreeInternalPageTest extends SimpleDbTestBase {
 		}
 	}
 
+	private BTreeInternalPage emptyStringKeyPage() throws Exception {
+		Database.getCatalog().addTable(new SkeletonFile(-2, new TupleDesc(new Type[] { Type.STRING_TYPE, Type.INT_TYPE })),
+				SystemTestUtil.getUUID());
+		return new BTreeInternalPage(new BTreePageId(-2, -1, BTreePageId.INTERNAL),
+				BTreeInternalPage.createEmptyPageData(), 0);
+	}
+
+	/** Fill the page with entries whose keys are s followed by increasing numbers */
+	private ArrayList<Field> fill(BTreeInternalPage page, String s) throws Exception {
+		ArrayList<Field> keys = new ArrayList<Field>();
+		while (page.getNumEmptySlots() > 0) {
+			String n = String.format("%06d", keys.size());
+			Field key = new StringField(s.substring(0, Math.min(s.length(), Type.STRING_LEN - n.length())) + n, Type.STRING_LEN);
+			page.insertEntry(new BTreeEntry(key, new BTreePageId(-2, keys.size() + 1, BTreePageId.LEAF),
+					new BTreePageId(-2, keys.size() + 2, BTreePageId.LEAF)));
+			keys.add(key);
+		}
+		return keys;
+	}
+
+	private static ArrayList<Field> keys(BTreeInternalPage page) {
+		ArrayList<Field> keys = new ArrayList<Field>();
+		Iterator<BTreeEntry> it = page.iterator();
+		while (it.hasNext())
+			keys.add(it.next().getKey());
+		return keys;
+	}
+
+	/**
+	 * String keys are stored prefix compressed, so a page holds as many
+	 * entries as their length allows
+	 */
+	@Test public void compressedStringKeys() throws Exception {
+		BTreeInternalPage page = emptyStringKeyPage();
+		assertEquals(page.getMaxEntries(), page.getNumEmptySlots());
+
+		// keys of the maximum length only fill the guaranteed entries
+		char[] c = new char[Type.STRING_LEN];
+		Arrays.fill(c, 'x');
+		ArrayList<Field> keys = fill(page, new String(c));
+		assertEquals(page.getMaxEntries(), keys.size());
+		BTreeInternalPage read = new BTreeInternalPage(page.getId(), page.getPageData(), 0);
+		assertEquals(keys, keys(read));
+
+		// short keys with a common prefix fit many times more
+		page = emptyStringKeyPage();
+		keys = fill(page, "customer-");
+		assertTrue(keys.size() > 5 * page.getMaxEntries());
+		byte[] data = page.getPageData();
+		assertEquals(BufferPool.getPageSize(), data.length);
+		read = new BTreeInternalPage(page.getId(), data, 0);
+		assertEquals(keys, keys(read));
+		assertEquals(0, read.getNumEmptySlots());
+		Iterator<BTreeEntry> it = read.iterator();
+		for (int i = 0; it.hasNext(); i++) {
+			BTreeEntry e = it.next();
+			assertEquals(i + 1, e.getLeftChild().getPageNumber());
+			assertEquals(i + 2, e.getRightChild().getPageNumber());
+		}
+	}
+
+	/**
+	 * Unit test for BTreeInternalPage.getSeparator()
+	 */
+	@Test public void getSeparator() throws Exception {
+		assertEquals("apr", BTreeInternalPage.getSeparator(new StringField("apple", 128), new StringField("apricot", 128)).toString());
+		assertEquals("ab", BTreeInternalPage.getSeparator(new StringField("ab", 128), new StringField("abc", 128)).toString());
+		assertEquals("abc", BTreeInternalPage.getSeparator(new StringField("abc", 128), new StringField("abc", 128)).toString());
+		assertEquals("b", BTreeInternalPage.getSeparator(new StringField("azzz", 128), new StringField("bcd", 128)).toString());
+		assertEquals(new IntField(7), BTreeInternalPage.getSeparator(new IntField(3), new IntField(7)));
+	}
+
 	/**
 	 * JUnit suite target
 	 */
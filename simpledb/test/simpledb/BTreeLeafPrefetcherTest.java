@@ -0,0 +1,183 @@
+package simpledb;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+import java.io.*;
+import java.util.*;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class BTreeLeafPrefetcherTest extends SimpleDbTestBase {
+	private TransactionId tid;
+	private ArrayList<ArrayList<Integer>> tuples;
+	private BTreeFile bf;
+
+	/**
+	 * Set up initial resources for each unit test.
+	 */
+	@Before
+	public void setUp() throws Exception {
+		tid = new TransactionId();
+		tuples = new ArrayList<ArrayList<Integer>>();
+		HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 20000, null, tuples);
+		File f = File.createTempFile("prefetch", ".dat");
+		f.deleteOnExit();
+		bf = BTreeUtility.openBTreeFile(2, f, 0);
+		new BTreeBulkLoader(bf, 1.0).load(tid, hf);
+		Database.getBufferPool().transactionComplete(tid);
+		tid = new TransactionId();
+		Database.resetBufferPool(200);
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		Database.getBufferPool().transactionComplete(tid);
+	}
+
+	private BTreeLeafPage leaf(int pgNo) throws Exception {
+		return (BTreeLeafPage) Database.getBufferPool().getPage(tid,
+				new BTreePageId(bf.getId(), pgNo, BTreePageId.LEAF), Permissions.READ_ONLY);
+	}
+
+	/** @return the ids of the leaves to the right of the given one, as written on disk */
+	private ArrayList<BTreePageId> chain(BTreePageId pid, int n) {
+		ArrayList<BTreePageId> ids = new ArrayList<BTreePageId>();
+		BTreePageId next = ((BTreeLeafPage) bf.readPage(pid)).getRightSiblingId();
+		while(next != null && ids.size() < n) {
+			ids.add(next);
+			next = ((BTreeLeafPage) bf.readPage(next)).getRightSiblingId();
+		}
+		return ids;
+	}
+
+	/**
+	 * The leaves of a bulk loaded tree are contiguous, so the leaves ahead
+	 * are read with a single read, and a scan then finds them in the pool
+	 */
+	@Test
+	public void contiguousLeaves() throws Exception {
+		BufferPoolStats stats = Database.getBufferPool().getStats();
+		BTreeLeafPage first = leaf(1);
+		BTreeLeafPrefetcher prefetcher = new BTreeLeafPrefetcher(bf, 8);
+		List<BTreePageId> read = prefetcher.prefetch(first, null);
+		assertEquals(chain(first.getId(), 8), read);
+		assertEquals(9, read.get(7).getPageNumber());
+		assertEquals(1, prefetcher.reads());
+		assertEquals(8, stats.getPrefetches());
+
+		for(int i = 2; i <= 9; i++) {
+			leaf(i);
+		}
+		assertEquals(8, stats.getPrefetchHits());
+		assertEquals(1, stats.getMisses());
+
+		// resident leaves are followed in the pool, and only the rest is read
+		read = prefetcher.prefetch(leaf(5), null);
+		assertEquals(chain(new BTreePageId(bf.getId(), 9, BTreePageId.LEAF), 4), read);
+		assertEquals(2, prefetcher.reads());
+	}
+
+	/**
+	 * After splits, the leaves are found by following the sibling pointers
+	 * rather than by page number
+	 */
+	@Test
+	public void scatteredLeaves() throws Exception {
+		BufferPool bp = Database.getBufferPool();
+		int key = ((IntField) leaf(3).iterator().next().getField(0)).getValue();
+		for(int i = 0; i < BTreeUtility.getNumTuplesPerPage(2); i++) {
+			bp.insertTuple(tid, bf.getId(), BTreeUtility.getBTreeTuple(key, 2));
+		}
+		bp.transactionComplete(tid);
+		tid = new TransactionId();
+		bp = Database.resetBufferPool(200);
+
+		BTreePageId pid = new BTreePageId(bf.getId(), 1, BTreePageId.LEAF);
+		ArrayList<BTreePageId> expected = chain(pid, 8);
+		boolean split = false;
+		for(int i = 0; i < expected.size(); i++) {
+			split |= expected.get(i).getPageNumber() != i + 2;
+		}
+		assertTrue(split);
+
+		BTreeLeafPrefetcher prefetcher = new BTreeLeafPrefetcher(bf, 8);
+		assertEquals(expected, prefetcher.prefetch(leaf(1), null));
+		assertTrue(prefetcher.reads() > 1);
+		assertEquals(8, bp.getStats().getPrefetches());
+	}
+
+	/**
+	 * No leaf is read past the one holding the upper bound of the scan
+	 */
+	@Test
+	public void upperBound() throws Exception {
+		BTreePageId pid = new BTreePageId(bf.getId(), 4, BTreePageId.LEAF);
+		Field key = ((BTreeLeafPage) bf.readPage(pid)).iterator().next().getField(0);
+		List<BTreePageId> read = new BTreeLeafPrefetcher(bf, 8).prefetch(leaf(1), key);
+		assertEquals(3, read.size());
+		assertEquals(4, read.get(2).getPageNumber());
+	}
+
+	/**
+	 * Prefetching never evicts a page
+	 */
+	@Test
+	public void freeFramesOnly() throws Exception {
+		BufferPool bp = Database.resetBufferPool(4);
+		BTreeLeafPage first = leaf(1);
+		assertEquals(3, new BTreeLeafPrefetcher(bf, 8).prefetch(first, null).size());
+		assertEquals(0, bp.getStats().getEvictions());
+		assertEquals(3, bp.getStats().getPrefetches());
+	}
+
+	/**
+	 * Scans read ahead in the background and return the same tuples
+	 */
+	@Test
+	public void scans() throws Exception {
+		ArrayList<Integer> keys = new ArrayList<Integer>();
+		for(ArrayList<Integer> t : tuples) {
+			keys.add(t.get(0));
+		}
+		Collections.sort(keys);
+
+		ArrayList<Integer> found = new ArrayList<Integer>();
+		DbFileIterator it = bf.iterator(tid);
+		it.open();
+		while(it.hasNext()) {
+			found.add(((IntField) it.next().getField(0)).getValue());
+		}
+		it.close();
+		assertEquals(keys, found);
+
+		int bound = keys.get(keys.size() / 2);
+		found.clear();
+		it = bf.indexIterator(tid, new IndexPredicate(Predicate.Op.LESS_THAN_OR_EQ, new IntField(bound)));
+		it.open();
+		while(it.hasNext()) {
+			found.add(((IntField) it.next().getField(0)).getValue());
+		}
+		it.close();
+		assertEquals(keys.subList(0, keys.lastIndexOf(bound) + 1), found);
+
+		// the read ahead runs in the background
+		BufferPoolStats stats = Database.getBufferPool().getStats();
+		for(int i = 0; i < 100 && stats.getPrefetches() == 0; i++) {
+			Thread.sleep(50);
+		}
+		assertTrue(stats.getPrefetches() > 0);
+	}
+
+	/**
+	 * JUnit suite target
+	 */
+	public static junit.framework.Test suite() {
+		return new JUnit4TestAdapter(BTreeLeafPrefetcherTest.class);
+	}
+}
@@ -0,0 +1,110 @@
+package simpledb;
+
+import simpledb.BTreeUtility.*;
+import simpledb.systemtest.SimpleDbTestBase;
+
+import java.util.*;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class BTreeOptimisticDescentTest extends SimpleDbTestBase {
+	private static final int POLL_INTERVAL = 100;
+	private static final int TIMEOUT = 10000;
+
+	private BufferPool bp;
+	private BTreeFile bf;
+	private TransactionId tid1;
+	private TransactionId tid2;
+
+	/**
+	 * Set up initial resources for each unit test.
+	 */
+	@Before public void setUp() throws Exception {
+		// full leaves, except the last two, under a single root
+		bf = BTreeUtility.createRandomBTreeFile(2, 5000, null, null, 0);
+		bp = Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+		tid1 = new TransactionId();
+		tid2 = new TransactionId();
+	}
+
+	@After public void tearDown() throws Exception {
+		bp.transactionComplete(tid1);
+		bp.transactionComplete(tid2);
+	}
+
+	private BTreePageId rootId() throws Exception {
+		TransactionId tid = new TransactionId();
+		BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) bp.getPage(tid, BTreeRootPtrPage.getId(bf.getId()),
+				Permissions.READ_ONLY);
+		BTreePageId root = rootPtr.getRootId();
+		bp.transactionComplete(tid);
+		return root;
+	}
+
+	private boolean waitFor(BTreeWriter w) throws Exception {
+		for(int waited = 0; waited < TIMEOUT && !w.succeeded(); waited += POLL_INTERVAL) {
+			Thread.sleep(POLL_INTERVAL);
+		}
+		return w.succeeded();
+	}
+
+	/**
+	 * Inserting into a leaf with room locks the leaf only, so a concurrent
+	 * insert that splits another leaf does not wait for the first
+	 * transaction to complete
+	 */
+	@Test public void splitDoesNotWaitForWriters() throws Exception {
+		BTreePageId root = rootId();
+		assertEquals(BTreePageId.INTERNAL, root.pgcateg());
+		int pages = bf.numPages();
+
+		// the largest key goes to the last leaf, which is not full
+		bp.insertTuple(tid1, bf.getId(), BTreeUtility.getBTreeTuple(BTreeUtility.MAX_RAND_VALUE, 2));
+		assertEquals(pages, bf.numPages());
+		assertFalse(bp.holdsLock(tid1, BTreeRootPtrPage.getId(bf.getId())));
+		assertFalse(bp.holdsLock(tid1, root));
+
+		// the smallest key goes to the first leaf, which is full
+		BTreeWriter w = new BTreeWriter(tid2, bf, 0, 1);
+		w.start();
+		assertTrue(waitFor(w));
+		assertTrue(bp.holdsLock(tid2, root));
+		assertEquals(pages + 1, bf.numPages());
+
+		bp.transactionComplete(tid1);
+		bp.transactionComplete(tid2);
+		TransactionId tid = new TransactionId();
+		BTreeChecker.checkRep(bf, tid, new HashMap<PageId, Page>(), true);
+		bp.transactionComplete(tid);
+	}
+
+	/**
+	 * A split made by a transaction that then aborts is rolled back, and
+	 * inserts afterwards find their leaf again
+	 */
+	@Test public void abortedSplit() throws Exception {
+		int pages = bf.numPages();
+		bp.insertTuple(tid1, bf.getId(), BTreeUtility.getBTreeTuple(0, 2));
+		assertEquals(pages + 1, bf.numPages());
+		bp.transactionComplete(tid1, false);
+
+		BTreeWriter w = new BTreeWriter(tid2, bf, 0, 1);
+		w.start();
+		assertTrue(waitFor(w));
+		bp.transactionComplete(tid2);
+		TransactionId tid = new TransactionId();
+		BTreeChecker.checkRep(bf, tid, new HashMap<PageId, Page>(), true);
+		bp.transactionComplete(tid);
+	}
+
+	/**
+	 * JUnit suite target
+	 */
+	public static junit.framework.Test suite() {
+		return new JUnit4TestAdapter(BTreeOptimisticDescentTest.class);
+	}
+}
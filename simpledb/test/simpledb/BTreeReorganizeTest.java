@@ -0,0 +1,258 @@
+package simpledb;
+
+import simpledb.Predicate.Op;
+import simpledb.systemtest.SimpleDbTestBase;
+
+import java.io.*;
+import java.util.*;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class BTreeReorganizeTest extends SimpleDbTestBase {
+	private TransactionId tid;
+	private BTreeFile bf;
+	private int max;
+
+	/**
+	 * Set up initial resources for each unit test.
+	 */
+	@Before
+	public void setUp() throws Exception {
+		Database.reset();
+		BufferPool.setPageSize(1024);
+		// inserts in random order dirty most leaves in every transaction
+		Database.resetBufferPool(500);
+		tid = new TransactionId();
+		File f = File.createTempFile("reorganize", ".dat");
+		f.delete();
+		f.deleteOnExit();
+		bf = BTreeUtility.openBTreeFile(2, f, 0);
+		max = BTreeUtility.getNumTuplesPerPage(2);
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		Database.getBufferPool().transactionComplete(tid);
+		BufferPool.resetPageSize();
+	}
+
+	/** Insert tuples with the given keys, committing every 500 of them */
+	private void insert(List<Integer> keys) throws Exception {
+		for(int i = 0; i < keys.size(); i++) {
+			Database.getBufferPool().insertTuple(tid, bf.getId(),
+					BTreeUtility.getBTreeTuple(new int[] { keys.get(i), i }));
+			if(i % 500 == 499) {
+				Database.getBufferPool().transactionComplete(tid);
+				tid = new TransactionId();
+			}
+		}
+		Database.getBufferPool().transactionComplete(tid);
+		tid = new TransactionId();
+	}
+
+	/** @return the ids of the leaves in key order, as written on disk */
+	private ArrayList<BTreePageId> leaves() {
+		BTreePageId pid = ((BTreeRootPtrPage) bf.readPage(BTreeRootPtrPage.getId(bf.getId()))).getRootId();
+		while(pid.pgcateg() == BTreePageId.INTERNAL) {
+			pid = ((BTreeInternalPage) bf.readPage(pid)).iterator().next().getLeftChild();
+		}
+		ArrayList<BTreePageId> ids = new ArrayList<BTreePageId>();
+		while(pid != null) {
+			ids.add(pid);
+			pid = ((BTreeLeafPage) bf.readPage(pid)).getRightSiblingId();
+		}
+		return ids;
+	}
+
+	/** @return the keys of the file, in the order a scan returns them */
+	private ArrayList<Integer> keys() throws Exception {
+		ArrayList<Integer> keys = new ArrayList<Integer>();
+		DbFileIterator it = bf.iterator(tid);
+		it.open();
+		while(it.hasNext()) {
+			keys.add(((IntField) it.next().getField(0)).getValue());
+		}
+		it.close();
+		return keys;
+	}
+
+	/** @return true if the leaves follow each other on disk in key order */
+	private static boolean sequential(List<BTreePageId> leaves) {
+		for(int i = 1; i < leaves.size(); i++) {
+			if(leaves.get(i).getPageNumber() < leaves.get(i - 1).getPageNumber()) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Appending keys in order leaves the leaves filled up to the fill factor
+	 * instead of half full
+	 */
+	@Test
+	public void rightMostSplits() throws Exception {
+		bf.setFillFactor(0.9);
+		ArrayList<Integer> keys = new ArrayList<Integer>();
+		for(int i = 0; i < 3000; i++) {
+			keys.add(i);
+		}
+		insert(keys);
+		assertEquals(keys, keys());
+		BTreeChecker.checkRep(bf, tid, new HashMap<PageId, Page>(), false);
+
+		ArrayList<BTreePageId> leaves = leaves();
+		for(BTreePageId pid : leaves.subList(0, leaves.size() - 1)) {
+			assertEquals((int) (0.9 * max), ((BTreeLeafPage) bf.readPage(pid)).getNumTuples());
+		}
+		assertTrue(sequential(leaves));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void fillFactorRange() {
+		bf.setFillFactor(0.4);
+	}
+
+	/**
+	 * Reorganizing a tree after random inserts and deletes packs its leaves,
+	 * lays them out in key order and truncates the file, in many transactions
+	 */
+	@Test
+	public void compactsAndResequences() throws Exception {
+		ArrayList<Integer> keys = new ArrayList<Integer>();
+		for(int i = 0; i < 6000; i++) {
+			keys.add(i);
+		}
+		Collections.shuffle(keys, new Random(50));
+		insert(keys);
+
+		// delete two thirds of the keys
+		TreeSet<Integer> expected = new TreeSet<Integer>(keys);
+		for(int i = 0; i < 4000; i++) {
+			DbFileIterator it = bf.indexIterator(tid, new IndexPredicate(Op.EQUALS, new IntField(keys.get(i))));
+			it.open();
+			Database.getBufferPool().deleteTuple(tid, it.next());
+			it.close();
+			expected.remove(keys.get(i));
+			if(i % 500 == 499) {
+				Database.getBufferPool().transactionComplete(tid);
+				tid = new TransactionId();
+			}
+		}
+		Database.getBufferPool().transactionComplete(tid);
+		tid = new TransactionId();
+		ArrayList<BTreePageId> before = leaves();
+		assertFalse(sequential(before));
+		int pages = bf.numPages();
+
+		int transactions = new BTreeReorganizer(bf, 1.0, 8).reorganize();
+		assertTrue(transactions > 2);
+		assertEquals(new ArrayList<Integer>(expected), keys());
+		BTreeChecker.checkRep(bf, tid, new HashMap<PageId, Page>(), true);
+
+		ArrayList<BTreePageId> after = leaves();
+		assertTrue(sequential(after));
+		assertTrue(after.size() < before.size() * 3 / 4);
+		assertTrue(bf.numPages() < pages);
+		assertTrue(bf.numPages() <= after.size() + 2 + (pages - before.size()));
+	}
+
+	/**
+	 * The file is only cut once the transaction reserving the empty pages at
+	 * its end commits, so aborting it leaves the pages in place and free
+	 */
+	@Test
+	public void abortedTruncation() throws Exception {
+		ArrayList<Integer> keys = new ArrayList<Integer>();
+		for(int i = 0; i < 3000; i++) {
+			keys.add(i);
+		}
+		insert(keys);
+		// the last keys are on the last pages of the file
+		for(int i = 2999; i >= 1000; i--) {
+			DbFileIterator it = bf.indexIterator(tid, new IndexPredicate(Op.EQUALS, new IntField(i)));
+			it.open();
+			Database.getBufferPool().deleteTuple(tid, it.next());
+			it.close();
+		}
+		Database.getBufferPool().transactionComplete(tid);
+		tid = new TransactionId();
+		int pages = bf.numPages();
+
+		HashMap<PageId, Page> dirtypages = new HashMap<PageId, Page>();
+		Database.getBufferPool().lockTable(tid, bf.getId(), Permissions.READ_WRITE);
+		assertTrue(bf.reserveEmptyPagesAtEnd(tid, dirtypages) < pages);
+		for(Page p : dirtypages.values()) {
+			p.markDirty(true, tid);
+		}
+		bf.unpinPages(tid, dirtypages);
+		assertEquals(pages, bf.numPages());
+		Database.getBufferPool().transactionComplete(tid, false);
+		tid = new TransactionId();
+		assertEquals(pages, bf.numPages());
+
+		// inserts take the free pages again instead of growing the file
+		insert(keys.subList(1000, 2000));
+		assertEquals(pages, bf.numPages());
+		BTreeChecker.checkRep(bf, tid, new HashMap<PageId, Page>(), true);
+		Database.getBufferPool().transactionComplete(tid);
+		tid = new TransactionId();
+
+		new BTreeReorganizer(bf, 1.0, 8).reorganize();
+		assertTrue(bf.numPages() < pages);
+		BTreeChecker.checkRep(bf, tid, new HashMap<PageId, Page>(), true);
+	}
+
+	/**
+	 * Other transactions go on inserting between the transactions of a
+	 * reorganization
+	 */
+	@Test
+	public void online() throws Exception {
+		ArrayList<Integer> keys = new ArrayList<Integer>();
+		for(int i = 0; i < 3000; i++) {
+			keys.add(2 * i);
+		}
+		Collections.shuffle(keys, new Random(51));
+		insert(keys);
+
+		final ArrayList<Integer> inserted = new ArrayList<Integer>();
+		final Exception[] error = new Exception[1];
+		Thread inserter = new Thread() {
+			public void run() {
+				try {
+					for(int i = 0; i < 500; i++) {
+						TransactionId tid = new TransactionId();
+						Database.getBufferPool().insertTuple(tid, bf.getId(),
+								BTreeUtility.getBTreeTuple(new int[] { 12 * i + 1, i }));
+						Database.getBufferPool().transactionComplete(tid);
+						inserted.add(12 * i + 1);
+					}
+				} catch(Exception e) {
+					error[0] = e;
+				}
+			}
+		};
+		inserter.start();
+		new BTreeReorganizer(bf, 0.9, 4).reorganize();
+		inserter.join();
+		assertNull(error[0]);
+
+		TreeSet<Integer> expected = new TreeSet<Integer>(keys);
+		expected.addAll(inserted);
+		assertEquals(new ArrayList<Integer>(expected), keys());
+		BTreeChecker.checkRep(bf, tid, new HashMap<PageId, Page>(), true);
+	}
+
+	/**
+	 * JUnit suite target
+	 */
+	public static junit.framework.Test suite() {
+		return new JUnit4TestAdapter(BTreeReorganizeTest.class);
+	}
+}
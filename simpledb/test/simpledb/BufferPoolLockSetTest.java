@@ -0,0 +1,92 @@
+package simpledb;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class BufferPoolLockSetTest extends SimpleDbTestBase {
+    private HeapFile hf;
+    private BufferPool bp;
+    private HeapPageId p0;
+    private HeapPageId p1;
+
+    /**
+     * Set up initial resources for each unit test.
+     */
+    @Before
+    public void setUp() throws Exception {
+        hf = SystemTestUtil.createRandomHeapFile(2, 1000, null, null);
+        bp = Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        p0 = new HeapPageId(hf.getId(), 0);
+        p1 = new HeapPageId(hf.getId(), 1);
+    }
+
+    /**
+     * flushPages writes the pages of one transaction and leaves the others dirty
+     */
+    @Test
+    public void flushPagesOfOneTransaction() throws Exception {
+        TransactionId t1 = new TransactionId();
+        TransactionId t2 = new TransactionId();
+        Page a = bp.getPage(t1, p0, Permissions.READ_WRITE);
+        a.markDirty(true, t1);
+        Page b = bp.getPage(t2, p1, Permissions.READ_WRITE);
+        b.markDirty(true, t2);
+
+        bp.flushPages(t1);
+        assertNull(a.isDirty());
+        assertEquals(t2, b.isDirty());
+        assertEquals(1, bp.getStats().getFlushes());
+        bp.transactionComplete(t2, false);
+        bp.transactionComplete(t1);
+    }
+
+    /**
+     * Completing a transaction releases its locks and reverts only its own pages
+     */
+    @Test
+    public void abortTouchesOnlyOwnPages() throws Exception {
+        TransactionId t1 = new TransactionId();
+        TransactionId t2 = new TransactionId();
+        bp.insertTuple(t1, hf.getId(), Utility.getHeapTuple(7, 2));
+        assertTrue(bp.holdsLock(t1, p1));
+        Page b = bp.getPage(t2, p0, Permissions.READ_WRITE);
+        b.markDirty(true, t2);
+        assertTrue(bp.holdsLock(t2, p0));
+
+        bp.transactionComplete(t2, false);
+        assertFalse(bp.holdsLock(t2, p0));
+        assertNotSame(b, bp.getPage(t1, p0, Permissions.READ_ONLY));
+
+        bp.transactionComplete(t1);
+        assertFalse(bp.holdsLock(t1, p1));
+        assertEquals(1, bp.getStats().getFlushes());
+    }
+
+    /**
+     * Inserting under contention only keeps the lock of the page written
+     */
+    @Test
+    public void insertReleasesFullPages() throws Exception {
+        TransactionId reader = new TransactionId();
+        bp.getPage(reader, p0, Permissions.READ_ONLY);
+
+        TransactionId writer = new TransactionId();
+        bp.insertTuple(writer, hf.getId(), Utility.getHeapTuple(7, 2));
+        assertFalse(bp.holdsLock(writer, p0));
+        bp.transactionComplete(writer);
+        bp.transactionComplete(reader);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(BufferPoolLockSetTest.class);
+    }
+}
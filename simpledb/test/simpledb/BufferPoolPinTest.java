@@ -0,0 +1,120 @@
+package simpledb;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class BufferPoolPinTest extends SimpleDbTestBase {
+    private HeapFile hf;
+    private TransactionId tid;
+    private BufferPool bp;
+    private HeapPageId p0;
+    private HeapPageId p1;
+
+    /**
+     * Set up initial resources for each unit test.
+     */
+    @Before
+    public void setUp() throws Exception {
+        hf = SystemTestUtil.createRandomHeapFile(2, 1000, null, null);
+        tid = new TransactionId();
+        bp = Database.resetBufferPool(1);
+        p0 = new HeapPageId(hf.getId(), 0);
+        p1 = new HeapPageId(hf.getId(), 1);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        bp.transactionComplete(tid);
+    }
+
+    /**
+     * A pinned page is never evicted
+     */
+    @Test
+    public void pinnedPageIsNotEvicted() throws Exception {
+        Page pinned = bp.pinPage(tid, p0, Permissions.READ_ONLY);
+        assertEquals(1, bp.getPinCount(p0));
+        try {
+            bp.getPage(tid, p1, Permissions.READ_ONLY);
+            fail("expected the only page of the pool to be pinned");
+        } catch (DbException e) {
+        }
+        assertSame(pinned, bp.getPage(tid, p0, Permissions.READ_ONLY));
+
+        bp.unpinPage(tid, p0);
+        assertEquals(0, bp.getPinCount(p0));
+        bp.getPage(tid, p1, Permissions.READ_ONLY);
+    }
+
+    /**
+     * Pins nest, and unpinning a page that is not pinned is harmless
+     */
+    @Test
+    public void nestedPins() throws Exception {
+        bp.unpinPage(tid, p0);
+        bp.pinPage(tid, p0, Permissions.READ_ONLY);
+        bp.pinPage(tid, p0, Permissions.READ_ONLY);
+        assertEquals(2, bp.getPinCount(p0));
+        bp.unpinPage(tid, p0);
+        assertEquals(1, bp.getPinCount(p0));
+        bp.unpinPage(tid, p0);
+        bp.unpinPage(tid, p0);
+        assertEquals(0, bp.getPinCount(p0));
+    }
+
+    /**
+     * Pins still held when the transaction completes are dropped
+     */
+    @Test
+    public void transactionCompleteDropsPins() throws Exception {
+        bp.pinPage(tid, p0, Permissions.READ_ONLY);
+        bp.transactionComplete(tid);
+        assertEquals(0, bp.getPinCount(p0));
+        bp.getPage(tid, p1, Permissions.READ_ONLY);
+    }
+
+    /**
+     * A scan keeps only the page it is positioned on pinned
+     */
+    @Test
+    public void scanPinsCurrentPage() throws Exception {
+        DbFileIterator it = hf.iterator(tid);
+        it.open();
+        it.next();
+        assertEquals(1, bp.getPinCount(p0));
+        while (it.hasNext())
+            it.next();
+        assertEquals(0, bp.getPinCount(p0));
+        assertEquals(1, bp.getPinCount(p1));
+        it.close();
+        assertEquals(0, bp.getPinCount(p1));
+    }
+
+    /**
+     * Pins are released when their transaction completes, so a page cannot
+     * be pinned without one
+     */
+    @Test
+    public void pinWithoutTransaction() throws Exception {
+        try {
+            bp.pinPage(null, p0, Permissions.READ_ONLY);
+            fail("expected a pin without a transaction to be rejected");
+        } catch (IllegalArgumentException e) {
+        }
+        assertEquals(0, bp.getPinCount(p0));
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(BufferPoolPinTest.class);
+    }
+}
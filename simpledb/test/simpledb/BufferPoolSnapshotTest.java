@@ -0,0 +1,152 @@
+package simpledb;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class BufferPoolSnapshotTest extends SimpleDbTestBase {
+    private HeapFile hf;
+    private BufferPool bp;
+
+    /**
+     * Set up initial resources for each unit test.
+     */
+    @Before
+    public void setUp() throws Exception {
+        hf = SystemTestUtil.createRandomHeapFile(2, 10, null, null);
+        bp = Database.getBufferPool();
+    }
+
+    private int count(TransactionId tid) throws Exception {
+        DbFileIterator it = hf.iterator(tid);
+        it.open();
+        int count = 0;
+        while (it.hasNext()) {
+            it.next();
+            count++;
+        }
+        it.close();
+        return count;
+    }
+
+    /**
+     * A snapshot sees neither uncommitted writes nor writes committed after it started
+     */
+    @Test
+    public void snapshotIsolation() throws Exception {
+        TransactionId reader = new TransactionId();
+        bp.beginSnapshot(reader);
+        assertTrue(bp.isSnapshot(reader));
+
+        TransactionId writer = new TransactionId();
+        bp.insertTuple(writer, hf.getId(), Utility.getHeapTuple(42, 2));
+        assertEquals(11, count(writer));
+        assertEquals(10, count(reader));
+
+        bp.transactionComplete(writer, true);
+        assertEquals(10, count(reader));
+        assertEquals(1, bp.getRetainedVersions());
+
+        TransactionId later = new TransactionId();
+        bp.beginSnapshot(later);
+        assertEquals(11, count(later));
+
+        // once the first reader is done, no snapshot needs the old version
+        bp.transactionComplete(reader, true);
+        assertEquals(0, bp.getRetainedVersions());
+        assertEquals(11, count(later));
+        bp.transactionComplete(later, true);
+    }
+
+    /**
+     * Aborted writes are never visible and leave no versions behind
+     */
+    @Test
+    public void abortedWrite() throws Exception {
+        TransactionId reader = new TransactionId();
+        bp.beginSnapshot(reader);
+        TransactionId writer = new TransactionId();
+        bp.insertTuple(writer, hf.getId(), Utility.getHeapTuple(42, 2));
+        bp.transactionComplete(writer, false);
+
+        assertEquals(10, count(reader));
+        assertEquals(0, bp.getRetainedVersions());
+        TransactionId other = new TransactionId();
+        assertEquals(10, count(other));
+        bp.transactionComplete(reader, true);
+    }
+
+    /**
+     * A page written under a write lock and flushed before the commit, as
+     * Transaction.commit does, is still installed as a committed version
+     */
+    @Test
+    public void flushedBeforeCommit() throws Exception {
+        TransactionId reader = new TransactionId();
+        bp.beginSnapshot(reader);
+        HeapPageId pid = new HeapPageId(hf.getId(), 0);
+        bp.getCommittedPage(pid);
+
+        TransactionId writer = new TransactionId();
+        HeapPage page = (HeapPage) bp.getPage(writer, pid, Permissions.READ_WRITE);
+        page.insertTuple(Utility.getHeapTuple(42, 2));
+        page.markDirty(true, writer);
+        bp.flushPages(writer);
+        bp.transactionComplete(writer, true);
+
+        assertEquals(10, count(reader));
+        assertEquals(1, bp.getRetainedVersions());
+        assertArrayEquals(page.getPageData(), bp.getCommittedPage(pid).getPageData());
+        bp.transactionComplete(reader, true);
+    }
+
+    /**
+     * Snapshot transactions may not write
+     */
+    @Test
+    public void snapshotIsReadOnly() throws Exception {
+        TransactionId reader = new TransactionId();
+        bp.beginSnapshot(reader);
+        try {
+            bp.insertTuple(reader, hf.getId(), Utility.getHeapTuple(42, 2));
+            fail("expected DbException");
+        } catch (DbException e) {
+        }
+        try {
+            bp.getPage(reader, new HeapPageId(hf.getId(), 0), Permissions.READ_WRITE);
+            fail("expected DbException");
+        } catch (DbException e) {
+        }
+        bp.transactionComplete(reader, true);
+        assertFalse(bp.isSnapshot(reader));
+    }
+
+    /**
+     * Commits made while no snapshot is running leave no commit timestamps
+     * behind
+     */
+    @Test
+    public void commitsWithoutSnapshots() throws Exception {
+        VersionStore versions = new VersionStore();
+        HeapPageId pid = new HeapPageId(hf.getId(), 0);
+        Page page = bp.getPage(null, pid, Permissions.READ_ONLY);
+        versions.install(pid, page, 1, true);
+        assertEquals(1, versions.lastCommit(pid));
+        versions.install(pid, page, 2, false);
+        assertEquals(0, versions.lastCommit(pid));
+        versions.prune(Long.MAX_VALUE);
+        assertEquals(0, versions.size());
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(BufferPoolSnapshotTest.class);
+    }
+}
@@ -0,0 +1,91 @@
+package simpledb;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+import java.lang.management.ManagementFactory;
+import javax.management.ObjectName;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class BufferPoolStatsTest extends SimpleDbTestBase {
+    private HeapFile hf;
+    private TransactionId tid;
+
+    /**
+     * Set up initial resources for each unit test.
+     */
+    @Before
+    public void setUp() throws Exception {
+        hf = SystemTestUtil.createRandomHeapFile(2, 1000, null, null);
+        tid = new TransactionId();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /**
+     * The first access of a page is a miss, every later access a hit
+     */
+    @Test
+    public void hitsAndMisses() throws Exception {
+        BufferPoolStats stats = Database.getBufferPool().getStats();
+        HeapPageId pid = new HeapPageId(hf.getId(), 0);
+        Database.getBufferPool().getPage(tid, pid, Permissions.READ_ONLY);
+        Database.getBufferPool().getPage(tid, pid, Permissions.READ_ONLY);
+        Database.getBufferPool().getPage(tid, pid, Permissions.READ_ONLY);
+
+        assertEquals(1, stats.getMisses(hf.getId()));
+        assertEquals(2, stats.getHits(hf.getId()));
+        assertEquals(1, stats.getResidentPages());
+        assertEquals(2.0 / 3.0, stats.getHitRatio(), 0.0001);
+        assertArrayEquals(new int[] { hf.getId() }, stats.getTableIds());
+
+        stats.reset();
+        assertEquals(0, stats.getHits());
+        assertEquals(0, stats.getMisses());
+    }
+
+    /**
+     * Evicting clean pages is counted against the table they belong to
+     */
+    @Test
+    public void evictions() throws Exception {
+        BufferPool bp = Database.resetBufferPool(1);
+        bp.getPage(tid, new HeapPageId(hf.getId(), 0), Permissions.READ_ONLY);
+        bp.getPage(tid, new HeapPageId(hf.getId(), 1), Permissions.READ_ONLY);
+
+        assertEquals(2, bp.getStats().getMisses(hf.getId()));
+        assertEquals(1, bp.getStats().getEvictions(hf.getId()));
+        assertEquals(1, bp.getStats().getResidentPages());
+    }
+
+    /**
+     * The stats of the current buffer pool are published over JMX
+     */
+    @Test
+    public void registeredMBean() throws Exception {
+        BufferPool bp = Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        ObjectName name = new ObjectName(BufferPoolStats.OBJECT_NAME);
+        bp.getPage(tid, new HeapPageId(hf.getId(), 0), Permissions.READ_ONLY);
+
+        Object misses = ManagementFactory.getPlatformMBeanServer().getAttribute(name, "Misses");
+        assertEquals(1L, misses);
+        Object capacity = ManagementFactory.getPlatformMBeanServer().getAttribute(name, "Capacity");
+        assertEquals(BufferPool.DEFAULT_PAGES, capacity);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(BufferPoolStatsTest.class);
+    }
+}
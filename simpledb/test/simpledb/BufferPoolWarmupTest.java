@@ -0,0 +1,103 @@
+package simpledb;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+import java.io.File;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class BufferPoolWarmupTest extends SimpleDbTestBase {
+    private HeapFile hf;
+    private TransactionId tid;
+    private File manifest;
+
+    /**
+     * Set up initial resources for each unit test.
+     */
+    @Before
+    public void setUp() throws Exception {
+        hf = SystemTestUtil.createRandomHeapFile(2, 3000, null, null);
+        tid = new TransactionId();
+        manifest = File.createTempFile("hotpages", ".dat");
+        manifest.deleteOnExit();
+    }
+
+    /**
+     * The manifest lists the resident pages, most accessed first
+     */
+    @Test
+    public void manifestOrdersByAccessCount() throws Exception {
+        BufferPool bp = Database.resetBufferPool(3);
+        HeapPageId p0 = new HeapPageId(hf.getId(), 0);
+        HeapPageId p1 = new HeapPageId(hf.getId(), 1);
+        HeapPageId p2 = new HeapPageId(hf.getId(), 2);
+        bp.getPage(tid, p0, Permissions.READ_ONLY);
+        for (int i = 0; i < 3; i++)
+            bp.getPage(tid, p2, Permissions.READ_ONLY);
+        for (int i = 0; i < 2; i++)
+            bp.getPage(tid, p1, Permissions.READ_ONLY);
+
+        assertEquals(3, bp.saveManifest(manifest));
+        List<PageId> hot = PageManifest.load(manifest);
+        assertEquals(3, hot.size());
+        assertEquals(p2, hot.get(0));
+        assertEquals(p1, hot.get(1));
+        assertEquals(p0, hot.get(2));
+    }
+
+    /**
+     * A fresh buffer pool reloads the saved pages, and later reads hit
+     */
+    @Test
+    public void warmUpReloadsHotPages() throws Exception {
+        assertTrue(hf.numPages() > 4);
+        BufferPool bp = Database.resetBufferPool(2);
+        HeapPageId p1 = new HeapPageId(hf.getId(), 1);
+        HeapPageId p3 = new HeapPageId(hf.getId(), 3);
+        bp.getPage(tid, p3, Permissions.READ_ONLY);
+        bp.getPage(tid, p1, Permissions.READ_ONLY);
+        bp.saveManifest(manifest);
+
+        bp = Database.resetBufferPool(2);
+        bp.warmUp(manifest).join();
+        assertEquals(2, bp.getStats().getPrefetches());
+
+        bp.getPage(tid, p1, Permissions.READ_ONLY);
+        bp.getPage(tid, p3, Permissions.READ_ONLY);
+        assertEquals(0, bp.getStats().getMisses());
+        assertEquals(2, bp.getStats().getPrefetchHits());
+    }
+
+    /**
+     * Warming up never evicts pages and tolerates a missing manifest
+     */
+    @Test
+    public void warmUpOnlyFillsFreeFrames() throws Exception {
+        BufferPool bp = Database.resetBufferPool(2);
+        bp.getPage(tid, new HeapPageId(hf.getId(), 0), Permissions.READ_ONLY);
+        bp.getPage(tid, new HeapPageId(hf.getId(), 1), Permissions.READ_ONLY);
+        bp.saveManifest(manifest);
+
+        bp = Database.resetBufferPool(2);
+        bp.getPage(tid, new HeapPageId(hf.getId(), 4), Permissions.READ_ONLY);
+        bp.warmUp(manifest).join();
+        assertEquals(1, bp.getStats().getPrefetches());
+        assertEquals(0, bp.getStats().getEvictions());
+
+        manifest.delete();
+        Database.resetBufferPool(2).warmUp(manifest).join();
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(BufferPoolWarmupTest.class);
+    }
+}
@@ -7,6 +7,8 @@ import org.junit.Before;
 import org.junit.Test;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 import junit.framework.JUnit4TestAdapter;
 
 public class DeadlockTest extends TestUtil.CreateHeapFile {
@@ -30,7 +32,7 @@ public class DeadlockTest extends TestUtil.CreateHeapFile {
     bp = Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
 
     // create a new empty HeapFile and populate it with three pages.
-    // we should be able to add 504 tuples on an empty page.
+    // we should be able to add 503 tuples on an empty page.
     TransactionId tid = new TransactionId();
     for (int i = 0; i < 1025; ++i) {
       empty.insertTuple(tid, Utility.getHeapTuple(i, 2));
@@ -211,6 +213,38 @@ public class DeadlockTest extends TestUtil.CreateHeapFile {
     System.out.println("testUpgradeWriteDeadlock resolved deadlock");
   }
 
+  /**
+   * A scan chosen as a deadlock victim sees its abort, rather than ending
+   * early. t1 scans p0; t2 acquires p1.write and attempts p0.write; the
+   * scan then moves on to p1.
+   */
+  @Test public void testScanDeadlockVictim() throws Exception {
+    SeqScan scan = new SeqScan(tid1, empty.getId());
+    scan.open();
+    bp.getPage(tid2, p1, Permissions.READ_WRITE);
+    LockGrabber lg2Write = startGrabber(tid2, p0, Permissions.READ_WRITE);
+    Thread.sleep(POLL_INTERVAL);
+    assertFalse(lg2Write.acquired());
+
+    int count = 0;
+    try {
+      while (scan.hasNext()) {
+        scan.next();
+        count++;
+      }
+      fail("scan of " + count + " tuples was not aborted");
+    } catch (TransactionAbortedException e) {
+      // expected: the scan waits for t2, which waits for it
+    }
+    scan.close();
+    bp.transactionComplete(tid1, false);
+
+    // t2 goes on once the victim's locks are released
+    Thread.sleep(POLL_INTERVAL);
+    assertTrue(lg2Write.acquired());
+    bp.transactionComplete(tid2);
+  }
+
   /**
    * JUnit suite target
    */
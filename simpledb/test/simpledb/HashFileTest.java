@@ -0,0 +1,259 @@
+package simpledb;
+
+import simpledb.Predicate.Op;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+import java.io.*;
+import java.util.*;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class HashFileTest extends SimpleDbTestBase {
+	private TransactionId tid;
+	private HashFile hf;
+
+	/**
+	 * Set up initial resources for each unit test.
+	 */
+	@Before
+	public void setUp() throws Exception {
+		Database.reset();
+		BufferPool.setPageSize(1024);
+		tid = new TransactionId();
+		File f = File.createTempFile("hash", ".dat");
+		f.delete();
+		f.deleteOnExit();
+		hf = new HashFile(f, 0, Utility.getTupleDesc(2));
+		Database.getCatalog().addTable(hf, UUID.randomUUID().toString());
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		Database.getBufferPool().transactionComplete(tid);
+		BufferPool.resetPageSize();
+	}
+
+	/** @return the second field of the tuples an iterator returns, sorted */
+	private static ArrayList<Integer> values(DbFileIterator it) throws Exception {
+		ArrayList<Integer> values = new ArrayList<Integer>();
+		it.open();
+		while(it.hasNext()) {
+			values.add(((IntField) it.next().getField(1)).getValue());
+		}
+		it.close();
+		Collections.sort(values);
+		return values;
+	}
+
+	private ArrayList<Integer> lookup(int key) throws Exception {
+		return values(hf.indexIterator(tid, new IndexPredicate(Op.EQUALS, new IntField(key))));
+	}
+
+	/** @return the meta page as written to disk, once the committed pages are */
+	private HashMetaPage meta() throws IOException {
+		Database.getBufferPool().flushAllPages();
+		return (HashMetaPage) hf.readPage(HashMetaPage.getId(hf.getId()));
+	}
+
+	/**
+	 * Inserts split the buckets one at a time, and every key is still found
+	 * in its bucket, before and after the pages are written to disk
+	 */
+	@Test
+	public void inserts() throws Exception {
+		// random keys dirty a page of most buckets in every transaction
+		BufferPool bp = Database.resetBufferPool(500);
+		HashMap<Integer, ArrayList<Integer>> expected = new HashMap<Integer, ArrayList<Integer>>();
+		Random r = new Random(49);
+		for(int i = 0; i < 5000; i++) {
+			int key = r.nextInt(2000);
+			bp.insertTuple(tid, hf.getId(), BTreeUtility.getBTreeTuple(new int[] { key, i }));
+			expected.computeIfAbsent(key, k -> new ArrayList<Integer>()).add(i);
+			if(i % 500 == 499) {
+				bp.transactionComplete(tid);
+				tid = new TransactionId();
+			}
+		}
+		HashMetaPage meta = meta();
+		assertTrue(meta.getNumBuckets() > 5000 / HashBucketPage.getNumSlots(hf.getTupleDesc()));
+		assertEquals(meta.getNumPages(), hf.numPages());
+
+		Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+		for(int key = 0; key < 2000; key++) {
+			ArrayList<Integer> values = expected.containsKey(key) ? expected.get(key) : new ArrayList<Integer>();
+			assertEquals(values, lookup(key));
+		}
+		assertEquals(5000, values(hf.iterator(tid)).size());
+	}
+
+	/**
+	 * A lookup reads the pages of the bucket of its key only
+	 */
+	@Test
+	public void singleBucket() throws Exception {
+		BufferPool bp = Database.getBufferPool();
+		for(int i = 0; i < 3000; i++) {
+			bp.insertTuple(tid, hf.getId(), BTreeUtility.getBTreeTuple(new int[] { i, i }));
+		}
+		bp.transactionComplete(tid);
+		tid = new TransactionId();
+
+		HashMetaPage meta = meta();
+		assertTrue(meta.getNumBuckets() > 16);
+		HashSet<PageId> chain = new HashSet<PageId>();
+		PageId pid = new HashPageId(hf.getId(), meta.getPageNumber(meta.getBucket(HashFile.hash(new IntField(1234)))),
+				HashPageId.BUCKET);
+		while(pid != null) {
+			chain.add(pid);
+			pid = ((HashBucketPage) hf.readPage(pid)).getOverflowId();
+		}
+
+		assertEquals(Arrays.asList(1234), lookup(1234));
+		HashSet<PageId> locked = new HashSet<PageId>();
+		for(int pgNo = 0; pgNo < meta.getNumPages(); pgNo++) {
+			for(int categ : new int[] { HashPageId.META, HashPageId.BUCKET }) {
+				pid = new HashPageId(hf.getId(), pgNo, categ);
+				if(bp.holdsLock(tid, pid)) {
+					locked.add(pid);
+				}
+			}
+		}
+		assertEquals(chain, locked);
+	}
+
+	/**
+	 * Deletes free slots of a bucket, and aborting an insert that split a
+	 * bucket rolls the split back
+	 */
+	@Test
+	public void deletesAndAborts() throws Exception {
+		BufferPool bp = Database.getBufferPool();
+		int perPage = HashBucketPage.getNumSlots(hf.getTupleDesc());
+		for(int i = 0; i < perPage; i++) {
+			bp.insertTuple(tid, hf.getId(), BTreeUtility.getBTreeTuple(new int[] { i, i }));
+		}
+		bp.transactionComplete(tid);
+		tid = new TransactionId();
+		assertEquals(1, meta().getNumBuckets());
+
+		DbFileIterator it = hf.indexIterator(tid, new IndexPredicate(Op.EQUALS, new IntField(7)));
+		it.open();
+		bp.deleteTuple(tid, it.next());
+		it.close();
+		assertTrue(lookup(7).isEmpty());
+		bp.insertTuple(tid, hf.getId(), BTreeUtility.getBTreeTuple(new int[] { perPage, perPage }));
+		bp.transactionComplete(tid);
+		tid = new TransactionId();
+		// the insert took the free slot
+		assertEquals(1, meta().getNumBuckets());
+
+		// the next one needs an overflow page and splits the bucket
+		bp.insertTuple(tid, hf.getId(), BTreeUtility.getBTreeTuple(new int[] { -1, -1 }));
+		assertEquals(Arrays.asList(-1), lookup(-1));
+		bp.transactionComplete(tid, false);
+		tid = new TransactionId();
+		assertTrue(lookup(-1).isEmpty());
+		assertEquals(Arrays.asList(perPage), lookup(perPage));
+		assertEquals(1, meta().getNumBuckets());
+	}
+
+	/**
+	 * Hash files only serve equality lookups
+	 */
+	@Test(expected = IllegalArgumentException.class)
+	public void ranges() throws Exception {
+		assertFalse(hf.supports(Op.LESS_THAN));
+		hf.indexIterator(tid, new IndexPredicate(Op.LESS_THAN, new IntField(0)));
+	}
+
+	/**
+	 * A hash index on a table answers lookups and is kept up to date, and the
+	 * planner prefers it to a B+ tree for equalities only
+	 */
+	@Test
+	public void index() throws Exception {
+		BufferPool.resetPageSize();
+		ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+		HeapFile table = SystemTestUtil.createRandomHeapFile(2, 3000, 200, null, tuples, "c");
+		File bFile = File.createTempFile("btree", ".dat");
+		bFile.delete();
+		bFile.deleteOnExit();
+		SecondaryIndex.create(tid, table, 1, bFile);
+		File hFile = File.createTempFile("hash", ".dat");
+		hFile.delete();
+		hFile.deleteOnExit();
+		SecondaryIndex index = SecondaryIndex.createHash(tid, table, 1, hFile);
+		assertTrue(index.getFile() instanceof HashFile);
+
+		int value = tuples.get(0).get(1);
+		ArrayList<Integer> expected = new ArrayList<Integer>();
+		for(ArrayList<Integer> t : tuples) {
+			if(t.get(1) == value) {
+				expected.add(t.get(0));
+			}
+		}
+		Collections.sort(expected);
+		ArrayList<Integer> found = new ArrayList<Integer>();
+		DbFileIterator it = index.iterator(tid, new IndexPredicate(Op.EQUALS, new IntField(value)));
+		it.open();
+		while(it.hasNext()) {
+			Tuple t = it.next();
+			assertEquals(value, ((IntField) t.getField(1)).getValue());
+			found.add(((IntField) t.getField(0)).getValue());
+		}
+		it.close();
+		Collections.sort(found);
+		assertEquals(expected, found);
+
+		// maintained through the buffer pool
+		Tuple t = new Tuple(table.getTupleDesc());
+		t.setField(0, new IntField(-1));
+		t.setField(1, new IntField(value));
+		Database.getBufferPool().insertTuple(tid, table.getId(), t);
+		assertEquals(expected.size() + 1, values(index.iterator(tid,
+				new IndexPredicate(Op.EQUALS, new IntField(value)))).size());
+		Database.getBufferPool().transactionComplete(tid);
+
+		tid = new TransactionId();
+		assertTrue(usesHash(table, index, Op.EQUALS, value));
+		assertFalse(usesHash(table, index, Op.GREATER_THAN, value));
+	}
+
+	/** @return true if the planner looked a filter up in a hash index */
+	private boolean usesHash(HeapFile table, SecondaryIndex index, Op op, int value) throws Exception {
+		HashMap<String, TableStats> stats = new HashMap<String, TableStats>();
+		stats.put(Database.getCatalog().getTableName(table.getId()), new TableStats(table.getId(), 1000));
+		LogicalPlan lp = new LogicalPlan();
+		lp.addScan(table.getId(), "t");
+		lp.addFilter("t.c1", op, Integer.toString(value));
+		lp.addProjectField("t.c0", null);
+		TransactionId tid = new TransactionId();
+		OpIterator plan = lp.physicalPlan(tid, stats, false);
+		assertTrue(((Operator) plan).getChildren()[0] instanceof BTreeScan);
+		plan.open();
+		while(plan.hasNext()) {
+			plan.next();
+		}
+		plan.close();
+		boolean hashed = false;
+		HashFile f = (HashFile) index.getFile();
+		for(int pgNo = 1; pgNo < f.numPages(); pgNo++) {
+			hashed |= Database.getBufferPool().holdsLock(tid, new HashPageId(f.getId(), pgNo, HashPageId.BUCKET));
+		}
+		Database.getBufferPool().transactionComplete(tid);
+		return hashed;
+	}
+
+	/**
+	 * JUnit suite target
+	 */
+	public static junit.framework.Test suite() {
+		return new JUnit4TestAdapter(HashFileTest.class);
+	}
+}
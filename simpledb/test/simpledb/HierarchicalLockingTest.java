@@ -0,0 +1,137 @@
+package simpledb;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class HierarchicalLockingTest extends SimpleDbTestBase {
+    private HeapFile hf;
+    private BufferPool bp;
+
+    /** Time to wait before checking the state of lock contention, in ms */
+    private static final int TIMEOUT = 100;
+
+    /**
+     * Set up initial resources for each unit test.
+     */
+    @Before
+    public void setUp() throws Exception {
+        hf = SystemTestUtil.createRandomHeapFile(2, 3000, null, null);
+        bp = Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+    }
+
+    private HeapPageId page(int pgNo) {
+        return new HeapPageId(hf.getId(), pgNo);
+    }
+
+    private void grabLock(TransactionId tid, PageId pid, Permissions perm, boolean expected)
+        throws Exception {
+        TestUtil.LockGrabber t = new TestUtil.LockGrabber(tid, pid, perm);
+        t.start();
+        Thread.sleep(TIMEOUT);
+        assertEquals(expected, t.acquired());
+        assertNull(t.getError());
+        t.stop();
+    }
+
+    /**
+     * The lock modes follow the usual compatibility matrix
+     */
+    @Test
+    public void modes() {
+        LockManager.Mode[] m = LockManager.Mode.values();
+        for (LockManager.Mode a : m) {
+            assertEquals(a != LockManager.Mode.X, a.compatible(LockManager.Mode.IS));
+            assertTrue(LockManager.Mode.X.covers(a));
+            assertEquals(a, a.join(LockManager.Mode.IS).join(a));
+        }
+        assertFalse(LockManager.Mode.S.compatible(LockManager.Mode.IX));
+        assertFalse(LockManager.Mode.SIX.compatible(LockManager.Mode.SIX));
+        assertEquals(LockManager.Mode.SIX, LockManager.Mode.S.join(LockManager.Mode.IX));
+    }
+
+    /**
+     * A table lock covers page accesses and conflicts with page writers
+     */
+    @Test
+    public void tableLockCoversPages() throws Exception {
+        TransactionId scanner = new TransactionId();
+        bp.getPage(scanner, page(0), Permissions.READ_ONLY);
+        bp.lockTable(scanner, hf.getId(), Permissions.READ_ONLY);
+        assertEquals(1, bp.getLockedResources());
+        bp.getPage(scanner, page(1), Permissions.READ_ONLY);
+        assertTrue(bp.holdsLock(scanner, page(5)));
+        assertEquals(1, bp.getLockedResources());
+
+        TransactionId reader = new TransactionId();
+        grabLock(reader, page(2), Permissions.READ_ONLY, true);
+        grabLock(new TransactionId(), page(3), Permissions.READ_WRITE, false);
+        bp.transactionComplete(scanner);
+        bp.transactionComplete(reader);
+        assertFalse(bp.holdsLock(scanner, page(5)));
+    }
+
+    /**
+     * Page locks beyond the threshold are escalated to one table lock
+     */
+    @Test
+    public void escalation() throws Exception {
+        bp.setLockEscalationThreshold(3);
+        TransactionId tid = new TransactionId();
+        for (int i = 0; i < 3; i++)
+            bp.getPage(tid, page(i), Permissions.READ_ONLY);
+        assertEquals(4, bp.getLockedResources());
+        bp.getPage(tid, page(3), Permissions.READ_ONLY);
+        assertEquals(1, bp.getLockedResources());
+
+        // writing now takes an X page lock under SIX
+        bp.getPage(tid, page(0), Permissions.READ_WRITE);
+        assertEquals(2, bp.getLockedResources());
+        grabLock(new TransactionId(), page(4), Permissions.READ_ONLY, true);
+        bp.transactionComplete(tid);
+    }
+
+    /**
+     * Escalation does not wait for other transactions
+     */
+    @Test
+    public void escalationDoesNotBlock() throws Exception {
+        bp.setLockEscalationThreshold(2);
+        TransactionId writer = new TransactionId();
+        bp.getPage(writer, page(5), Permissions.READ_WRITE);
+        TransactionId reader = new TransactionId();
+        for (int i = 0; i < 4; i++)
+            bp.getPage(reader, page(i), Permissions.READ_ONLY);
+        assertEquals(6, bp.getLockedResources());
+        bp.transactionComplete(writer);
+        bp.transactionComplete(reader);
+    }
+
+    /**
+     * A scan of a table larger than the threshold takes a single table lock
+     */
+    @Test
+    public void largeScanLocksTable() throws Exception {
+        bp.setLockEscalationThreshold(2);
+        TransactionId tid = new TransactionId();
+        DbFileIterator it = hf.iterator(tid);
+        it.open();
+        while (it.hasNext())
+            it.next();
+        it.close();
+        assertEquals(1, bp.getLockedResources());
+        bp.transactionComplete(tid);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(HierarchicalLockingTest.class);
+    }
+}
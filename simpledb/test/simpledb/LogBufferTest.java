@@ -0,0 +1,122 @@
+package simpledb;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+import java.io.*;
+import java.util.*;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class LogBufferTest extends SimpleDbTestBase {
+    private File f;
+    private LogSegments segments;
+
+    /**
+     * Set up initial resources for each unit test.
+     */
+    @Before
+    public void setUp() throws Exception {
+        f = File.createTempFile("logbuffer", ".log");
+        f.deleteOnExit();
+        segments = new LogSegments(f, LogSegments.DEFAULT_SEGMENT_SIZE);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        segments.close();
+        // every segment, which deleteOnExit does not know about
+        segments.deleteBefore(Long.MAX_VALUE);
+    }
+
+    private static byte[] record(long tid) throws IOException {
+        return new LogRecord(LogFile.COMMIT_RECORD, tid).toBytes(0);
+    }
+
+    /** Read back every record of the log, checking checksums and LSNs */
+    private List<Long> readAll() throws IOException {
+        ArrayList<Long> tids = new ArrayList<Long>();
+        LogSegments.Reader reader = segments.reader(0);
+        try {
+            while (true)
+                tids.add(reader.next().tid);
+        } catch (EOFException e) {
+            return tids;
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * Records appended concurrently through a small ring all reach the file intact
+     */
+    @Test
+    public void concurrentAppends() throws Exception {
+        final int len = record(0).length;
+        final LogBuffer buffer = new LogBuffer(segments, 0, 5 * len + 3);
+        Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            final int base = t * 1000;
+            threads[t] = new Thread() {
+                public void run() {
+                    try {
+                        for (int i = 0; i < 250; i++)
+                            buffer.append(record(base + i));
+                    } catch (IOException e) {
+                        throw new RuntimeException(e);
+                    }
+                }
+            };
+            threads[t].start();
+        }
+        for (Thread t : threads)
+            t.join();
+        buffer.forceAll();
+        assertEquals(1000L * len, buffer.getDurableLsn());
+
+        List<Long> tids = readAll();
+        assertEquals(1000, tids.size());
+        assertEquals(1000, new HashSet<Long>(tids).size());
+    }
+
+    /**
+     * Forcing stops at the requested record, and records larger than the ring still work
+     */
+    @Test
+    public void forceUpToLsn() throws Exception {
+        int len = record(0).length;
+        LogBuffer buffer = new LogBuffer(segments, 0, 4 * len);
+        long first = buffer.append(record(1));
+        buffer.append(record(2));
+        assertEquals(0, segments.endLsn());
+
+        // forcing one record writes every record copied in before it
+        buffer.force(first);
+        assertTrue(buffer.getDurableLsn() > first);
+        assertEquals(buffer.getDurableLsn(), segments.endLsn());
+        buffer.force(first);
+
+        HashMap<Long, Long> active = new HashMap<Long, Long>();
+        for (long i = 0; i < 10; i++)
+            active.put(i, i);
+        long big = buffer.append(LogRecord.checkpoint(active, new HashMap<PageId, Long>()).toBytes(0));
+        assertEquals(2 * len, big);
+        long after = buffer.append(record(3));
+        buffer.forceAll();
+
+        assertEquals(Arrays.asList(1L, 2L, -1L, 3L), readAll());
+        assertEquals(segments.endLsn(), buffer.getEndLsn());
+        assertTrue(after > big);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(LogBufferTest.class);
+    }
+}
@@ -0,0 +1,151 @@
+package simpledb;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+import java.io.*;
+import java.util.*;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class LogRecordTest extends SimpleDbTestBase {
+    private HeapFile hf;
+    private File f;
+
+    /**
+     * Set up initial resources for each unit test.
+     */
+    @Before
+    public void setUp() throws Exception {
+        hf = SystemTestUtil.createRandomHeapFile(2, 10, null, null);
+        f = File.createTempFile("logrecord", ".log");
+        f.deleteOnExit();
+    }
+
+    private long write(RandomAccessFile raf, LogRecord r) throws IOException {
+        long lsn = raf.getFilePointer();
+        raf.write(r.toBytes(lsn));
+        return lsn;
+    }
+
+    /**
+     * Records read back as they were written, pages included
+     */
+    @Test
+    public void roundTrip() throws Exception {
+        HeapPage before = (HeapPage) hf.readPage(new HeapPageId(hf.getId(), 0));
+        HeapPage after = (HeapPage) hf.readPage(new HeapPageId(hf.getId(), 0));
+        after.deleteTuple(after.iterator().next());
+        HashMap<Long, Long> active = new HashMap<Long, Long>();
+        active.put(7L, 0L);
+
+        RandomAccessFile raf = new RandomAccessFile(f, "rw");
+        write(raf, new LogRecord(LogFile.BEGIN_RECORD, 7));
+        long update = write(raf, LogRecord.update(7, before, after));
+        write(raf, LogRecord.checkpoint(active, new HashMap<PageId, Long>()));
+
+        raf.seek(0);
+        LogRecord r = LogRecord.read(raf);
+        assertEquals(LogFile.BEGIN_RECORD, r.type);
+        assertEquals(7, r.tid);
+        assertEquals(0, r.lsn);
+
+        r = LogRecord.read(raf);
+        assertEquals(LogFile.UPDATE_RECORD, r.type);
+        assertEquals(update, r.lsn);
+        assertEquals(after.getId(), r.pid);
+        byte[] data = before.getPageData();
+        r.apply(data, true);
+        Page redone = r.createPage(data);
+        assertTrue(redone instanceof HeapPage);
+        assertArrayEquals(after.getPageData(), redone.getPageData());
+        data = after.getPageData();
+        r.apply(data, false);
+        assertArrayEquals(before.getPageData(), data);
+
+        r = LogRecord.read(raf);
+        assertEquals(active, r.firstRecords);
+        try {
+            LogRecord.read(raf);
+            fail("expected EOFException");
+        } catch (EOFException e) {
+        }
+        raf.close();
+    }
+
+    /**
+     * An UPDATE record only carries the bytes that changed
+     */
+    @Test
+    public void deltaUpdate() throws Exception {
+        HeapPage before = (HeapPage) hf.readPage(new HeapPageId(hf.getId(), 0));
+        HeapPage after = (HeapPage) hf.readPage(new HeapPageId(hf.getId(), 0));
+        after.insertTuple(Utility.getHeapTuple(12345, 2));
+        LogRecord r = LogRecord.update(1, before, after);
+
+        // one header bit and one 8 byte tuple
+        assertTrue(r.changedBytes() <= 1 + LogRecord.MERGE_GAP + 8);
+        byte[] bytes = r.toBytes(0);
+        assertTrue(bytes.length < 100);
+        byte[] data = before.getPageData();
+        r.apply(data, true);
+        assertArrayEquals(after.getPageData(), data);
+
+        LogRecord none = LogRecord.update(1, before, before);
+        assertEquals(0, none.changedBytes());
+        data = before.getPageData();
+        none.apply(data, false);
+        assertArrayEquals(before.getPageData(), data);
+    }
+
+    /**
+     * A damaged record is detected by its checksum, a torn one as the end of the log
+     */
+    @Test
+    public void corruption() throws Exception {
+        RandomAccessFile raf = new RandomAccessFile(f, "rw");
+        write(raf, new LogRecord(LogFile.COMMIT_RECORD, 3));
+        raf.seek(6);
+        raf.writeByte(9);
+        raf.seek(0);
+        try {
+            LogRecord.read(raf);
+            fail("expected IOException");
+        } catch (EOFException e) {
+            fail("not a torn record");
+        } catch (IOException e) {
+        }
+        raf.setLength(10);
+        raf.seek(0);
+        try {
+            LogRecord.read(raf);
+            fail("expected EOFException");
+        } catch (EOFException e) {
+        }
+        raf.close();
+    }
+
+    /**
+     * Page type codes cannot be reused by another page class
+     */
+    @Test
+    public void pageTypeRegistry() throws Exception {
+        assertEquals(LogFile.HEAP_PAGE, LogFile.pageType(hf.readPage(new HeapPageId(hf.getId(), 0))));
+        try {
+            LogFile.registerPageType(LogFile.HEAP_PAGE, BTreeLeafPage.class, null);
+            fail("expected IllegalArgumentException");
+        } catch (IllegalArgumentException e) {
+        }
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(LogRecordTest.class);
+    }
+}
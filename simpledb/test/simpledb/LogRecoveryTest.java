@@ -0,0 +1,249 @@
+package simpledb;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+import java.io.*;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class LogRecoveryTest extends SimpleDbTestBase {
+    private File file;
+    private HeapFile hf;
+
+    /**
+     * Set up initial resources for each unit test.
+     */
+    @Before
+    public void setUp() throws Exception {
+        Database.reset();
+        file = new File("simple1.db");
+        file.delete();
+        file.deleteOnExit();
+        hf = Utility.createEmptyHeapFile(file.getAbsolutePath(), 2);
+    }
+
+    private void insert(Transaction t, int v) throws Exception {
+        Database.getBufferPool().insertTuple(t.getId(), hf.getId(), Utility.getHeapTuple(v, 2));
+    }
+
+    /** @return the number of tuples of the table whose first field is v */
+    private int count(int v) throws Exception {
+        return count(hf, v);
+    }
+
+    private int count(DbFile f, int v) throws Exception {
+        Transaction t = new Transaction();
+        t.start();
+        DbFileIterator it = f.iterator(t.getId());
+        it.open();
+        int n = 0;
+        while (it.hasNext()) {
+            if (((IntField) it.next().getField(0)).getValue() == v)
+                n++;
+        }
+        it.close();
+        t.commit();
+        return n;
+    }
+
+    // restart the database and run log recovery
+    private void crash() throws Exception {
+        Database.reset();
+        hf = Utility.openHeapFile(2, file);
+        Database.getLogFile().recover();
+    }
+
+    /**
+     * Committed updates whose pages never reached the table are redone
+     */
+    @Test
+    public void redoCommitted() throws Exception {
+        Transaction t = new Transaction();
+        t.start();
+        int tuples = 3 * ((HeapPage) hf.readPage(new HeapPageId(hf.getId(), 0))).getNumEmptySlots();
+        for (int i = 0; i < tuples; i++)
+            insert(t, 1);
+        t.commit();
+        assertTrue(hf.numPages() >= 3);
+
+        // lose every page write
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        raf.setLength(0);
+        raf.close();
+        crash();
+        assertEquals(tuples, count(1));
+    }
+
+    /**
+     * A page flushed twice by a committed transaction is redone to the image
+     * of its last flush: the second UPDATE record also reverts what the first
+     * one changed
+     */
+    @Test
+    public void redoFlushedTwice() throws Exception {
+        Transaction t0 = new Transaction();
+        t0.start();
+        insert(t0, 0);
+        t0.commit();
+
+        // the second flush puts the page back to its committed image, but
+        // for its LSN
+        Transaction t = new Transaction();
+        t.start();
+        insert(t, 2);
+        Database.getBufferPool().flushAllPages();
+        DbFileIterator it = hf.iterator(t.getId());
+        it.open();
+        while (it.hasNext()) {
+            Tuple tup = it.next();
+            if (((IntField) tup.getField(0)).getValue() == 2)
+                Database.getBufferPool().deleteTuple(t.getId(), tup);
+        }
+        it.close();
+        Database.getBufferPool().flushAllPages();
+        t.commit();
+
+        // lose every page write
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        raf.setLength(0);
+        raf.close();
+        crash();
+        assertEquals(1, count(0));
+        assertEquals(0, count(2));
+    }
+
+    /**
+     * Updates of a transaction that did not commit are undone, also by a
+     * second recovery after later transactions changed the same page
+     */
+    @Test
+    public void undoLoser() throws Exception {
+        Transaction t1 = new Transaction();
+        t1.start();
+        insert(t1, 1);
+        t1.commit();
+
+        Transaction t2 = new Transaction();
+        t2.start();
+        insert(t2, 2);
+        Database.getBufferPool().flushPages(t2.getId());
+        crash();
+        assertEquals(1, count(1));
+        assertEquals(0, count(2));
+
+        Transaction t3 = new Transaction();
+        t3.start();
+        insert(t3, 3);
+        t3.commit();
+        crash();
+        assertEquals(1, count(1));
+        assertEquals(0, count(2));
+        assertEquals(1, count(3));
+    }
+
+    /**
+     * A checkpoint flushes no page, and an update logged before it whose
+     * page was never written is redone from the dirty page table
+     */
+    @Test
+    public void fuzzyCheckpoint() throws Exception {
+        Transaction t0 = new Transaction();
+        t0.start();
+        insert(t0, 0);
+        t0.commit();
+        assertTrue(Database.getLogFile().dirtyPages.isEmpty());
+
+        Transaction t1 = new Transaction();
+        t1.start();
+        insert(t1, 1);
+        HeapPageId pid = new HeapPageId(hf.getId(), 0);
+        HeapPage page = (HeapPage) Database.getBufferPool().getPage(t1.getId(), pid, Permissions.READ_ONLY);
+        int empty = ((HeapPage) hf.readPage(pid)).getNumEmptySlots();
+
+        // log the update as a flush would, but lose the page write
+        Database.getLogFile().logWrite(t1.getId(), page.getBeforeImage(), page);
+        Database.getLogFile().logCheckpoint();
+        assertEquals(t1.getId(), page.isDirty());
+        assertEquals(empty, ((HeapPage) hf.readPage(pid)).getNumEmptySlots());
+        assertTrue(Database.getLogFile().dirtyPages.containsKey(pid));
+
+        Database.getLogFile().logCommit(t1.getId());
+        crash();
+        assertEquals(1, count(0));
+        assertEquals(1, count(1));
+    }
+
+    /**
+     * Rolling back a transaction restores the pages it flushed
+     */
+    @Test
+    public void rollback() throws Exception {
+        Transaction t1 = new Transaction();
+        t1.start();
+        insert(t1, 1);
+        Database.getBufferPool().flushAllPages();
+        Database.getLogFile().logAbort(t1.getId());
+        Database.getBufferPool().transactionComplete(t1.getId(), false);
+        assertEquals(0, count(1));
+
+        crash();
+        assertEquals(0, count(1));
+    }
+
+    /**
+     * The records of a transaction are chained backwards from its last one,
+     * and rolling it back leaves the interleaved updates of others alone
+     */
+    @Test
+    public void rollbackChain() throws Exception {
+        File file2 = new File("simple2.db");
+        file2.delete();
+        file2.deleteOnExit();
+        HeapFile hf2 = Utility.createEmptyHeapFile(file2.getAbsolutePath(), 2);
+        Transaction t1 = new Transaction();
+        t1.start();
+        Transaction t2 = new Transaction();
+        t2.start();
+        insert(t1, 1);
+        Database.getBufferPool().insertTuple(t2.getId(), hf2.getId(), Utility.getHeapTuple(2, 2));
+        Database.getBufferPool().flushAllPages();
+        insert(t1, 3);
+        Database.getBufferPool().flushAllPages();
+
+        LogFile log = Database.getLogFile();
+        long first = log.tidToFirstLogRecord.get(t1.getId().getId());
+        long last = log.tidToLastLogRecord.get(t1.getId().getId());
+        log.force();
+        LogSegments segments = new LogSegments(log.logFile, LogSegments.DEFAULT_SEGMENT_SIZE);
+        LogSegments.Reader reader = segments.reader(last);
+        int records = 0;
+        for (long lsn = last; lsn != LogRecord.NO_LSN; records++) {
+            reader.seek(lsn);
+            LogRecord r = reader.next();
+            assertEquals(t1.getId().getId(), r.tid);
+            if (r.prevLsn == LogRecord.NO_LSN)
+                assertEquals(first, lsn);
+            lsn = r.prevLsn;
+        }
+        reader.close();
+        assertEquals(3, records); // BEGIN and two UPDATEs
+
+        log.logAbort(t1.getId());
+        Database.getBufferPool().transactionComplete(t1.getId(), false);
+        t2.commit();
+        assertEquals(0, count(1));
+        assertEquals(0, count(3));
+        assertEquals(1, count(hf2, 2));
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(LogRecoveryTest.class);
+    }
+}
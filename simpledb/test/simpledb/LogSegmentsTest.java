@@ -0,0 +1,130 @@
+package simpledb;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+import java.io.*;
+import java.util.*;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class LogSegmentsTest extends SimpleDbTestBase {
+    private File f;
+    private LogSegments segments;
+    private int len;
+
+    /**
+     * Set up initial resources for each unit test.
+     */
+    @Before
+    public void setUp() throws Exception {
+        f = File.createTempFile("logsegments", ".log");
+        f.deleteOnExit();
+        len = record(0).length;
+        // three records per segment, and some padding
+        segments = new LogSegments(f, 3 * len + len / 2);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        segments.close();
+        // every segment, which deleteOnExit does not know about
+        segments.deleteBefore(Long.MAX_VALUE);
+    }
+
+    private static byte[] record(long tid) throws IOException {
+        return new LogRecord(LogFile.COMMIT_RECORD, tid).toBytes(0);
+    }
+
+    /** @return the LSNs of the records of the log, from the given LSN on */
+    private List<Long> lsns(LogSegments segments, long from) throws IOException {
+        ArrayList<Long> lsns = new ArrayList<Long>();
+        LogSegments.Reader reader = segments.reader(from);
+        try {
+            while (true)
+                lsns.add(reader.next().lsn);
+        } catch (EOFException e) {
+            return lsns;
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * Records never span two segments, and are read back across the padding
+     */
+    @Test
+    public void recordsInSegments() throws Exception {
+        LogBuffer buffer = new LogBuffer(segments, 0, 2 * len);
+        ArrayList<Long> appended = new ArrayList<Long>();
+        for (int i = 0; i < 20; i++)
+            appended.add(buffer.append(record(i)));
+        buffer.forceAll();
+
+        for (int i = 0; i < 20; i++)
+            assertEquals((i / 3) * segments.segmentSize + (i % 3) * len, (long) appended.get(i));
+        assertEquals(7, segments.segments().size());
+        assertEquals(appended, lsns(segments, 0));
+    }
+
+    /**
+     * Truncation deletes whole segments and leaves the LSNs of the other
+     * records unchanged
+     */
+    @Test
+    public void deleteBefore() throws Exception {
+        LogBuffer buffer = new LogBuffer(segments, 0, 2 * len);
+        ArrayList<Long> appended = new ArrayList<Long>();
+        for (int i = 0; i < 20; i++)
+            appended.add(buffer.append(record(i)));
+        buffer.forceAll();
+
+        segments.deleteBefore(appended.get(10));
+        assertEquals(appended.get(9), (Long) segments.firstLsn());
+        assertEquals(appended.subList(9, 20), lsns(segments, segments.firstLsn()));
+
+        // appending goes on at the same LSNs
+        assertEquals(appended.get(19) + len, buffer.append(record(20)));
+        buffer.forceAll();
+        assertEquals(12, lsns(segments, segments.firstLsn()).size());
+    }
+
+    /**
+     * A checkpoint drops the segments that no running transaction needs
+     */
+    @Test
+    public void checkpointTruncates() throws Exception {
+        File logFile = File.createTempFile("logsegments", ".log");
+        logFile.deleteOnExit();
+        LogFile log = new LogFile(logFile, 4 * len);
+        LogSegments segments = new LogSegments(logFile, 4 * len);
+        TransactionId running = new TransactionId();
+        log.logXactionBegin(running);
+        for (int i = 0; i < 20; i++) {
+            TransactionId tid = new TransactionId();
+            log.logXactionBegin(tid);
+            log.logCommit(tid);
+        }
+        log.logCheckpoint();
+        assertEquals(0, segments.firstLsn());
+
+        log.logCommit(running);
+        log.logCheckpoint();
+        assertTrue(segments.firstLsn() > 0);
+        assertEquals(1, lsns(segments, segments.firstLsn()).size());
+
+        log.shutdown();
+        segments.truncate(0);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(LogSegmentsTest.class);
+    }
+}
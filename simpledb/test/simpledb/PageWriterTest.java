@@ -0,0 +1,81 @@
+package simpledb;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+import java.io.File;
+import java.util.*;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class PageWriterTest extends SimpleDbTestBase {
+
+    private static byte[] filled(int len, int value) {
+        byte[] data = new byte[len];
+        Arrays.fill(data, (byte) value);
+        return data;
+    }
+
+    /**
+     * Adjacent pages are merged into one write, and every page lands at its offset
+     */
+    @Test
+    public void coalescesAdjacentPages() throws Exception {
+        File f = File.createTempFile("pagewriter", ".dat");
+        f.deleteOnExit();
+        TreeMap<Long, byte[]> pages = new TreeMap<Long, byte[]>();
+        pages.put(2L * 16, filled(16, 3));
+        pages.put(0L, filled(16, 1));
+        pages.put(1L * 16, filled(16, 2));
+        pages.put(5L * 16, filled(16, 6));
+
+        assertEquals(2, PageWriter.write(f, pages));
+
+        byte[] written = TestUtil.readFileBytes(f.getAbsolutePath());
+        assertEquals(6 * 16, written.length);
+        for (int i = 0; i < 6; i++) {
+            int expected = (i == 3 || i == 4) ? 0 : i + 1;
+            assertEquals(expected, written[i * 16]);
+            assertEquals(expected, written[i * 16 + 15]);
+        }
+    }
+
+    /**
+     * Flushing the buffer pool writes each dirty page through DbFile.writePages
+     */
+    @Test
+    public void flushAllPagesWritesDirtyPages() throws Exception {
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 2000, null, null);
+        TransactionId tid = new TransactionId();
+        BufferPool bp = Database.getBufferPool();
+        for (int i = 0; i < hf.numPages(); i++) {
+            HeapPage p = (HeapPage) bp.getPage(tid, new HeapPageId(hf.getId(), i), Permissions.READ_WRITE);
+            Iterator<Tuple> it = p.iterator();
+            p.deleteTuple(it.next());
+            p.markDirty(true, tid);
+        }
+        bp.flushAllPages();
+        assertEquals(hf.numPages(), bp.getStats().getFlushes(hf.getId()));
+        assertEquals(0, bp.getStats().getDirtyPages());
+
+        Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        DbFileIterator it = hf.iterator(tid);
+        it.open();
+        int count = 0;
+        while (it.hasNext()) {
+            it.next();
+            count++;
+        }
+        assertEquals(2000 - hf.numPages(), count);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(PageWriterTest.class);
+    }
+}
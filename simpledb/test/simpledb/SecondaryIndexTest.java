@@ -0,0 +1,472 @@
+package simpledb;
+
+import simpledb.Predicate.Op;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+import java.io.*;
+import java.util.*;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class SecondaryIndexTest extends SimpleDbTestBase {
+	private TransactionId tid;
+	private ArrayList<ArrayList<Integer>> tuples;
+	private HeapFile hf;
+	private SecondaryIndex index;
+
+	/**
+	 * Set up initial resources for each unit test.
+	 */
+	@Before
+	public void setUp() throws Exception {
+		tid = new TransactionId();
+		tuples = new ArrayList<ArrayList<Integer>>();
+		// few distinct values in the indexed column, so keys repeat
+		hf = SystemTestUtil.createRandomHeapFile(2, 2000, 100, null, tuples, "c");
+		File f = File.createTempFile("index", ".dat");
+		f.delete();
+		f.deleteOnExit();
+		index = SecondaryIndex.create(tid, hf, 1, f);
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		Database.getBufferPool().transactionComplete(tid);
+	}
+
+	private static ArrayList<Integer> values(Tuple t) {
+		ArrayList<Integer> values = new ArrayList<Integer>();
+		for(int i = 0; i < t.getTupleDesc().numFields(); i++) {
+			values.add(((IntField) t.getField(i)).getValue());
+		}
+		return values;
+	}
+
+	/** @return the tuples of the table matching the predicate on the indexed column, sorted */
+	private List<ArrayList<Integer>> expected(Op op, int value) {
+		ArrayList<ArrayList<Integer>> matching = new ArrayList<ArrayList<Integer>>();
+		for(ArrayList<Integer> t : tuples) {
+			if(new IntField(t.get(1)).compare(op, new IntField(value))) {
+				matching.add(t);
+			}
+		}
+		return sorted(matching);
+	}
+
+	private static final Comparator<ArrayList<Integer>> LEXICOGRAPHIC = new Comparator<ArrayList<Integer>>() {
+		public int compare(ArrayList<Integer> a, ArrayList<Integer> b) {
+			for(int i = 0; i < a.size(); i++) {
+				if(!a.get(i).equals(b.get(i))) {
+					return a.get(i).compareTo(b.get(i));
+				}
+			}
+			return 0;
+		}
+	};
+
+	private static List<ArrayList<Integer>> sorted(List<ArrayList<Integer>> tuples) {
+		Collections.sort(tuples, new Comparator<ArrayList<Integer>>() {
+			public int compare(ArrayList<Integer> a, ArrayList<Integer> b) {
+				return a.get(1).equals(b.get(1)) ? a.get(0).compareTo(b.get(0)) : a.get(1).compareTo(b.get(1));
+			}
+		});
+		return tuples;
+	}
+
+	/**
+	 * Point and range lookups return the matching tuples of the table, in
+	 * the order of the indexed column
+	 */
+	@Test
+	public void lookups() throws Exception {
+		for(Op op : new Op[] { Op.EQUALS, Op.LESS_THAN, Op.GREATER_THAN_OR_EQ }) {
+			int value = tuples.get(0).get(1);
+			ArrayList<ArrayList<Integer>> found = new ArrayList<ArrayList<Integer>>();
+			DbFileIterator it = index.iterator(tid, new IndexPredicate(op, new IntField(value)));
+			it.open();
+			int last = Integer.MIN_VALUE;
+			while(it.hasNext()) {
+				Tuple t = it.next();
+				assertEquals(hf.getId(), t.getRecordId().getPageId().getTableId());
+				ArrayList<Integer> v = values(t);
+				assertTrue(v.get(1) >= last);
+				last = v.get(1);
+				found.add(v);
+			}
+			it.close();
+			assertEquals(expected(op, value), sorted(found));
+		}
+	}
+
+	/**
+	 * Inserting and deleting tuples through the buffer pool maintains the
+	 * index, and aborting rolls it back with the table
+	 */
+	@Test
+	public void maintenance() throws Exception {
+		BufferPool bp = Database.getBufferPool();
+		Tuple t = new Tuple(hf.getTupleDesc());
+		t.setField(0, new IntField(-1));
+		t.setField(1, new IntField(1000));
+		bp.insertTuple(tid, hf.getId(), t);
+
+		IndexPredicate ipred = new IndexPredicate(Op.EQUALS, new IntField(1000));
+		DbFileIterator it = index.iterator(tid, ipred);
+		it.open();
+		assertTrue(it.hasNext());
+		Tuple found = it.next();
+		assertEquals(t.getRecordId(), found.getRecordId());
+		assertFalse(it.hasNext());
+		it.close();
+
+		bp.deleteTuple(tid, found);
+		it.open();
+		assertFalse(it.hasNext());
+		it.close();
+
+		// delete every tuple with some value, then abort
+		Tuple victim = null;
+		it = index.iterator(tid, new IndexPredicate(Op.EQUALS, new IntField(tuples.get(0).get(1))));
+		it.open();
+		int count = 0;
+		while(it.hasNext()) {
+			victim = it.next();
+			count++;
+		}
+		it.close();
+		assertTrue(count > 0);
+		bp.deleteTuple(tid, victim);
+		it.open();
+		int left = 0;
+		while(it.hasNext()) {
+			assertFalse(victim.getRecordId().equals(it.next().getRecordId()));
+			left++;
+		}
+		it.close();
+		assertEquals(count - 1, left);
+		bp.transactionComplete(tid, false);
+
+		tid = new TransactionId();
+		it = index.iterator(tid, new IndexPredicate(Op.EQUALS, new IntField(tuples.get(0).get(1))));
+		it.open();
+		left = 0;
+		while(it.hasNext()) {
+			it.next();
+			left++;
+		}
+		it.close();
+		assertEquals(count, left);
+	}
+
+	/**
+	 * B+ tree entries are keyed on the value, page and slot of the tuple, so
+	 * tuples with the same value come out in the order of the table, and
+	 * each entry is found by its whole key
+	 */
+	@Test
+	public void duplicateValues() throws Exception {
+		BTreeFile bf = (BTreeFile) index.getFile();
+		assertArrayEquals(new int[] { 0, 1, 2 }, bf.keyFields());
+
+		ArrayList<Tuple> same = new ArrayList<Tuple>();
+		IndexPredicate ipred = new IndexPredicate(Op.EQUALS, new IntField(tuples.get(0).get(1)));
+		DbFileIterator it = index.iterator(tid, ipred);
+		it.open();
+		while(it.hasNext()) {
+			Tuple t = it.next();
+			if(!same.isEmpty()) {
+				RecordId last = same.get(same.size() - 1).getRecordId();
+				RecordId rid = t.getRecordId();
+				int page = rid.getPageId().getPageNumber() - last.getPageId().getPageNumber();
+				assertTrue(page > 0 || (page == 0 && rid.getTupleNumber() > last.getTupleNumber()));
+			}
+			same.add(t);
+		}
+		it.close();
+		assertTrue(same.size() > 2);
+
+		Tuple victim = same.get(same.size() / 2);
+		RecordId rid = victim.getRecordId();
+		Field key = new CompositeField(new Field[] { victim.getField(1),
+				new IntField(rid.getPageId().getPageNumber()), new IntField(rid.getTupleNumber()) });
+		DbFileIterator entries = bf.indexIterator(tid, new IndexPredicate(Op.EQUALS, key));
+		entries.open();
+		assertTrue(entries.hasNext());
+		entries.next();
+		assertFalse(entries.hasNext());
+		entries.close();
+
+		Database.getBufferPool().deleteTuple(tid, victim);
+		entries.open();
+		assertFalse(entries.hasNext());
+		entries.close();
+		it.open();
+		int left = 0;
+		while(it.hasNext()) {
+			assertFalse(rid.equals(it.next().getRecordId()));
+			left++;
+		}
+		it.close();
+		assertEquals(same.size() - 1, left);
+	}
+
+	/**
+	 * The planner looks tuples up through an index on a filtered column
+	 */
+	@Test
+	public void plan() throws Exception {
+		String name = Database.getCatalog().getTableName(hf.getId());
+		HashMap<String, TableStats> stats = new HashMap<String, TableStats>();
+		stats.put(name, new TableStats(hf.getId(), 1000));
+		int value = tuples.get(0).get(1);
+
+		LogicalPlan lp = new LogicalPlan();
+		lp.addScan(hf.getId(), "t");
+		lp.addFilter("t.c1", Op.EQUALS, Integer.toString(value));
+		lp.addProjectField("t.c0", null);
+		lp.addProjectField("t.c1", null);
+		OpIterator plan = lp.physicalPlan(tid, stats, false);
+
+		ArrayList<OpIterator> ops = new ArrayList<OpIterator>();
+		ops.add(plan);
+		boolean indexed = false;
+		while(!ops.isEmpty()) {
+			OpIterator op = ops.remove(ops.size() - 1);
+			indexed |= op instanceof BTreeScan;
+			assertFalse(op instanceof SeqScan);
+			if(op instanceof Operator) {
+				ops.addAll(Arrays.asList(((Operator) op).getChildren()));
+			}
+		}
+		assertTrue(indexed);
+
+		ArrayList<ArrayList<Integer>> found = new ArrayList<ArrayList<Integer>>();
+		plan.open();
+		while(plan.hasNext()) {
+			found.add(values(plan.next()));
+		}
+		plan.close();
+		assertEquals(expected(Op.EQUALS, value), sorted(found));
+	}
+
+	/** @return the result of a query over a table through the planner, which must scan an index */
+	private ArrayList<ArrayList<Integer>> query(TransactionId tid, HeapFile hf, String filter, Op op, int value,
+			String... fields) throws Exception {
+		HashMap<String, TableStats> stats = new HashMap<String, TableStats>();
+		stats.put(Database.getCatalog().getTableName(hf.getId()), new TableStats(hf.getId(), 1000));
+		LogicalPlan lp = new LogicalPlan();
+		lp.addScan(hf.getId(), "t");
+		lp.addFilter("t." + filter, op, Integer.toString(value));
+		for(String f : fields) {
+			lp.addProjectField("t." + f, null);
+		}
+		OpIterator plan = lp.physicalPlan(tid, stats, false);
+		assertTrue(((Operator) plan).getChildren()[0] instanceof BTreeScan);
+
+		ArrayList<ArrayList<Integer>> found = new ArrayList<ArrayList<Integer>>();
+		plan.open();
+		while(plan.hasNext()) {
+			found.add(values(plan.next()));
+		}
+		plan.close();
+		return found;
+	}
+
+	/** @return true if the transaction locked a page of the table */
+	private static boolean readTable(TransactionId tid, HeapFile hf) {
+		for(int i = 0; i < hf.numPages(); i++) {
+			if(Database.getBufferPool().holdsLock(tid, new HeapPageId(hf.getId(), i))) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * A query referencing only the columns of an index with included columns
+	 * is answered from the index alone
+	 */
+	@Test
+	public void covering() throws Exception {
+		ArrayList<ArrayList<Integer>> rows = new ArrayList<ArrayList<Integer>>();
+		HeapFile wide = SystemTestUtil.createRandomHeapFile(3, 2000, 100, null, rows, "d");
+		File f = File.createTempFile("index", ".dat");
+		f.delete();
+		f.deleteOnExit();
+		SecondaryIndex covering = SecondaryIndex.create(tid, wide, 1, new int[] { 2 }, f);
+		Database.getBufferPool().transactionComplete(tid);
+		tid = new TransactionId();
+		assertTrue(covering.covers(Arrays.asList(1, 2)));
+		assertFalse(covering.covers(Arrays.asList(0, 1)));
+
+		int value = rows.get(0).get(1);
+		ArrayList<ArrayList<Integer>> expected = new ArrayList<ArrayList<Integer>>();
+		for(ArrayList<Integer> r : rows) {
+			if(r.get(1) >= value) {
+				expected.add(new ArrayList<Integer>(r.subList(1, 3)));
+			}
+		}
+		Collections.sort(expected, LEXICOGRAPHIC);
+
+		// the entries hold the indexed and the included column
+		ArrayList<ArrayList<Integer>> found = new ArrayList<ArrayList<Integer>>();
+		DbFileIterator it = covering.coveringIterator(tid,
+				new IndexPredicate(Op.GREATER_THAN_OR_EQ, new IntField(value)));
+		it.open();
+		while(it.hasNext()) {
+			Tuple t = it.next();
+			assertEquals(2, t.getTupleDesc().numFields());
+			found.add(values(t));
+		}
+		it.close();
+		Collections.sort(found, LEXICOGRAPHIC);
+		assertEquals(expected, found);
+		assertFalse(readTable(tid, wide));
+
+		// through the planner
+		found = query(tid, wide, "d1", Op.GREATER_THAN_OR_EQ, value, "d2", "d1");
+		assertFalse(readTable(tid, wide));
+		for(ArrayList<Integer> r : found) {
+			Collections.reverse(r);
+		}
+		Collections.sort(found, LEXICOGRAPHIC);
+		assertEquals(expected, found);
+
+		// another column needs the table
+		assertEquals(expected.size(), query(tid, wide, "d1", Op.GREATER_THAN_OR_EQ, value, "d0", "d1").size());
+		assertTrue(readTable(tid, wide));
+	}
+
+	/**
+	 * CREATE INDEX on a heap file table builds a secondary index, with its
+	 * included columns, which later inserts into the table maintain
+	 */
+	@Test
+	public void createIndexStatement() throws Exception {
+		HeapFile wide = SystemTestUtil.createRandomHeapFile(3, 2000, 100, null, null, "e");
+		String name = "ix" + System.nanoTime();
+		Database.getCatalog().addTable(wide, name + "_table");
+		File f = new File(wide.getFile().getAbsoluteFile().getParentFile(), name + ".dat");
+		f.deleteOnExit();
+		new Parser().handleCreateIndexStatement("create index " + name + " on " + name + "_table (e1) include (e2)");
+		SecondaryIndex created = Database.getCatalog().getIndex(wide.getId(), 1);
+		assertNotNull(created);
+		assertTrue(created.covers(Arrays.asList(1, 2)));
+
+		Tuple t = new Tuple(wide.getTupleDesc());
+		t.setField(0, new IntField(-1));
+		t.setField(1, new IntField(1000));
+		t.setField(2, new IntField(-2));
+		Database.getBufferPool().insertTuple(tid, wide.getId(), t);
+
+		IndexPredicate ipred = new IndexPredicate(Op.EQUALS, new IntField(1000));
+		DbFileIterator it = created.iterator(tid, ipred);
+		it.open();
+		assertTrue(it.hasNext());
+		assertEquals(Arrays.asList(-1, 1000, -2), values(it.next()));
+		assertFalse(it.hasNext());
+		it.close();
+		it = created.coveringIterator(tid, ipred);
+		it.open();
+		assertTrue(it.hasNext());
+		assertEquals(Arrays.asList(1000, -2), values(it.next()));
+		assertFalse(it.hasNext());
+		it.close();
+	}
+
+	/** @return the tuples found through an index for a value of the indexed column */
+	private static ArrayList<ArrayList<Integer>> lookup(TransactionId tid, SecondaryIndex index, int value)
+			throws Exception {
+		ArrayList<ArrayList<Integer>> found = new ArrayList<ArrayList<Integer>>();
+		DbFileIterator it = index.iterator(tid, new IndexPredicate(Op.EQUALS, new IntField(value)));
+		it.open();
+		while(it.hasNext()) {
+			found.add(values(it.next()));
+		}
+		it.close();
+		return found;
+	}
+
+	/**
+	 * An index can be built on a table without any page yet, and is kept up
+	 * to date as the table fills
+	 */
+	@Test
+	public void emptyTable() throws Exception {
+		File table = File.createTempFile("empty", ".dat");
+		table.deleteOnExit();
+		HeapFile empty = Utility.openHeapFile(2, table);
+		assertEquals(0, empty.numPages());
+		File f = File.createTempFile("index", ".dat");
+		f.delete();
+		f.deleteOnExit();
+		SecondaryIndex created = SecondaryIndex.create(tid, empty, 1, f);
+		assertTrue(lookup(tid, created, 5).isEmpty());
+
+		Database.getBufferPool().insertTuple(tid, empty.getId(), Utility.getHeapTuple(new int[] { 4, 5 }));
+		assertEquals(Arrays.asList(Arrays.asList(4, 5)), lookup(tid, created, 5));
+	}
+
+	/**
+	 * CREATE INDEX saves the index to the schema file, and loading the schema
+	 * again registers it before the log is recovered, which replays the
+	 * committed updates of the index file
+	 */
+	@Test
+	public void savedInSchema() throws Exception {
+		// a log of this test's updates only
+		Database.reset();
+		File dir = File.createTempFile("schema", "");
+		dir.delete();
+		dir.mkdir();
+		dir.deleteOnExit();
+		String name = "s" + System.nanoTime();
+		File schema = new File(dir, "catalog.txt");
+		schema.deleteOnExit();
+		FileWriter w = new FileWriter(schema);
+		w.write(name + " (a int, b int)");
+		w.close();
+		new File(dir, name + ".dat").deleteOnExit();
+		new File(dir, name + "_b.dat").deleteOnExit();
+
+		Database.getCatalog().loadSchema(schema.getPath());
+		int tableid = Database.getCatalog().getTableId(name);
+		new Parser().handleCreateIndexStatement("create index " + name + "_b on " + name
+				+ " (b) include (a) with (fillfactor = 80)");
+		BufferedReader r = new BufferedReader(new FileReader(schema));
+		assertEquals(name + " (a int, b int)", r.readLine());
+		assertEquals("index " + name + "_b on " + name + " (b) include (a) with (fillfactor = 80)", r.readLine());
+		assertNull(r.readLine());
+		r.close();
+
+		Transaction t = new Transaction();
+		t.start();
+		Database.getBufferPool().insertTuple(t.getId(), tableid, Utility.getHeapTuple(new int[] { 4, 5 }));
+		t.commit();
+
+		// restart, dropping the buffer pool
+		Database.reset();
+		Database.getCatalog().loadSchema(schema.getPath());
+		SecondaryIndex loaded = Database.getCatalog().getIndex(tableid, 1);
+		assertNotNull(loaded);
+		assertTrue(loaded.covers(Arrays.asList(0, 1)));
+		assertEquals(0.8, ((BTreeFile) loaded.getFile()).getFillFactor(), 0);
+		Database.getLogFile().recover();
+
+		tid = new TransactionId();
+		assertEquals(Arrays.asList(Arrays.asList(4, 5)), lookup(tid, loaded, 5));
+	}
+
+	/**
+	 * JUnit suite target
+	 */
+	public static junit.framework.Test suite() {
+		return new JUnit4TestAdapter(SecondaryIndexTest.class);
+	}
+}
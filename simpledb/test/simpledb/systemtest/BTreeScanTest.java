@@ -212,16 +212,18 @@ public class BTreeScanTest extends SimpleDbTestBase {
     	
     	ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
         int keyField = 0;
-        BTreeFile f = BTreeUtility.createBTreeFile(2, LEAF_PAGES*502, null, tuples, keyField);
+        BTreeFile f = BTreeUtility.createBTreeFile(2, LEAF_PAGES*501, null, tuples, keyField);
         Collections.sort(tuples, new TupleComparator(keyField));
         TupleDesc td = Utility.getTupleDesc(2);
         InstrumentedBTreeFile table = new InstrumentedBTreeFile(f.getFile(), keyField, td);
         Database.getCatalog().addTable(table, SystemTestUtil.getUUID());
+        // count the pages the scans read themselves, not the leaves read ahead
+        table.setPrefetchDepth(0);
         
         // EQUALS
         TransactionId tid = new TransactionId();
         ArrayList<ArrayList<Integer>> tuplesFiltered = new ArrayList<ArrayList<Integer>>();
-        IndexPredicate ipred = new IndexPredicate(Op.EQUALS, new IntField(r.nextInt(LEAF_PAGES*502)));
+        IndexPredicate ipred = new IndexPredicate(Op.EQUALS, new IntField(r.nextInt(LEAF_PAGES*501)));
         Iterator<ArrayList<Integer>> it = tuples.iterator();
         while(it.hasNext()) {
         	ArrayList<Integer> tup = it.next();
@@ -239,7 +241,7 @@ public class BTreeScanTest extends SimpleDbTestBase {
         
         // LESS_THAN
         tuplesFiltered.clear();
-        ipred = new IndexPredicate(Op.LESS_THAN, new IntField(r.nextInt(LEAF_PAGES*502)));
+        ipred = new IndexPredicate(Op.LESS_THAN, new IntField(r.nextInt(LEAF_PAGES*501)));
         it = tuples.iterator();
         while(it.hasNext()) {
         	ArrayList<Integer> tup = it.next();
@@ -253,14 +255,14 @@ public class BTreeScanTest extends SimpleDbTestBase {
         scan = new BTreeScan(tid, f.getId(), "table", ipred);
         SystemTestUtil.matchTuples(scan, tuplesFiltered);
         // root pointer page + root + leaf pages
-        int leafPageCount = tuplesFiltered.size()/502;
+        int leafPageCount = tuplesFiltered.size()/501;
         if(leafPageCount < LEAF_PAGES)
         	leafPageCount++; // +1 for next key locking
         assertEquals(leafPageCount + 2, table.readCount);
         
         // GREATER_THAN
         tuplesFiltered.clear();
-        ipred = new IndexPredicate(Op.GREATER_THAN_OR_EQ, new IntField(r.nextInt(LEAF_PAGES*502)));
+        ipred = new IndexPredicate(Op.GREATER_THAN_OR_EQ, new IntField(r.nextInt(LEAF_PAGES*501)));
         it = tuples.iterator();
         while(it.hasNext()) {
         	ArrayList<Integer> tup = it.next();
@@ -274,7 +276,7 @@ public class BTreeScanTest extends SimpleDbTestBase {
         scan = new BTreeScan(tid, f.getId(), "table", ipred);
         SystemTestUtil.matchTuples(scan, tuplesFiltered);
         // root pointer page + root + leaf pages
-        leafPageCount = tuplesFiltered.size()/502;
+        leafPageCount = tuplesFiltered.size()/501;
         if(leafPageCount < LEAF_PAGES)
         	leafPageCount++; // +1 for next key locking
         assertEquals(leafPageCount + 2, table.readCount);